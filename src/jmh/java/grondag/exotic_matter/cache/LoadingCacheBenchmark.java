@@ -0,0 +1,333 @@
+package grondag.exotic_matter.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Compares the custom loading caches in this package against Guava LoadingCache
+ * and a bare ConcurrentHashMap.<p>
+ *
+ * All caches are created with the same nominal max size ({@link #CACHE_SIZE}). Workloads
+ * differ only in the size of the (uniformly random) key space relative to that size:
+ * <ul>
+ * <li>HIT - key space is half the cache size and the cache is pre-loaded. Nearly every call is a hit.</li>
+ * <li>ROLLOVER - key space is about 1.4X the fill limit of the custom caches, so the active state
+ * fills and is swapped into the backup state over and over. Most misses are served from backup.</li>
+ * <li>MISS - key space is 16X the cache size. Most calls go to the loader.</li>
+ * </ul>
+ *
+ * Each workload is measured at 1, 4 and all available threads.
+ * Run with <code>gradle jmh</code> or <code>gradle jmh -PjmhInclude=LoadingCacheBenchmark</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadingCacheBenchmark
+{
+    public static final int CACHE_SIZE = 0xFFFF;
+
+    /**
+     * Simulated cost of each load, in JMH CPU tokens. Real loaders (meshing, CSG) are
+     * much more expensive, but this keeps loader time from hiding cache overhead.
+     */
+    public static final int LOAD_TOKENS = 64;
+
+    /** added to key to produce result */
+    private static final long MAGIC_NUMBER = 42L;
+
+    public static enum Workload
+    {
+        HIT(0x7FFF),
+        ROLLOVER(0x1FFFF),
+        MISS(0xFFFFF);
+
+        /** all keys are random longs masked by this value */
+        public final long keyMask;
+
+        private Workload(long keyMask)
+        {
+            this.keyMask = keyMask;
+        }
+    }
+
+    public static enum CacheType
+    {
+        LONG_SIMPLE
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final LongSimpleLoadingCache<Long> cache = new LongSimpleLoadingCache<Long>(LOADER, maxSize);
+                return k -> cache.get(k);
+            }
+        },
+
+        LONG_SIMPLE_CLOCK
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final LongSimpleLoadingCache<Long> cache = new LongSimpleLoadingCache<Long>(LOADER, maxSize, EvictionPolicy.CLOCK, false);
+                return k -> cache.get(k);
+            }
+        },
+
+        LONG_ATOMIC
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final LongAtomicLoadingCache<Long> cache = new LongAtomicLoadingCache<Long>(LOADER, maxSize);
+                return k -> cache.get(k);
+            }
+        },
+
+        LONG_ATOMIC_SINGLE_FLIGHT
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final LongAtomicLoadingCache<Long> cache = new LongAtomicLoadingCache<Long>(LOADER, maxSize, EvictionPolicy.ROLLOVER, false, true);
+                return k -> cache.get(k);
+            }
+        },
+
+        INT_SIMPLE
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final IntSimpleLoadingCache<Long> cache = new IntSimpleLoadingCache<Long>(LOADER, maxSize);
+                return k -> cache.get((int) k);
+            }
+        },
+
+        WIDE_SIMPLE
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final WideSimpleLoadingCache<Long> cache = new WideSimpleLoadingCache<Long>(LOADER, maxSize);
+                return k -> cache.get(k, k * 31);
+            }
+        },
+
+        OBJECT_SIMPLE
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final ObjectSimpleLoadingCache<Long, Long> cache = new ObjectSimpleLoadingCache<Long, Long>(LOADER, maxSize);
+                return k -> cache.get(k);
+            }
+        },
+
+        OBJECT_SIMPLE_CLOCK
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final ObjectSimpleLoadingCache<Long, Long> cache = new ObjectSimpleLoadingCache<Long, Long>(LOADER, maxSize, EvictionPolicy.CLOCK, false);
+                return k -> cache.get(k);
+            }
+        },
+
+        OBJECT_ATOMIC
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final ObjectAtomicLoadingCache<Long, Long> cache = new ObjectAtomicLoadingCache<Long, Long>(LOADER, maxSize);
+                return k -> cache.get(k);
+            }
+        },
+
+        GUAVA
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final LoadingCache<Long, Long> cache = CacheBuilder.newBuilder()
+                        .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                        .initialCapacity(maxSize)
+                        .maximumSize(maxSize)
+                        .build(LOADER);
+                return k -> cache.getUnchecked(k);
+            }
+        },
+
+        /**
+         * Baseline - not a real cache. Cleared whenever it reaches max size,
+         * which is roughly what the custom caches do on rollover.
+         */
+        CONCURRENT_HASH_MAP
+        {
+            @Override
+            CacheAdapter create(int maxSize)
+            {
+                final ConcurrentHashMap<Long, Long> map = new ConcurrentHashMap<>(maxSize);
+                final AtomicInteger fillCount = new AtomicInteger();
+                return k ->
+                {
+                    final Long key = k;
+                    Long result = map.get(key);
+                    if(result == null)
+                    {
+                        result = map.computeIfAbsent(key, x ->
+                        {
+                            fillCount.incrementAndGet();
+                            return LOADER.load(x);
+                        });
+                        if(fillCount.get() >= maxSize)
+                        {
+                            map.clear();
+                            fillCount.set(0);
+                        }
+                    }
+                    return result;
+                };
+            }
+        };
+
+        abstract CacheAdapter create(int maxSize);
+    }
+
+    @FunctionalInterface
+    static interface CacheAdapter
+    {
+        long get(long key);
+    }
+
+    private static class Loader extends CacheLoader<Long, Long> implements LongSimpleCacheLoader<Long>, IntSimpleCacheLoader<Long>, WideSimpleCacheLoader<Long>, ObjectSimpleCacheLoader<Long, Long>
+    {
+        @Override
+        public Loader createNew()
+        {
+            return new Loader();
+        }
+
+        @Override
+        public Long load(long key)
+        {
+            Blackhole.consumeCPU(LOAD_TOKENS);
+            return key + MAGIC_NUMBER;
+        }
+
+        @Override
+        public Long load(int key)
+        {
+            return load((long) key);
+        }
+
+        @Override
+        public Long load(long key1, long key2)
+        {
+            return load(key1);
+        }
+
+        @Override
+        public Long load(Long key)
+        {
+            return load(key.longValue());
+        }
+    }
+
+    private static final Loader LOADER = new Loader();
+
+    @Param
+    public CacheType cacheType;
+
+    @Param
+    public Workload workload;
+
+    private CacheAdapter subject;
+
+    private long keyMask;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.subject = cacheType.create(CACHE_SIZE);
+        this.keyMask = workload.keyMask;
+
+        if(workload == Workload.HIT)
+        {
+            for(long k = 0; k <= keyMask; k++)
+            {
+                subject.get(k);
+            }
+        }
+    }
+
+    /**
+     * Per-thread key generator. Xorshift so that key generation cost stays
+     * small and identical for every cache under test.
+     */
+    @State(Scope.Thread)
+    public static class KeySource
+    {
+        private long seed;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            long s = ThreadLocalRandom.current().nextLong();
+            this.seed = s == 0 ? 1 : s;
+        }
+
+        public long next(long mask)
+        {
+            long x = seed;
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            seed = x;
+            return x & mask;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long get1Thread(KeySource keys)
+    {
+        return subject.get(keys.next(keyMask));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long get4Threads(KeySource keys)
+    {
+        return subject.get(keys.next(keyMask));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long getMaxThreads(KeySource keys)
+    {
+        return subject.get(keys.next(keyMask));
+    }
+}
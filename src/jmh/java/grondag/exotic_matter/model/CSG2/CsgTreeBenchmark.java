@@ -0,0 +1,125 @@
+package grondag.exotic_matter.model.CSG2;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import grondag.exotic_matter.model.mesh.MeshHelper;
+import grondag.exotic_matter.model.painting.Surface;
+import grondag.exotic_matter.model.painting.SurfaceTopology;
+import grondag.exotic_matter.model.primitives.stream.CsgPolyStream;
+import grondag.exotic_matter.model.primitives.stream.IPolyStream;
+import grondag.exotic_matter.model.primitives.stream.IWritablePolyStream;
+import grondag.exotic_matter.model.primitives.stream.PolyStreams;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * Compares BSP trees built in insertion order (the default) with balanced trees built
+ * on completion. See {@link CsgPolyStream#setBalancedTree(boolean)}.<p>
+ *
+ * Meshes are clusters of overlapping icosahedra at random positions. Their faces are added
+ * one sphere at a time, which is the worst case for an insertion-order tree because the
+ * first faces rarely divide the rest of the mesh evenly.<p>
+ *
+ * {@link #build} measures tree construction alone. {@link #clip} builds a tree from the
+ * mesh and clips a second, fixed mesh to it, so clip time is the difference between the two.
+ * Poly count, node count and depth of each tree are printed during setup.
+ * Run with <code>gradle jmh -PjmhInclude=CsgTreeBenchmark</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CsgTreeBenchmark
+{
+    private static final Surface SURFACE = Surface.builder(SurfaceTopology.CUBIC).build();
+    
+    @Param({"1", "8", "32"})
+    public int sphereCount;
+    
+    @Param({"false", "true"})
+    public boolean balanced;
+    
+    private IPolyStream mesh;
+    
+    private IPolyStream target;
+    
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        mesh = makeSpheres(sphereCount, 42);
+        target = makeSpheres(sphereCount, 7);
+        
+        CsgPolyStream tree = PolyStreams.claimCSG(mesh, balanced);
+        tree.complete();
+        int polyCount = 0;
+        if(tree.origin())
+            do
+                polyCount++;
+            while(tree.next());
+        
+        System.out.println(String.format("\nspheres=%d balanced=%b: polys=%d nodes=%d depth=%d",
+                sphereCount, balanced, polyCount, tree.nodeCount(), tree.treeDepth()));
+        tree.release();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        mesh.release();
+        target.release();
+    }
+    
+    private static IPolyStream makeSpheres(int count, long seed)
+    {
+        final Random r = new Random(seed);
+        IWritablePolyStream stream = PolyStreams.claimWritable();
+        stream.writer().setSurface(SURFACE);
+        stream.saveDefaults();
+        
+        for(int i = 0; i < count; i++)
+        {
+            final double radius = 0.1 + r.nextDouble() * 0.3;
+            MeshHelper.makeIcosahedron(new Vec3d(r.nextDouble(), r.nextDouble(), r.nextDouble()), radius, stream, false);
+        }
+        return stream.releaseAndConvertToReader();
+    }
+    
+    @Benchmark
+    public void build(Blackhole bh)
+    {
+        CsgPolyStream tree = PolyStreams.claimCSG(mesh, balanced);
+        tree.complete();
+        bh.consume(tree.nodeCount());
+        tree.release();
+    }
+    
+    @Benchmark
+    public void clip(Blackhole bh)
+    {
+        CsgPolyStream tree = PolyStreams.claimCSG(mesh, balanced);
+        CsgPolyStream clipped = PolyStreams.claimCSG(target);
+        tree.complete();
+        clipped.complete();
+        clipped.clipTo(tree);
+        bh.consume(clipped.writerAddress());
+        clipped.release();
+        tree.release();
+    }
+}
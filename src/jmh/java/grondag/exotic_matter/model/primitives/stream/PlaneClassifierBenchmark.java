@@ -0,0 +1,154 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import grondag.exotic_matter.model.mesh.MeshHelper;
+import grondag.exotic_matter.model.painting.Surface;
+import grondag.exotic_matter.model.painting.SurfaceTopology;
+import grondag.exotic_matter.model.primitives.QuadHelper;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.util.math.AxisAlignedBB;
+
+/**
+ * Compares per-vertex plane tests through poly getters, as CSG streams did before,
+ * with {@link CsgPlaneClassifier}, which loads each poly once and classifies it
+ * against all planes from flat arrays.<p>
+ *
+ * Each operation tests every quad of a mesh of random boxes against the same set of random planes,
+ * about what happens as a poly is pushed down a BSP tree.
+ * Run with <code>gradle jmh -PjmhInclude=PlaneClassifierBenchmark</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PlaneClassifierBenchmark
+{
+    private static final Surface SURFACE = Surface.builder(SurfaceTopology.CUBIC).build();
+    
+    private static final int BOX_COUNT = 64;
+    
+    private static final int PLANE_COUNT = 16;
+    
+    private CsgPolyStream stream;
+    
+    private final IntArrayList polyAddresses = new IntArrayList();
+    
+    private final float[] planes = new float[PLANE_COUNT * 4];
+    
+    private final CsgPlaneClassifier classifier = new CsgPlaneClassifier();
+    
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        final Random r = new Random(42);
+        
+        IWritablePolyStream boxes = PolyStreams.claimWritable();
+        boxes.writer().setSurface(SURFACE);
+        boxes.saveDefaults();
+        for(int i = 0; i < BOX_COUNT; i++)
+        {
+            final double x = r.nextDouble();
+            final double y = r.nextDouble();
+            final double z = r.nextDouble();
+            MeshHelper.makePaintableBox(new AxisAlignedBB(x, y, z, x + r.nextDouble() * 0.5, y + r.nextDouble() * 0.5, z + r.nextDouble() * 0.5), boxes);
+        }
+        
+        stream = PolyStreams.claimCSG(boxes);
+        boxes.release();
+        
+        if(stream.origin())
+            do
+                polyAddresses.add(stream.reader.baseAddress);
+            while(stream.next());
+        
+        for(int i = 0; i < PLANE_COUNT; i++)
+        {
+            float nx = r.nextFloat() - 0.5f;
+            float ny = r.nextFloat() - 0.5f;
+            float nz = r.nextFloat() - 0.5f;
+            final float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            planes[i * 4] = nx / len;
+            planes[i * 4 + 1] = ny / len;
+            planes[i * 4 + 2] = nz / len;
+            planes[i * 4 + 3] = r.nextFloat();
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        stream.release();
+    }
+    
+    @Benchmark
+    public int perVertex()
+    {
+        final StreamBackedPolygon poly = stream.polyB;
+        final float[] planes = this.planes;
+        int result = 0;
+        
+        final int count = polyAddresses.size();
+        for(int p = 0; p < count; p++)
+        {
+            poly.moveTo(polyAddresses.getInt(p));
+            final int vCount = poly.vertexCount();
+            
+            for(int n = 0; n < PLANE_COUNT * 4; n += 4)
+            {
+                final float normalX = planes[n];
+                final float normalY = planes[n + 1];
+                final float normalZ = planes[n + 2];
+                final float dist = planes[n + 3];
+                int combinedCount = 0;
+                
+                for(int i = 0; i < vCount; i++)
+                {
+                    final float t = poly.getVertexX(i) * normalX + poly.getVertexY(i) * normalY + poly.getVertexZ(i) * normalZ - dist;
+                    if(t > QuadHelper.EPSILON)
+                        combinedCount += CsgPolyStream.FRONT_INCREMENT;
+                    else if(t < -QuadHelper.EPSILON)
+                        combinedCount += CsgPolyStream.BACK_INCREMENT;
+                }
+                result += combinedCount;
+            }
+        }
+        return result;
+    }
+    
+    @Benchmark
+    public int kernel()
+    {
+        final StreamBackedPolygon poly = stream.polyB;
+        final CsgPlaneClassifier classifier = this.classifier;
+        final float[] planes = this.planes;
+        int result = 0;
+        
+        final int count = polyAddresses.size();
+        for(int p = 0; p < count; p++)
+        {
+            poly.moveTo(polyAddresses.getInt(p));
+            classifier.load(poly);
+            
+            for(int n = 0; n < PLANE_COUNT * 4; n += 4)
+                result += classifier.classify(planes[n], planes[n + 1], planes[n + 2], planes[n + 3]);
+        }
+        return result;
+    }
+}
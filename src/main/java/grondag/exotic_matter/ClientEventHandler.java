@@ -8,6 +8,7 @@ import grondag.exotic_matter.block.SuperStateMapper;
 import grondag.exotic_matter.block.SuperTileEntity;
 import grondag.exotic_matter.font.FontHolder;
 import grondag.exotic_matter.init.IItemModelRegistrant;
+import grondag.exotic_matter.model.collision.CollisionBoxLibrary;
 import grondag.exotic_matter.model.render.BlockHighlighter;
 import grondag.exotic_matter.model.render.BlockModelDebugHighlighter;
 import grondag.exotic_matter.model.render.QuadCache;
@@ -21,6 +22,8 @@ import grondag.exotic_matter.model.varia.SuperDispatcher.DispatchDelegate;
 import grondag.exotic_matter.network.PacketHandler;
 import grondag.exotic_matter.network.PacketUpdateModifierKeys;
 import grondag.exotic_matter.player.ModifierKeys;
+import grondag.exotic_matter.terrain.TerrainMeshFactory;
+import grondag.exotic_matter.terrain.TerrainMeshStore;
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
@@ -67,7 +70,12 @@ public class ClientEventHandler
     @SubscribeEvent
     public static void onClientWorldUnload(WorldEvent.Unload event) 
     {
-        if(event.getWorld().isRemote) ClientProxy.worldStateCache.setWorld(null);
+        if(event.getWorld().isRemote) 
+        {
+            ClientProxy.worldStateCache.setWorld(null);
+            TerrainMeshStore.saveIfOpen();
+            CollisionBoxLibrary.saveIfOpen();
+        }
     }
     
     @SubscribeEvent
@@ -103,7 +111,7 @@ public class ClientEventHandler
         }
         else
         {
-            if ((ConfigXM.RENDER.enableQuadCacheStatistics || ConfigXM.RENDER.enableAnimationStatistics)
+            if ((ConfigXM.RENDER.enableQuadCacheStatistics || ConfigXM.RENDER.enableAnimationStatistics || ConfigXM.RENDER.enableModelCacheStatistics)
                     && --clientStatCounter == 0) 
             {
                 clientStatCounter = ConfigXM.RENDER.clientStatReportingInterval * 20;
@@ -112,6 +120,12 @@ public class ClientEventHandler
                 {
                     ExoticMatter.INSTANCE.info("QuadCache stats = " + QuadCache.INSTANCE.cache.stats().toString());
                 }
+                
+                if(ConfigXM.RENDER.enableModelCacheStatistics)
+                {
+                    ExoticMatter.INSTANCE.info("Block model cache stats: " + SuperDispatcher.INSTANCE.modelCacheStats().stats());
+                    ExoticMatter.INSTANCE.info("Terrain model cache stats: " + TerrainMeshFactory.modelCacheStats().stats());
+                }
     
                 if(ConfigXM.RENDER.enableAnimatedTextures && ConfigXM.RENDER.enableAnimationStatistics)
                 {
@@ -1,6 +1,7 @@
 package grondag.exotic_matter;
 
 
+import java.io.File;
 import java.util.Map;
 import java.util.function.Function;
 
@@ -20,6 +21,7 @@ import grondag.exotic_matter.model.color.BlockColorMapProvider;
 import grondag.exotic_matter.model.varia.SuperDispatcher;
 import grondag.exotic_matter.statecache.IWorldStateCache;
 import grondag.exotic_matter.statecache.WorldStateCache;
+import grondag.exotic_matter.terrain.TerrainMeshStore;
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.culling.Frustum;
@@ -130,6 +132,11 @@ public class ClientProxy extends CommonProxy implements IAcuityListener
             BlockColorMapProvider.writeColorAtlas(event.getModConfigurationDirectory());
         }
         
+        if(ConfigXM.RENDER.enableTerrainMeshStore)
+        {
+            TerrainMeshStore.setDirectory(new File(event.getModConfigurationDirectory().getParentFile(), ExoticMatter.MODID));
+        }
+        
         FMLInterModComms.sendFunctionMessage("acuity", "getAcuityRuntime", "grondag.exotic_matter.ClientProxy$AcuityRuntimeConsumer");
 
     }
@@ -1,12 +1,17 @@
 package grondag.exotic_matter;
 
+import java.io.File;
+
 import javax.annotation.Nullable;
 
 import grondag.exotic_matter.init.ModTileEntities;
+import grondag.exotic_matter.model.CSG2.CSG;
+import grondag.exotic_matter.model.collision.CollisionBoxLibrary;
 import grondag.exotic_matter.player.ModifierKeys;
 import grondag.exotic_matter.simulator.Simulator;
 import grondag.exotic_matter.statecache.IWorldStateCache;
 import grondag.exotic_matter.varia.Base32Namer;
+import grondag.exotic_matter.varia.metrics.MetricsCommand;
 import net.minecraft.nbt.NBTBase;
 import net.minecraft.util.EnumFacing;
 import net.minecraft.util.text.translation.I18n;
@@ -34,8 +39,13 @@ public abstract class CommonProxy
     {
         ExoticMatter.setLog(event.getModLog());
         ConfigXM.recalcDerived();
+        if(ConfigXM.EXECUTION.enableParallelCsg)
+            CSG.setClipPool(Simulator.SCATTER_GATHER_POOL);
         ModTileEntities.preInit(event);
         
+        if(ConfigXM.BLOCKS.enableCollisionBoxLibrary)
+            CollisionBoxLibrary.setDirectory(new File(event.getModConfigurationDirectory().getParentFile(), ExoticMatter.MODID));
+        
         ForgeChunkManager.setForcedChunkLoadingCallback(ExoticMatter.INSTANCE, Simulator.RAW_INSTANCE_DO_NOT_USE);
 
         CapabilityManager.INSTANCE.register(ModifierKeys.class,new Capability.IStorage<ModifierKeys>()
@@ -71,11 +81,13 @@ public abstract class CommonProxy
     public void serverStarting(FMLServerStartingEvent event)
     {
         Simulator.loadSimulatorIfNotLoaded();
+        event.registerServerCommand(new MetricsCommand());
     }
 
     public void serverStopping(FMLServerStoppingEvent event)
     {
         Simulator.instance().stop();
+        CollisionBoxLibrary.saveIfOpen();
     }
 
     public void serverAboutToStart(FMLServerAboutToStartEvent event)
@@ -1,5 +1,8 @@
 package grondag.exotic_matter;
 
+import grondag.exotic_matter.model.CSG2.CSG;
+import grondag.exotic_matter.model.primitives.stream.PolyStreams;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import net.minecraftforge.common.config.Config;
 import net.minecraftforge.common.config.Config.Comment;
 import net.minecraftforge.common.config.Config.LangKey;
@@ -29,6 +32,36 @@ public class ConfigXM
         " large numbers of block update, for example."})
         @RangeInt(min = 128, max = 1000000)
         public int maxQueuedWorldOperationsPerTick = 4096;
+        
+        @Comment({"Record counters, latency histograms and gauges for thread pools, caches, CSG and mesh generation.",
+        " Can also be turned on and off in game with the xmmetrics command, which also writes metrics to a file",
+        " in the exotic_matter game subfolder. Small overhead when enabled. Used for tuning."})
+        public boolean enableMetrics = false;
+        
+        @RequiresMcRestart
+        @Comment({"If true, CSG operations on large meshes will clip polygons in parallel using the simulation thread pool.",
+        " Results are the same either way. May reduce latency of complex model generation on machines with many cores."})
+        public boolean enableParallelCsg = false;
+        
+        @Comment({"If true, CSG operations build BSP trees for input meshes top-down, choosing splitting planes",
+        " that keep trees shallow, instead of in the order polygons were added. Clipping is faster but",
+        " building trees is slower. Results are equivalent but polygons may be split differently."})
+        public boolean enableBalancedCsgTrees = false;
+        
+        @Comment({"Memory budget in megabytes for reuse of CSG results. Shapes built from the same primitives",
+        " reuse results instead of repeating CSG operations. Only helps if the same shapes are built",
+        " repeatedly, so disabled (zero) by default."})
+        @RangeInt(min = 0, max = 1024)
+        public int csgResultCacheMegabytes = 0;
+        
+        @Comment({"If true, cached block models are stored outside the Java heap. Can reduce garbage collection",
+        " pauses with large model caches, but models dropped from the cache only free their memory when",
+        " garbage is collected. Models generated after a change use the new setting."})
+        public boolean enableOffHeapModelCache = false;
+        
+        @Comment({"If true, cached block models pack vertex positions and texture coordinates into fewer bytes",
+        " when that can be done without changing them. Most block models qualify."})
+        public boolean enableCompactModelCache = true;
     }
     
     ////////////////////////////////////////////////////        
@@ -87,6 +120,24 @@ public class ConfigXM
             "to leave this value as-is unless you have a specific and worthwhile reason to change it."})
         @RangeInt(min = 4, max = 64)
         public int collisionBoxBudget = 8;
+        
+        @RequiresMcRestart
+        @Comment({"Number of low-priority threads that generate optimal collision boxes.",
+            " More threads get large builds off approximate boxes sooner, at some cost to other work."})
+        @RangeInt(min = 1, max = 8)
+        public int collisionOptimizerThreads = 2;
+        
+        @RequiresMcRestart
+        @Comment({"Maximum time in microseconds the collision box optimizer spends searching for the best boxes for one shape.",
+            " When reached, the best boxes found so far are used and shapes still over the box budget are",
+            " optimized again with 8 times the limit, up to 4 times, when the optimizer has nothing else to do. Zero means no limit."})
+        @RangeInt(min = 0, max = 1000000)
+        public int collisionOptimizerSearchMicros = 2000;
+        
+        @RequiresMcRestart
+        @Comment({"Save optimal collision boxes when the server stops and reuse them in later sessions.",
+            " Shapes optimized before then have accurate collision boxes immediately. Uses a file in the exotic_matter game subfolder."})
+        public boolean enableCollisionBoxLibrary = true;
 
     }
     
@@ -107,6 +158,16 @@ public class ConfigXM
         @Comment("Collect statistics on quad caching. Used for testing.")
         public boolean enableQuadCacheStatistics = false;
     
+        @RequiresMcRestart
+        @Comment({"Collect hit, miss, load time and rollover statistics for block and terrain model caches. Used for tuning.",
+        "Output to log at the client statistics reporting interval."})
+        public boolean enableModelCacheStatistics = false;
+    
+        @RequiresMcRestart
+        @Comment({"Save terrain meshes in use when leaving a world and reuse them in the next session.",
+        "Avoids rebuilding terrain meshes on launch at the cost of a file in the exotic_matter game subfolder."})
+        public boolean enableTerrainMeshStore = false;
+    
         @RequiresMcRestart
         @Comment("Enable animated textures. Set false if animation may be causing memory or performance problems.")
         public boolean enableAnimatedTextures = false;
@@ -186,6 +247,11 @@ public class ConfigXM
 
     public static void recalcDerived()
     {
+        Metrics.setEnabled(EXECUTION.enableMetrics);
+        CSG.setBalancedTrees(EXECUTION.enableBalancedCsgTrees);
+        CSG.setResultCacheMegabytes(EXECUTION.csgResultCacheMegabytes);
+        PolyStreams.setOffHeapDispatch(EXECUTION.enableOffHeapModelCache);
+        PolyStreams.setFrozenDispatch(EXECUTION.enableCompactModelCache);
         Render.recalcDerived();
     }
 
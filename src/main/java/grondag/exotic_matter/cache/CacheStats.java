@@ -0,0 +1,188 @@
+package grondag.exotic_matter.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import grondag.exotic_matter.varia.metrics.Metrics;
+
+/**
+ * Usage counters for loading caches. Use {@link #create(boolean)} - will
+ * be a no-op instance that always reports zero if statistics are disabled.<p>
+ * 
+ * Counters are striped (LongAdder) so that cache threads don't contend 
+ * when recording, and can be read from any thread without locking.
+ * Values read while the cache is in use are not a consistent snapshot.
+ */
+public class CacheStats
+{
+    public static final CacheStats DISABLED = new CacheStats();
+    
+    public static CacheStats create(boolean enableStats)
+    {
+        return enableStats ? new RealCacheStats() : DISABLED;
+    }
+    
+    private CacheStats() {}
+    
+    void hit() {}
+    
+    void backupHit() {}
+    
+    void await() {}
+    
+    /**
+     * Returns start time to be passed to {@link #endLoad(long)}.
+     */
+    long startLoad() { return 0; }
+    
+    void endLoad(long startNanos) {}
+    
+    void rollover(int retainedCount) {}
+    
+    public void clearStats() {}
+    
+    /** requests served from the active state */
+    public long hitCount() { return 0; }
+    
+    /** requests served from the backup state (and copied into active state) */
+    public long backupHitCount() { return 0; }
+    
+    /** requests that waited for another thread to load the value - single-flight loading only */
+    public long awaitCount() { return 0; }
+    
+    /** requests that required a call to the cache loader */
+    public long missCount() { return 0; }
+    
+    /** total time spent in cache loader */
+    public long loadNanos() { return 0; }
+    
+    /** number of times active state reached max fill and became the backup state */
+    public long rolloverCount() { return 0; }
+    
+    /** total entries carried into a new active state at rollover - always zero unless eviction policy is CLOCK */
+    public long retainedCount() { return 0; }
+    
+    public final long requestCount()
+    {
+        return hitCount() + backupHitCount() + awaitCount() + missCount();
+    }
+    
+    /** hits from active or backup state as fraction of all requests */
+    public final double hitRate()
+    {
+        final long requests = requestCount();
+        return requests == 0 ? 1.0 : (double)(hitCount() + backupHitCount()) / requests;
+    }
+    
+    public final long nanosPerLoad()
+    {
+        final long misses = missCount();
+        return misses == 0 ? 0 : loadNanos() / misses;
+    }
+    
+    public String stats() { return "Cache statistics disabled"; }
+    
+    /**
+     * Registers gauges for these counters in {@link Metrics}, with names starting with prefix.
+     * Does nothing if statistics are disabled.
+     */
+    public void registerMetrics(String prefix) {}
+    
+    private static class RealCacheStats extends CacheStats
+    {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder backupHits = new LongAdder();
+        private final LongAdder awaits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder loadNanos = new LongAdder();
+        private final LongAdder rollovers = new LongAdder();
+        private final LongAdder retained = new LongAdder();
+        
+        @Override
+        void hit()
+        {
+            hits.increment();
+        }
+
+        @Override
+        void backupHit()
+        {
+            backupHits.increment();
+        }
+        
+        @Override
+        void await()
+        {
+            awaits.increment();
+        }
+
+        @Override
+        long startLoad()
+        {
+            return System.nanoTime();
+        }
+
+        @Override
+        void endLoad(long startNanos)
+        {
+            loadNanos.add(System.nanoTime() - startNanos);
+            misses.increment();
+        }
+
+        @Override
+        void rollover(int retainedCount)
+        {
+            rollovers.increment();
+            retained.add(retainedCount);
+        }
+
+        @Override
+        public void clearStats()
+        {
+            hits.reset();
+            backupHits.reset();
+            awaits.reset();
+            misses.reset();
+            loadNanos.reset();
+            rollovers.reset();
+            retained.reset();
+        }
+
+        @Override
+        public long hitCount() { return hits.sum(); }
+
+        @Override
+        public long backupHitCount() { return backupHits.sum(); }
+        
+        @Override
+        public long awaitCount() { return awaits.sum(); }
+
+        @Override
+        public long missCount() { return misses.sum(); }
+
+        @Override
+        public long loadNanos() { return loadNanos.sum(); }
+
+        @Override
+        public long rolloverCount() { return rollovers.sum(); }
+
+        @Override
+        public long retainedCount() { return retained.sum(); }
+        
+        @Override
+        public String stats()
+        { return String.format("%1$,d requests, hit rate %2$.1f%% (%3$,d backup hits), %4$,d waited for load, %5$,d loads @ %6$,dns each, %7$,d rollovers retaining %8$,d entries", 
+                requestCount(), hitRate() * 100, backupHitCount(), awaitCount(), missCount(), nanosPerLoad(), rolloverCount(), retainedCount()); }
+        
+        @Override
+        public void registerMetrics(String prefix)
+        {
+            Metrics.gauge(prefix + ".hits", hits::sum);
+            Metrics.gauge(prefix + ".backupHits", backupHits::sum);
+            Metrics.gauge(prefix + ".awaits", awaits::sum);
+            Metrics.gauge(prefix + ".misses", misses::sum);
+            Metrics.gauge(prefix + ".loadNanos", loadNanos::sum);
+            Metrics.gauge(prefix + ".rollovers", rollovers::sum);
+            Metrics.gauge(prefix + ".retained", retained::sum);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package grondag.exotic_matter.cache;
+
+/**
+ * Controls what happens when the active state of a loading cache reaches max fill.
+ */
+public enum EvictionPolicy
+{
+    /**
+     * Entire active state becomes the backup state and a new, empty active state is started.
+     * Cheapest bookkeeping, but every hot key must be re-fetched from backup (or reloaded)
+     * right after each rollover.
+     */
+    ROLLOVER,
+    
+    /**
+     * CLOCK-style second chance. Each slot has a reference bit that is set on hit.
+     * At rollover, the thread that triggered it sweeps the old state from where the last
+     * sweep stopped and copies referenced entries into the new active state, up to half of max fill.
+     * Entries not copied remain available in the backup state as with {@link #ROLLOVER}.<p>
+     * 
+     * Costs one byte per slot and a sweep at each rollover, but hot keys survive
+     * rollover so there is no burst of loader calls afterwards.
+     */
+    CLOCK
+}
@@ -1,5 +1,7 @@
 package grondag.exotic_matter.cache;
 
+import grondag.exotic_matter.varia.metrics.Metrics;
+
 public interface ISimpleLoadingCache
 {
     public static final float LOAD_FACTOR = 0.7F;
@@ -7,4 +9,20 @@ public interface ISimpleLoadingCache
     public void clear();
     
     public int size();
+    
+    /**
+     * Hit, miss, load time and rollover counters. Lock-free to read from any thread.
+     * Not reset by {@link #clear()}. Reports all zeros unless statistics were enabled
+     * when the cache was created.
+     */
+    public CacheStats stats();
+    
+    /**
+     * Registers gauges for size and {@link #stats()} in {@link Metrics}, with names starting with prefix.
+     */
+    public default void registerMetrics(String prefix)
+    {
+        Metrics.gauge(prefix + ".size", this::size);
+        stats().registerMetrics(prefix);
+    }
 }
@@ -4,13 +4,41 @@ import static grondag.exotic_matter.concurrency.Danger.*;
 
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ObjLongConsumer;
 
 import grondag.exotic_matter.varia.Useful;
 import sun.misc.Unsafe;
 
+/**
+ * Lock-free long-keyed loading cache.<p>
+ * 
+ * By default, threads that miss on the same key at the same time will all call the loader 
+ * and the first to claim the key slot wins. With single-flight loading enabled, the thread that
+ * claims the slot is the only one to call the loader, and other threads requesting the
+ * same key wait for it to publish the value. Use single-flight for expensive loaders.
+ * Loads are only de-duplicated within a cache state - a key being loaded when the active 
+ * state rolls over may be loaded again in the new state.
+ */
 @SuppressWarnings({ "unused", "restriction" })
 public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
 {
+    /**
+     * Stored as value in single-flight mode if the loader throws an exception.
+     * The next thread to find it resets the value to null and retries the load
+     * while other threads keep waiting, so a failed load doesn't stay in the cache.
+     */
+    private static final Object FAILED = new Object();
+    
+    /** busy spins before waiting threads start to yield */
+    private static final int SPIN_LIMIT = 64;
+    
+    /** yields before waiting threads start to park */
+    private static final int YIELD_LIMIT = 128;
+    
+    /** max park time for waiting threads - park time doubles up to this limit */
+    private static final long MAX_PARK_NANOS = 256000;
+    
     private final int capacity;
     private final int maxFill;
     protected final int positionMask;
@@ -22,13 +50,43 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
     protected volatile LongCacheState<V> activeState;
     private final AtomicReference<LongCacheState<V>> backupState = new AtomicReference<LongCacheState<V>>();
      
+    protected final EvictionPolicy evictionPolicy;
+    
+    /** true if eviction policy is CLOCK - avoids enum comparison in hit path */
+    private final boolean trackReferences;
+    
+    /** max entries copied forward by a CLOCK sweep */
+    private final int retainLimit;
+    
+    /** where next CLOCK sweep starts - only accessed by the thread that triggers rollover */
+    private int clockHand = 0;
+    
+    protected final CacheStats stats;
+    
+    /** if true, loader is called by the thread that claims a key slot and other threads wait for the value */
+    protected final boolean singleFlight;
 
     public LongAtomicLoadingCache(LongSimpleCacheLoader<V> loader, int maxSize)
+    {
+        this(loader, maxSize, EvictionPolicy.ROLLOVER, false, false);
+    }
+    
+    public LongAtomicLoadingCache(LongSimpleCacheLoader<V> loader, int maxSize, EvictionPolicy evictionPolicy, boolean enableStats)
+    {
+        this(loader, maxSize, evictionPolicy, enableStats, false);
+    }
+    
+    public LongAtomicLoadingCache(LongSimpleCacheLoader<V> loader, int maxSize, EvictionPolicy evictionPolicy, boolean enableStats, boolean singleFlight)
     {
         this.capacity = 1 << (Long.SIZE - Long.numberOfLeadingZeros((long) (maxSize / ISimpleLoadingCache.LOAD_FACTOR)));
         this.maxFill = (int) (capacity * ISimpleLoadingCache.LOAD_FACTOR);
         this.positionMask = capacity - 1;
         this.loader = loader;
+        this.evictionPolicy = evictionPolicy;
+        this.trackReferences = evictionPolicy == EvictionPolicy.CLOCK;
+        this.retainLimit = maxFill / 2;
+        this.stats = CacheStats.create(enableStats);
+        this.singleFlight = singleFlight;
         this.activeState = new LongCacheState<V>(this.capacity);
         this.clear();
     }
@@ -36,6 +94,9 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
     @Override
     public int size() { return activeState.size.get(); }
     
+    @Override
+    public CacheStats stats() { return stats; }
+    
     @Override
     public void clear()
     {
@@ -52,9 +113,22 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
         if(key == 0)
         {
             V value = localState.zeroValue.get();
-            if(value == null)
+            if(value == null && singleFlight)
+            {
+                synchronized(localState.zeroValue)
+                {
+                    value = localState.zeroValue.get();
+                    if(value == null)
+                    {
+                        value = loadAndCount(0);
+                        localState.zeroValue.set(value);
+                        return value;
+                    }
+                }
+            }
+            else if(value == null)
             {
-                value = loader.load(0);
+                value = loadAndCount(0);
                 if(localState.zeroValue.compareAndSet(null, value))
                 {
                     return value;
@@ -65,31 +139,65 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
                     return localState.zeroValue.get();
                 }
             }
+            stats.hit();
             return value;
         }
         
         int position = (int) (Useful.longHash(key) & positionMask);
+        final int startPosition = position;
         long offset = longByteOffset(position);
         do
         {
             long currentKey = UNSAFE.getLongVolatile(localState.keys, offset);
             
-            if(currentKey == key) return getValueEventually(localState, position, key);  
+            if(currentKey == key)
+            {
+                // check before write so hits on hot keys don't keep dirtying the cache line
+                if(trackReferences && localState.refs[position] == 0)
+                    localState.refs[position] = 1;
+                
+                if(singleFlight)
+                    return awaitValue(localState, position, key);
+                
+                stats.hit();
+                return getValueEventually(localState, position, key);  
+            }
             
-            if(currentKey == 0) return load(localState, key, position);
+            if(currentKey == 0) return singleFlight ? loadSingleFlight(localState, key, position) : load(localState, key, position);
             
             position = (position + 1) & positionMask;
             offset = longByteOffset(position);
             
+            // Can only wrap if other threads filled this state before rollover completed.
+            // Don't spin - load without caching.
+            if(position == startPosition) return loadAndCount(key);
+            
         } while (true);
     }
 
+    private V loadAndCount(long key)
+    {
+        final long start = stats.startLoad();
+        final V result = loader.load(key);
+        stats.endLoad(start);
+        return result;
+    }
+    
     protected V loadFromBackup(LongCacheState<V> backup, final long key)
     {
         int position = (int) (Useful.longHash(key) & positionMask);
+        final int startPosition = position;
         do
         {
-            if(backup.keys[position] == key) return backup.values[position];
+            if(backup.keys[position] == key)
+            {
+                // value may not be written yet, or may have failed to load in single-flight mode
+                final V value = backup.values[position];
+                if(value == null || value == FAILED) return loadAndCount(key);
+                
+                stats.backupHit();
+                return value;
+            }
             if(backup.keys[position] == 0)
             {
                 if((backupMissCount.incrementAndGet() & 0xFF) == 0xFF) 
@@ -99,9 +207,10 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
                         backupState.compareAndSet(backup, null);
                     }
                 }
-                return loader.load(key);
+                return loadAndCount(key);
             }
             position = (position + 1) & positionMask;
+            if(position == startPosition) return loadAndCount(key);
         } while(true);
     }
     
@@ -113,9 +222,11 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
         
         LongCacheState<V> backupState = this.backupState.get();
         
-        final V result = backupState == null ? loader.load(key) : loadFromBackup(backupState, key);
+        final V result = backupState == null ? loadAndCount(key) : loadFromBackup(backupState, key);
         long offset = longByteOffset(position);
         
+        final int startPosition = position;
+        
         do
         {
             if(UNSAFE.compareAndSwapLong(localState.keys, offset, 0, key))
@@ -129,19 +240,202 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
             position = (position + 1) & positionMask;
             offset = longByteOffset(position);
             
+            // state filled before rollover completed - see get()
+            if(position == startPosition) return result;
+            
         } while(true);
         
+        incrementSize(localState);
+        
+        return result;
+    }
+    
+    /**
+     * Single-flight version of {@link #load(LongCacheState, long, int)}. Claims the key slot
+     * before loading, so that other threads requesting the same key find the key without
+     * a value and wait in {@link #awaitValue(LongCacheState, int, long)} instead of loading.
+     */
+    protected V loadSingleFlight(LongCacheState<V> localState, long key, int position)
+    {
+        // no need to handle zero key here - is handled as privileged case in get();
+        
+        long offset = longByteOffset(position);
+        final int startPosition = position;
+        
+        do
+        {
+            if(UNSAFE.compareAndSwapLong(localState.keys, offset, 0, key)) break;
+            
+            // another thread claimed the key first
+            if(UNSAFE.getLongVolatile(localState.keys, offset) == key) return awaitValue(localState, position, key);
+            
+            position = (position + 1) & positionMask;
+            offset = longByteOffset(position);
+            
+            // state filled before rollover completed - see get()
+            if(position == startPosition) return loadAndCount(key);
+            
+        } while(true);
+        
+        try
+        {
+            return loadIntoSlot(localState, objectByteOffset(position), key);
+        }
+        finally
+        {
+            // slot is occupied even if load failed
+            incrementSize(localState);
+        }
+    }
+    
+    /**
+     * Loads value for a key slot claimed by this thread and publishes it.
+     * If the loader throws, publishes {@link #FAILED} so that waiting threads retry.
+     */
+    private V loadIntoSlot(LongCacheState<V> localState, long valueOffset, long key)
+    {
+        final V result;
+        
+        try
+        {
+            LongCacheState<V> backupState = this.backupState.get();
+            result = backupState == null ? loadAndCount(key) : loadFromBackup(backupState, key);
+        }
+        catch(Throwable e)
+        {
+            // don't leave waiting threads hanging
+            UNSAFE.putObjectVolatile(localState.values, valueOffset, FAILED);
+            throw e;
+        }
+        
+        UNSAFE.putObjectVolatile(localState.values, valueOffset, result);
+        return result;
+    }
+    
+    /**
+     * Single-flight counterpart of {@link #getValueEventually(LongCacheState, int, long)}.
+     * Key has been claimed by another thread that may still be running the loader,
+     * so wait as long as it takes: spin briefly, then yield, then park with increasing intervals.
+     * If the load failed, the first thread to see it loads again into the same slot.<p>
+     * 
+     * Counts a hit only if the value was already there, or a wait if this thread had to wait for it.
+     */
+    @SuppressWarnings("unchecked")
+    private V awaitValue(LongCacheState<V> localState, int position, long key)
+    {
+        final long offset = objectByteOffset(position);
+        int tries = 0;
+        long parkNanos = 1000;
+        
+        while(true)
+        {
+            final Object result = UNSAFE.getObjectVolatile(localState.values, offset);
+            
+            if(result == FAILED)
+            {
+                // retry - other threads wait for the thread that resets the marker
+                if(UNSAFE.compareAndSwapObject(localState.values, offset, FAILED, null))
+                    return loadIntoSlot(localState, offset, key);
+            }
+            else if(result != null) 
+            {
+                if(tries == 0)
+                    stats.hit();
+                else
+                    stats.await();
+                return (V) result;
+            }
+            
+            if(++tries > SPIN_LIMIT)
+            {
+                if(tries <= YIELD_LIMIT)
+                    Thread.yield();
+                else
+                {
+                    LockSupport.parkNanos(parkNanos);
+                    if(parkNanos < MAX_PARK_NANOS) parkNanos *= 2;
+                }
+            }
+        }
+    }
+    
+    private void incrementSize(LongCacheState<V> localState)
+    {
         if(localState.size.incrementAndGet() == this.maxFill)
         {
             LongCacheState<V> newState = new LongCacheState<V>(this.capacity);
             // doing this means we don't have to handle zero value in backup cache value lookup
             newState.zeroValue.set(this.activeState.zeroValue.get());
+            final int retained = trackReferences ? retainReferenced(localState, newState) : 0;
             this.backupState.set(this.activeState);
             this.activeState = newState;
             this.backupMissCount.set(0);
+            stats.rollover(retained);
+        }
+    }
+    
+    /**
+     * CLOCK sweep for {@link EvictionPolicy#CLOCK}. Copies entries referenced since they
+     * were added into the (not yet visible) new state, starting where the last sweep stopped.
+     * Other threads may still be adding keys to the old state - those will only be in backup.
+     * Returns number of entries copied.
+     */
+    private int retainReferenced(LongCacheState<V> oldState, LongCacheState<V> newState)
+    {
+        final long[] oldKeys = oldState.keys;
+        final V[] oldValues = oldState.values;
+        final byte[] oldRefs = oldState.refs;
+        final long[] newKeys = newState.keys;
+        final V[] newValues = newState.values;
+        int hand = this.clockHand;
+        int retained = 0;
+        
+        for(int i = 0; i < capacity && retained < retainLimit; i++)
+        {
+            final long key = oldKeys[hand];
+            if(key != 0 && oldRefs[hand] != 0)
+            {
+                final V value = oldValues[hand];
+                if(value != null && value != FAILED)
+                {
+                    int position = (int) (Useful.longHash(key) & positionMask);
+                    while(newKeys[position] != 0)
+                        position = (position + 1) & positionMask;
+                    
+                    newValues[position] = value;
+                    newKeys[position] = key;
+                    retained++;
+                }
+            }
+            hand = (hand + 1) & positionMask;
+        }
+        
+        this.clockHand = hand;
+        newState.size.set(retained);
+        return retained;
+    }
+    
+    /**
+     * Visits all entries in the active state. Not a snapshot - entries added or evicted
+     * by other threads during the call may or may not be visited, and keys still
+     * being loaded are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjLongConsumer<V> consumer)
+    {
+        final LongCacheState<V> localState = activeState;
+        
+        final V zeroValue = localState.zeroValue.get();
+        if(zeroValue != null) consumer.accept(zeroValue, 0);
+        
+        for(int i = 0; i < capacity; i++)
+        {
+            final long key = UNSAFE.getLongVolatile(localState.keys, longByteOffset(i));
+            if(key == 0) continue;
+            
+            final Object value = UNSAFE.getObjectVolatile(localState.values, objectByteOffset(i));
+            if(value != null && value != FAILED) consumer.accept((V) value, key);
         }
-
-        return result;
     }
     
     @SuppressWarnings({"unchecked", "null"})
@@ -191,12 +485,12 @@ public class LongAtomicLoadingCache<V> implements ISimpleLoadingCache
         assert false : "LongSimpleLoadingCache: returning new loaded value despite key hit because cached value not yet written by other thread.";
         
         // abort and return loaded value directly
-        return loader.load(key);
+        return loadAndCount(key);
     }
     
     // for test harness
     public LongAtomicLoadingCache<V> createNew(LongSimpleCacheLoader<V> loader, int startingCapacity)
     {
-        return new LongAtomicLoadingCache<V>(loader, startingCapacity);
+        return new LongAtomicLoadingCache<V>(loader, startingCapacity, evictionPolicy, stats != CacheStats.DISABLED, singleFlight);
     }
 }
\ No newline at end of file
@@ -11,6 +11,8 @@ public class LongCacheState<V>
     protected final AtomicReference<V> zeroValue = new AtomicReference<V>();
     protected final long[] keys;
     protected final V[] values;
+    /** CLOCK reference bits, one per value - see {@link EvictionPolicy#CLOCK} */
+    protected final byte[] refs;
 
 
     
@@ -19,5 +21,6 @@ public class LongCacheState<V>
     {
         this.keys = new long[capacityIn];
         this.values = (V[]) new Object[capacityIn];
+        this.refs = new byte[capacityIn];
     }
 }
\ No newline at end of file
@@ -21,12 +21,34 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
     
     private final Object writeLock = new Object();
 
+    protected final EvictionPolicy evictionPolicy;
+    
+    /** true if eviction policy is CLOCK - avoids enum comparison in hit path */
+    private final boolean trackReferences;
+    
+    /** max entries copied forward by a CLOCK sweep */
+    private final int retainLimit;
+    
+    /** where next CLOCK sweep starts - only accessed while holding write lock */
+    private int clockHand = 0;
+    
+    protected final CacheStats stats;
+    
     public LongSimpleLoadingCache(LongSimpleCacheLoader<V> loader, int maxSize)
+    {
+        this(loader, maxSize, EvictionPolicy.ROLLOVER, false);
+    }
+    
+    public LongSimpleLoadingCache(LongSimpleCacheLoader<V> loader, int maxSize, EvictionPolicy evictionPolicy, boolean enableStats)
     {
         this.capacity = 1 << (Long.SIZE - Long.numberOfLeadingZeros((long) (maxSize / ISimpleLoadingCache.LOAD_FACTOR)));
         this.maxFill = (int) (capacity * ISimpleLoadingCache.LOAD_FACTOR);
         this.positionMask = capacity - 1;
         this.loader = loader;
+        this.evictionPolicy = evictionPolicy;
+        this.trackReferences = evictionPolicy == EvictionPolicy.CLOCK;
+        this.retainLimit = maxFill / 2;
+        this.stats = CacheStats.create(enableStats);
         this.activeState = new LongCacheState<V>(this.capacity);
         this.clear();
     }
@@ -34,6 +56,9 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
     @Override
     public int size() { return activeState.size.get(); }
     
+    @Override
+    public CacheStats stats() { return stats; }
+    
     @Override
     public void clear()
     {
@@ -51,7 +76,7 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
             V value = localState.zeroValue.get();
             if(value == null)
             {
-                value = loader.load(0);
+                value = loadAndCount(0);
                 assert value != null;
                 if(localState.zeroValue.compareAndSet(null, value))
                 {
@@ -63,10 +88,12 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
                     return localState.zeroValue.get();
                 }
             }
+            stats.hit();
             return value;
         }
         
         int position = (int) (Useful.longHash(key) & positionMask);
+        final int startPosition = position;
         
         do
         {
@@ -81,6 +108,12 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
                     result = values[position];
                     assert result != null;
                 }
+                
+                // check before write so hits on hot keys don't keep dirtying the cache line
+                if(trackReferences && localState.refs[position] == 0)
+                    localState.refs[position] = 1;
+                
+                stats.hit();
                 return result;
             }
             
@@ -89,15 +122,32 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
             
             position = (position + 1) & positionMask;
             
+            // Can only wrap if other threads filled this state before rollover completed.
+            // Don't spin - load without caching.
+            if(position == startPosition) return loadAndCount(key);
+            
         } while (true);
     }
 
+    private V loadAndCount(long key)
+    {
+        final long start = stats.startLoad();
+        final V result = loader.load(key);
+        stats.endLoad(start);
+        return result;
+    }
+    
     protected V loadFromBackup(LongCacheState<V> backup, final long key)
     {
         int position = (int) (Useful.longHash(key) & positionMask);
+        final int startPosition = position;
         do
         {
-            if(backup.keys[position] == key) return backup.values[position];
+            if(backup.keys[position] == key)
+            {
+                stats.backupHit();
+                return backup.values[position];
+            }
             if(backup.keys[position] == 0)
             {
                 if((backupMissCount.incrementAndGet() & 0xFF) == 0xFF) 
@@ -107,9 +157,10 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
                         backupState.compareAndSet(backup, null);
                     }
                 }
-                return loader.load(key);
+                return loadAndCount(key);
             }
             position = (position + 1) & positionMask;
+            if(position == startPosition) return loadAndCount(key);
         } while(true);
     }
     
@@ -120,9 +171,11 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
         
         LongCacheState<V> backupState = this.backupState.get();
         
-        final V result = backupState == null ? loader.load(key) : loadFromBackup(backupState, key);
+        final V result = backupState == null ? loadAndCount(key) : loadFromBackup(backupState, key);
         assert result != null;
         
+        final int startPosition = position;
+        
         do
         {
             long currentKey;       
@@ -147,6 +200,9 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
             
             position = (position + 1) & positionMask;
             
+            // state filled before rollover completed - see get()
+            if(position == startPosition) return result;
+            
         } while(true);
         
         if(localState.size.incrementAndGet() == this.maxFill)
@@ -154,17 +210,63 @@ public class LongSimpleLoadingCache<V> implements ISimpleLoadingCache
             LongCacheState<V> newState = new LongCacheState<V>(this.capacity);
             // doing this means we don't have to handle zero value in backup cache value lookup
             newState.zeroValue.set(this.activeState.zeroValue.get());
+            final int retained = trackReferences ? retainReferenced(localState, newState) : 0;
             this.backupState.set(this.activeState);
             this.activeState = newState;
             this.backupMissCount.set(0);
+            stats.rollover(retained);
         }
         assert result != null;
         return result;
     }
     
+    /**
+     * CLOCK sweep for {@link EvictionPolicy#CLOCK}. Copies entries referenced since they
+     * were added into the (not yet visible) new state, starting where the last sweep stopped.
+     * Holds the write lock so no keys are added to the old state during the sweep.
+     * Returns number of entries copied.
+     */
+    private int retainReferenced(LongCacheState<V> oldState, LongCacheState<V> newState)
+    {
+        synchronized(writeLock)
+        {
+            final long[] oldKeys = oldState.keys;
+            final V[] oldValues = oldState.values;
+            final byte[] oldRefs = oldState.refs;
+            final long[] newKeys = newState.keys;
+            final V[] newValues = newState.values;
+            int hand = this.clockHand;
+            int retained = 0;
+            
+            for(int i = 0; i < capacity && retained < retainLimit; i++)
+            {
+                final long key = oldKeys[hand];
+                if(key != 0 && oldRefs[hand] != 0)
+                {
+                    final V value = oldValues[hand];
+                    if(value != null)
+                    {
+                        int position = (int) (Useful.longHash(key) & positionMask);
+                        while(newKeys[position] != 0)
+                            position = (position + 1) & positionMask;
+                        
+                        newValues[position] = value;
+                        newKeys[position] = key;
+                        retained++;
+                    }
+                }
+                hand = (hand + 1) & positionMask;
+            }
+            
+            this.clockHand = hand;
+            newState.size.set(retained);
+            return retained;
+        }
+    }
+    
     /** for test harness */
     public LongSimpleLoadingCache<V> createNew(LongSimpleCacheLoader<V> loader, int startingCapacity)
     {
-        return new LongSimpleLoadingCache<V>(loader, startingCapacity);
+        return new LongSimpleLoadingCache<V>(loader, startingCapacity, evictionPolicy, stats != CacheStats.DISABLED);
     }
 }
\ No newline at end of file
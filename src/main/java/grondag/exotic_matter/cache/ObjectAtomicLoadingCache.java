@@ -0,0 +1,254 @@
+package grondag.exotic_matter.cache;
+
+import static grondag.exotic_matter.concurrency.Danger.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free version of {@link ObjectSimpleLoadingCache}. Keys are claimed with a
+ * compare-and-swap on the key slot of the interleaved key/value array, so threads
+ * that miss at the same time never block each other.<p>
+ *
+ * As with {@link LongAtomicLoadingCache} (without single-flight), threads that miss
+ * on the same key at the same time will all call the loader and the first to claim
+ * the key slot wins. Values from the loser are returned to the caller but not cached.
+ */
+@SuppressWarnings({ "unused", "restriction" })
+public class ObjectAtomicLoadingCache<K, V> implements ISimpleLoadingCache
+{
+    private final int capacity;
+    private final int maxFill;
+    protected final int positionMask;
+    
+    protected final ObjectSimpleCacheLoader<K, V> loader;
+    
+    private final AtomicInteger backupMissCount = new AtomicInteger(0);
+    
+    protected volatile ObjectCacheState activeState;
+    private final AtomicReference<ObjectCacheState> backupState = new AtomicReference<ObjectCacheState>();
+    
+    protected final EvictionPolicy evictionPolicy;
+    
+    /** true if eviction policy is CLOCK - avoids enum comparison in hit path */
+    private final boolean trackReferences;
+    
+    /** max entries copied forward by a CLOCK sweep */
+    private final int retainLimit;
+    
+    /** where next CLOCK sweep starts - only accessed by the thread that triggers rollover */
+    private int clockHand = 0;
+    
+    protected final CacheStats stats;
+    
+    public ObjectAtomicLoadingCache(ObjectSimpleCacheLoader<K, V> loader, int maxSize)
+    {
+        this(loader, maxSize, EvictionPolicy.ROLLOVER, false);
+    }
+    
+    public ObjectAtomicLoadingCache(ObjectSimpleCacheLoader<K, V> loader, int maxSize, EvictionPolicy evictionPolicy, boolean enableStats)
+    {
+        this.capacity = 1 << (Long.SIZE - Long.numberOfLeadingZeros((long) (maxSize / LOAD_FACTOR)));
+        this.maxFill = (int) (capacity * LOAD_FACTOR);
+        this.positionMask = capacity * 2 - 1;
+        this.loader = loader;
+        this.evictionPolicy = evictionPolicy;
+        this.trackReferences = evictionPolicy == EvictionPolicy.CLOCK;
+        this.retainLimit = maxFill / 2;
+        this.stats = CacheStats.create(enableStats);
+        this.activeState = new ObjectCacheState(this.capacity);
+        this.clear();
+    }
+    
+    @Override
+    public int size() { return activeState.size.get(); }
+    
+    @Override
+    public CacheStats stats() { return stats; }
+    
+    @Override
+    public void clear()
+    {
+        this.activeState = new ObjectCacheState(this.capacity);
+    }
+    
+    @SuppressWarnings("null")
+    public V get(K key)
+    {
+        ObjectCacheState localState = activeState;
+        
+        int position = (key.hashCode() * 2) & positionMask;
+        final int startPosition = position;
+        
+        do
+        {
+            final Object currentKey = UNSAFE.getObjectVolatile(localState.kv, objectByteOffset(position));
+            
+            if(currentKey == null) return load(localState, key, position);
+            
+            if(currentKey.equals(key))
+            {
+                final int index = position >> 1;
+                
+                // check before write so hits on hot keys don't keep dirtying the cache line
+                if(trackReferences && localState.refs[index] == 0)
+                    localState.refs[index] = 1;
+                
+                stats.hit();
+                return getValueEventually(localState, position, key);
+            }
+            
+            position = (position + 2) & positionMask;
+            
+            // Can only wrap if other threads filled this state before rollover completed.
+            // Don't spin - load without caching.
+            if(position == startPosition) return loadAndCount(key);
+        
+        } while (true);
+    }
+    
+    private V loadAndCount(K key)
+    {
+        final long start = stats.startLoad();
+        final V result = loader.load(key);
+        stats.endLoad(start);
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    protected V loadFromBackup(ObjectCacheState backup, final K key)
+    {
+        int position = (key.hashCode() * 2) & positionMask;
+        final int startPosition = position;
+        do
+        {
+            final Object currentKey = backup.kv[position];
+            if(currentKey == null)
+            {
+                if((backupMissCount.incrementAndGet() & 0xFF) == 0xFF)
+                {
+                    if(backupMissCount.get() > activeState.size.get() / 2)
+                    {
+                        backupState.compareAndSet(backup, null);
+                    }
+                }
+                return loadAndCount(key);
+            }
+            
+            if(currentKey.equals(key))
+            {
+                // key is claimed before value is written, so value may not be visible yet
+                final V value = (V) backup.kv[position + 1];
+                if(value == null) return loadAndCount(key);
+                
+                stats.backupHit();
+                return value;
+            }
+            
+            position = (position + 2) & positionMask;
+            if(position == startPosition) return loadAndCount(key);
+        } while(true);
+    }
+    
+    @SuppressWarnings("null")
+    protected V load(ObjectCacheState localState, K key, int position)
+    {
+        ObjectCacheState backupState = this.backupState.get();
+        
+        final V result = backupState == null ? loadAndCount(key) : loadFromBackup(backupState, key);
+        
+        final int startPosition = position;
+        
+        do
+        {
+            final long offset = objectByteOffset(position);
+            
+            if(UNSAFE.compareAndSwapObject(localState.kv, offset, null, key))
+            {
+                UNSAFE.putObjectVolatile(localState.kv, objectByteOffset(position + 1), result);
+                break;
+            }
+            
+            // small chance another thread added our key before we could claim the slot
+            if(UNSAFE.getObjectVolatile(localState.kv, offset).equals(key)) return getValueEventually(localState, position, key);
+            
+            position = (position + 2) & positionMask;
+            
+            // state filled before rollover completed - see get()
+            if(position == startPosition) return result;
+        
+        } while(true);
+        
+        if(localState.size.incrementAndGet() == this.maxFill)
+        {
+            ObjectCacheState newState = new ObjectCacheState(this.capacity);
+            final int retained = trackReferences ? retainReferenced(localState, newState) : 0;
+            this.backupState.set(this.activeState);
+            this.activeState = newState;
+            this.backupMissCount.set(0);
+            stats.rollover(retained);
+        }
+        return result;
+    }
+    
+    /**
+     * CLOCK sweep for {@link EvictionPolicy#CLOCK}. Copies entries referenced since they
+     * were added into the (not yet visible) new state, starting where the last sweep stopped.
+     * Other threads may still be adding keys to the old state - those will only be in backup.
+     * Returns number of entries copied.
+     */
+    private int retainReferenced(ObjectCacheState oldState, ObjectCacheState newState)
+    {
+        final Object[] oldKv = oldState.kv;
+        final byte[] oldRefs = oldState.refs;
+        final Object[] newKv = newState.kv;
+        int hand = this.clockHand;
+        int retained = 0;
+        
+        for(int i = 0; i < capacity && retained < retainLimit; i++)
+        {
+            final Object key = oldKv[hand];
+            if(key != null && oldRefs[hand >> 1] != 0)
+            {
+                final Object value = oldKv[hand + 1];
+                if(value != null)
+                {
+                    int position = (key.hashCode() * 2) & positionMask;
+                    while(newKv[position] != null)
+                        position = (position + 2) & positionMask;
+                    
+                    newKv[position + 1] = value;
+                    newKv[position] = key;
+                    retained++;
+                }
+            }
+            hand = (hand + 2) & positionMask;
+        }
+        
+        this.clockHand = hand;
+        newState.size.set(retained);
+        return retained;
+    }
+    
+    @SuppressWarnings({"unchecked", "null"})
+    private V getValueEventually(ObjectCacheState localState, int position, K key)
+    {
+        final long offset = objectByteOffset(position + 1);
+        
+        // Another thread may have claimed the key but not yet written the value.
+        // Should be very rare.  Retry several times until value appears.
+        for(int i = 0; i < 12; i++)
+        {
+            V result = (V) UNSAFE.getObjectVolatile(localState.kv, offset);
+            if(result != null) return result;
+        }
+        
+        // abort and return loaded value directly
+        return loadAndCount(key);
+    }
+    
+    public ObjectAtomicLoadingCache<K, V> createNew(ObjectSimpleCacheLoader<K, V> loader, int startingCapacity)
+    {
+        return new ObjectAtomicLoadingCache<K, V>(loader, startingCapacity, evictionPolicy, stats != CacheStats.DISABLED);
+    }
+}
\ No newline at end of file
@@ -7,9 +7,12 @@ public class ObjectCacheState
 {
     protected AtomicInteger size = new AtomicInteger(0);
     protected final Object[] kv;
+    /** CLOCK reference bits, one per key-value pair - see {@link EvictionPolicy#CLOCK} */
+    protected final byte[] refs;
 
     public ObjectCacheState(int capacityIn)
     {
         this.kv = new Object[capacityIn * 2];
+        this.refs = new byte[capacityIn];
     }
 }
\ No newline at end of file
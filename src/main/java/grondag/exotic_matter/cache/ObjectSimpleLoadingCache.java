@@ -18,12 +18,34 @@ public class ObjectSimpleLoadingCache<K, V> implements ISimpleLoadingCache
     
     private final Object writeLock = new Object();
 
+    protected final EvictionPolicy evictionPolicy;
+    
+    /** true if eviction policy is CLOCK - avoids enum comparison in hit path */
+    private final boolean trackReferences;
+    
+    /** max entries copied forward by a CLOCK sweep */
+    private final int retainLimit;
+    
+    /** where next CLOCK sweep starts - only accessed while holding write lock */
+    private int clockHand = 0;
+    
+    protected final CacheStats stats;
+    
     public ObjectSimpleLoadingCache(ObjectSimpleCacheLoader<K, V> loader, int maxSize)
+    {
+        this(loader, maxSize, EvictionPolicy.ROLLOVER, false);
+    }
+    
+    public ObjectSimpleLoadingCache(ObjectSimpleCacheLoader<K, V> loader, int maxSize, EvictionPolicy evictionPolicy, boolean enableStats)
     {
         this.capacity = 1 << (Long.SIZE - Long.numberOfLeadingZeros((long) (maxSize / LOAD_FACTOR)));
         this.maxFill = (int) (capacity * LOAD_FACTOR);
         this.positionMask = capacity * 2 - 1;
         this.loader = loader;
+        this.evictionPolicy = evictionPolicy;
+        this.trackReferences = evictionPolicy == EvictionPolicy.CLOCK;
+        this.retainLimit = maxFill / 2;
+        this.stats = CacheStats.create(enableStats);
         this.activeState = new ObjectCacheState(this.capacity);
         this.clear();
     }
@@ -31,6 +53,9 @@ public class ObjectSimpleLoadingCache<K, V> implements ISimpleLoadingCache
     @Override
     public int size() { return activeState.size.get(); }
     
+    @Override
+    public CacheStats stats() { return stats; }
+    
     @Override
     public void clear()
     {
@@ -43,22 +68,46 @@ public class ObjectSimpleLoadingCache<K, V> implements ISimpleLoadingCache
         ObjectCacheState localState = activeState;
         
         int position = (key.hashCode() * 2) & positionMask;
+        final int startPosition = position;
         
         do
         {
             if(localState.kv[position] == null) return load(localState, key, position);
 
-            if(localState.kv[position].equals(key)) return (V) localState.kv[position + 1];
+            if(localState.kv[position].equals(key))
+            {
+                final int index = position >> 1;
+                
+                // check before write so hits on hot keys don't keep dirtying the cache line
+                if(trackReferences && localState.refs[index] == 0)
+                    localState.refs[index] = 1;
+                
+                stats.hit();
+                return (V) localState.kv[position + 1];
+            }
             
             position = (position + 2) & positionMask;
             
+            // Can only wrap if other threads filled this state before rollover completed.
+            // Don't spin - load without caching.
+            if(position == startPosition) return loadAndCount(key);
+            
         } while (true);
     }
 
+    private V loadAndCount(K key)
+    {
+        final long start = stats.startLoad();
+        final V result = loader.load(key);
+        stats.endLoad(start);
+        return result;
+    }
+    
     @SuppressWarnings("unchecked")
     protected V loadFromBackup(ObjectCacheState backup, final K key)
     {
         int position = (key.hashCode() * 2) & positionMask;
+        final int startPosition = position;
         do
         {
             if(backup.kv[position] == null)
@@ -70,12 +119,17 @@ public class ObjectSimpleLoadingCache<K, V> implements ISimpleLoadingCache
                         backupState.compareAndSet(backup, null);
                     }
                 }
-                return loader.load(key);
+                return loadAndCount(key);
             }
             
-            if(backup.kv[position].equals(key)) return (V) backup.kv[position + 1];
+            if(backup.kv[position].equals(key))
+            {
+                stats.backupHit();
+                return (V) backup.kv[position + 1];
+            }
             
             position = (position + 2) & positionMask;
+            if(position == startPosition) return loadAndCount(key);
         } while(true);
     }
     
@@ -86,7 +140,9 @@ public class ObjectSimpleLoadingCache<K, V> implements ISimpleLoadingCache
         
         ObjectCacheState backupState = this.backupState.get();
         
-        final V result = backupState == null ? loader.load(key) : loadFromBackup(backupState, key);
+        final V result = backupState == null ? loadAndCount(key) : loadFromBackup(backupState, key);
+        
+        final int startPosition = position;
         
         do
         {
@@ -108,20 +164,67 @@ public class ObjectSimpleLoadingCache<K, V> implements ISimpleLoadingCache
             
             position = (position + 2) & positionMask;
             
+            // state filled before rollover completed - see get()
+            if(position == startPosition) return result;
+            
         } while(true);
         
         if(localState.size.incrementAndGet() == this.maxFill)
         {
             ObjectCacheState newState = new ObjectCacheState(this.capacity);
+            final int retained = trackReferences ? retainReferenced(localState, newState) : 0;
             this.backupState.set(this.activeState);
             this.activeState = newState;
             this.backupMissCount.set(0);
+            stats.rollover(retained);
         }
         return result;
     }
     
+    /**
+     * CLOCK sweep for {@link EvictionPolicy#CLOCK}. Copies entries referenced since they
+     * were added into the (not yet visible) new state, starting where the last sweep stopped.
+     * Holds the write lock so no keys are added to the old state during the sweep.
+     * Returns number of entries copied.
+     */
+    private int retainReferenced(ObjectCacheState oldState, ObjectCacheState newState)
+    {
+        synchronized(writeLock)
+        {
+            final Object[] oldKv = oldState.kv;
+            final byte[] oldRefs = oldState.refs;
+            final Object[] newKv = newState.kv;
+            int hand = this.clockHand;
+            int retained = 0;
+            
+            for(int i = 0; i < capacity && retained < retainLimit; i++)
+            {
+                final Object key = oldKv[hand];
+                if(key != null && oldRefs[hand >> 1] != 0)
+                {
+                    final Object value = oldKv[hand + 1];
+                    if(value != null)
+                    {
+                        int position = (key.hashCode() * 2) & positionMask;
+                        while(newKv[position] != null)
+                            position = (position + 2) & positionMask;
+                        
+                        newKv[position + 1] = value;
+                        newKv[position] = key;
+                        retained++;
+                    }
+                }
+                hand = (hand + 2) & positionMask;
+            }
+            
+            this.clockHand = hand;
+            newState.size.set(retained);
+            return retained;
+        }
+    }
+    
     public ObjectSimpleLoadingCache<K, V> createNew(ObjectSimpleCacheLoader<K, V> loader, int startingCapacity)
     {
-        return new ObjectSimpleLoadingCache<K, V>(loader, startingCapacity);
+        return new ObjectSimpleLoadingCache<K, V>(loader, startingCapacity, evictionPolicy, stats != CacheStats.DISABLED);
     }
 }
\ No newline at end of file
@@ -10,11 +10,14 @@ public class WideCacheState<V>
     protected final AtomicReference<V> zeroValue = new AtomicReference<V>();
     protected final long[] keys;
     protected final V[] values;
+    /** CLOCK reference bits, one per value - see {@link EvictionPolicy#CLOCK} */
+    protected final byte[] refs;
     
     @SuppressWarnings("unchecked")
     public WideCacheState(int capacityIn)
     {
         this.keys = new long[capacityIn * 2];
         this.values = (V[]) new Object[capacityIn];
+        this.refs = new byte[capacityIn];
     }
 }
\ No newline at end of file
@@ -21,12 +21,34 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
     
     private final Object writeLock = new Object();
 
+    protected final EvictionPolicy evictionPolicy;
+    
+    /** true if eviction policy is CLOCK - avoids enum comparison in hit path */
+    private final boolean trackReferences;
+    
+    /** max entries copied forward by a CLOCK sweep */
+    private final int retainLimit;
+    
+    /** where next CLOCK sweep starts - only accessed while holding write lock */
+    private int clockHand = 0;
+    
+    protected final CacheStats stats;
+    
     public WideSimpleLoadingCache(WideSimpleCacheLoader<V> loader, int maxSize)
+    {
+        this(loader, maxSize, EvictionPolicy.ROLLOVER, false);
+    }
+    
+    public WideSimpleLoadingCache(WideSimpleCacheLoader<V> loader, int maxSize, EvictionPolicy evictionPolicy, boolean enableStats)
     {
         this.capacity = 1 << (Long.SIZE - Long.numberOfLeadingZeros((long) (maxSize / ISimpleLoadingCache.LOAD_FACTOR)));
         this.maxFill = (int) (capacity * ISimpleLoadingCache.LOAD_FACTOR);
         this.positionMask = (capacity * 2) - 1;
         this.loader = loader;
+        this.evictionPolicy = evictionPolicy;
+        this.trackReferences = evictionPolicy == EvictionPolicy.CLOCK;
+        this.retainLimit = maxFill / 2;
+        this.stats = CacheStats.create(enableStats);
         this.activeState = new WideCacheState<V>(this.capacity);
         this.clear();
     }
@@ -34,6 +56,9 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
     @Override
     public int size() { return activeState.size.get(); }
     
+    @Override
+    public CacheStats stats() { return stats; }
+    
     @Override
     public void clear()
     {
@@ -51,7 +76,7 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
             V value = localState.zeroValue.get();
             if(value == null)
             {
-                value = loader.load(0, 0);
+                value = loadAndCount(0, 0);
                 if(localState.zeroValue.compareAndSet(null, value))
                 {
                     return value;
@@ -62,28 +87,57 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
                     return localState.zeroValue.get();
                 }
             }
+            stats.hit();
             return value;
         }
         
         int position = (((int)Useful.longHash(key1) ^ (int)Useful.longHash(key2)) * 2) & positionMask;
+        final int startPosition = position;
         
         do
         {
-            if(localState.keys[position] == key1 && localState.keys[position + 1] == key2) return localState.values[position >> 1];
+            if(localState.keys[position] == key1 && localState.keys[position + 1] == key2)
+            {
+                final int index = position >> 1;
+                
+                // check before write so hits on hot keys don't keep dirtying the cache line
+                if(trackReferences && localState.refs[index] == 0)
+                    localState.refs[index] = 1;
+                
+                stats.hit();
+                return localState.values[index];
+            }
             
             if(localState.keys[position] == 0 && localState.keys[position + 1] == 0) return load(localState, key1, key2, position);
             
             position = (position + 2) & positionMask;
             
+            // Can only wrap if other threads filled this state before rollover completed.
+            // Don't spin - load without caching.
+            if(position == startPosition) return loadAndCount(key1, key2);
+            
         } while (true);
     }
 
+    private V loadAndCount(long key1, long key2)
+    {
+        final long start = stats.startLoad();
+        final V result = loader.load(key1, key2);
+        stats.endLoad(start);
+        return result;
+    }
+    
     protected V loadFromBackup(WideCacheState<V> backup, final long key1, final long key2)
     {
         int position = (((int)Useful.longHash(key1) ^ (int)Useful.longHash(key2)) * 2) & positionMask;
+        final int startPosition = position;
         do
         {
-            if(backup.keys[position] == key1 && backup.keys[position + 1] == key2) return backup.values [position >> 1];
+            if(backup.keys[position] == key1 && backup.keys[position + 1] == key2)
+            {
+                stats.backupHit();
+                return backup.values [position >> 1];
+            }
             if(backup.keys[position] == 0 && backup.keys[position + 1] == 0)
             {
                 if((backupMissCount.incrementAndGet() & 0xFF) == 0xFF) 
@@ -93,9 +147,10 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
                         backupState.compareAndSet(backup, null);
                     }
                 }
-                return loader.load(key1, key2);
+                return loadAndCount(key1, key2);
             }
             position = (position + 2) & positionMask;
+            if(position == startPosition) return loadAndCount(key1, key2);
         } while(true);
     }
     
@@ -106,7 +161,9 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
         
         WideCacheState<V> backupState = this.backupState.get();
         
-        final V result = backupState == null ? loader.load(key1, key2) : loadFromBackup(backupState, key1, key2);
+        final V result = backupState == null ? loadAndCount(key1, key2) : loadFromBackup(backupState, key1, key2);
+        
+        final int startPosition = position;
         
         do
         {
@@ -131,6 +188,9 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
             
             position = (position + 2) & positionMask;
             
+            // state filled before rollover completed - see get()
+            if(position == startPosition) return result;
+            
         } while(true);
         
         if(localState.size.incrementAndGet() == this.maxFill)
@@ -138,17 +198,65 @@ public class WideSimpleLoadingCache<V> implements ISimpleLoadingCache
             WideCacheState<V> newState = new WideCacheState<V>(this.capacity);
             // doing this means we don't have to handle zero value in backup cache value lookup
             newState.zeroValue.set(this.activeState.zeroValue.get());
+            final int retained = trackReferences ? retainReferenced(localState, newState) : 0;
             this.backupState.set(this.activeState);
             this.activeState = newState;
             this.backupMissCount.set(0);
+            stats.rollover(retained);
         }
         
         return result;
     }
     
+    /**
+     * CLOCK sweep for {@link EvictionPolicy#CLOCK}. Copies entries referenced since they
+     * were added into the (not yet visible) new state, starting where the last sweep stopped.
+     * Holds the write lock so no keys are added to the old state during the sweep.
+     * Returns number of entries copied.
+     */
+    private int retainReferenced(WideCacheState<V> oldState, WideCacheState<V> newState)
+    {
+        synchronized(writeLock)
+        {
+            final long[] oldKeys = oldState.keys;
+            final V[] oldValues = oldState.values;
+            final byte[] oldRefs = oldState.refs;
+            final long[] newKeys = newState.keys;
+            final V[] newValues = newState.values;
+            int hand = this.clockHand;
+            int retained = 0;
+            
+            for(int i = 0; i < capacity && retained < retainLimit; i++)
+            {
+                final long key1 = oldKeys[hand];
+                final long key2 = oldKeys[hand + 1];
+                if((key1 != 0 || key2 != 0) && oldRefs[hand >> 1] != 0)
+                {
+                    final V value = oldValues[hand >> 1];
+                    if(value != null)
+                    {
+                        int position = (((int)Useful.longHash(key1) ^ (int)Useful.longHash(key2)) * 2) & positionMask;
+                        while(newKeys[position] != 0 || newKeys[position + 1] != 0)
+                            position = (position + 2) & positionMask;
+                        
+                        newValues[position >> 1] = value;
+                        newKeys[position] = key1;
+                        newKeys[position + 1] = key2;
+                        retained++;
+                    }
+                }
+                hand = (hand + 2) & positionMask;
+            }
+            
+            this.clockHand = hand;
+            newState.size.set(retained);
+            return retained;
+        }
+    }
+    
     /** for test harness */
     public WideSimpleLoadingCache<V> createNew(WideSimpleCacheLoader<V> loader, int startingCapacity)
     {
-        return new WideSimpleLoadingCache<V>(loader, startingCapacity);
+        return new WideSimpleLoadingCache<V>(loader, startingCapacity, evictionPolicy, stats != CacheStats.DISABLED);
     }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package grondag.exotic_matter.concurrency;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+
+/**
+ * Object pool with a small per-thread cache in front of a shared pool, so that
+ * claim and release on hot paths normally touch only thread-local state.<p>
+ *
+ * Each thread holds two magazines (fixed-size arrays of pooled objects). Claims and releases
+ * use the loaded magazine and swap with the other one when it is empty or full. Only when both
+ * are empty (or full) does the thread go to the shared depot, taking or giving a whole magazine
+ * at once. Objects released by one thread become available to others this way, and the depot
+ * is bounded so that idle threads can't hoard objects without limit.<p>
+ *
+ * Claim returns null when no pooled object is available, same as polling a queue, and the
+ * caller creates a new instance. Objects released when the depot is full are dropped for
+ * garbage collection, as are objects cached by threads that end.<p>
+ *
+ * Metrics are recorded under the given prefix: allocations (claims that found nothing),
+ * depot exchanges, discards and depot occupancy.
+ */
+public class MagazinePool<T>
+{
+    private class Magazines
+    {
+        private Object[] loaded = new Object[magazineSize];
+        private int loadedCount = 0;
+        private Object[] previous = new Object[magazineSize];
+        private int previousCount = 0;
+        
+        private void swap()
+        {
+            final Object[] m = loaded;
+            loaded = previous;
+            previous = m;
+            final int c = loadedCount;
+            loadedCount = previousCount;
+            previousCount = c;
+        }
+    }
+    
+    private final int magazineSize;
+    
+    private final ArrayBlockingQueue<Object[]> fullMagazines;
+    
+    private final ArrayBlockingQueue<Object[]> emptyMagazines;
+    
+    private final ThreadLocal<Magazines> magazines = ThreadLocal.withInitial(Magazines::new);
+    
+    private final MetricCounter allocationCount;
+    private final MetricCounter exchangeCount;
+    private final MetricCounter discardCount;
+    
+    /**
+     * @param metricsPrefix  name prefix for metrics, like "pool.stream.writable"
+     * @param magazineSize  number of objects in each magazine
+     * @param depotSize  number of full magazines the shared depot can hold
+     */
+    public MagazinePool(String metricsPrefix, int magazineSize, int depotSize)
+    {
+        this.magazineSize = magazineSize;
+        this.fullMagazines = new ArrayBlockingQueue<>(depotSize);
+        this.emptyMagazines = new ArrayBlockingQueue<>(depotSize);
+        this.allocationCount = Metrics.counter(metricsPrefix + ".allocations");
+        this.exchangeCount = Metrics.counter(metricsPrefix + ".exchanges");
+        this.discardCount = Metrics.counter(metricsPrefix + ".discards");
+        Metrics.gauge(metricsPrefix + ".depot", () -> fullMagazines.size() * this.magazineSize);
+    }
+    
+    /**
+     * Returns a pooled object, or null if none available.
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable T claim()
+    {
+        final Magazines m = magazines.get();
+        
+        if(m.loadedCount == 0)
+        {
+            if(m.previousCount > 0)
+                m.swap();
+            else
+            {
+                final Object[] full = fullMagazines.poll();
+                if(full == null)
+                {
+                    allocationCount.increment();
+                    return null;
+                }
+                exchangeCount.increment();
+                emptyMagazines.offer(m.loaded);
+                m.loaded = full;
+                m.loadedCount = magazineSize;
+            }
+        }
+        
+        final int index = --m.loadedCount;
+        final T result = (T) m.loaded[index];
+        m.loaded[index] = null;
+        return result;
+    }
+    
+    public void release(T item)
+    {
+        final Magazines m = magazines.get();
+        
+        if(m.loadedCount == magazineSize)
+        {
+            if(m.previousCount == 0)
+                m.swap();
+            else
+            {
+                // both full - give one to depot for other threads
+                if(!fullMagazines.offer(m.previous))
+                {
+                    discardCount.increment();
+                    return;
+                }
+                exchangeCount.increment();
+                m.previous = m.loaded;
+                m.previousCount = magazineSize;
+                final Object[] empty = emptyMagazines.poll();
+                m.loaded = empty == null ? new Object[magazineSize] : empty;
+                m.loadedCount = 0;
+            }
+        }
+        
+        m.loaded[m.loadedCount++] = item;
+    }
+}
@@ -1,5 +1,8 @@
 package grondag.exotic_matter.concurrency;
 
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
+
 public class PerformanceCounter
 {
     public static PerformanceCounter create(boolean enablePerformanceCounting, String title, PerformanceCollector collector)
@@ -31,12 +34,14 @@ public class PerformanceCounter
         long minTime = Long.MAX_VALUE;
         long maxTime = 0;
         final String title;
+        final LatencyHistogram histogram;
        
         long startTime;
         
         public RealPerformanceCounter(String title, PerformanceCollector collector)
         {
             this.title = title;
+            this.histogram = Metrics.histogram("perf." + title);
             if(collector != null)
             {
                 collector.register(this);
@@ -65,6 +70,7 @@ public class PerformanceCounter
             if(time > this.maxTime) this.maxTime = time;
             if(time < this.minTime) this.minTime = time;
             this.runTime += time;
+            this.histogram.record(time);
         }
 
         @Override
@@ -1,6 +1,12 @@
 package grondag.exotic_matter.concurrency;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+import grondag.exotic_matter.varia.intstream.IIntStream;
+import grondag.exotic_matter.varia.structures.LongQueue;
 
 /**
  * Thread pool optimized for scatter-gather processing patterns with an array, list or
@@ -11,15 +17,21 @@ import java.util.function.Consumer;
  * than a custom counted-completer fork join task. (Based on actual experience creating same.)
  * It's also easier to use and requires less code for its intended use cases. <p>
  * 
- * The pool does not have a queue, and all calls to the various flavors of completeTask() are blocking.
+ * The pool does not have a queue for blocking tasks, and all calls to the various flavors of completeTask() are blocking.
  * This design is consistent with the scatter-gather patterns for which this pool is used - the intention
  * is to complete the entire task <em>now</em>, as quickly as possible, and then move on with another 
  * task that may depend on those results.<p>
  * 
- * Calls into the pool for execution are not thread-safe! (Again, no queue - it can only do one thing at a time.)
+ * Calls into the pool for blocking execution are not thread-safe! (Again, no queue - it can only do one thing at a time.)
  * While usage could be externally synchronized, the intended usage pattern is to call into the pool
  * from a consumer thread that generates tasks dynamically and/or drain a queue of tasks into the pool.<p>
  * 
+ * The completeTaskAsync() methods are the exception. They are safe to call from any thread, return immediately, 
+ * and any number of async tasks can be in flight at once. Worker threads steal batches from all in-flight async tasks
+ * when they have no blocking task, and the calling thread of a blocking task helps with async batches while it waits 
+ * for the last worker to finish. Use these to overlap independent phases of work. Blocking tasks still have priority -
+ * workers return to a new blocking task after the async batch in progress.<p>
+ * 
  * Size of the pool is always the system parallelism level, less one, because the calling thread is
  * recruited to do some of the work.<p>
  * 
@@ -95,4 +107,98 @@ public interface ScatterGatherThreadPool {
     <V> void completeTask(SimpleConcurrentList<V> list, Consumer<V> operation);
 
     <V> void completeTask(SimpleConcurrentList<V> list, int concurrencyThreshold, Consumer<V> operation);
+    
+    /**
+     * Applies the given operation to every integer from startInclusive to endExclusive, without boxing.
+     * Otherwise same as {@link #completeTask(Object[], int, int, int, Consumer, int)}.
+     */
+    void completeTask(int startInclusive, int endExclusive, int concurrencyThreshold, IntConsumer operation, int batchSize);
+    
+    void completeTask(int startInclusive, int endExclusive, IntConsumer operation, int batchSize);
+    
+    void completeTask(int startInclusive, int endExclusive, IntConsumer operation);
+    
+    /**
+     * Primitive version of {@link #completeTask(Object[], int, int, int, Consumer, int)}.
+     */
+    void completeTask(int[] inputs, int startIndex, int count, int concurrencyThreshold, IntConsumer operation, int batchSize);
+    
+    void completeTask(int[] inputs, int startIndex, int count, IntConsumer operation, int batchSize);
+    
+    void completeTask(int[] inputs, int startIndex, int count, IntConsumer operation);
+    
+    /**
+     * Primitive version of {@link #completeTask(Object[], int, int, int, Consumer, int)}.
+     * Useful for packed block positions.
+     */
+    void completeTask(long[] inputs, int startIndex, int count, int concurrencyThreshold, LongConsumer operation, int batchSize);
+    
+    void completeTask(long[] inputs, int startIndex, int count, LongConsumer operation, int batchSize);
+    
+    void completeTask(long[] inputs, int startIndex, int count, LongConsumer operation);
+    
+    /**
+     * Applies the given operation to the values in the stream at addresses startAddress 
+     * through startAddress + count - 1. Stream must not be changed until the task is complete.
+     */
+    void completeTask(IIntStream stream, int startAddress, int count, int concurrencyThreshold, IntConsumer operation, int batchSize);
+    
+    void completeTask(IIntStream stream, int startAddress, int count, IntConsumer operation);
+    
+    /**
+     * Applies the given operation to every value in the queue, from head to tail, without dequeuing
+     * or copying them. Queue must not be changed until the task is complete.
+     */
+    void completeTask(LongQueue queue, int concurrencyThreshold, LongConsumer operation, int batchSize);
+    
+    void completeTask(LongQueue queue, LongConsumer operation);
+    
+    /**
+     * Adaptive version of {@link #completeTask(Object[], int, int, int, Consumer, int)}.
+     * Batch size and whether to run in parallel at all are chosen based on prior calls 
+     * with the same profile. See {@link TaskProfile}.
+     */
+    <V> void completeTask(V[] inputs, int startIndex, int count, TaskProfile profile, Consumer<V> operation);
+    
+    <V> void completeTask(SimpleConcurrentList<V> list, TaskProfile profile, Consumer<V> operation);
+    
+    /**
+     * Adaptive version of {@link #completeTask(Object[], int, int, int, ArrayMappingConsumer, int)}.
+     * See {@link TaskProfile}.
+     */
+    <T, V> void completeTask(T[] inputs, int startIndex, int count, TaskProfile profile, ArrayMappingConsumer<T,V> operation);
+    
+    /**
+     * Non-blocking version of {@link #completeTask(SharableTask)}.  Safe to call from any thread, 
+     * including concurrently with other async submissions.  Work is done only by pool threads 
+     * (and threads waiting in a blocking call) so the calling thread is free to do something else.<p>
+     * 
+     * The returned future completes after every participating thread has finished, or completes
+     * exceptionally with the first exception thrown by the task.  Non-async dependent stages
+     * will run on a pool thread, so keep them short.<p>
+     * 
+     * Batch 0 is not reserved for the calling thread, and a thread may leave and rejoin
+     * the task, so {@link SharableTask#onThreadComplete()} can be called more than once on the same thread.
+     */
+    CompletableFuture<Void> completeTaskAsync(SharableTask task);
+    
+    /**
+     * Async version of {@link #completeTask(Object[], int, int, Consumer, int)}.
+     * See {@link #completeTaskAsync(SharableTask)}.
+     */
+    <V> CompletableFuture<Void> completeTaskAsync(V[] inputs, int startIndex, int count, Consumer<V> operation, int batchSize);
+    
+    <V> CompletableFuture<Void> completeTaskAsync(V[] inputs, int startIndex, int count, Consumer<V> operation);
+    
+    <V> CompletableFuture<Void> completeTaskAsync(V[] inputs, Consumer<V> operation);
+    
+    <V> CompletableFuture<Void> completeTaskAsync(SimpleConcurrentList<V> list, Consumer<V> operation);
+    
+    /**
+     * Async version of {@link #completeTask(Object[], int, int, ArrayMappingConsumer, int)}.
+     * See {@link #completeTaskAsync(SharableTask)}.
+     */
+    <T, V> CompletableFuture<Void> completeTaskAsync(T[] inputs, int startIndex, int count, ArrayMappingConsumer<T,V> operation, int batchSize);
+    
+    <T, V> CompletableFuture<Void> completeTaskAsync(T[] inputs, ArrayMappingConsumer<T,V> operation);
 }
\ No newline at end of file
@@ -1,13 +1,25 @@
 package grondag.exotic_matter.concurrency;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 
 import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.varia.intstream.IIntStream;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+import grondag.exotic_matter.varia.structures.LongQueue;
 import sun.misc.Unsafe;
 
 
@@ -51,6 +63,14 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
         return (elementCount + DEFAULT_BATCH_COUNT - 1) / DEFAULT_BATCH_COUNT;
     }
             
+    /** duration of blocking tasks, as seen by calling thread */
+    private static final LatencyHistogram TASK_NANOS = Metrics.histogram("pool.task");
+    
+    /** time calling thread waited for worker threads after running out of batches */
+    private static final LatencyHistogram TAIL_NANOS = Metrics.histogram("pool.task.tail");
+    
+    private static final MetricCounter ASYNC_COUNT = Metrics.counter("pool.async.submitted");
+    
     /**
      * Signals no task and guards against NPE from errant threads by doing nothing
      * and indicating no work if somehow called.
@@ -92,7 +112,20 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
     /**
      * Essentially a single-element work queue. Set to {@link #DUMMY_TASK} when empty.
      */
-    private SharableTask thingNeedingDone = DUMMY_TASK;
+    private volatile SharableTask thingNeedingDone = DUMMY_TASK;
+    
+    /**
+     * Incremented before and after {@link #thingNeedingDone} is set for a new blocking task, 
+     * so odd while a task is being posted.  Lets worker threads that wake up for async 
+     * work tell whether they have already done their part of the current blocking task.
+     */
+    private volatile int taskGeneration = 0;
+    
+    /**
+     * Async tasks that may still have unclaimed batches. Tasks are removed when exhausted,
+     * but complete only after every thread working on them has finished.
+     */
+    private final ConcurrentLinkedQueue<AsyncTask> asyncTasks = new ConcurrentLinkedQueue<>();
     
     /**
      * Signal for shutdown.
@@ -138,6 +171,8 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
             thread.start();
         }
         this.threads = builder.build();
+        
+        Metrics.gauge("pool.async.queued", asyncTasks::size);
     }
     
     /**
@@ -151,6 +186,7 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
     /**
      * Signals worker threads to stop and immediately returns. 
      * Pool provides no means to be restarted once stopped.
+     * Async tasks still in flight will not complete.
      */
     public void stop()
     {
@@ -168,34 +204,49 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
         {
             final Object lock = ScatterGatherThreadPoolImpl.this.startLock;
             final Lock completionLock = ScatterGatherThreadPoolImpl.this.completionLock.readLock();
+            int lastGeneration = 0;
             
             while(running)
             {
+                final int generation = taskGeneration;
                 final SharableTask t = thingNeedingDone;
                 
-                if(t != DUMMY_TASK)
+                // skip if already done, or if task changed while reading
+                if(generation != lastGeneration && (generation & 1) == 0 && generation == taskGeneration)
                 {
-                    completionLock.lock();
-                    try
-                    { 
-                        while(t.doSomeWork(getNextBatchIndex())) {};
-                        t.onThreadComplete();
-                    }
-                    catch (Exception e) 
-                    { 
-                        ExoticMatter.INSTANCE.error("Unhandled error during concurrent processing. Impact unknown.", e);
+                    lastGeneration = generation;
+                    
+                    if(t != DUMMY_TASK)
+                    {
+                        completionLock.lock();
+                        try
+                        { 
+                            while(t.doSomeWork(getNextBatchIndex())) {};
+                            t.onThreadComplete();
+                        }
+                        catch (Exception e) 
+                        { 
+                            ExoticMatter.INSTANCE.error("Unhandled error during concurrent processing. Impact unknown.", e);
+                        }
+                        completionLock.unlock();
                     }
-                    completionLock.unlock();
+                }
+                
+                // steal async batches until none are left or a blocking task arrives
+                if(!asyncTasks.isEmpty())
+                {
+                    doAsyncWork(lastGeneration, false);
+                    continue;
                 }
                 
                 synchronized(lock)
                 {
                     try
                     {
-                        do
+                        while (running && asyncTasks.isEmpty() && !isNewTaskPosted(lastGeneration))
                         {
                             lock.wait();
-                        } while (running && thingNeedingDone == DUMMY_TASK);
+                        }
                     }
                     catch (InterruptedException e)  { }
                 }
@@ -203,6 +254,62 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
         }
     }
     
+    /**
+     * True if a blocking task other than the one in the given generation is posted.
+     */
+    private boolean isNewTaskPosted(int lastGeneration)
+    {
+        final int generation = taskGeneration;
+        return generation != lastGeneration && (generation & 1) == 0 && thingNeedingDone != DUMMY_TASK;
+    }
+    
+    /**
+     * Works on async tasks in the queue, one batch at a time, until all are exhausted. 
+     * If singleBatch is true, returns after one batch.  Otherwise returns at the end
+     * of a batch if a new blocking task has been posted. Returns true if any work was done.
+     */
+    private boolean doAsyncWork(int lastGeneration, boolean singleBatch)
+    {
+        boolean didWork = false;
+        
+        for(AsyncTask a : asyncTasks)
+        {
+            if(a.isExhausted || !a.join()) continue;
+            
+            didWork = true;
+            boolean yield = false;
+            try
+            {
+                while(!a.isExhausted)
+                {
+                    if(!a.task.doSomeWork(a.nextBatchIndex.getAndIncrement()))
+                    {
+                        a.isExhausted = true;
+                        asyncTasks.remove(a);
+                    }
+                    else if(singleBatch || isNewTaskPosted(lastGeneration))
+                    {
+                        yield = true;
+                        break;
+                    }
+                }
+                a.task.onThreadComplete();
+            }
+            catch (Throwable e) 
+            { 
+                a.fail(e);
+                asyncTasks.remove(a);
+            }
+            finally
+            {
+                a.leave();
+            }
+            
+            if(yield) break;
+        }
+        return didWork;
+    }
+    
     @Override
     public final <V> void completeTask (V[] inputs, int startIndex, int count, int concurrencyThreshold, Consumer<V> operation, int batchSize)
     {
@@ -265,13 +372,21 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
     @Override
     public final <V> void completeTask(SimpleConcurrentList<V> list, int concurrencyThreshold, Consumer<V> operation)
     {
-        completeTask(list.getOperands(), 0, list.size(), concurrencyThreshold, operation, defaultBatchSize(list.size()));
+        final int count = list.size();
+        if(count <= concurrencyThreshold)
+        {
+            list.forEach(0, count, operation);
+        }
+        else
+        {
+            this.completeTask(new ListTask<>(list, count, operation, defaultBatchSize(count)));
+        }
     }
     
     @Override
     public final <V> void completeTask(SimpleConcurrentList<V> list, Consumer<V> operation)
     {
-        completeTask(list.getOperands(), 0, list.size(), DEFAULT_CONCURRENCY_THRESHOLD, operation, defaultBatchSize(list.size()));
+        completeTask(list, DEFAULT_CONCURRENCY_THRESHOLD, operation);
     }
     
     @Override
@@ -335,14 +450,221 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
         completeTask(inputs, 0, inputs.length, concurrencyThreshold, operation, batchSize);
     }
     
+    @Override
+    public final void completeTask(int startInclusive, int endExclusive, int concurrencyThreshold, IntConsumer operation, int batchSize)
+    {
+        if(endExclusive - startInclusive <= concurrencyThreshold)
+        {
+            for(int i = startInclusive; i < endExclusive; i++)
+            {
+                operation.accept(i);
+            }
+        }
+        else
+        {
+            this.completeTask(new IntRangeTask(startInclusive, endExclusive - startInclusive, operation, batchSize));
+        }
+    }
+    
+    @Override
+    public final void completeTask(int startInclusive, int endExclusive, IntConsumer operation, int batchSize)
+    {
+        completeTask(startInclusive, endExclusive, (POOL_SIZE + 1) * batchSize, operation, batchSize);
+    }
+    
+    @Override
+    public final void completeTask(int startInclusive, int endExclusive, IntConsumer operation)
+    {
+        completeTask(startInclusive, endExclusive, DEFAULT_CONCURRENCY_THRESHOLD, operation, defaultBatchSize(endExclusive - startInclusive));
+    }
+    
+    @Override
+    public final void completeTask(int[] inputs, int startIndex, int count, int concurrencyThreshold, IntConsumer operation, int batchSize)
+    {
+        if(count <= concurrencyThreshold)
+        {
+            final int endIndex = startIndex + count;
+            for(int i = startIndex; i < endIndex; i++)
+            {
+                operation.accept(inputs[i]);
+            }
+        }
+        else
+        {
+            this.completeTask(new IntArrayTask(inputs, startIndex, count, operation, batchSize));
+        }
+    }
+    
+    @Override
+    public final void completeTask(int[] inputs, int startIndex, int count, IntConsumer operation, int batchSize)
+    {
+        completeTask(inputs, startIndex, count, (POOL_SIZE + 1) * batchSize, operation, batchSize);
+    }
+    
+    @Override
+    public final void completeTask(int[] inputs, int startIndex, int count, IntConsumer operation)
+    {
+        completeTask(inputs, startIndex, count, DEFAULT_CONCURRENCY_THRESHOLD, operation, defaultBatchSize(count));
+    }
+    
+    @Override
+    public final void completeTask(long[] inputs, int startIndex, int count, int concurrencyThreshold, LongConsumer operation, int batchSize)
+    {
+        if(count <= concurrencyThreshold)
+        {
+            final int endIndex = startIndex + count;
+            for(int i = startIndex; i < endIndex; i++)
+            {
+                operation.accept(inputs[i]);
+            }
+        }
+        else
+        {
+            this.completeTask(new LongArrayTask(inputs, startIndex, count, operation, batchSize));
+        }
+    }
+    
+    @Override
+    public final void completeTask(long[] inputs, int startIndex, int count, LongConsumer operation, int batchSize)
+    {
+        completeTask(inputs, startIndex, count, (POOL_SIZE + 1) * batchSize, operation, batchSize);
+    }
+    
+    @Override
+    public final void completeTask(long[] inputs, int startIndex, int count, LongConsumer operation)
+    {
+        completeTask(inputs, startIndex, count, DEFAULT_CONCURRENCY_THRESHOLD, operation, defaultBatchSize(count));
+    }
+    
+    @Override
+    public final void completeTask(IIntStream stream, int startAddress, int count, int concurrencyThreshold, IntConsumer operation, int batchSize)
+    {
+        if(count <= concurrencyThreshold)
+        {
+            final int endAddress = startAddress + count;
+            for(int i = startAddress; i < endAddress; i++)
+            {
+                operation.accept(stream.get(i));
+            }
+        }
+        else
+        {
+            this.completeTask(new IntStreamTask(stream, startAddress, count, operation, batchSize));
+        }
+    }
+    
+    @Override
+    public final void completeTask(IIntStream stream, int startAddress, int count, IntConsumer operation)
+    {
+        completeTask(stream, startAddress, count, DEFAULT_CONCURRENCY_THRESHOLD, operation, defaultBatchSize(count));
+    }
+    
+    @Override
+    public final void completeTask(LongQueue queue, int concurrencyThreshold, LongConsumer operation, int batchSize)
+    {
+        final int count = queue.size();
+        if(count <= concurrencyThreshold)
+        {
+            for(int i = 0; i < count; i++)
+            {
+                operation.accept(queue.getLong(i));
+            }
+        }
+        else
+        {
+            this.completeTask(new LongQueueTask(queue, count, operation, batchSize));
+        }
+    }
+    
+    @Override
+    public final void completeTask(LongQueue queue, LongConsumer operation)
+    {
+        completeTask(queue, DEFAULT_CONCURRENCY_THRESHOLD, operation, defaultBatchSize(queue.size()));
+    }
+    
+    @Override
+    public final <V> void completeTask(V[] inputs, int startIndex, int count, TaskProfile profile, Consumer<V> operation)
+    {
+        final long start = System.nanoTime();
+        if(profile.shouldRunParallel(count))
+        {
+            final long tailNanos = runTask(new ArrayTask<>(inputs, startIndex, count, operation, profile.batchSize(count)), true);
+            profile.recordParallel(count, System.nanoTime() - start, tailNanos);
+        }
+        else
+        {
+            final int endIndex = startIndex + count;
+            for(int i = startIndex; i < endIndex; i++)
+            {
+                operation.accept(inputs[i]);
+            }
+            profile.recordSerial(count, System.nanoTime() - start);
+        }
+    }
+    
+    @Override
+    public final <V> void completeTask(SimpleConcurrentList<V> list, TaskProfile profile, Consumer<V> operation)
+    {
+        final int count = list.size();
+        final long start = System.nanoTime();
+        if(profile.shouldRunParallel(count))
+        {
+            final long tailNanos = runTask(new ListTask<>(list, count, operation, profile.batchSize(count)), true);
+            profile.recordParallel(count, System.nanoTime() - start, tailNanos);
+        }
+        else
+        {
+            list.forEach(0, count, operation);
+            profile.recordSerial(count, System.nanoTime() - start);
+        }
+    }
+    
+    @Override
+    public final <T, V> void completeTask(T[] inputs, int startIndex, int count, TaskProfile profile, ArrayMappingConsumer<T,V> operation)
+    {
+        final long start = System.nanoTime();
+        if(profile.shouldRunParallel(count))
+        {
+            final long tailNanos = runTask(new ArrayMappingTask<>(inputs, startIndex, count, operation, profile.batchSize(count)), true);
+            profile.recordParallel(count, System.nanoTime() - start, tailNanos);
+        }
+        else
+        {
+            final int endIndex = startIndex + count;
+            final Consumer<T> consumer = operation.getWorkerConsumer();
+            for(int i = startIndex; i < endIndex; i++)
+            {
+                consumer.accept(inputs[i]);
+            }
+            operation.completeThread();
+            profile.recordSerial(count, System.nanoTime() - start);
+        }
+    }
+    
     @Override
     public final void completeTask(SharableTask task)
     {
+        runTask(task, false);
+    }
+    
+    /**
+     * Does the work of {@link #completeTask(SharableTask)}. If measureTail is true, returns
+     * nanoseconds the calling thread spent waiting for worker threads after running out of work.
+     */
+    private long runTask(SharableTask task, boolean measureTail)
+    {
+        final long start = TASK_NANOS.start();
+        
+        // only one thread posts blocking tasks, so increments need not be atomic
+        this.taskGeneration++;
+        
         this.thingNeedingDone = task;
         
         // first batch always belongs to control thread
         this.nextBatchIndex = 1;
         
+        this.taskGeneration++;
+        
         // wake up worker threads
         synchronized(startLock)
         {
@@ -365,9 +687,158 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
         // don't hold reference & prevent restart of worker threads
         this.thingNeedingDone = DUMMY_TASK;
 
-        // await completion of worker threads
-        completionWriteLock.lock();
+        final boolean timeTail = measureTail || start != 0;
+        final long tailStart = timeTail ? System.nanoTime() : 0;
+        
+        // await completion of worker threads, helping with async work in the meantime
+        while(!completionWriteLock.tryLock())
+        {
+            if(!doAsyncWork(0, true))
+            {
+                completionWriteLock.lock();
+                break;
+            }
+        }
         completionWriteLock.unlock();
+        
+        if(!timeTail) return 0;
+        
+        final long tailNanos = System.nanoTime() - tailStart;
+        if(start != 0)
+        {
+            TASK_NANOS.recordSince(start);
+            TAIL_NANOS.record(tailNanos);
+        }
+        return tailNanos;
+    }
+    
+    @Override
+    public final CompletableFuture<Void> completeTaskAsync(SharableTask task)
+    {
+        final AsyncTask a = new AsyncTask(task);
+        ASYNC_COUNT.increment();
+        
+        if(POOL_SIZE == 0)
+        {
+            // no worker threads to do it later
+            a.join();
+            try
+            {
+                while(task.doSomeWork(a.nextBatchIndex.getAndIncrement())) {};
+                task.onThreadComplete();
+            }
+            catch (Throwable e) 
+            { 
+                a.fail(e);
+            }
+            a.isExhausted = true;
+            a.leave();
+            return a.future;
+        }
+        
+        asyncTasks.add(a);
+        
+        synchronized(startLock)
+        {
+            startLock.notifyAll();
+        }
+        
+        return a.future;
+    }
+    
+    @Override
+    public final <V> CompletableFuture<Void> completeTaskAsync(V[] inputs, int startIndex, int count, Consumer<V> operation, int batchSize)
+    {
+        return completeTaskAsync(new ArrayTask<>(inputs, startIndex, count, operation, batchSize));
+    }
+    
+    @Override
+    public final <V> CompletableFuture<Void> completeTaskAsync(V[] inputs, int startIndex, int count, Consumer<V> operation)
+    {
+        return completeTaskAsync(inputs, startIndex, count, operation, defaultBatchSize(count));
+    }
+    
+    @Override
+    public final <V> CompletableFuture<Void> completeTaskAsync(V[] inputs, Consumer<V> operation)
+    {
+        return completeTaskAsync(inputs, 0, inputs.length, operation, defaultBatchSize(inputs.length));
+    }
+    
+    @Override
+    public final <V> CompletableFuture<Void> completeTaskAsync(SimpleConcurrentList<V> list, Consumer<V> operation)
+    {
+        final int count = list.size();
+        return completeTaskAsync(new ListTask<>(list, count, operation, defaultBatchSize(count)));
+    }
+    
+    @Override
+    public final <T, V> CompletableFuture<Void> completeTaskAsync(T[] inputs, int startIndex, int count, ArrayMappingConsumer<T,V> operation, int batchSize)
+    {
+        return completeTaskAsync(new ArrayMappingTask<>(inputs, startIndex, count, operation, batchSize));
+    }
+    
+    @Override
+    public final <T, V> CompletableFuture<Void> completeTaskAsync(T[] inputs, ArrayMappingConsumer<T,V> operation)
+    {
+        return completeTaskAsync(inputs, 0, inputs.length, operation, defaultBatchSize(inputs.length));
+    }
+    
+    /**
+     * Tracks an async task in flight. Unlike blocking tasks, each async task has its own batch counter
+     * and batch 0 can be claimed by any thread.  Threads join before claiming batches and leave 
+     * when done. The last thread to leave after all batches are claimed completes the future.
+     */
+    private static class AsyncTask
+    {
+        /** value of {@link #activeThreads} after completion - no more threads can join */
+        private static final int CLOSED = -1;
+        
+        private final SharableTask task;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicInteger nextBatchIndex = new AtomicInteger();
+        private final AtomicInteger activeThreads = new AtomicInteger();
+        
+        /** set when a thread finds no more work - may still be threads working on the last batches */
+        private volatile boolean isExhausted = false;
+        
+        /** first exception thrown by the task, if any */
+        private volatile @Nullable Throwable failure = null;
+        
+        private AsyncTask(SharableTask task)
+        {
+            this.task = task;
+        }
+        
+        /**
+         * Returns false if the task is already complete. Otherwise caller must call {@link #leave()} when done.
+         */
+        private boolean join()
+        {
+            while(true)
+            {
+                final int active = activeThreads.get();
+                if(active == CLOSED) return false;
+                if(activeThreads.compareAndSet(active, active + 1)) return true;
+            }
+        }
+        
+        private void leave()
+        {
+            if(activeThreads.decrementAndGet() == 0 && isExhausted && activeThreads.compareAndSet(0, CLOSED))
+            {
+                final Throwable failure = this.failure;
+                if(failure == null)
+                    future.complete(null);
+                else
+                    future.completeExceptionally(failure);
+            }
+        }
+        
+        private synchronized void fail(Throwable e)
+        {
+            if(failure == null) failure = e;
+            isExhausted = true;
+        }
     }
     
     public static abstract  class AbstractArrayTask<T> implements SharableTask
@@ -407,6 +878,187 @@ public class ScatterGatherThreadPoolImpl implements ScatterGatherThreadPool
         }
     }
     
+    /**
+     * Like {@link AbstractArrayTask} but for anything addressed by an int index, so that 
+     * subclasses can work with primitives.  Each subclass has its own loop to keep
+     * the call to the operation monomorphic.
+     */
+    private static abstract class AbstractRangeTask implements SharableTask
+    {
+        protected final int startIndex;
+        protected final int endIndex;
+        protected final int batchSize;
+        protected final int batchCount;
+        
+        protected AbstractRangeTask(final int startIndex, final int count, final int batchSize)
+        {
+            this.startIndex = startIndex;
+            this.endIndex = startIndex + count;
+            this.batchSize = batchSize;
+            this.batchCount  = (count + batchSize - 1) / batchSize;
+        }
+        
+        /**
+         * Process elements from start (inclusive) to end (exclusive).
+         */
+        protected abstract void doRange(int start, int end);
+        
+        @Override
+        public final boolean doSomeWork(final int batchIndex)
+        {
+            if(batchIndex < batchCount)
+            {
+                final int start = startIndex + batchIndex * batchSize;
+                final int end = Math.min(endIndex, start + batchSize);
+                doRange(start, end);
+                return end < endIndex;
+            } 
+            else return false;
+        }
+        
+        @Override
+        public final void onThreadComplete() { }
+    }
+    
+    private static class IntRangeTask extends AbstractRangeTask
+    {
+        private final IntConsumer operation;
+        
+        private IntRangeTask(int startIndex, int count, IntConsumer operation, int batchSize)
+        {
+            super(startIndex, count, batchSize);
+            this.operation = operation;
+        }
+        
+        @Override
+        protected final void doRange(int start, int end)
+        {
+            final IntConsumer operation = this.operation;
+            for(; start < end; start++)
+            {
+                operation.accept(start);
+            }
+        }
+    }
+    
+    private static class IntArrayTask extends AbstractRangeTask
+    {
+        private final int[] theArray;
+        private final IntConsumer operation;
+        
+        private IntArrayTask(int[] inputs, int startIndex, int count, IntConsumer operation, int batchSize)
+        {
+            super(startIndex, count, batchSize);
+            this.theArray = inputs;
+            this.operation = operation;
+        }
+        
+        @Override
+        protected final void doRange(int start, int end)
+        {
+            final int[] theArray = this.theArray;
+            final IntConsumer operation = this.operation;
+            for(; start < end; start++)
+            {
+                operation.accept(theArray[start]);
+            }
+        }
+    }
+    
+    private static class LongArrayTask extends AbstractRangeTask
+    {
+        private final long[] theArray;
+        private final LongConsumer operation;
+        
+        private LongArrayTask(long[] inputs, int startIndex, int count, LongConsumer operation, int batchSize)
+        {
+            super(startIndex, count, batchSize);
+            this.theArray = inputs;
+            this.operation = operation;
+        }
+        
+        @Override
+        protected final void doRange(int start, int end)
+        {
+            final long[] theArray = this.theArray;
+            final LongConsumer operation = this.operation;
+            for(; start < end; start++)
+            {
+                operation.accept(theArray[start]);
+            }
+        }
+    }
+    
+    private static class IntStreamTask extends AbstractRangeTask
+    {
+        private final IIntStream stream;
+        private final IntConsumer operation;
+        
+        private IntStreamTask(IIntStream stream, int startAddress, int count, IntConsumer operation, int batchSize)
+        {
+            super(startAddress, count, batchSize);
+            this.stream = stream;
+            this.operation = operation;
+        }
+        
+        @Override
+        protected final void doRange(int start, int end)
+        {
+            final IIntStream stream = this.stream;
+            final IntConsumer operation = this.operation;
+            for(; start < end; start++)
+            {
+                operation.accept(stream.get(start));
+            }
+        }
+    }
+    
+    private static class LongQueueTask extends AbstractRangeTask
+    {
+        private final LongQueue queue;
+        private final LongConsumer operation;
+        
+        private LongQueueTask(LongQueue queue, int count, LongConsumer operation, int batchSize)
+        {
+            super(0, count, batchSize);
+            this.queue = queue;
+            this.operation = operation;
+        }
+        
+        @Override
+        protected final void doRange(int start, int end)
+        {
+            final LongQueue queue = this.queue;
+            final LongConsumer operation = this.operation;
+            for(; start < end; start++)
+            {
+                operation.accept(queue.getLong(start));
+            }
+        }
+    }
+    
+    /**
+     * Walks list segments directly instead of copying them to an array.
+     */
+    private static class ListTask<T> extends AbstractRangeTask
+    {
+        private final SimpleConcurrentList<T> list;
+        private final Consumer<T> operation;
+        
+        private ListTask(SimpleConcurrentList<T> list, int count, Consumer<T> operation, int batchSize)
+        {
+            super(0, count, batchSize);
+            this.list = list;
+            this.operation = operation;
+        }
+        
+        @Override
+        protected final void doRange(int start, int end)
+        {
+            list.forEach(start, end, operation);
+        }
+    }
+    
     private static class ArrayTask<T> extends AbstractArrayTask<T>
     {
         protected final Consumer<T> operation;
@@ -1,12 +1,14 @@
 package grondag.exotic_matter.concurrency;
 
 import java.lang.reflect.Array;
-import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import javax.annotation.Nullable;
 
@@ -21,8 +23,16 @@ import net.minecraft.util.math.MathHelper;
  * only occur on a single thread, while nothing else is being done.
  * Iteration is not guaranteed to provide consistent results while addition or removal operations are ongoing. <p>
  *  
+ * Storage is a fixed directory of segments that double in size, so growth never copies
+ * or moves items.  Adding items never locks: a slot is claimed with an atomic increment and
+ * a missing segment is installed with a compare-and-swap. (The previous single-array design
+ * had to lock to grow, and an item written to the old array during a copy could be lost.)<p>
+ *
+ * Removal happens in epochs - {@link #epoch()} is odd while items are being removed or
+ * cleared, and changes every time item positions may have changed.<p>
+ *
  * It has *significant* limitations:
- *  1) Items can be added only at the end of the list, and only individually. Adding items is non-blocking. 
+ *  1) Items can be added only at the end of the list. Adding items is non-blocking.
  *  2) Items can be removed only by providing a predicate function to do so.
  *  3) Removal methods are NOT thread-safe.  Caller must ensure other methods are not called while removal is in progress. 
  *  4) Insertion order is NOT maintained if items are removed.
@@ -31,10 +41,21 @@ import net.minecraft.util.math.MathHelper;
 
 public class SimpleConcurrentList<T> implements Iterable<T>
 {
-    protected T[]  items; 
+    private final Class<T> clazz;
+    
+    /** log2 of first segment size - segment n holds (1 << (firstSegmentBits + n)) items */
+    private final int firstSegmentBits;
+    
+    private final AtomicReferenceArray<T[]> segments;
+    
     private AtomicInteger size = new AtomicInteger(0);
     private int nextDeletionStartIndex = 0;
     
+    /**
+     * Incremented at start and end of each removal or clear. See {@link #epoch()}.
+     */
+    private volatile int epoch = 0;
+    
     private static final int DELETION_BATCH_SIZE = 1024;
     
     public static <V> SimpleConcurrentList<V> create(Class<V> clazz, boolean enablePerformanceCounting, String listName, PerformanceCollector perfCollector)
@@ -54,14 +75,17 @@ public class SimpleConcurrentList<T> implements Iterable<T>
     
     public SimpleConcurrentList(Class<T> clazz, int initialCapacity)
     {
-        initialCapacity = MathHelper.smallestEncompassingPowerOfTwo(initialCapacity);
-        @SuppressWarnings("unchecked")
-        final T[] a = (T[]) Array.newInstance(clazz, initialCapacity);
-        this.items = a;
+        initialCapacity = MathHelper.smallestEncompassingPowerOfTwo(Math.max(16, initialCapacity));
+        this.clazz = clazz;
+        this.firstSegmentBits = Integer.numberOfTrailingZeros(initialCapacity);
+        this.segments = new AtomicReferenceArray<>(Integer.SIZE - 1 - firstSegmentBits);
+        this.segments.set(0, newSegment(0));
     }
    
     public @Nullable PerformanceCounter removalPerfCounter() { return null; }
     
+    public @Nullable PerformanceCounter contentionPerfCounter() { return null; }
+    
     /**
      * Current number of items in the list.  Note
      * that it cannot be fully trusted as a limit
@@ -77,6 +101,59 @@ public class SimpleConcurrentList<T> implements Iterable<T>
         return this.size.get() == 0;
     }
     
+    /**
+     * Changes when items are removed or cleared, and is odd while that is happening.
+     * Indexes and arrays obtained in an earlier epoch may no longer be valid.
+     */
+    public int epoch()
+    {
+        return this.epoch;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private T[] newSegment(int segmentIndex)
+    {
+        return (T[]) Array.newInstance(clazz, 1 << (firstSegmentBits + segmentIndex));
+    }
+    
+    private int segmentIndex(int index)
+    {
+        return (Integer.SIZE - 1 - Integer.numberOfLeadingZeros(index + (1 << firstSegmentBits))) - firstSegmentBits;
+    }
+    
+    /**
+     * Position within segment, given segment index from {@link #segmentIndex(int)}.
+     */
+    private int segmentOffset(int index, int segmentIndex)
+    {
+        return index + (1 << firstSegmentBits) - (1 << (firstSegmentBits + segmentIndex));
+    }
+    
+    /**
+     * Segment with the given index, created if it doesn't exist yet.
+     */
+    private T[] segment(int segmentIndex)
+    {
+        final T[] result = segments.get(segmentIndex);
+        return result == null ? installSegment(segmentIndex) : result;
+    }
+    
+    private T[] installSegment(int segmentIndex)
+    {
+        onAppendContention();
+        final T[] newSegment = newSegment(segmentIndex);
+        if(segments.compareAndSet(segmentIndex, null, newSegment)) return newSegment;
+        
+        // another thread got there first
+        onAppendContention();
+        return segments.get(segmentIndex);
+    }
+    
+    /**
+     * Called when an add has to create a segment or loses a race to do so.
+     */
+    protected void onAppendContention() { }
+    
     /**
      * Adds item at end of list.
      * Safe for concurrent use with other adds.
@@ -85,23 +162,11 @@ public class SimpleConcurrentList<T> implements Iterable<T>
      */
     public void add(T item)
     {
-        int index = this.size.getAndIncrement();
-        if(index < this.items.length)
-        {
-            items[index] = item;
-        }
-        else
-        {
-            synchronized(this)
-            {
-                if(index >= this.items.length)
-                {
-                    int newCapacity = this.items.length * 2;
-                    this.items = Arrays.copyOf(this.items, newCapacity);
-                }
-            }
-            items[index] = item;
-        }
+        assert (epoch & 1) == 0 : "SimpleConcurrentList add during removal";
+        
+        final int index = this.size.getAndIncrement();
+        final int segmentIndex = segmentIndex(index);
+        segment(segmentIndex)[segmentOffset(index, segmentIndex)] = item;
     }
     
     /**
@@ -111,49 +176,81 @@ public class SimpleConcurrentList<T> implements Iterable<T>
      */
     public void addAll(AbstractUnorderedArrayList<T> items)
     {
-        int endExclusive = this.size.addAndGet(items.size());
-        if(endExclusive > this.items.length)
+        final int count = items.size();
+        int index = this.size.getAndAdd(count);
+        int i = 0;
+        while(i < count)
         {
-            synchronized(this)
+            final int segmentIndex = segmentIndex(index);
+            final T[] segment = segment(segmentIndex);
+            int offset = segmentOffset(index, segmentIndex);
+            final int n = Math.min(count - i, segment.length - offset);
+            final int end = i + n;
+            while(i < end)
             {
-                if(endExclusive > this.items.length)
-                {
-                    int newCapacity = MathHelper.smallestEncompassingPowerOfTwo(endExclusive);
-                    this.items = Arrays.copyOf(this.items, newCapacity);
-                }
+                segment[offset++] = items.get(i++);
             }
+            index += n;
         }
-        items.copyToArray(this.items,  endExclusive - items.size());
     }
     
     public void addAll(final T[] itemsIn, final int startFrom, final int size)
     {
-        int endExclusive = this.size.addAndGet(size);
-        if(endExclusive > this.items.length)
+        int index = this.size.getAndAdd(size);
+        int from = startFrom;
+        final int endFrom = startFrom + size;
+        while(from < endFrom)
         {
-            synchronized(this)
-            {
-                if(endExclusive > this.items.length)
-                {
-                    int newCapacity = MathHelper.smallestEncompassingPowerOfTwo(endExclusive);
-                    this.items = Arrays.copyOf(this.items, newCapacity);
-                }
-            }
+            final int segmentIndex = segmentIndex(index);
+            final T[] segment = segment(segmentIndex);
+            final int offset = segmentOffset(index, segmentIndex);
+            final int n = Math.min(endFrom - from, segment.length - offset);
+            System.arraycopy(itemsIn, from, segment, offset, n);
+            from += n;
+            index += n;
         }
-        System.arraycopy(itemsIn, startFrom, this.items, endExclusive - size, size);
     }
     
     public T get(int index)
     {
-        return items[index];
+        final int segmentIndex = segmentIndex(index);
+        return segments.get(segmentIndex)[segmentOffset(index, segmentIndex)];
+    }
+    
+    private void set(int index, @Nullable T item)
+    {
+        final int segmentIndex = segmentIndex(index);
+        segments.get(segmentIndex)[segmentOffset(index, segmentIndex)] = item;
     }
     
     /**
-     * Returns the backing array including null padding at end.
+     * Applies the operation to items from fromInclusive to toExclusive, one segment at a time.
+     * Avoids the copy made by {@link #getOperands()}.
+     */
+    public void forEach(int fromInclusive, final int toExclusive, Consumer<T> operation)
+    {
+        while(fromInclusive < toExclusive)
+        {
+            final int segmentIndex = segmentIndex(fromInclusive);
+            final T[] segment = segments.get(segmentIndex);
+            int offset = segmentOffset(fromInclusive, segmentIndex);
+            final int end = offset + Math.min(toExclusive - fromInclusive, segment.length - offset);
+            fromInclusive += end - offset;
+            for(; offset < end; offset++)
+            {
+                operation.accept(segment[offset]);
+            }
+        }
+    }
+    
+    /**
+     * Returns items in an array of {@link #size()} elements. Items are no longer kept
+     * in a single array, so this is now a copy - changes to it don't affect the list.
+     * Prefer {@link #forEach(int, int, Consumer)} for iteration.
      */
     public T[] getOperands()
     {
-        return this.items;
+        return toArray();
     }
     
     /**
@@ -167,49 +264,50 @@ public class SimpleConcurrentList<T> implements Iterable<T>
     {
         if(this.size.get() == 0) return;
         
-        // note - will not prevent add or iteration
-        // so does not, by itself, ensure thread safety
-        synchronized(this)
+        this.epoch++;
+        
+        int newSize = this.size.get();
+        int start;
+        int end;
+        
+        if(newSize > DELETION_BATCH_SIZE)
         {
-            int newSize = this.size.get();
-            int start;
-            int end;
+            start = this.nextDeletionStartIndex;
+            if(start >= newSize) start = 0;
             
-            if(newSize > DELETION_BATCH_SIZE)
+            end = start + DELETION_BATCH_SIZE;
+            if(end >= newSize)
             {
-                start = this.nextDeletionStartIndex;
-                if(start >= newSize) start = 0;
-                
-                end = start + DELETION_BATCH_SIZE;
-                if(end >= newSize)
-                {
-                    end = newSize;
-                    this.nextDeletionStartIndex = 0;
-                }
-                else
-                {
-                    this.nextDeletionStartIndex = end;
-                }
+                end = newSize;
+                this.nextDeletionStartIndex = 0;
             }
             else
             {
-                start = 0;
-                end = newSize;
+                this.nextDeletionStartIndex = end;
             }
+        }
+        else
+        {
+            start = 0;
+            end = newSize;
+        }
 
-            for(int i = start; i < newSize; i++)
+        for(int i = start; i < newSize; i++)
+        {
+            T item =  this.get(i);
+            
+            if(trueIfDeleted.test(item))
             {
-                T item =  this.items[i];
-        
-                if(trueIfDeleted.test(item))
-                {
-                    items[i] = items[--newSize];
-                    items[newSize] = null;
-                }
+                this.set(i, this.get(--newSize));
+                this.set(newSize, null);
+                
+                // test the item moved here on next pass
+                i--;
             }
-            
-            this.size.set(newSize);
         }
+        
+        this.size.set(newSize);
+        this.epoch++;
     }
     
     /**
@@ -223,49 +321,55 @@ public class SimpleConcurrentList<T> implements Iterable<T>
     {
         if(this.size.get() == 0) return;
         
-        // note - will not prevent add or iteration
-        // so does not, by itself, ensure thread safety
-        synchronized(this)
+        this.epoch++;
+        
+        int newSize = this.size();
+        
+        for(int i = 0; i < newSize; i++)
         {
-            int newSize = this.size();
+            T item =  this.get(i);
             
-            for(int i = 0; i < newSize; i++)
+            if(trueIfDeleted.test(item))
             {
-                T item =  this.items[i];
-        
-                if(trueIfDeleted.test(item))
-                {
-                    items[i] = items[--newSize];
-                    items[newSize] = null;
-                }
+                this.set(i, this.get(--newSize));
+                this.set(newSize, null);
+                
+                // test the item moved here on next pass
+                i--;
             }
-            
-            this.size.set(newSize);
         }
+        
+        this.size.set(newSize);
+        this.epoch++;
     }
     
     /**
      * Removes all items in the list, ensuring no references are held.
+     * Segments are kept for reuse.
      * NOT THREAD SAFE
      * Caller must ensure no other methods are called while this method is ongoing.
      */
     public void clear()
     {
-        // note - will not prevent add or iteration
-        // so does not, by itself, ensure thread safety
-        synchronized(this)
+        final int size = this.size.get();
+        if(size != 0)
         {
-            if(this.size.get() != 0)
+            this.epoch++;
+            
+            for(int i = 0; i < size; i++)
             {
-                Arrays.fill(items, null);
-                this.size.set(0);
+                this.set(i, null);
             }
+            this.size.set(0);
+            
+            this.epoch++;
         }
     }
     
     public Stream<T> stream(boolean isParallel)
     {
-        return StreamSupport.stream(Arrays.spliterator(items, 0, this.size.get()), isParallel);
+        final IntStream indexes = IntStream.range(0, this.size.get());
+        return (isParallel ? indexes.parallel() : indexes).mapToObj(this::get);
     }
 
     /**
@@ -274,7 +378,25 @@ public class SimpleConcurrentList<T> implements Iterable<T>
     @Override
     public Iterator<T> iterator()
     {
-        return this.stream(false).iterator();
+        final int size = this.size.get();
+        
+        return new Iterator<T>()
+        {
+            private int i = 0;
+            
+            @Override
+            public boolean hasNext()
+            {
+                return i < size;
+            }
+            
+            @Override
+            public T next()
+            {
+                if(i >= size) throw new NoSuchElementException();
+                return get(i++);
+            }
+        };
     }
 
     
@@ -282,21 +404,41 @@ public class SimpleConcurrentList<T> implements Iterable<T>
     {
         private final PerformanceCounter removalPerfCounter;
         
+        private final PerformanceCounter contentionPerfCounter;
+        
+        /**
+         * Added to {@link #contentionPerfCounter} during removal because the counter
+         * isn't thread-safe and adds are concurrent.
+         */
+        private final AtomicInteger contentionCount = new AtomicInteger();
+        
         private Instrumented(Class<T> clazz, String listName, PerformanceCollector perfCollector)
         {
             super(clazz);
             this.removalPerfCounter = PerformanceCounter.create(true, listName + " list item removal", perfCollector);
+            this.contentionPerfCounter = PerformanceCounter.create(true, listName + " list append contention", perfCollector);
         }
         
+        @SuppressWarnings("null")
         private Instrumented(Class<T> clazz, PerformanceCounter perfCounter)
         {
             super(clazz);
             this.removalPerfCounter = perfCounter;
+            this.contentionPerfCounter = PerformanceCounter.create(true, "list append contention", null);
         }
         
         @Override
         public @Nullable PerformanceCounter removalPerfCounter() { return this.removalPerfCounter; }
         
+        @Override
+        public @Nullable PerformanceCounter contentionPerfCounter() { return this.contentionPerfCounter; }
+        
+        @Override
+        protected void onAppendContention()
+        {
+            this.contentionCount.incrementAndGet();
+        }
+        
         @Override 
         public void removeSomeDeletedItems(Predicate<T> trueIfDeleted)
         {
@@ -305,16 +447,47 @@ public class SimpleConcurrentList<T> implements Iterable<T>
             super.removeSomeDeletedItems(trueIfDeleted);
             this.removalPerfCounter.endRun();
             this.removalPerfCounter.addCount(startCount - this.size());
+            this.contentionPerfCounter.addCount(this.contentionCount.getAndSet(0));
+        }
+        
+        @Override
+        public void removeAllDeletedItems(Predicate<T> trueIfDeleted)
+        {
+            int startCount = this.size();
+            this.removalPerfCounter.startRun();
+            super.removeAllDeletedItems(trueIfDeleted);
+            this.removalPerfCounter.endRun();
+            this.removalPerfCounter.addCount(startCount - this.size());
+            this.contentionPerfCounter.addCount(this.contentionCount.getAndSet(0));
         }
     }
 
     public T[] toArray()
     {
-        return Arrays.copyOf(this.items, this.size());
+        final int size = this.size();
+        return toArray(0, size, size);
     }
     
     public T[] toArray(final int fromInclusive, final int toExclusive)
     {
-        return Arrays.copyOfRange(this.items, fromInclusive, toExclusive);
+        return toArray(fromInclusive, toExclusive, toExclusive - fromInclusive);
+    }
+    
+    private T[] toArray(int fromInclusive, final int toExclusive, int arraySize)
+    {
+        @SuppressWarnings("unchecked")
+        final T[] result = (T[]) Array.newInstance(clazz, arraySize);
+        int target = 0;
+        while(fromInclusive < toExclusive)
+        {
+            final int segmentIndex = segmentIndex(fromInclusive);
+            final T[] segment = segments.get(segmentIndex);
+            final int offset = segmentOffset(fromInclusive, segmentIndex);
+            final int n = Math.min(toExclusive - fromInclusive, segment.length - offset);
+            System.arraycopy(segment, offset, result, target, n);
+            fromInclusive += n;
+            target += n;
+        }
+        return result;
     }
 }
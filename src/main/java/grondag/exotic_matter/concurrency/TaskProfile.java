@@ -0,0 +1,171 @@
+package grondag.exotic_matter.concurrency;
+
+/**
+ * Enables adaptive batch sizing in {@link ScatterGatherThreadPool}. Create one instance for each
+ * kind of task (usually one per call site) and pass it with every call for that task.<p>
+ *
+ * Tracks average cost per element, the extra time a parallel run takes compared to
+ * perfect division of work (waking threads and waiting for the last one), and tail wait -
+ * the time the calling thread waits after running out of batches. These are used to decide
+ * if the next call should be run in parallel at all, and if so, how big batches should be.
+ * Long tail waits mean batches are too big, so each thread gets more of them next time.
+ * Short tail waits mean fewer, larger batches can be used to reduce contention.<p>
+ *
+ * Until a cost is measured, the pool's static defaults are used.
+ * Like blocking calls to the pool, not thread-safe.
+ */
+public class TaskProfile
+{
+    /**
+     * Assumed cost of a parallel run beyond the work itself, until measured.
+     */
+    public static final long DEFAULT_OVERHEAD_NANOS = 20000;
+    
+    /**
+     * Batches shorter than this spend too much of their time claiming work.
+     */
+    public static final long MIN_BATCH_NANOS = 2000;
+    
+    public static final int MAX_BATCHES_PER_THREAD = 64;
+    
+    /** tail wait above this fraction of run time means batches should be smaller */
+    private static final double MAX_TAIL_RATIO = 0.1;
+    
+    /** tail wait below this fraction of run time means batches can be larger */
+    private static final double MIN_TAIL_RATIO = 0.02;
+    
+    /** weight of each new sample in running averages */
+    private static final double SAMPLE_WEIGHT = 0.125;
+    
+    /**
+     * Overhead is only measured by parallel runs, so a single slow run could keep a task serial
+     * forever. Task is run in parallel after this many serial runs that might have been faster in parallel.
+     */
+    private static final int PROBE_INTERVAL = 64;
+    
+    private static final int THREAD_COUNT = ScatterGatherThreadPoolImpl.POOL_SIZE + 1;
+    
+    /** negative until first measurement */
+    private double nanosPerElement = -1;
+    
+    /**
+     * True once cost has been measured by a serial run. Parallel runs only estimate cost,
+     * and can't tell slow elements from threads that never got scheduled, so they don't 
+     * update cost after that. Otherwise a task on an oversubscribed machine would look 
+     * expensive and keep running in parallel even when it takes longer.
+     */
+    private boolean hasSerialCost = false;
+    
+    private double overheadNanos = DEFAULT_OVERHEAD_NANOS;
+    
+    private double tailNanos = 0;
+    
+    private int batchesPerThread = ScatterGatherThreadPoolImpl.DEFAULT_BATCHES_PER_THREAD;
+    
+    private int serialRunsSinceProbe = 0;
+    
+    /**
+     * Average time to process one element on one thread, or -1 if not yet measured.
+     */
+    public double nanosPerElement()
+    {
+        return nanosPerElement;
+    }
+    
+    /**
+     * Average extra time of parallel runs beyond the work itself divided among all threads.
+     */
+    public double overheadNanos()
+    {
+        return overheadNanos;
+    }
+    
+    /**
+     * Average time calling thread waited for the last worker in parallel runs.
+     */
+    public double tailNanos()
+    {
+        return tailNanos;
+    }
+    
+    public int batchesPerThread()
+    {
+        return batchesPerThread;
+    }
+    
+    boolean shouldRunParallel(int count)
+    {
+        if(THREAD_COUNT == 1 || count < 2) return false;
+        
+        if(nanosPerElement < 0) return count > ScatterGatherThreadPoolImpl.DEFAULT_CONCURRENCY_THRESHOLD;
+        
+        // parallel run saves all but 1 / THREAD_COUNT of serial time, less overhead
+        final double serialNanos = count * nanosPerElement;
+        if(serialNanos * (THREAD_COUNT - 1) > overheadNanos * THREAD_COUNT) return true;
+        
+        // don't probe if there isn't enough work for a useful batch on each thread
+        if(serialNanos > MIN_BATCH_NANOS * THREAD_COUNT && ++serialRunsSinceProbe >= PROBE_INTERVAL)
+        {
+            serialRunsSinceProbe = 0;
+            return true;
+        }
+        return false;
+    }
+    
+    int batchSize(int count)
+    {
+        final int batchCount = THREAD_COUNT * batchesPerThread;
+        int result = (count + batchCount - 1) / batchCount;
+        
+        if(nanosPerElement > 0)
+            result = Math.max(result, (int) Math.min(count, Math.ceil(MIN_BATCH_NANOS / nanosPerElement)));
+        
+        return Math.max(1, result);
+    }
+    
+    void recordSerial(int count, long nanos)
+    {
+        if(count <= 0) return;
+        
+        final double costSample = nanos / (double) count;
+        nanosPerElement = hasSerialCost ? average(nanosPerElement, costSample) : costSample;
+        hasSerialCost = true;
+    }
+    
+    /**
+     * Until a serial run measures cost, cost is estimated assuming all threads were busy until the tail wait started.
+     */
+    void recordParallel(int count, long nanos, long tailNanos)
+    {
+        if(count <= 0 || nanos <= 0) return;
+        
+        final double costSample = (nanos - tailNanos) * THREAD_COUNT / (double) count;
+        
+        // prefer prior estimate for cost - otherwise overhead would be measured against itself
+        final double cost = nanosPerElement < 0 ? costSample : nanosPerElement;
+        overheadNanos = average(overheadNanos, Math.max(tailNanos, nanos - count * cost / THREAD_COUNT));
+        
+        if(!hasSerialCost) nanosPerElement = average(nanosPerElement, costSample);
+        this.tailNanos = average(this.tailNanos, tailNanos);
+        
+        final double tailRatio = tailNanos / (double) nanos;
+        if(tailRatio > MAX_TAIL_RATIO)
+            batchesPerThread = Math.min(MAX_BATCHES_PER_THREAD, batchesPerThread * 2);
+        else if(tailRatio < MIN_TAIL_RATIO)
+            batchesPerThread = Math.max(1, batchesPerThread / 2);
+        
+        serialRunsSinceProbe = 0;
+    }
+    
+    private static double average(double average, double sample)
+    {
+        return average < 0 ? sample : average + (sample - average) * SAMPLE_WEIGHT;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format("nanos/element=%.2f overhead=%.0fns tail=%.0fns batches/thread=%d",
+                nanosPerElement, overheadNanos, tailNanos, batchesPerThread);
+    }
+}
\ No newline at end of file
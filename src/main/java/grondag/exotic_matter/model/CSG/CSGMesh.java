@@ -38,6 +38,8 @@ import java.util.List;
 
 import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import net.minecraft.util.math.AxisAlignedBB;
 
 /**
@@ -45,6 +47,10 @@ import net.minecraft.util.math.AxisAlignedBB;
  */
 public abstract class CSGMesh
 {
+    private static final LatencyHistogram DIFFERENCE_NANOS = Metrics.histogram("csg.mesh.difference");
+    private static final LatencyHistogram INTERSECT_NANOS = Metrics.histogram("csg.mesh.intersect");
+    private static final LatencyHistogram UNION_NANOS = Metrics.histogram("csg.mesh.union");
+    
     // TODO: reduce garbagification by releasing or reusing any mutables that can't escape
     // TODO: ensure no references retained to any output
     
@@ -124,6 +130,8 @@ public abstract class CSGMesh
      */
     public static Collection<IMutablePolygon> difference(Collection<? extends IPolygon> a, Collection<? extends IPolygon> b)
     {
+        final long start = DIFFERENCE_NANOS.start();
+     
      // PERF: use threadlocals or custom linking
         List<IMutablePolygon> inner = new ArrayList<>();
         List<IMutablePolygon> outer = new ArrayList<>();
@@ -142,6 +150,7 @@ public abstract class CSGMesh
         });
 
         outer.addAll(differenceClip(inner, b));
+        DIFFERENCE_NANOS.recordSince(start);
         return outer;
     }
     
@@ -192,6 +201,8 @@ public abstract class CSGMesh
     
     public static Collection<IMutablePolygon> intersect(CSGNode.Root a, CSGNode.Root b)
     {
+        final long start = INTERSECT_NANOS.start();
+        
         a.invert();
         b.clipTo(a);
         b.invert();
@@ -199,7 +210,10 @@ public abstract class CSGMesh
         b.clipTo(a);
         a.addAll(b);
         a.invert();
-        return a.recombinedQuads();
+        
+        Collection<IMutablePolygon> result = a.recombinedQuads();
+        INTERSECT_NANOS.recordSince(start);
+        return result;
     }
 
     /**
@@ -221,6 +235,8 @@ public abstract class CSGMesh
      */
     public static Collection<IMutablePolygon> union(Collection<? extends IPolygon> aMesh, Collection<? extends IPolygon> bMesh)
     {
+        final long start = UNION_NANOS.start();
+        
         // PERF: use threadlocals
         List<IMutablePolygon> inner = new ArrayList<>();
         List<IMutablePolygon> outer = new ArrayList<>();
@@ -258,6 +274,7 @@ public abstract class CSGMesh
             bMesh.stream().forEach((p) -> result.add(p.claimCopy()));
         }
         
+        UNION_NANOS.recordSince(start);
         return result;
     }
 
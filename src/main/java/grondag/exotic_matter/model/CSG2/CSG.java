@@ -32,11 +32,19 @@ package grondag.exotic_matter.model.CSG2;
  * <info@michaelhoffer.de>.
  */
 
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.concurrency.ScatterGatherThreadPool;
+import grondag.exotic_matter.model.CSG2.CsgResultCache.Operation;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
 import grondag.exotic_matter.model.primitives.stream.CsgPolyStream;
 import grondag.exotic_matter.model.primitives.stream.IPolyStream;
+import grondag.exotic_matter.model.primitives.stream.IReadOnlyPolyStream;
 import grondag.exotic_matter.model.primitives.stream.IWritablePolyStream;
+import grondag.exotic_matter.model.primitives.stream.PolyStreamFormat;
 import grondag.exotic_matter.model.primitives.stream.PolyStreams;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
 
 /**
  * Access point for CSG operations.<br>
@@ -45,6 +53,101 @@ import grondag.exotic_matter.model.primitives.stream.PolyStreams;
  */
 public abstract class CSG
 {
+    private static final LatencyHistogram DIFFERENCE_NANOS = Metrics.histogram("csg.difference");
+    private static final LatencyHistogram INTERSECT_NANOS = Metrics.histogram("csg.intersect");
+    private static final LatencyHistogram UNION_NANOS = Metrics.histogram("csg.union");
+    
+    private static @Nullable ScatterGatherThreadPool clipPool = null;
+    
+    /**
+     * If pool is non-null, clip phases of CSG operations on large meshes will run in parallel on it.
+     * See {@link CsgPolyStream#clipTo(CsgPolyStream, ScatterGatherThreadPool)}. Call during pre-init if enabled in config.
+     */
+    public static void setClipPool(@Nullable ScatterGatherThreadPool pool)
+    {
+        clipPool = pool;
+    }
+    
+    private static boolean balancedTrees = false;
+    
+    private static final CsgResultCache RESULT_CACHE = new CsgResultCache("cache.csg", 0);
+    
+    /**
+     * If true, CSG streams created from input meshes build balanced BSP trees.
+     * See {@link CsgPolyStream#setBalancedTree(boolean)}.
+     */
+    public static void setBalancedTrees(boolean balanced)
+    {
+        balancedTrees = balanced;
+    }
+    
+    /**
+     * Sets memory budget for results of operations on {@link IPolyStream} inputs.
+     * Results are reused when both inputs have the same content. Zero disables the cache.
+     */
+    public static void setResultCacheMegabytes(int megabytes)
+    {
+        RESULT_CACHE.setMaxBytes(megabytes * 1024L * 1024L);
+    }
+    
+    /**
+     * Computes result of operation on the given inputs, or copies the result from cache if 
+     * the same operation has been done with inputs that have the same content.
+     */
+    private static void cachedOperation(Operation operation, IPolyStream a, IPolyStream b, IWritablePolyStream output)
+    {
+        final CsgResultCache cache = RESULT_CACHE;
+        if(!cache.isEnabled())
+        {
+            operation(operation, a, b, output);
+            return;
+        }
+        
+        final long hashA = a.contentHash();
+        final long hashB = b.contentHash();
+        if(cache.appendTo(operation, hashA, hashB, output))
+            return;
+        
+        final IWritablePolyStream result = PolyStreams.claimWritable(PolyStreamFormat.HAS_TAG_FLAG);
+        try
+        {
+            operation(operation, a, b, result);
+        }
+        catch(RuntimeException e)
+        {
+            result.release();
+            throw e;
+        }
+        final IReadOnlyPolyStream readOnly = result.releaseAndConvertToReader(PolyStreamFormat.HAS_TAG_FLAG);
+        output.appendAll(readOnly);
+        cache.put(operation, hashA, hashB, readOnly);
+    }
+    
+    private static void operation(Operation operation, IPolyStream a, IPolyStream b, IWritablePolyStream output)
+    {
+        final boolean balanced = balancedTrees;
+        CsgPolyStream aCSG = PolyStreams.claimCSG(a, balanced);
+        CsgPolyStream bCSG = PolyStreams.claimCSG(b, balanced);
+        
+        switch(operation)
+        {
+            case DIFFERENCE:
+                difference(aCSG, bCSG, output);
+                break;
+            
+            case INTERSECT:
+                intersect(aCSG, bCSG, output);
+                break;
+            
+            case UNION:
+                union(aCSG, bCSG, output);
+                break;
+        }
+        
+        aCSG.release();
+        bCSG.release();
+    }
+    
     /**
      * Output a new mesh solid representing the difference of the two input meshes.
      *
@@ -63,13 +166,7 @@ public abstract class CSG
      */
     public static void difference(IPolyStream a, IPolyStream b, IWritablePolyStream output)
     {
-        CsgPolyStream aCSG = PolyStreams.claimCSG(a);
-        CsgPolyStream bCSG = PolyStreams.claimCSG(b);
-        
-        difference(aCSG, bCSG, output);
-        
-        aCSG.release();
-        bCSG.release();
+        cachedOperation(Operation.DIFFERENCE, a, b, output);
     }
     
     /**
@@ -79,24 +176,29 @@ public abstract class CSG
      */
     public static void difference(CsgPolyStream a, CsgPolyStream b, IWritablePolyStream output)
     {
+        final long start = DIFFERENCE_NANOS.start();
+        
         a.complete();
         b.complete();
         
         // A outside of B bounds can be passed directly to output
-        if(outputDisjointA(a, b, output))
-            // if A is empty there is nothing to subtract from
-            return;
+        // if A is empty there is nothing to subtract from
+        if(!outputDisjointA(a, b, output))
+        {
+            // add portions of A within B bounds but not inside B mesh
+            final ScatterGatherThreadPool pool = clipPool;
+            a.invert();
+            a.clipTo(b, pool);
+            b.clipTo(a, pool);
+            b.invert();
+            b.clipTo(a, pool);
+            a.invert();
         
-        // add portions of A within B bounds but not inside B mesh
-        a.invert();
-        a.clipTo(b);
-        b.clipTo(a);
-        b.invert();
-        b.clipTo(a);
-        a.invert();
+            a.outputRecombinedQuads(output);
+            b.outputRecombinedQuads(output);
+        }
         
-        a.outputRecombinedQuads(output);
-        b.outputRecombinedQuads(output);
+        DIFFERENCE_NANOS.recordSince(start);
     }
     
     /**
@@ -117,13 +219,7 @@ public abstract class CSG
      */
     public static void intersect(IPolyStream a, IPolyStream b, IWritablePolyStream output)
     {
-        CsgPolyStream aCSG = PolyStreams.claimCSG(a);
-        CsgPolyStream bCSG = PolyStreams.claimCSG(b);
-        
-        intersect(aCSG, bCSG, output);
-
-        aCSG.release();
-        bCSG.release();
+        cachedOperation(Operation.INTERSECT, a, b, output);
     }
 
     /**
@@ -133,23 +229,28 @@ public abstract class CSG
      */
     public static void intersect(CsgPolyStream a, CsgPolyStream b, IWritablePolyStream output)
     {
+        final long start = INTERSECT_NANOS.start();
+        
         a.complete();
         b.complete();
         
         a.complete();
         b.complete();
         
+        final ScatterGatherThreadPool pool = clipPool;
         a.invert();
-        b.clipTo(a);
+        b.clipTo(a, pool);
         b.invert();
-        a.clipTo(b);
-        b.clipTo(a);
+        a.clipTo(b, pool);
+        b.clipTo(a, pool);
         
         a.invert();
         b.invert();
         
         a.outputRecombinedQuads(output);
         b.outputRecombinedQuads(output);
+        
+        INTERSECT_NANOS.recordSince(start);
     }
     
     /**
@@ -171,13 +272,7 @@ public abstract class CSG
      */
     public static void union(IPolyStream a, IPolyStream b, IWritablePolyStream output)
     {
-        CsgPolyStream aCSG = PolyStreams.claimCSG(a);
-        CsgPolyStream bCSG = PolyStreams.claimCSG(b);
-        
-        union(aCSG, bCSG, output);
-        
-        aCSG.release();
-        bCSG.release();
+        cachedOperation(Operation.UNION, a, b, output);
     }
     
     /**
@@ -187,6 +282,8 @@ public abstract class CSG
      */
     public static void union(CsgPolyStream a, CsgPolyStream b, IWritablePolyStream output)
     {
+        final long start = UNION_NANOS.start();
+        
         a.complete();
         b.complete();
         
@@ -201,15 +298,18 @@ public abstract class CSG
             // some potential overlap
             // add union of the overlapping bits, 
             // which will include any parts of B that need to be included
-            a.clipTo(b);
-            b.clipTo(a);
+            final ScatterGatherThreadPool pool = clipPool;
+            a.clipTo(b, pool);
+            b.clipTo(a, pool);
             b.invert();
-            b.clipTo(a);
+            b.clipTo(a, pool);
             b.invert();
             
             a.outputRecombinedQuads(output);
             b.outputRecombinedQuads(output);
         }
+        
+        UNION_NANOS.recordSince(start);
     }
     
     /**
@@ -0,0 +1,211 @@
+package grondag.exotic_matter.model.CSG2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.model.primitives.polygon.IStreamReaderPolygon;
+import grondag.exotic_matter.model.primitives.stream.IReadOnlyPolyStream;
+import grondag.exotic_matter.model.primitives.stream.IWritablePolyStream;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+import it.unimi.dsi.fastutil.HashCommon;
+
+/**
+ * Results of CSG operations keyed by operation and the content hash of both inputs
+ * (see {@link grondag.exotic_matter.model.primitives.stream.IPolyStream#contentHash()}),
+ * so that shapes built from the same primitives don't repeat the same CSG work.<p>
+ *
+ * Results are kept as compact read-only streams. Least recently used results are released
+ * when total size exceeds the memory budget. Entries are keyed by the operation and both
+ * full 64-bit input hashes, so different inputs only share a result if the content
+ * hash of an input stream collides.<p>
+ *
+ * Disabled by default - callers that repeat the same operations should enable it explicitly.<p>
+ *
+ * Safe for concurrent use. Lookups and updates hold a lock, but only briefly -
+ * cached results are copied to output outside the lock.
+ */
+class CsgResultCache
+{
+    static enum Operation
+    {
+        DIFFERENCE,
+        INTERSECT,
+        UNION
+    }
+    
+    private static final class Key
+    {
+        private final Operation operation;
+        private final long hashA;
+        private final long hashB;
+        
+        private Key(Operation operation, long hashA, long hashB)
+        {
+            this.operation = operation;
+            this.hashA = hashA;
+            this.hashB = hashB;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return (int) HashCommon.mix(HashCommon.mix(hashA) + hashB) + operation.ordinal();
+        }
+        
+        @Override
+        public boolean equals(@Nullable Object obj)
+        {
+            if(!(obj instanceof Key))
+                return false;
+            
+            final Key other = (Key) obj;
+            return operation == other.operation && hashA == other.hashA && hashB == other.hashB;
+        }
+    }
+    
+    private static class Entry
+    {
+        private final IReadOnlyPolyStream result;
+        private final int bytes;
+        
+        private Entry(IReadOnlyPolyStream result)
+        {
+            this.result = result;
+            this.bytes = result.storageBytes();
+        }
+    }
+    
+    private final MetricCounter hitCount;
+    private final MetricCounter missCount;
+    private final MetricCounter evictionCount;
+    
+    /** access order, so iteration starts with least recently used */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    
+    private long maxBytes;
+    
+    private long usedBytes = 0;
+    
+    CsgResultCache(String metricsPrefix, long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        this.hitCount = Metrics.counter(metricsPrefix + ".hits");
+        this.missCount = Metrics.counter(metricsPrefix + ".misses");
+        this.evictionCount = Metrics.counter(metricsPrefix + ".evictions");
+        Metrics.gauge(metricsPrefix + ".bytes", this::usedBytes);
+        Metrics.gauge(metricsPrefix + ".size", this::size);
+    }
+    
+    boolean isEnabled()
+    {
+        return maxBytes > 0;
+    }
+    
+    /**
+     * Appends cached result to output and returns true if present. Returns false otherwise.
+     */
+    boolean appendTo(Operation operation, long hashA, long hashB, IWritablePolyStream output)
+    {
+        final IStreamReaderPolygon reader = claimReader(operation, hashA, hashB);
+        if(reader == null)
+        {
+            missCount.increment();
+            return false;
+        }
+        
+        hitCount.increment();
+        try
+        {
+            if(reader.hasValue())
+            {
+                do
+                    output.appendCopy(reader);
+                while(reader.next());
+            }
+        }
+        finally
+        {
+            reader.release();
+        }
+        return true;
+    }
+    
+    /**
+     * Reader is claimed while locked so that result stream can't be released
+     * by eviction before we read it. Release is deferred until reader is released.
+     */
+    private synchronized @Nullable IStreamReaderPolygon claimReader(Operation operation, long hashA, long hashB)
+    {
+        final Entry entry = entries.get(new Key(operation, hashA, hashB));
+        return entry == null ? null : entry.result.claimThreadSafeReader();
+    }
+    
+    /**
+     * Adds result to cache. Cache takes ownership of the stream and will release it
+     * when evicted, or immediately if it is bigger than the memory budget.
+     */
+    synchronized void put(Operation operation, long hashA, long hashB, IReadOnlyPolyStream result)
+    {
+        final Entry entry = new Entry(result);
+        if(entry.bytes > maxBytes)
+        {
+            result.release();
+            return;
+        }
+        
+        final Entry prior = entries.put(new Key(operation, hashA, hashB), entry);
+        usedBytes += entry.bytes;
+        
+        // another thread computed the same result concurrently
+        if(prior != null)
+        {
+            usedBytes -= prior.bytes;
+            prior.result.release();
+        }
+        
+        evict();
+    }
+    
+    private void evict()
+    {
+        final Iterator<Entry> it = entries.values().iterator();
+        while(usedBytes > maxBytes && it.hasNext())
+        {
+            final Entry entry = it.next();
+            it.remove();
+            usedBytes -= entry.bytes;
+            entry.result.release();
+            evictionCount.increment();
+        }
+    }
+    
+    /**
+     * Zero disables the cache and releases all results.
+     */
+    synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+    
+    synchronized void clear()
+    {
+        for(Entry entry : entries.values())
+            entry.result.release();
+        entries.clear();
+        usedBytes = 0;
+    }
+    
+    synchronized long usedBytes()
+    {
+        return usedBytes;
+    }
+    
+    synchronized long size()
+    {
+        return entries.size();
+    }
+}
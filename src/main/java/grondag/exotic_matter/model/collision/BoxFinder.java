@@ -17,6 +17,12 @@ import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
  * 
  * Exploits representation of each 8x8x1 layer as a single long value to
  * enable fast bit-wise comparisons. <p>
+ * 
+ * Search for the best combination of non-intersecting volumes can be expensive for
+ * some voxel patterns, so output can be limited to a number of search steps and/or
+ * a time budget. When the budget runs out, sets under consideration are completed
+ * greedily and the best found so far is used. Output is still a valid, complete
+ * set of boxes - only the box count is likely to be higher. <p>
  */
 public class BoxFinder
 {
@@ -43,6 +49,13 @@ public class BoxFinder
     
     final int[] volumeScores = new int[64];
     
+    /** zero if no limit */
+    private int maxSearchSteps = 0;
+    private boolean hasSearchDeadline = false;
+    private long searchDeadline;
+    private int searchSteps;
+    private boolean isSearchComplete = true;
+    
     void clear()
     {
         System.arraycopy(EMPTY, 0, voxels, 0, 8);
@@ -245,10 +258,54 @@ public class BoxFinder
     
     public void outputBoxes(ICollisionBoxListBuilder builder)
     {
+        outputBoxes(builder, 0, 0);
+    }
+    
+    /**
+     * Same as {@link #outputBoxes(ICollisionBoxListBuilder)} but stops searching for better
+     * combinations of boxes after the given number of search steps or nanoseconds, whichever
+     * comes first. Limits that are zero or less are ignored. Limits apply to the whole call.
+     * Use {@link #isSearchComplete()} after to know if the limit was reached.
+     */
+    public void outputBoxes(ICollisionBoxListBuilder builder, int maxSteps, long maxNanos)
+    {
+        this.maxSearchSteps = maxSteps;
+        this.hasSearchDeadline = maxNanos > 0;
+        this.searchDeadline = System.nanoTime() + maxNanos;
+        this.searchSteps = 0;
+        this.isSearchComplete = true;
+        
         while(outputBest(builder)) {};
         outputRemainders(builder);
     }
     
+    /**
+     * False if search limits were reached during last output and boxes may not be the best possible.
+     */
+    public boolean isSearchComplete()
+    {
+        return isSearchComplete;
+    }
+    
+    /**
+     * Counts a search step and returns true if search should stop. Stays true once limits are reached.
+     * Time is only checked every few steps because reading the clock isn't free.
+     */
+    private boolean isSearchExhausted()
+    {
+        if(!isSearchComplete)
+            return true;
+        
+        final int steps = ++searchSteps;
+        if((maxSearchSteps > 0 && steps > maxSearchSteps)
+                || (hasSearchDeadline && (steps & 63) == 0 && System.nanoTime() - searchDeadline > 0))
+        {
+            isSearchComplete = false;
+            return true;
+        }
+        return false;
+    }
+    
     void outputRemainders(ICollisionBoxListBuilder builder)
     {
         outputRemaindersInner(0, builder);
@@ -336,6 +393,13 @@ public class BoxFinder
             
             final long combinedIntersects = combinedIntersectsIn | intersects[volIndex] | volMask;
             final long candidates = (~combinedIntersects) & this.volumeMask & (~noIntersectMask); 
+            
+            if(candidates != 0 && isSearchExhausted())
+            {
+                disjointSets.add(completeGreedily(members, candidates) | noIntersectMask);
+                return true;
+            }
+            
             boolean isLeaf = true;
             if(candidates != 0)
             {
@@ -361,6 +425,22 @@ public class BoxFinder
         else return false;
     }
     
+    /**
+     * Adds candidates to the set in index order, skipping any that intersect a member,
+     * for use when there isn't budget to explore the alternatives.
+     */
+    private long completeGreedily(long members, long candidates)
+    {
+        while(candidates != 0)
+        {
+            final int i = Long.numberOfTrailingZeros(candidates);
+            final long volMask = 1L << i;
+            members |= volMask;
+            candidates &= ~(intersects[i] | volMask);
+        }
+        return members;
+    }
+    
     private class OutputConsumer implements IntConsumer
     {
         ICollisionBoxListBuilder builder;
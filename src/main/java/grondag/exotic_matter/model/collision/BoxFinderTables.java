@@ -0,0 +1,390 @@
+package grondag.exotic_matter.model.collision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.model.collision.BoxFinderUtils.Slice;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongComparator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Area and volume tables for {@link BoxFinderUtils}.<p>
+ *
+ * Computing the tables means hashing and sorting every rectangle pattern and every volume,
+ * so they are computed at build time by {@link #main(String[])} and written to a resource
+ * alongside this class. {@link BoxFinderUtils} reads that resource when first used.
+ * Loading involves no hashing or sorting, and the tables are then identical to the
+ * build-time computation - which matters because area order affects box finder output.<p>
+ *
+ * Resource format is a header (magic and format version), area count, area bounds
+ * as shorts (patterns are rebuilt from bounds), volume count and byte length of volume keys.
+ * Volume keys follow in descending order, each written as a variable-length difference from
+ * the previous key.<p>
+ *
+ * Falls back to computing the tables if the resource is missing or invalid, as in
+ * development environments that have not run the build task.
+ */
+class BoxFinderTables
+{
+    /** Increment when resource layout changes. */
+    static final int FORMAT_VERSION = 1;
+    
+    /** "XMBT" */
+    private static final int MAGIC = 0x584D4254;
+    
+    static final String RESOURCE_NAME = "box_finder_tables.bin";
+    
+    final long[] areas;
+    final short[] bounds;
+    final int[] volumeKeys;
+    
+    private BoxFinderTables(long[] areas, short[] bounds, int[] volumeKeys)
+    {
+        this.areas = areas;
+        this.bounds = bounds;
+        this.volumeKeys = volumeKeys;
+    }
+    
+    /**
+     * Reads tables from resource, or computes them if resource is not available.
+     */
+    static BoxFinderTables load()
+    {
+        try(InputStream in = BoxFinderTables.class.getResourceAsStream(RESOURCE_NAME))
+        {
+            if(in != null)
+                return read(in);
+            
+            ExoticMatter.INSTANCE.info("Box finder tables not found in resources and will be computed.");
+        }
+        catch(Exception e)
+        {
+            ExoticMatter.INSTANCE.warn("Unable to read box finder tables. Tables will be computed. Cause: %s", e.getMessage());
+        }
+        return compute();
+    }
+    
+    /**
+     * Builds tables from scratch. Does not use {@link BoxFinderUtils} methods or fields, so that
+     * it can run during static initialization there, and the generator doesn't load the tables it writes.
+     */
+    static BoxFinderTables compute()
+    {
+        LongOpenHashSet patterns = new LongOpenHashSet();
+        
+        for(int xSize = 1; xSize <= 8; xSize++)
+        {
+            for(int ySize = 1; ySize <= 8; ySize++)
+            {
+                addPatterns(xSize, ySize, patterns);
+            }
+        }
+        
+        final long[] areas = patterns.toLongArray();
+        
+        LongArrays.quickSort(areas, new LongComparator()
+        {
+            @Override
+            public int compare(@SuppressWarnings("null") Long o1, @SuppressWarnings("null") Long o2)
+            {
+                return compare(o1.longValue(), o2.longValue());
+            }
+            
+            @Override
+            public int compare(long k1, long k2)
+            {
+                // note reverse order, want largest first
+                return  Integer.compare(Long.bitCount(k2), Long.bitCount(k1));
+            }
+        });
+        
+        final short[] bounds = new short[areas.length];
+        for(int i = 0; i < areas.length; i++)
+        {
+            long pattern = areas[i];
+            long xBits = pattern | (pattern >>> 32);
+            xBits |= xBits >>> 16;
+            xBits |= xBits >>> 8;
+            xBits &= 0xFFL;
+            bounds[i] = (short)(minX(xBits) | (maxX(xBits) << 3) | (minY(pattern) << 6) | (maxY(pattern) << 9));
+        }
+        
+        IntArrayList volumes = new IntArrayList();
+        for(Slice slice : Slice.values())
+        {
+            for(int i = 0; i < areas.length; i++)
+            {
+                // same as BoxFinderUtils.volumeKey()
+                final int volume = slice.depth * Long.bitCount(areas[i]);
+                if(volume > 1)
+                    volumes.add((volume << 17) | (i << 6) | slice.ordinal());
+            }
+        }
+        
+        final int[] volumeKeys = volumes.toIntArray();
+        IntArrays.quickSort(volumeKeys, new IntComparator()
+        {
+            @Override
+            public int compare(@SuppressWarnings("null") Integer o1, @SuppressWarnings("null") Integer o2)
+            {
+                return compare(o1.intValue(), o2.intValue());
+            }
+            
+            @Override
+            public int compare(int k1, int k2)
+            {
+                // note reverse order, want largest first
+                return  Integer.compare(k2, k1);
+            }
+        });
+        
+        return new BoxFinderTables(areas, bounds, volumeKeys);
+    }
+    
+    private static void addPatterns(int xSize, int ySize, LongOpenHashSet patterns)
+    {
+        for(int xOrigin = 0; xOrigin <= 8 - xSize; xOrigin++)
+        {
+            for(int yOrigin = 0; yOrigin <= 8 - ySize; yOrigin++)
+            {
+                patterns.add(makePattern(xOrigin, yOrigin, xSize, ySize));
+            }
+        }
+    }
+    
+    /**
+     * Same as {@link BoxFinderUtils#makePattern(int, int, int, int)}
+     */
+    private static long makePattern(int xOrigin, int yOrigin, int xSize, int ySize)
+    {
+        long pattern = 0;
+        for(int x = 0; x < xSize; x++)
+        {
+            for(int y = 0; y < ySize; y++)
+            {
+                pattern |= (1L << ((xOrigin + x) | ((yOrigin + y) << 3)));
+            }
+        }
+        return pattern;
+    }
+    
+    private static int minX(long xBits)
+    {
+        if((xBits & 0b1111) == 0)
+        {
+            if((xBits & 0b110000) == 0)
+                return (xBits & 0b1000000) == 0 ? 7 : 6;
+            else
+                return (xBits & 0b10000) == 0 ? 5 : 4;
+        }
+        else
+        {
+            if((xBits & 0b11) == 0)
+                return (xBits & 0b0100) == 0 ? 3 : 2;
+            else
+                return (xBits & 0b1) == 0 ? 1 : 0;
+        }
+    }
+    
+    private static int minY(long yBits)
+    {
+        if((yBits & 0xFFFFFFFFL) == 0L)
+        {
+            if((yBits & 0xFFFFFFFFFFFFL) == 0L)
+                return (yBits & 0xFFFFFFFFFFFFFFL) == 0L ? 7 : 6;
+            else
+                return (yBits & 0xFFFFFFFFFFL) == 0L ? 5 : 4;
+        }
+        else
+        {
+            if((yBits & 0xFFFFL) == 0L)
+                return (yBits & 0xFF0000L) == 0L ? 3 : 2;
+            else
+                return (yBits & 0xFFL) == 0L ? 1 : 0;
+        }
+    }
+    
+    private static int maxX(long xBits)
+    {
+        if((xBits & 0b11110000) == 0)
+        {
+            if((xBits & 0b1100) == 0)
+                return (xBits & 0b10) == 0 ? 0 : 1;
+            else
+                return (xBits & 0b1000) == 0 ? 2 : 3;
+        }
+        else
+        {
+            if((xBits & 0b11000000) == 0)
+                return (xBits & 0b100000) == 0 ? 4 : 5;
+            else
+                return (xBits & 0b10000000) == 0 ? 6 : 7;
+        }
+    }
+    
+    private static int maxY(long yBits)
+    {
+        if((yBits & 0xFFFFFFFF00000000L) == 0L)
+        {
+            if((yBits & 0xFFFF0000L) == 0L)
+                return (yBits & 0xFF00L) == 0L ? 0 : 1;
+            else
+                return (yBits & 0xFF000000) == 0L ? 2 : 3;
+        }
+        else
+        {
+            if((yBits & 0xFFFF000000000000L) == 0L)
+                return (yBits & 0xFF0000000000L) == 0L ? 4 : 5;
+            else
+                return (yBits & 0xFF00000000000000L) == 0L ? 6 : 7;
+        }
+    }
+    
+    void write(OutputStream stream) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        
+        out.writeInt(bounds.length);
+        for(short b : bounds)
+            out.writeShort(b);
+        
+        final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        int prior = 0;
+        for(int i = 0; i < volumeKeys.length; i++)
+        {
+            final int key = volumeKeys[i];
+            // first key is written as is, after that keys are descending so difference is positive
+            int delta = i == 0 ? key : prior - key;
+            while((delta & ~0x7F) != 0)
+            {
+                keyBytes.write((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            keyBytes.write(delta);
+            prior = key;
+        }
+        
+        out.writeInt(volumeKeys.length);
+        out.writeInt(keyBytes.size());
+        keyBytes.writeTo(out);
+        out.flush();
+    }
+    
+    /**
+     * Throws IOException if stream does not hold valid tables.
+     */
+    static BoxFinderTables read(InputStream stream) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        
+        if(in.readInt() != MAGIC)
+            throw new IOException("not a box finder table resource");
+        
+        if(in.readInt() != FORMAT_VERSION)
+            throw new IOException("unsupported format version");
+        
+        final int areaCount = in.readInt();
+        if(areaCount <= 0 || areaCount > 2048)
+            throw new IOException("invalid area count " + areaCount);
+        
+        final short[] bounds = new short[areaCount];
+        final long[] areas = new long[areaCount];
+        for(int i = 0; i < areaCount; i++)
+        {
+            final int b = in.readShort();
+            final int minX = b & 7;
+            final int maxX = (b >> 3) & 7;
+            final int minY = (b >> 6) & 7;
+            final int maxY = (b >> 9) & 7;
+            if((b & ~0xFFF) != 0 || maxX < minX || maxY < minY)
+                throw new IOException("invalid area bounds");
+            
+            bounds[i] = (short) b;
+            areas[i] = makePattern(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+        
+        final Slice[] slices = Slice.values();
+        final int volumeCount = in.readInt();
+        if(volumeCount <= 0 || volumeCount > areaCount * slices.length)
+            throw new IOException("invalid volume count " + volumeCount);
+        
+        final int byteCount = in.readInt();
+        if(byteCount < volumeCount || byteCount > volumeCount * 5)
+            throw new IOException("invalid volume key length " + byteCount);
+        
+        final byte[] bytes = new byte[byteCount];
+        in.readFully(bytes);
+        
+        final int[] volumeKeys = new int[volumeCount];
+        int key = 0;
+        int position = 0;
+        for(int i = 0; i < volumeCount; i++)
+        {
+            int delta = 0;
+            int shift = 0;
+            int b;
+            do
+            {
+                if(shift > 28 || position == byteCount)
+                    throw new IOException("invalid volume key");
+                b = bytes[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while((b & 0x80) != 0);
+            
+            key = i == 0 ? delta : key - delta;
+            
+            if(key <= 0 || ((key >> 6) & 2047) >= areaCount || (key & 63) >= slices.length
+                    || (key >> 17) != slices[key & 63].depth * Long.bitCount(areas[(key >> 6) & 2047]))
+                throw new IOException("invalid volume key");
+            
+            volumeKeys[i] = key;
+        }
+        
+        if(position != byteCount || in.read() != -1)
+            throw new IOException("unexpected data after tables");
+        
+        return new BoxFinderTables(areas, bounds, volumeKeys);
+    }
+    
+    /**
+     * Build-time generator. Writes computed tables to the file given as the only argument.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 1)
+        {
+            System.err.println("Usage: BoxFinderTables <output file>");
+            System.exit(1);
+        }
+        
+        final File file = new File(args[0]);
+        final File dir = file.getParentFile();
+        if(dir != null && !dir.exists())
+            dir.mkdirs();
+        
+        final BoxFinderTables tables = compute();
+        try(FileOutputStream out = new FileOutputStream(file))
+        {
+            tables.write(out);
+        }
+        
+        System.out.println("Wrote box finder tables to " + file.getPath() + " (" + file.length() + " bytes)");
+    }
+}
\ No newline at end of file
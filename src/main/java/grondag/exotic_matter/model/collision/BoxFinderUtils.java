@@ -3,11 +3,6 @@ package grondag.exotic_matter.model.collision;
 import grondag.exotic_matter.varia.BitHelper;
 import grondag.exotic_matter.varia.functions.IAreaBoundsIntFunction;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntArrays;
-import it.unimi.dsi.fastutil.ints.IntComparator;
-import it.unimi.dsi.fastutil.longs.LongArrays;
-import it.unimi.dsi.fastutil.longs.LongComparator;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
 /**
  * Static utility methods for BoxFinder
@@ -122,71 +117,10 @@ public class BoxFinderUtils
             lookupMinMax[slice.min][slice.max] = slice;
         }
         
-        LongOpenHashSet patterns = new LongOpenHashSet();
-         
-        for(int xSize = 1; xSize <= 8; xSize++)
-        {
-            for(int ySize = 1; ySize <= 8; ySize++)
-            {
-                addPatterns(xSize, ySize, patterns);
-            }
-        }
-        
-        AREAS = patterns.toLongArray();
-        
-        LongArrays.quickSort(AREAS, new LongComparator()
-        {
-            @Override
-            public int compare(@SuppressWarnings("null") Long o1, @SuppressWarnings("null") Long o2)
-            {
-                return compare(o1.longValue(), o2.longValue());
-            }
-
-            @Override
-            public int compare(long k1, long k2)
-            {
-                // note reverse order, want largest first
-                return  Integer.compare(Long.bitCount(k2), Long.bitCount(k1));
-            }
-        });
-        
-        BOUNDS = new short[AREAS.length];
-        for(int i = 0; i < AREAS.length; i++)
-        {
-            long pattern = AREAS[i];
-            long xBits = pattern | (pattern >>> 32);
-            xBits |= xBits >>> 16;
-            xBits |= xBits >>> 8;
-            xBits &= 0xFFL;
-            BOUNDS[i] = (short)(minX(xBits) | (maxX(xBits) << 3) | (minY(pattern) << 6) | (maxY(pattern) << 9));
-        }
-        
-        IntArrayList volumes = new IntArrayList();
-        for(Slice slice : Slice.values())
-        {
-            for(int i = 0; i < AREAS.length; i++)
-            {
-                if(slice.depth * Long.bitCount(AREAS[i]) > 1)
-                    volumes.add(volumeKey(slice, i));
-            }
-        }
-        
-        VOLUME_KEYS = volumes.toIntArray();
-        IntArrays.quickSort(BoxFinderUtils.VOLUME_KEYS, new IntComparator()
-        {
-            @Override
-            public int compare(@SuppressWarnings("null") Integer o1, @SuppressWarnings("null") Integer o2)
-            {
-                return compare(o1.intValue(), o2.intValue());
-            }
-
-            @Override
-            public int compare(int k1, int k2)
-            {
-                // note reverse order, want largest first
-                return  Integer.compare(k2, k1);
-            }
-        });
+        final BoxFinderTables tables = BoxFinderTables.load();
+        AREAS = tables.areas;
+        BOUNDS = tables.bounds;
+        VOLUME_KEYS = tables.volumeKeys;
         
         VOLUME_COUNT = VOLUME_KEYS.length;
         
@@ -409,38 +343,6 @@ public class BoxFinderUtils
         return a > b ? intersectIndexUnsafe(a, b) : intersectIndexUnsafe(b, a);
     }
 
-    private static void addPatterns(int xSize, int ySize, LongOpenHashSet patterns)
-    {
-        for(int xOrigin = 0; xOrigin <= 8 - xSize; xOrigin++)
-        {
-            for(int yOrigin = 0; yOrigin <= 8 - ySize; yOrigin++)
-            {
-                long pattern = makePattern(xOrigin, yOrigin, xSize, ySize);
-                
-//                if(yOrigin + ySize < 8)
-//                    assert ((pattern << 8) | pattern) == makePattern(xOrigin, yOrigin, xSize, ySize + 1);
-//                
-//                if(yOrigin > 0)
-//                    assert ((pattern >>> 8) | pattern) == makePattern(xOrigin, yOrigin - 1, xSize, ySize + 1);
-//                
-//                final int x0 = xOrigin;
-//                final int y0 = yOrigin;
-//                final int x1 = xOrigin + xSize - 1;
-//                final int y1 = yOrigin + ySize - 1;
-//                testAreaBounds(pattern, (minX, minY, maxX, maxY) ->
-//                {
-//                    assert minX == x0;
-//                    assert minY == y0;
-//                    assert maxX == x1;
-//                    assert maxY == y1;
-//                    return 0;
-//                });
-                
-                patterns.add(pattern);
-            }
-        }
-    }
-
     static long makePattern(int xOrigin, int yOrigin, int xSize, int ySize)
     {
         long pattern = 0;
@@ -491,78 +393,6 @@ public class BoxFinderUtils
         }) == 1;
     }
     
-    private static int minX(long xBits)
-    {
-        if((xBits & 0b1111) == 0)
-        {
-            if((xBits & 0b110000) == 0)
-                return (xBits & 0b1000000) == 0 ? 7 : 6;
-            else
-                return (xBits & 0b10000) == 0 ? 5 : 4;
-        }
-        else
-        {
-            if((xBits & 0b11) == 0)
-                return (xBits & 0b0100) == 0 ? 3 : 2;
-            else
-                return (xBits & 0b1) == 0 ? 1 : 0;
-        }
-    }
-    
-    private static int minY(long yBits)
-    {
-        if((yBits & 0xFFFFFFFFL) == 0L)
-        {
-            if((yBits & 0xFFFFFFFFFFFFL) == 0L)
-                return (yBits & 0xFFFFFFFFFFFFFFL) == 0L ? 7 : 6;
-            else
-                return (yBits & 0xFFFFFFFFFFL) == 0L ? 5 : 4;
-        }
-        else
-        {
-            if((yBits & 0xFFFFL) == 0L)
-                return (yBits & 0xFF0000L) == 0L ? 3 : 2;
-            else
-                return (yBits & 0xFFL) == 0L ? 1 : 0;
-        }
-    }
-    
-    private static int maxX(long xBits)
-    {
-        if((xBits & 0b11110000) == 0)
-        {
-            if((xBits & 0b1100) == 0)
-                return (xBits & 0b10) == 0 ? 0 : 1;
-            else
-                return (xBits & 0b1000) == 0 ? 2 : 3;
-        }
-        else
-        {
-            if((xBits & 0b11000000) == 0)
-                return (xBits & 0b100000) == 0 ? 4 : 5;
-            else
-                return (xBits & 0b10000000) == 0 ? 6 : 7;
-        }
-    }
-    
-    private static int maxY(long yBits)
-    {
-        if((yBits & 0xFFFFFFFF00000000L) == 0L)
-        {
-            if((yBits & 0xFFFF0000L) == 0L)
-                return (yBits & 0xFF00L) == 0L ? 0 : 1;
-            else
-                return (yBits & 0xFF000000) == 0L ? 2 : 3;
-        }
-        else
-        {
-            if((yBits & 0xFFFF000000000000L) == 0L)
-                return (yBits & 0xFF0000000000L) == 0L ? 4 : 5;
-            else
-                return (yBits & 0xFF00000000000000L) == 0L ? 6 : 7;
-        }
-    }
-    
     /**
      * Encodes a volume key that is naturally sortable by volume. (Larger values imply larger volume).
      */
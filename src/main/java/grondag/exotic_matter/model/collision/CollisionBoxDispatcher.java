@@ -1,51 +1,34 @@
 package grondag.exotic_matter.model.collision;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-
 import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 
+import grondag.exotic_matter.ConfigXM;
+import grondag.exotic_matter.cache.ObjectAtomicLoadingCache;
 import grondag.exotic_matter.cache.ObjectSimpleCacheLoader;
-import grondag.exotic_matter.cache.ObjectSimpleLoadingCache;
 import grondag.exotic_matter.model.state.ISuperModelState;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import net.minecraft.util.math.AxisAlignedBB;
 
 public class CollisionBoxDispatcher
 {
-    static final BlockingQueue<Runnable> QUEUE = new LinkedBlockingQueue<Runnable>();
-    private static final ExecutorService EXEC = new ThreadPoolExecutor(1, 1,
-            0L, TimeUnit.MILLISECONDS,
-            QUEUE,
-            new ThreadFactory()
-            {
-                private AtomicInteger count = new AtomicInteger(1);
-                @Override
-                public Thread newThread(@Nullable Runnable r)
-                {
-                    Thread thread = new Thread(r, "Exotic Matter Collision Box Optimizer - " + count.getAndIncrement());
-                    thread.setDaemon(true);
-                    thread.setPriority(Thread.NORM_PRIORITY - 2);
-                    return thread;
-                }
-            })
-            {
-                @Override
-                protected void finalize()
-                {
-                    super.finalize();
-                    shutdown();
-                }
-            };
+    /** no point queueing more shapes than the cache can hold */
+    private static final int CACHE_SIZE = 0xFFF;
+    
+    private static final @Nullable CollisionBoxLibrary LIBRARY = CollisionBoxLibrary.open();
     
-    private static final ObjectSimpleLoadingCache<ISuperModelState, OptimizingBoxList> modelBounds = new ObjectSimpleLoadingCache<ISuperModelState, OptimizingBoxList>(new CollisionBoxLoader(),  0xFFF);
+    private static final CollisionBoxOptimizer OPTIMIZER = new CollisionBoxOptimizer(ConfigXM.BLOCKS.collisionOptimizerThreads, CACHE_SIZE,
+            ConfigXM.BLOCKS.collisionOptimizerSearchMicros * 1000L, LIBRARY);
+    
+    private static final ObjectAtomicLoadingCache<ISuperModelState, OptimizingBoxList> modelBounds = new ObjectAtomicLoadingCache<ISuperModelState, OptimizingBoxList>(new CollisionBoxLoader(), CACHE_SIZE);
 
+    static
+    {
+        modelBounds.registerMetrics("cache.collision");
+    }
+    
     private static ThreadLocal<FastBoxGenerator> fastBoxGen = new ThreadLocal<FastBoxGenerator>()
     {
         @Override
@@ -66,34 +49,44 @@ public class CollisionBoxDispatcher
     public static void clear()
     {
         modelBounds.clear();
-        QUEUE.clear();
+        OPTIMIZER.clear();
     }
     
     private static class CollisionBoxLoader implements ObjectSimpleCacheLoader<ISuperModelState, OptimizingBoxList>
     {
-//        static AtomicInteger runCounter = new AtomicInteger();
-//        static AtomicLong totalNanos = new AtomicLong();
+        /** time to generate fast collision boxes - optimal boxes are timed separately */
+        private static final LatencyHistogram FAST_NANOS = Metrics.histogram("collision.fast");
+        
+        /** library state when library is not enabled */
+        private static final int[] NO_STATE = new int[0];
         
         @Override
         public OptimizingBoxList load(ISuperModelState key)
         {
-//            final long start = System.nanoTime();
+            final CollisionBoxLibrary library = LIBRARY;
+            final int[] libraryState = library == null ? NO_STATE : CollisionBoxLibrary.stateOf(key);
+            
+            // empty stored list means fast boxes are final
+            final int[] stored = library == null ? null : library.get(libraryState);
+            if(stored != null && stored.length > 0)
+                return new OptimizingBoxList(CollisionBoxStore.getList(stored), libraryState, OPTIMIZER);
+            
+            final long start = FAST_NANOS.start();
             
             final FastBoxGenerator generator = fastBoxGen.get();
             key.getShape().meshFactory().produceShapeQuads(key, generator);
             
             // note that build clears for next use
-            OptimizingBoxList result = new OptimizingBoxList(generator.build(), key);
-            EXEC.execute(result);
-            
-//            long total = totalNanos.addAndGet(System.nanoTime() - start);
-//            if(runCounter.incrementAndGet() == 100)
-//            {
-//                ExoticMatter.INSTANCE.info("Avg fast collision box nanos, past 100 samples = %d", total / 100);
-//                runCounter.addAndGet(-100);
-//                totalNanos.addAndGet(-total);
-//            }
+            final OptimizingBoxList result;
+            if(stored == null)
+            {
+                result = new OptimizingBoxList(generator.build(), key, libraryState, OPTIMIZER);
+                OPTIMIZER.submit(result);
+            }
+            else
+                result = new OptimizingBoxList(generator.build(), libraryState, OPTIMIZER);
             
+            FAST_NANOS.recordSince(start);
             return result;
         }
     }
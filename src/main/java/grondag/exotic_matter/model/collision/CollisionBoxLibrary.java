@@ -0,0 +1,405 @@
+package grondag.exotic_matter.model.collision;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.ConfigXM;
+import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.model.state.ISuperModelState;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * Optional on-disk store of optimal collision boxes, so that shapes optimized in an earlier
+ * session have their final boxes as soon as they are loaded instead of waiting on the optimizer.<p>
+ *
+ * Entries are found by a hash of the geometric model state (see {@link #stateOf(ISuperModelState)})
+ * and hold the full state, checked on every read so that a hash collision is a miss instead of
+ * the wrong boxes. Entries also hold box keys from {@link CollisionBoxEncoder}, which are turned 
+ * into boxes through {@link CollisionBoxStore} when read. No box keys means fast boxes were kept as final.<p>
+ *
+ * The file is memory-mapped at open and entries are read on demand. New results are held in memory
+ * and written out with the stored entries when the server stops or the client leaves a world. 
+ * As with the terrain mesh store, saves go to a separate file that replaces the mapped file at next launch.
+ * Each save includes every result from this session, so a later save supersedes an earlier one.<p>
+ *
+ * The file is rejected if the format version, {@link #GENERATOR_VERSION} or the configured box budget
+ * has changed, because any of these can change generator output.
+ */
+public class CollisionBoxLibrary
+{
+    /** Increment when file layout changes. */
+    public static final int FORMAT_VERSION = 2;
+    
+    /** Increment when changes to the optimal box generator or box finder would change output for the same shape. */
+    public static final int GENERATOR_VERSION = 1;
+    
+    /** "XMCB" */
+    private static final int MAGIC = 0x584D4342;
+    
+    private static final String FILE_NAME = "collision_boxes.bin";
+    private static final String NEW_FILE_NAME = FILE_NAME + ".new";
+    
+    /** magic, version, generator hash, entry count, data int count */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+    
+    /** key, data offset, state length, box keys length - state is stored in data ahead of box keys */
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 4 + 4;
+    
+    private static final int[] NO_BOXES = new int[0];
+    
+    /** state and box keys of an entry added this session */
+    private static class Entry
+    {
+        private final int[] state;
+        private final int[] boxKeys;
+        
+        private Entry(int[] state, int[] boxKeys)
+        {
+            this.state = state;
+            this.boxKeys = boxKeys;
+        }
+    }
+    
+    private static @Nullable File storeDirectory = null;
+    
+    private static volatile @Nullable CollisionBoxLibrary instance = null;
+    
+    /**
+     * Enables the library. Call during pre-init if enabled in config.
+     * Library is opened when collision boxes are first needed.
+     */
+    public static void setDirectory(File dir)
+    {
+        storeDirectory = dir;
+    }
+    
+    /**
+     * Returns null if library is not enabled or could not be opened.
+     */
+    static @Nullable CollisionBoxLibrary open()
+    {
+        final File dir = storeDirectory;
+        if(dir == null) return null;
+        
+        try
+        {
+            CollisionBoxLibrary result = open(dir, generatorHash(ConfigXM.BLOCKS.collisionBoxBudget));
+            instance = result;
+            return result;
+        }
+        catch(Exception e)
+        {
+            ExoticMatter.INSTANCE.error("Unable to open collision box library. Optimized collision boxes will not be saved.", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Opens library in the given directory, replacing the stored file with the last save if there is one.
+     * Stored entries are ignored if the file is unreadable or was saved with a different generator hash.
+     */
+    static CollisionBoxLibrary open(File dir, long generatorHash) throws IOException
+    {
+        if(!dir.exists()) dir.mkdirs();
+        
+        final File file = new File(dir, FILE_NAME);
+        final File newFile = new File(dir, NEW_FILE_NAME);
+        if(newFile.exists())
+            Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        
+        CollisionBoxLibrary result = new CollisionBoxLibrary(dir, generatorHash);
+        if(file.exists()) result.map(file);
+        return result;
+    }
+    
+    /**
+     * Saves stored and new entries if the library is open and anything was added since the last save. 
+     * Call when server stops and when client leaves a world.
+     */
+    public static void saveIfOpen()
+    {
+        final CollisionBoxLibrary library = instance;
+        if(library != null) library.save();
+    }
+    
+    static long generatorHash(int boxBudget)
+    {
+        return ((long) GENERATOR_VERSION << 32) | boxBudget;
+    }
+    
+    /**
+     * Identifies a shape in the library. Stable across sessions as long as shape names and 
+     * model state layout don't change. Shape name is included because shape ordinals depend 
+     * on registration order.
+     */
+    static int[] stateOf(ISuperModelState geometricState)
+    {
+        final String name = geometricState.getShape().systemName();
+        final int[] ints = geometricState.serializeToInts();
+        final int nameLength = name.length();
+        
+        final int[] result = new int[1 + nameLength + ints.length];
+        result[0] = nameLength;
+        for(int i = 0; i < nameLength; i++)
+            result[1 + i] = name.charAt(i);
+        System.arraycopy(ints, 0, result, 1 + nameLength, ints.length);
+        return result;
+    }
+    
+    static long keyOf(int[] state)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for(int i : state)
+            hash = (hash ^ i) * 0x100000001b3L;
+        return hash;
+    }
+    
+    private final File directory;
+    private final long generatorHash;
+    
+    /** maps key to index entry - read-only after open */
+    private final Long2IntOpenHashMap index = new Long2IntOpenHashMap();
+    private long[] keys = new long[0];
+    private int[] offsets = new int[0];
+    private int[] stateLengths = new int[0];
+    private int[] lengths = new int[0];
+    private @Nullable IntBuffer data = null;
+    
+    /** results from this session - guarded by this */
+    private final Long2ObjectOpenHashMap<Entry> added = new Long2ObjectOpenHashMap<>();
+    
+    /** true if results were added since last save - guarded by this */
+    private boolean isDirty = false;
+    
+    private final MetricCounter hitCount = Metrics.counter("collision.library.hits");
+    private final MetricCounter missCount = Metrics.counter("collision.library.misses");
+    
+    private CollisionBoxLibrary(File directory, long generatorHash)
+    {
+        this.directory = directory;
+        this.generatorHash = generatorHash;
+        this.index.defaultReturnValue(-1);
+    }
+    
+    private void map(File file) throws IOException
+    {
+        final MappedByteBuffer buffer;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        if(buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+        {
+            ExoticMatter.INSTANCE.warn("Ignoring collision box library %s - not a collision box file.", file.getName());
+            return;
+        }
+        
+        if(buffer.getInt(4) != FORMAT_VERSION || buffer.getLong(8) != generatorHash)
+        {
+            ExoticMatter.INSTANCE.info("Ignoring collision box library %s - saved by a different version or box budget.", file.getName());
+            return;
+        }
+        
+        final int entryCount = buffer.getInt(16);
+        final int dataCount = buffer.getInt(20);
+        final long dataStart = HEADER_BYTES + (long) entryCount * INDEX_ENTRY_BYTES;
+        if(entryCount < 0 || dataCount < 0 || dataStart + (long) dataCount * 4 != buffer.capacity())
+        {
+            ExoticMatter.INSTANCE.warn("Ignoring collision box library %s - file is truncated or corrupt.", file.getName());
+            return;
+        }
+        
+        final long[] keys = new long[entryCount];
+        final int[] offsets = new int[entryCount];
+        final int[] stateLengths = new int[entryCount];
+        final int[] lengths = new int[entryCount];
+        int position = HEADER_BYTES;
+        for(int i = 0; i < entryCount; i++)
+        {
+            final long key = buffer.getLong(position);
+            final int offset = buffer.getInt(position + 8);
+            final int stateLength = buffer.getInt(position + 12);
+            final int length = buffer.getInt(position + 16);
+            position += INDEX_ENTRY_BYTES;
+            
+            if(offset < 0 || stateLength < 0 || length < 0 || (long) offset + stateLength + length > dataCount)
+            {
+                ExoticMatter.INSTANCE.warn("Ignoring collision box library %s - file is truncated or corrupt.", file.getName());
+                index.clear();
+                return;
+            }
+            
+            keys[i] = key;
+            offsets[i] = offset;
+            stateLengths[i] = stateLength;
+            lengths[i] = length;
+            index.put(key, i);
+        }
+        
+        buffer.position((int) dataStart);
+        this.data = buffer.slice().asIntBuffer();
+        this.keys = keys;
+        this.offsets = offsets;
+        this.stateLengths = stateLengths;
+        this.lengths = lengths;
+        
+        ExoticMatter.INSTANCE.info("Collision box library opened with %d shapes.", entryCount);
+    }
+    
+    /**
+     * Returns stored box keys for the given state from {@link #stateOf(ISuperModelState)}, 
+     * or null if not stored. Empty result means fast boxes are final. Safe for concurrent use.
+     */
+    @Nullable int[] get(int[] state)
+    {
+        final long key = keyOf(state);
+        int[] result = getAdded(key, state);
+        
+        if(result == null)
+        {
+            final IntBuffer data = this.data;
+            final int i = data == null ? -1 : index.get(key);
+            if(i >= 0 && storedStateMatches(data, i, state))
+            {
+                result = new int[lengths[i]];
+                final int offset = offsets[i] + stateLengths[i];
+                for(int j = 0; j < result.length; j++)
+                    result[j] = data.get(offset + j);
+            }
+        }
+        
+        if(result == null)
+            missCount.increment();
+        else
+            hitCount.increment();
+        
+        return result;
+    }
+    
+    private boolean storedStateMatches(IntBuffer data, int index, int[] state)
+    {
+        if(stateLengths[index] != state.length)
+            return false;
+        
+        final int offset = offsets[index];
+        for(int j = 0; j < state.length; j++)
+        {
+            if(data.get(offset + j) != state[j])
+                return false;
+        }
+        return true;
+    }
+    
+    private synchronized @Nullable int[] getAdded(long key, int[] state)
+    {
+        final Entry entry = added.get(key);
+        return entry != null && Arrays.equals(entry.state, state) ? entry.boxKeys : null;
+    }
+    
+    /**
+     * Records final box keys for the given state from {@link #stateOf(ISuperModelState)}. 
+     * Empty or null if fast boxes were kept.
+     */
+    synchronized void put(int[] state, @Nullable int[] boxKeys)
+    {
+        added.put(keyOf(state), new Entry(state, boxKeys == null ? NO_BOXES : boxKeys));
+        isDirty = true;
+    }
+    
+    synchronized void save()
+    {
+        if(!isDirty) return;
+        
+        final IntBuffer data = this.data;
+        final int storedCount = data == null ? 0 : keys.length;
+        
+        // stored entries not replaced this session, then new ones
+        int entryCount = added.size();
+        int dataCount = 0;
+        for(int i = 0; i < storedCount; i++)
+        {
+            if(!added.containsKey(keys[i]))
+            {
+                entryCount++;
+                dataCount += stateLengths[i] + lengths[i];
+            }
+        }
+        for(Entry entry : added.values())
+            dataCount += entry.state.length + entry.boxKeys.length;
+        
+        final File newFile = new File(directory, NEW_FILE_NAME);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(generatorHash);
+            out.writeInt(entryCount);
+            out.writeInt(dataCount);
+            
+            int offset = 0;
+            for(int i = 0; i < storedCount; i++)
+            {
+                if(!added.containsKey(keys[i]))
+                {
+                    out.writeLong(keys[i]);
+                    out.writeInt(offset);
+                    out.writeInt(stateLengths[i]);
+                    out.writeInt(lengths[i]);
+                    offset += stateLengths[i] + lengths[i];
+                }
+            }
+            for(Long2ObjectMap.Entry<Entry> e : added.long2ObjectEntrySet())
+            {
+                final Entry entry = e.getValue();
+                out.writeLong(e.getLongKey());
+                out.writeInt(offset);
+                out.writeInt(entry.state.length);
+                out.writeInt(entry.boxKeys.length);
+                offset += entry.state.length + entry.boxKeys.length;
+            }
+            
+            for(int i = 0; i < storedCount; i++)
+            {
+                if(!added.containsKey(keys[i]))
+                {
+                    final int start = offsets[i];
+                    final int end = start + stateLengths[i] + lengths[i];
+                    for(int j = start; j < end; j++)
+                        out.writeInt(data.get(j));
+                }
+            }
+            for(Entry entry : added.values())
+            {
+                for(int i : entry.state)
+                    out.writeInt(i);
+                for(int k : entry.boxKeys)
+                    out.writeInt(k);
+            }
+            
+            ExoticMatter.INSTANCE.info("Saved %d shapes to collision box library, %d new this session.", entryCount, added.size());
+            isDirty = false;
+        }
+        catch(Exception e)
+        {
+            ExoticMatter.INSTANCE.error("Unable to save collision box library.", e);
+            newFile.delete();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,293 @@
+package grondag.exotic_matter.model.collision;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.model.state.ISuperModelState;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+
+/**
+ * Runs {@link OptimizingBoxList} jobs on a small pool of low-priority workers,
+ * each with its own {@link OptimalBoxGenerator}.<p>
+ *
+ * Pending jobs are ordered by how often their collision boxes have been requested,
+ * so shapes that are actually being collided with are optimized first. Priority is
+ * captured when a job is queued and the job is moved up whenever its request count
+ * doubles after that, which keeps re-ordering cost logarithmic per job.<p>
+ *
+ * At most one job is pending per geometric state - a newer list for the same state
+ * (after cache eviction, for example) replaces the older one and inherits its requests.
+ * The number of pending jobs is bounded. When full, new jobs are refused and stay idle
+ * with fast boxes until a later request finds room, so demand for a shape still
+ * gets it queued eventually.<p>
+ * 
+ * Box search for each job is limited in time so that a difficult shape can't hold up
+ * the queue. Jobs cut short keep the best boxes found and, if those are over budget,
+ * are run again with a longer limit when no other jobs are waiting. A refinement is
+ * also limited, so new jobs wait for at most one of them. Jobs still cut short after
+ * {@link #MAX_REFINE_ROUNDS} refinements keep the best boxes found for this session only.
+ * Only complete results are added to the library, so a later session (possibly with a 
+ * longer search limit) optimizes cut-short shapes again.
+ */
+class CollisionBoxOptimizer
+{
+    /** search time limit for refinement, as a multiple of the limit for first optimization */
+    static final int REFINE_NANOS_FACTOR = 8;
+    
+    /** jobs still cut short after this many refinements are final for this session */
+    static final int MAX_REFINE_ROUNDS = 4;
+    
+    private final Executor exec;
+    
+    private final int maxPending;
+    
+    /** guarded by this */
+    private final PriorityQueue<OptimizingBoxList> queue = new PriorityQueue<>(64, (a, b) ->
+    {
+        final int result = Integer.compare(b.queuedPriority, a.queuedPriority);
+        return result == 0 ? Long.compare(a.queuedNanos, b.queuedNanos) : result;
+    });
+    
+    /** guarded by this - pending jobs by geometric state */
+    private final HashMap<ISuperModelState, OptimizingBoxList> pending = new HashMap<>();
+    
+    /** read without lock for fast rejection */
+    private volatile int pendingCount = 0;
+    
+    /** guarded by this - jobs cut short by search limit, run when queue is empty */
+    private final ArrayDeque<OptimizingBoxList> refineQueue = new ArrayDeque<>();
+    
+    private final long searchNanos;
+    
+    private final ThreadLocal<OptimalBoxGenerator> boxGen = new ThreadLocal<OptimalBoxGenerator>()
+    {
+        @Override
+        protected OptimalBoxGenerator initialValue()
+        {
+            return new OptimalBoxGenerator();
+        }
+    };
+    
+    private final LatencyHistogram waitNanos = Metrics.histogram("collision.optimal.wait");
+    private final MetricCounter rejectCount = Metrics.counter("collision.optimal.rejected");
+    private final MetricCounter replaceCount = Metrics.counter("collision.optimal.replaced");
+    private final MetricCounter promoteCount = Metrics.counter("collision.optimal.promoted");
+    private final MetricCounter partialCount = Metrics.counter("collision.optimal.partial");
+    private final MetricCounter refineCount = Metrics.counter("collision.optimal.refined");
+    private final MetricCounter unrefinedCount = Metrics.counter("collision.optimal.unrefined");
+    
+    private final @Nullable CollisionBoxLibrary library;
+    
+    /**
+     * Results are added to the library if given. 
+     * Search time for first optimization of each job is limited to searchNanos, unless zero.
+     * Refinements are limited to searchNanos * {@link #REFINE_NANOS_FACTOR}.
+     */
+    CollisionBoxOptimizer(int threadCount, int maxPending, long searchNanos, @Nullable CollisionBoxLibrary library)
+    {
+        this(new ThreadPoolExecutor(threadCount, threadCount,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    private AtomicInteger count = new AtomicInteger(1);
+                    @Override
+                    public Thread newThread(@Nullable Runnable r)
+                    {
+                        Thread thread = new Thread(r, "Exotic Matter Collision Box Optimizer - " + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.NORM_PRIORITY - 2);
+                        return thread;
+                    }
+                }), maxPending, searchNanos, library);
+    }
+    
+    /**
+     * Runs jobs with the given executor instead of a pool of its own. Tests use this to run jobs one at a time.
+     */
+    CollisionBoxOptimizer(Executor exec, int maxPending, long searchNanos, @Nullable CollisionBoxLibrary library)
+    {
+        this.exec = exec;
+        this.maxPending = maxPending;
+        this.searchNanos = searchNanos;
+        this.library = library;
+        
+        Metrics.gauge("collision.optimal.queued", () -> pendingCount);
+    }
+    
+    /**
+     * Queues a new job. Replaces any pending job for the same geometric state.
+     */
+    void submit(OptimizingBoxList job)
+    {
+        if(tryEnqueue(job))
+            exec.execute(this::runNext);
+    }
+    
+    /**
+     * Called each time boxes are requested from a job that isn't done.
+     */
+    void onRequest(OptimizingBoxList job)
+    {
+        // racy increment is fine - only used for ordering
+        final int count = ++job.requestCount;
+        
+        final int state = job.state;
+        if(state == OptimizingBoxList.STATE_IDLE)
+        {
+            if(pendingCount < maxPending)
+                submit(job);
+        }
+        else if(state == OptimizingBoxList.STATE_QUEUED && count >= job.queuedPriority * 2)
+            promote(job);
+    }
+    
+    private synchronized boolean tryEnqueue(OptimizingBoxList job)
+    {
+        if(job.state != OptimizingBoxList.STATE_IDLE)
+            return false;
+        
+        final ISuperModelState key = job.modelState;
+        if(key == null)
+            return false;
+        
+        final OptimizingBoxList prior = pending.get(key);
+        if(prior != null)
+        {
+            queue.remove(prior);
+            prior.state = OptimizingBoxList.STATE_DONE;
+            job.requestCount = Math.max(job.requestCount, prior.requestCount);
+            job.queuedNanos = prior.queuedNanos;
+            replaceCount.increment();
+            enqueue(job);
+            pending.put(key, job);
+            // worker already scheduled for prior
+            return false;
+        }
+        
+        if(pending.size() >= maxPending)
+        {
+            rejectCount.increment();
+            return false;
+        }
+        
+        job.queuedNanos = System.nanoTime();
+        enqueue(job);
+        pending.put(key, job);
+        pendingCount = pending.size();
+        return true;
+    }
+    
+    private void enqueue(OptimizingBoxList job)
+    {
+        job.queuedPriority = Math.max(1, job.requestCount);
+        job.state = OptimizingBoxList.STATE_QUEUED;
+        queue.offer(job);
+    }
+    
+    private synchronized void promote(OptimizingBoxList job)
+    {
+        if(job.state == OptimizingBoxList.STATE_QUEUED && queue.remove(job))
+        {
+            job.queuedPriority = Math.max(1, job.requestCount);
+            queue.offer(job);
+            promoteCount.increment();
+        }
+    }
+    
+    private synchronized @Nullable OptimizingBoxList pollNext()
+    {
+        final OptimizingBoxList result = queue.poll();
+        if(result != null)
+        {
+            result.state = OptimizingBoxList.STATE_DONE;
+            pending.remove(result.modelState);
+            pendingCount = pending.size();
+            return result;
+        }
+        return refineQueue.poll();
+    }
+    
+    /**
+     * Each queued or refining job schedules one execution of this, which runs whichever job has highest priority by then.
+     * Jobs waiting for refinement are only run when the queue is empty, and go to the back
+     * of the refine queue if cut short again.
+     */
+    private void runNext()
+    {
+        final OptimizingBoxList job = pollNext();
+        if(job != null)
+        {
+            final boolean isRefining = job.isPartial;
+            if(isRefining)
+                job.refineRounds++;
+            else
+                waitNanos.record(System.nanoTime() - job.queuedNanos);
+            
+            final int[] boxKeys = job.optimize(boxGen.get(), isRefining ? searchNanos * REFINE_NANOS_FACTOR : searchNanos);
+            
+            if(job.isPartial)
+            {
+                partialCount.increment();
+                if(job.refineRounds < MAX_REFINE_ROUNDS)
+                {
+                    if(tryRefine(job))
+                        exec.execute(this::runNext);
+                    return;
+                }
+                
+                // best boxes found are good enough for now, but not saved
+                job.isPartial = false;
+                job.modelState = null;
+                unrefinedCount.increment();
+                return;
+            }
+            else if(isRefining)
+                refineCount.increment();
+            
+            final CollisionBoxLibrary library = this.library;
+            if(library != null)
+                library.put(job.libraryState, boxKeys);
+        }
+    }
+    
+    /**
+     * Partial results stay in use without refinement if too many are waiting.
+     */
+    private synchronized boolean tryRefine(OptimizingBoxList job)
+    {
+        if(refineQueue.size() < maxPending)
+        {
+            refineQueue.offer(job);
+            return true;
+        }
+        
+        job.isPartial = false;
+        job.modelState = null;
+        return false;
+    }
+    
+    /**
+     * Drops all pending jobs. Their lists keep fast boxes and will not be queued again.
+     */
+    synchronized void clear()
+    {
+        for(OptimizingBoxList job : queue)
+            job.state = OptimizingBoxList.STATE_DONE;
+        queue.clear();
+        pending.clear();
+        pendingCount = 0;
+        refineQueue.clear();
+    }
+}
\ No newline at end of file
@@ -1,5 +1,7 @@
 package grondag.exotic_matter.model.collision;
 
+import com.google.common.collect.ImmutableList;
+
 import grondag.exotic_matter.cache.IntSimpleCacheLoader;
 import grondag.exotic_matter.cache.IntSimpleLoadingCache;
 import grondag.exotic_matter.varia.functions.IBoxBoundsObjectFunction;
@@ -18,6 +20,20 @@ public class CollisionBoxStore
         return boxCache.get(boxKey);
     }
     
+    /**
+     * List of boxes for the given box keys.
+     */
+    public static ImmutableList<AxisAlignedBB> getList(int[] boxKeys)
+    {
+        if(boxKeys.length == 0)
+            return ImmutableList.of();
+        
+        ImmutableList.Builder<AxisAlignedBB> builder = ImmutableList.builder();
+        for(int boxKey : boxKeys)
+            builder.add(boxCache.get(boxKey));
+        return builder.build();
+    }
+    
     static final IBoxBoundsObjectFunction<AxisAlignedBB> boxMaker = (minX, minY, minZ, maxX, maxY, maxZ) ->
     {
         return new AxisAlignedBB(minX / 8f, minY / 8f, minZ / 8f, 
@@ -7,32 +7,87 @@ import com.google.common.collect.ImmutableList;
 import grondag.exotic_matter.ConfigXM;
 import grondag.exotic_matter.model.state.ISuperModelState;
 import grondag.exotic_matter.varia.Useful;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import net.minecraft.util.math.AxisAlignedBB;
 
-public class OptimizingBoxList implements Runnable
+public class OptimizingBoxList
 {
-    // singleton is fine because called from a single thread
-    private static final OptimalBoxGenerator boxGen = new OptimalBoxGenerator();
+    private static final LatencyHistogram OPTIMAL_NANOS = Metrics.histogram("collision.optimal");
     
-    private ImmutableList<AxisAlignedBB> wrapped;
-    private @Nullable ISuperModelState modelState;
+    /** not queued - new or refused because optimizer queue was full */
+    static final int STATE_IDLE = 0;
+    static final int STATE_QUEUED = 1;
+    /** optimized, being optimized or replaced by a newer list */
+    static final int STATE_DONE = 2;
     
-    OptimizingBoxList(ImmutableList<AxisAlignedBB> initialList, ISuperModelState modelState)
+    private static final int[] NO_BOXES = new int[0];
+    
+    private final CollisionBoxOptimizer optimizer;
+    
+    private volatile ImmutableList<AxisAlignedBB> wrapped;
+    
+    @Nullable ISuperModelState modelState;
+    
+    /** changed by {@link CollisionBoxOptimizer} while holding its lock */
+    volatile int state = STATE_IDLE;
+    
+    /** times boxes requested before optimization */
+    int requestCount = 0;
+    
+    /** request count when last queued or promoted - used to order the queue */
+    int queuedPriority;
+    
+    long queuedNanos;
+    
+    /** set if last optimization was cut short and is waiting to be refined */
+    boolean isPartial = false;
+    
+    /** times optimized again after being cut short */
+    int refineRounds = 0;
+    
+    /** see {@link CollisionBoxLibrary#stateOf(ISuperModelState)} */
+    final int[] libraryState;
+    
+    OptimizingBoxList(ImmutableList<AxisAlignedBB> initialList, ISuperModelState modelState, int[] libraryState, CollisionBoxOptimizer optimizer)
     {
         this.wrapped = initialList;
         this.modelState = modelState;
+        this.libraryState = libraryState;
+        this.optimizer = optimizer;
+    }
+    
+    /**
+     * For boxes that are already final - from the collision box library, for example.
+     */
+    OptimizingBoxList(ImmutableList<AxisAlignedBB> finalList, int[] libraryState, CollisionBoxOptimizer optimizer)
+    {
+        this.wrapped = finalList;
+        this.modelState = null;
+        this.libraryState = libraryState;
+        this.optimizer = optimizer;
+        this.state = STATE_DONE;
     }
     
     protected ImmutableList<AxisAlignedBB> getList()
     {
+        if(state != STATE_DONE)
+            optimizer.onRequest(this);
         return wrapped;
     }
 
+    /**
+     * Called by optimizer worker with a generator that belongs to that thread.
+     * Returns box keys of optimal boxes if they replaced fast boxes, or an empty array if fast boxes were kept.<p>
+     * 
+     * Box search stops after the given nanoseconds if non-zero. If that leaves the shape over
+     * its box budget, {@link #isPartial} is set and model state is retained so that it can be optimized again.
+     */
     @SuppressWarnings("null")
-    @Override
-    public void run()
+    int[] optimize(OptimalBoxGenerator generator, long maxNanos)
     {
-        final OptimalBoxGenerator generator = boxGen;
+        int[] result = NO_BOXES;
+        final long start = OPTIMAL_NANOS.start();
         modelState.getShape().meshFactory().produceShapeQuads(modelState, generator);
 
 //        generator.generateCalibrationOutput();
@@ -45,11 +100,17 @@ public class OptimizingBoxList implements Runnable
         else if(trueVolume != -1)
         {
             if(oldSize > ConfigXM.BLOCKS.collisionBoxBudget || Math.abs(trueVolume - oldVolume) > OptimalBoxGenerator.VOXEL_VOLUME * 2)
-                wrapped = generator.build();
+            {
+                result = generator.buildKeys(maxNanos);
+                wrapped = CollisionBoxStore.getList(result);
+            }
         }
-//        if((CollisionBoxDispatcher.QUEUE.size() & 0xFF) == 0)
-//            System.out.println("Queue depth = " + CollisionBoxDispatcher.QUEUE.size());
         
-        modelState = null;
+        isPartial = !generator.isSearchComplete() && generator.quality() < 1;
+        if(!isPartial)
+            modelState = null;
+        
+        OPTIMAL_NANOS.recordSince(start);
+        return result;
     }
 }
@@ -0,0 +1,188 @@
+package grondag.exotic_matter.model.collision;
+
+import static grondag.exotic_matter.model.collision.AbstractBoxGenerator.*;
+import static grondag.exotic_matter.model.primitives.TriangleBoxTest.POLY_DATA_SIZE;
+
+import java.util.Arrays;
+
+import grondag.exotic_matter.model.primitives.TriangleBoxTest;
+import grondag.exotic_matter.model.primitives.vertex.IVec3f;
+
+/**
+ * Sets voxel bits for all voxels that intersect a batch of triangles, for
+ * grids of 8^3 (division level 3) or 16^3 (division level 4) voxels in a block.<p>
+ * 
+ * Works top down like an octree, but instead of testing child boxes one at a time,
+ * all eight children of a box are tested in one call to {@link TriangleBoxTest#triBoxOverlapMask}.
+ * The last two levels are done together: voxels under the children that overlap, up to 64,
+ * are tested in a single pass. Box centers and coordinates are computed
+ * the same way as the recursive tests this replaces, so output is identical.<p>
+ * 
+ * Triangles are packed when added and rasterized together by {@link #voxelize(long[])}.
+ * Voxel bits are Cartesian, x | y << level | z << level * 2, same as the voxel volume classes.<p>
+ * 
+ * Not thread-safe. Each generator has its own instance.
+ */
+public class TriangleVoxelizer
+{
+    // indexed by division level
+    private static final float[] DIAMETER = {1f, D1, D2, D3, D4};
+    private static final float[] RADIUS = {0.5f, R1, R2, R3, R4};
+    private static final float[] CENTER_LOW = {0.5f, CLOW1, CLOW2, CLOW3, CLOW4};
+    private static final float[] CENTER_HIGH = {0.5f, CHIGH1, CHIGH2, CHIGH3, CHIGH4};
+    
+    private final int divisionLevel;
+    
+    private final float[] centerX = new float[64];
+    private final float[] centerY = new float[64];
+    private final float[] centerZ = new float[64];
+    
+    /** child index of each parent packed by {@link #divideLast} */
+    private final int[] parents = new int[8];
+    
+    private final float[] polyData = new float[POLY_DATA_SIZE];
+    
+    private float[] batch = new float[POLY_DATA_SIZE * 32];
+    private int batchCount = 0;
+    
+    /**
+     * @param divisionLevel  3 for 8x8x8 voxels or 4 for 16x16x16
+     */
+    public TriangleVoxelizer(int divisionLevel)
+    {
+        if(divisionLevel < 3 || divisionLevel > 4)
+            throw new IllegalArgumentException("Unsupported voxel division level " + divisionLevel);
+        
+        this.divisionLevel = divisionLevel;
+    }
+    
+    public void addTriangle(IVec3f v0, IVec3f v1, IVec3f v2)
+    {
+        final int offset = batchCount * POLY_DATA_SIZE;
+        if(offset == batch.length)
+            batch = Arrays.copyOf(batch, offset * 2);
+        
+        TriangleBoxTest.packPolyData(v0, v1, v2, polyData);
+        System.arraycopy(polyData, 0, batch, offset, POLY_DATA_SIZE);
+        batchCount++;
+    }
+    
+    public int triangleCount()
+    {
+        return batchCount;
+    }
+    
+    /**
+     * Sets bits for voxels intersecting any triangle added since last call and clears the batch.
+     * Existing bits are retained.
+     */
+    public void voxelize(long[] voxelBits)
+    {
+        final int limit = batchCount * POLY_DATA_SIZE;
+        for(int offset = 0; offset < limit; offset += POLY_DATA_SIZE)
+        {
+            System.arraycopy(batch, offset, polyData, 0, POLY_DATA_SIZE);
+            divide(1, 0f, 0f, 0f, 0, 0, 0, voxelBits);
+        }
+        batchCount = 0;
+    }
+    
+    /**
+     * Tests the eight children at the given level of the box with the given origin.
+     * x, y and z are voxel coordinates of the origin.
+     */
+    private void divide(int level, float x0, float y0, float z0, int x, int y, int z, long[] voxelBits)
+    {
+        if(level == divisionLevel - 1)
+        {
+            divideLast(level, x0, y0, z0, x, y, z, voxelBits);
+            return;
+        }
+        
+        fillCenters(0, level, x0, y0, z0);
+        long hits = TriangleBoxTest.triBoxOverlapMask(centerX, centerY, centerZ, 0xFF, RADIUS[level], polyData);
+        
+        final float d = DIAMETER[level];
+        final int shift = divisionLevel - level;
+        while(hits != 0)
+        {
+            final int i = Long.numberOfTrailingZeros(hits);
+            hits &= hits - 1;
+            divide(level + 1, 
+                    (i & 1) == 0 ? x0 : x0 + d, 
+                    (i & 2) == 0 ? y0 : y0 + d, 
+                    (i & 4) == 0 ? z0 : z0 + d, 
+                    x | ((i & 1) << shift), 
+                    y | (((i >> 1) & 1) << shift), 
+                    z | (((i >> 2) & 1) << shift), 
+                    voxelBits);
+        }
+    }
+    
+    /**
+     * Tests the eight children at the given level, then the 64 voxels under them in one pass.
+     */
+    private void divideLast(int level, float x0, float y0, float z0, int x, int y, int z, long[] voxelBits)
+    {
+        fillCenters(0, level, x0, y0, z0);
+        final long parentHits = TriangleBoxTest.triBoxOverlapMask(centerX, centerY, centerZ, 0xFF, RADIUS[level], polyData);
+        if(parentHits == 0)
+            return;
+        
+        // voxels of parents that overlap are packed together, eight per parent
+        final int[] parents = this.parents;
+        final float d = DIAMETER[level];
+        int parentCount = 0;
+        long remaining = parentHits;
+        while(remaining != 0)
+        {
+            final int i = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            fillCenters(parentCount * 8, level + 1, 
+                    (i & 1) == 0 ? x0 : x0 + d, 
+                    (i & 2) == 0 ? y0 : y0 + d, 
+                    (i & 4) == 0 ? z0 : z0 + d);
+            parents[parentCount++] = i;
+        }
+        
+        final long mask = parentCount == 8 ? -1L : (1L << (parentCount * 8)) - 1;
+        long hits = TriangleBoxTest.triBoxOverlapMask(centerX, centerY, centerZ, mask, RADIUS[level + 1], polyData);
+        
+        final int yShift = divisionLevel;
+        final int zShift = divisionLevel * 2;
+        while(hits != 0)
+        {
+            final int n = Long.numberOfTrailingZeros(hits);
+            hits &= hits - 1;
+            
+            // high three bits select parent, low three bits select voxel within parent
+            final int p = parents[n >> 3];
+            final int vx = x | ((p & 1) << 1) | (n & 1);
+            final int vy = y | (p & 2) | ((n >> 1) & 1);
+            final int vz = z | ((p >> 1) & 2) | ((n >> 2) & 1);
+            final int xyz = vx | (vy << yShift) | (vz << zShift);
+            voxelBits[xyz >> 6] |= (1L << (xyz & 63));
+        }
+    }
+    
+    /**
+     * Centers of the eight children at the given level of the box with the given origin,
+     * stored starting at the given index.
+     */
+    private void fillCenters(int start, int level, float x0, float y0, float z0)
+    {
+        final float xLow = x0 + CENTER_LOW[level];
+        final float xHigh = x0 + CENTER_HIGH[level];
+        final float yLow = y0 + CENTER_LOW[level];
+        final float yHigh = y0 + CENTER_HIGH[level];
+        final float zLow = z0 + CENTER_LOW[level];
+        final float zHigh = z0 + CENTER_HIGH[level];
+        
+        for(int i = 0; i < 8; i++)
+        {
+            centerX[start + i] = (i & 1) == 0 ? xLow : xHigh;
+            centerY[start + i] = (i & 2) == 0 ? yLow : yHigh;
+            centerZ[start + i] = (i & 4) == 0 ? zLow : zHigh;
+        }
+    }
+}
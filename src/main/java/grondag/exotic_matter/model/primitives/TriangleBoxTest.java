@@ -94,6 +94,9 @@ public class TriangleBoxTest
     public static final int ASL_2_XY = 33;
     public static final int ASL_2_XZ = 34;
     public static final int ASL_2_YZ = 35;
+    
+    /** size of array needed for {@link #packPolyData(IVec3f, IVec3f, IVec3f, float[])} */
+    public static final int POLY_DATA_SIZE = 36;
 
     /**
      * Packs data from Triangle vertices into array for use by {@link #triBoxOverlap(float, float, float, float, float[])}.
@@ -290,7 +293,99 @@ public class TriangleBoxTest
         // do plane/box before rest of offsets - is relatively simple
         if(!planeBoxOverlap(polyData[POLY_NORM_X], polyData[POLY_NORM_Y], polyData[POLY_NORM_Z], v0x, v0y, v0z, boxHalfSize)) return false;
 
-        // continue with offsets
+        return edgeAxesOverlap(boxCenterX, boxCenterY, boxCenterZ, v0x, v0y, v0z, boxHalfSize, polyData);
+    }
+    
+    /**
+     * Batched version of {@link #triBoxOverlap(float, float, float, float, float[])} for up to 64 cubes of the same size,
+     * with box centers given as separate x, y and z arrays. Only boxes with a bit set in boxMask are tested.
+     * Bit n of the result is set if box n overlaps the triangle. Results are identical to testing each box individually.<p>
+     * 
+     * Bounding box tests run first for all boxes in a single branch-free pass over the center arrays,
+     * which rejects most boxes. Only boxes that pass go on to plane and separating axis tests.
+     */
+    public static long triBoxOverlapMask(float[] boxCenterX, float[] boxCenterY, float[] boxCenterZ, long boxMask, float boxHalfSize, float[] polyData)
+    {
+        // per-triangle values, same arithmetic as the single-box test
+        final float minX = polyData[POLY_MIN_X];
+        final float maxX = polyData[POLY_MAX_X];
+        final float minY = polyData[POLY_MIN_Y];
+        final float maxY = polyData[POLY_MAX_Y];
+        final float minZ = polyData[POLY_MIN_Z];
+        final float maxZ = polyData[POLY_MAX_Z];
+        
+        // flat triangles are only excluded if outside the box, not if touching it - see isTriExcluded
+        final boolean flatX = minX == maxX;
+        final boolean flatY = minY == maxY;
+        final boolean flatZ = minZ == maxZ;
+        
+        final float p0x = polyData[POLY_V0_X];
+        final float p0y = polyData[POLY_V0_Y];
+        final float p0z = polyData[POLY_V0_Z];
+        
+        final float nx = polyData[POLY_NORM_X];
+        final float ny = polyData[POLY_NORM_Y];
+        final float nz = polyData[POLY_NORM_Z];
+        final float planeX = nx > 0.0f ? -boxHalfSize : boxHalfSize;
+        final float planeY = ny > 0.0f ? -boxHalfSize : boxHalfSize;
+        final float planeZ = nz > 0.0f ? -boxHalfSize : boxHalfSize;
+        
+        final int boxCount = 64 - Long.numberOfLeadingZeros(boxMask);
+        long candidates = 0;
+        
+        // bounding box and plane tests, which reject most boxes, in one pass without branches
+        for(int i = 0; i < boxCount; i++)
+        {
+            final float x = boxCenterX[i];
+            final float y = boxCenterY[i];
+            final float z = boxCenterZ[i];
+            final float x0 = x - boxHalfSize;
+            final float x1 = x + boxHalfSize;
+            final float y0 = y - boxHalfSize;
+            final float y1 = y + boxHalfSize;
+            final float z0 = z - boxHalfSize;
+            final float z1 = z + boxHalfSize;
+            
+            final boolean excluded = (flatX ? (minX > x1 | maxX < x0) : (minX >= x1 | maxX <= x0))
+                    | (flatY ? (minY > y1 | maxY < y0) : (minY >= y1 | maxY <= y0))
+                    | (flatZ ? (minZ > z1 | maxZ < z0) : (minZ >= z1 | maxZ <= z0));
+            
+            final float v0x = p0x - x;
+            final float v0y = p0y - y;
+            final float v0z = p0z - z;
+            
+            final boolean plane = !(nx * (planeX - v0x) + ny * (planeY - v0y) + nz * (planeZ - v0z) > 0.0f)
+                    & nx * (-planeX - v0x) + ny * (-planeY - v0y) + nz * (-planeZ - v0z) >= 0.0f;
+            
+            candidates |= (plane & !excluded ? 1L : 0L) << i;
+        }
+        
+        candidates &= boxMask;
+        long result = candidates;
+        
+        // separating axis tests for boxes that are left, usually few
+        while(candidates != 0)
+        {
+            final int i = Long.numberOfTrailingZeros(candidates);
+            final long bit = 1L << i;
+            candidates &= ~bit;
+            
+            final float x = boxCenterX[i];
+            final float y = boxCenterY[i];
+            final float z = boxCenterZ[i];
+            
+            if(!edgeAxesOverlap(x, y, z, p0x - x, p0y - y, p0z - z, boxHalfSize, polyData))
+                result &= ~bit;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Separating axis tests for the cross products of triangle edges and box axes.
+     */
+    private static boolean edgeAxesOverlap(float boxCenterX, float boxCenterY, float boxCenterZ, final float v0x, final float v0y, final float v0z, float boxHalfSize, float[] polyData)
+    {
         final float v1x = polyData[POLY_V1_X] - boxCenterX;
         final float v1y = polyData[POLY_V1_Y] - boxCenterY;
         final float v1z = polyData[POLY_V1_Z] - boxCenterZ;
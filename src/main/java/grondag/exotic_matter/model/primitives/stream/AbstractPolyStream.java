@@ -1,15 +1,27 @@
 package grondag.exotic_matter.model.primitives.stream;
 
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
 import grondag.exotic_matter.model.primitives.polygon.IStreamReaderPolygon;
 import grondag.exotic_matter.varia.intstream.IIntStream;
+import grondag.exotic_matter.varia.intstream.IntStreams;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+import it.unimi.dsi.fastutil.HashCommon;
 
 public abstract class AbstractPolyStream implements IPolyStream
 {
+    /** 
+     * Size of packed polys before and after packing. Divide by poly count for bytes per poly.
+     */
+    private static final MetricCounter FROZEN_POLY_COUNT = Metrics.counter("polystream.frozen.polys");
+    private static final MetricCounter FROZEN_BYTES_BEFORE = Metrics.counter("polystream.frozen.bytesBefore");
+    private static final MetricCounter FROZEN_BYTES_AFTER = Metrics.counter("polystream.frozen.bytesAfter");
+    
     protected IIntStream stream;
     
     /**
@@ -31,6 +43,11 @@ public abstract class AbstractPolyStream implements IPolyStream
     protected final StreamBackedPolygon polyB = new StreamBackedPolygon();
     protected final StreamBackedMutablePolygon internal = new StreamBackedMutablePolygon();
     
+    /**
+     * Color overrides applied by all readers. Only used for read-only views.
+     */
+    protected @Nullable PolyColorOverlay colorOverlay = null;
+    
     /**
      * Value used to initialize origin and writer for new streams and on reset.
      * Override if stream needs to pack metadatq at front.
@@ -56,6 +73,36 @@ public abstract class AbstractPolyStream implements IPolyStream
     {
         return writeAddress == originAddress;
     }
+    
+    @Override
+    public final long contentHash()
+    {
+        long result = 0;
+        int address = originAddress;
+        while(address < writeAddress)
+        {
+            final int format = stream.get(address);
+            final int stride = PolyStreamFormat.polyStride(format, true);
+            if(!PolyStreamFormat.isDeleted(format))
+            {
+                // mark is transient
+                result = HashCommon.mix(result + PolyStreamFormat.setMarked(format, false));
+                for(int i = 1; i < stride; i++)
+                    result = HashCommon.mix(result + stream.get(address + i));
+            }
+            address += stride;
+        }
+        
+        final PolyColorOverlay overlay = colorOverlay;
+        return overlay == null ? result : HashCommon.mix(result + overlay.contentHash());
+    }
+    
+    @Override
+    public final int storageBytes()
+    {
+        final IIntStream stream = this.stream;
+        return stream == null ? 0 : stream.capacity() * 4;
+    }
 
     @Override
     public final IPolygon reader()
@@ -136,7 +183,7 @@ public abstract class AbstractPolyStream implements IPolyStream
     
     void prepare(IIntStream stream)
     {
-        didRelease.set(false);
+        refState.set(0);
         this.stream = stream;
         originAddress = newOrigin();
         reader.stream = stream;
@@ -144,6 +191,7 @@ public abstract class AbstractPolyStream implements IPolyStream
         polyB.stream = stream;
         internal.stream =stream;
         writeAddress = originAddress;
+        setColorOverlay(null);
         
         // force error on read
         reader.invalidate();
@@ -152,16 +200,57 @@ public abstract class AbstractPolyStream implements IPolyStream
         internal.invalidate();
     }
     
+    protected final void setColorOverlay(@Nullable PolyColorOverlay overlay)
+    {
+        colorOverlay = overlay;
+        reader.colorOverlay = overlay;
+        polyA.colorOverlay = overlay;
+        polyB.colorOverlay = overlay;
+    }
+    
+    /**
+     * Switches storage to a stream that views can share without a copy.
+     * See {@link IntStreams#toShareable(IIntStream)}. Call once the stream is
+     * built, before it is visible to other threads.
+     */
+    protected final void makeShareable()
+    {
+        final IIntStream shareable = IntStreams.toShareable(stream);
+        stream = shareable;
+        reader.stream = shareable;
+        polyA.stream = shareable;
+        polyB.stream = shareable;
+        internal.stream = shareable;
+    }
+    
     @Override
     public final void release()
     {
-        if(didRelease.compareAndSet(false, true) && readerCount.get() == 0)
+        while(true)
         {
-            doRelease();
-            returnToPool();
+            final int state = refState.get();
+            if((state & RELEASED) != 0)
+                return;
+            
+            if(refState.compareAndSet(state, state | RELEASED))
+            {
+                if(state == 0)
+                    finishRelease();
+                return;
+            }
         }
     }
     
+    /**
+     * Called exactly once - by {@link #release()} if no thread-safe readers are
+     * active, or otherwise by release of the last reader.
+     */
+    private void finishRelease()
+    {
+        doRelease();
+        returnToPool();
+    }
+    
     /**
      * Called after {@link #doRelease()} to return this instance to allocation pool.
      * Not part of {@link #doRelease()} to allow call of super.doRelease.
@@ -178,6 +267,7 @@ public abstract class AbstractPolyStream implements IPolyStream
         polyA.stream = null;
         polyB.stream = null;
         internal.stream = null;
+        setColorOverlay(null);
         stream.release();
         stream = null;
     }
@@ -373,9 +463,32 @@ public abstract class AbstractPolyStream implements IPolyStream
     }
 
     protected void appendCopy(IPolygon polyIn, int withFormat)
+    {
+        appendCopyInFormat(polyIn, PolyStreamFormat.minimalFixedFormat(polyIn, withFormat));
+    }
+    
+    /**
+     * Same as {@link #appendCopy(IPolygon, int)} but packs the poly with {@link PolyStreamFormat#minimalFrozenFormat(IPolygon, int)}.
+     * Use for streams that will be kept a while.
+     */
+    protected void appendFrozenCopy(IPolygon polyIn, int withFormat)
+    {
+        final int fixedFormat = PolyStreamFormat.minimalFixedFormat(polyIn, withFormat);
+        final int newFormat = PolyStreamFormat.freezeFormat(polyIn, fixedFormat);
+        
+        if(Metrics.isEnabled())
+        {
+            FROZEN_POLY_COUNT.increment();
+            FROZEN_BYTES_BEFORE.add(PolyStreamFormat.polyStride(fixedFormat, true) * 4);
+            FROZEN_BYTES_AFTER.add(PolyStreamFormat.polyStride(newFormat, true) * 4);
+        }
+        
+        appendCopyInFormat(polyIn, newFormat);
+    }
+    
+    private void appendCopyInFormat(IPolygon polyIn, int newFormat)
     {
         final boolean needReaderLoad = reader.baseAddress == writeAddress;
-        final int newFormat = PolyStreamFormat.minimalFixedFormat(polyIn, withFormat);
         stream.set(writeAddress, newFormat);
         internal.moveTo(writeAddress);
         internal.copyFrom(polyIn, true);
@@ -393,11 +506,14 @@ public abstract class AbstractPolyStream implements IPolyStream
         public final void release()
         {
             super.release();
-            if(polyStream.readerCount.decrementAndGet() == 0 && polyStream.didRelease.get() == true)
-                polyStream.doRelease();
+            final AbstractPolyStream polyStream = this.polyStream;
             stream = null;
-            polyStream = null;
+            colorOverlay = null;
+            this.polyStream = null;
             safeReaders.offer(this);
+            
+            if(polyStream.refState.decrementAndGet() == RELEASED)
+                polyStream.finishRelease();
         }
 
         @Override
@@ -439,24 +555,28 @@ public abstract class AbstractPolyStream implements IPolyStream
     
     private static final ArrayBlockingQueue<ThreadSafeReader> safeReaders = new ArrayBlockingQueue<>(256);
     
+    /** flag in {@link #refState} set once our release method has been called */
+    private static final int RELEASED = 1 << 30;
+    
     /**
-     * True once our release method has been called. Reset on prepare.
+     * Count of active thread-safe readers, plus {@link #RELEASED} once release has been called.
+     * Single value so that release and reader release can't both see themselves as last. Reset on prepare.
      */
-    protected final AtomicBoolean didRelease = new AtomicBoolean();
-    protected final AtomicInteger readerCount = new AtomicInteger();
-    
+    private final AtomicInteger refState = new AtomicInteger();
     
     /**
      * Should only be exposed for streams that are immutable.
      */
     protected IStreamReaderPolygon claimThreadSafeReaderImpl()
     {
-        readerCount.incrementAndGet();
-        
-        if(this.didRelease.get())
+        while(true)
         {
-            readerCount.decrementAndGet();
-            throw new UnsupportedOperationException("Cannot claim threadsafe reader on released stream.");
+            final int state = refState.get();
+            if((state & RELEASED) != 0)
+                throw new UnsupportedOperationException("Cannot claim threadsafe reader on released stream.");
+        
+            if(refState.compareAndSet(state, state + 1))
+                break;
         }
         
         ThreadSafeReader reader = safeReaders.poll();
@@ -465,6 +585,7 @@ public abstract class AbstractPolyStream implements IPolyStream
         
         reader.polyStream = this;
         reader.stream = this.stream;
+        reader.colorOverlay = this.colorOverlay;
         reader.moveTo(this.originAddress);
         return reader;
     }
@@ -1,13 +1,22 @@
 package grondag.exotic_matter.model.primitives.stream;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.concurrency.ScatterGatherThreadPool;
+import grondag.exotic_matter.concurrency.ScatterGatherThreadPoolImpl;
 import grondag.exotic_matter.model.primitives.QuadHelper;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
 import grondag.exotic_matter.model.primitives.vertex.Vec3f;
 import grondag.exotic_matter.varia.intstream.IIntStream;
 import grondag.exotic_matter.varia.intstream.IntStreams;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 /**
  * Implements a BSP tree for CSG operations as part of mutable mesh/stream.<p>
@@ -16,8 +25,16 @@ import it.unimi.dsi.fastutil.ints.IntArrayList;
  * conform to the tree, we do not associates polys with specific BSP nodes because
  * that association is never needed.<p>
  * 
+ * Tree depth then depends on the order polys are added. Streams set to use a balanced tree 
+ * (see {@link #setBalancedTree(boolean)}) instead build the whole tree when completed.<p>
+ * 
  * Also tracks AABB for the mesh overall and for individual polys as a way to
  * optimize bounds testing for CSG operations.<p>
+ * 
+ * Polys that can't touch the surface of a clipping stream are entirely inside or 
+ * outside it, so clipping classifies one point of the poly instead of walking the
+ * BSP tree with the whole poly, which can split it needlessly. See {@link CsgBoundsGrid}.
+ * This only holds if the clipping mesh is closed, so is not done otherwise. See {@link CsgEdgeCounter}.<p>
  */
 public class CsgPolyStream extends MutablePolyStream
 {
@@ -29,37 +46,48 @@ public class CsgPolyStream extends MutablePolyStream
      */
     private static final AtomicInteger NEXT_TAG = new AtomicInteger(1);
     
-    private static final int COPLANAR = 0;
-    private static final int FRONT = 1;
-    private static final int BACK = 2;
+    /**
+     * Streams with fewer polys than this are always clipped on the calling thread
+     * by {@link #clipTo(CsgPolyStream, ScatterGatherThreadPool)}.
+     */
+    public static final int PARALLEL_CLIP_THRESHOLD = 256;
+    
+    /**
+     * Parallel clip won't make batches smaller than this.
+     */
+    private static final int MIN_POLYS_PER_BATCH = 32;
+    
+    /**
+     * Max number of polys tested as splitting planes for each node of a balanced tree.
+     */
+    private static final int SPLIT_CANDIDATES = 8;
+    
+    /**
+     * Max number of polys classified against each candidate splitting plane of a balanced tree.
+     */
+    private static final int SPLIT_SAMPLES = 32;
+    
+    /**
+     * Weight of each split poly in the cost of a splitting plane, relative to the 
+     * difference in size of front and back subtrees.
+     */
+    private static final int SPLIT_COST = 4;
+    
+    private static final MetricCounter CLIP_POLY_COUNT = Metrics.counter("csg.clip.polys");
+    
+    /** polys clipped without BSP traversal because they can't touch clipping stream */
+    private static final MetricCounter CLIP_BOUNDS_REJECT_COUNT = Metrics.counter("csg.clip.boundsRejects");
+    
+    static final int COPLANAR = 0;
+    static final int FRONT = 1;
+    static final int BACK = 2;
     
     private static final int BACK_SHIFT = 8;
-    private static final int FRONT_INCREMENT = 1;
+    static final int FRONT_INCREMENT = 1;
     private static final int FRONT_MASK = (1 << BACK_SHIFT) - 1;
-    private static final int BACK_INCREMENT = 1 << BACK_SHIFT;
+    static final int BACK_INCREMENT = 1 << BACK_SHIFT;
     private static final int BACK_MASK = FRONT_MASK << BACK_SHIFT;
     
-    private static final int vertexIncrement(float x, float y, float z, float normalX, float normalY, float normalZ, float dist)
-    {
-        final float t = x * normalX + y * normalY + z * normalZ - dist;
-        
-        if(t <= QuadHelper.EPSILON)
-        {
-            if(t >= -QuadHelper.EPSILON)
-                return COPLANAR;
-            else
-                return BACK_INCREMENT;
-        }
-        else
-            return FRONT_INCREMENT;
-    }
-    
-    private static final int vertexType(IPolygon poly, int vertexIndex, float normalX, float normalY, float normalZ, float dist)
-    {
-        return vertexType(poly.getVertexX(vertexIndex), poly.getVertexY(vertexIndex), poly.getVertexZ(vertexIndex),
-                normalX, normalY, normalZ, dist);
-    }
-    
     private static final int vertexType(float x, float y, float z, float normalX, float normalY, float normalZ, float dist)
     {
         final float t = x * normalX + y * normalY + z * normalZ - dist;
@@ -97,6 +125,15 @@ public class CsgPolyStream extends MutablePolyStream
         }
     };
     
+    private static final ThreadLocal<CsgEdgeCounter> EDGE_COUNTER = new ThreadLocal<CsgEdgeCounter>()
+    {
+        @Override
+        protected CsgEdgeCounter initialValue()
+        {
+            return new CsgEdgeCounter();
+        }
+    };
+    
     private IIntStream nodeStream;
     
     private int nextNodeAddress = 0;
@@ -105,6 +142,31 @@ public class CsgPolyStream extends MutablePolyStream
     
     private boolean isInverted = false;
     
+    private boolean isBalanced = false;
+    
+    private final CsgBoundsGrid boundsGrid = new CsgBoundsGrid();
+    
+    /** 
+     * Addresses of polys added before completion. Edges are only counted if 
+     * this stream is used for clipping, so streams that are only clipped pay nothing.
+     */
+    private final IntArrayList inputAddresses = new IntArrayList();
+    
+    /** true once {@link #isClosed} has been computed from input polys */
+    boolean isClosedKnown = false;
+    
+    /** 
+     * True if polys added before completion form a closed mesh. Bounds grid is only used if so.
+     * Only valid if {@link #isClosedKnown}. Package-private so tests can compare with a full clip.
+     */
+    boolean isClosed = false;
+    
+    /** holds vertex distances of polyB for the last plane tested, used for splitting */
+    private final CsgPlaneClassifier classifier = new CsgPlaneClassifier();
+    
+    /** true once bounds grid is built for this stream as a clipping stream */
+    private boolean hasBoundsGrid = false;
+    
     protected void prepare()
     {
         super.prepare(0);
@@ -112,6 +174,11 @@ public class CsgPolyStream extends MutablePolyStream
         nextNodeAddress = 0;
         isComplete = false;
         isInverted = false;
+        isBalanced = false;
+        hasBoundsGrid = false;
+        isClosedKnown = false;
+        isClosed = false;
+        inputAddresses.clear();
     }
     
     @Override
@@ -160,8 +227,13 @@ public class CsgPolyStream extends MutablePolyStream
         // anything after complete should be calling raw version
         assert !isComplete;
         
+        inputAddresses.add(writerAddress());
         appendRawCopy(polyIn, withFormat);
         
+        // balanced tree is built all at once on completion
+        if(isBalanced)
+            return;
+        
         // create BSP root node if it doesn't exist
         if(this.nextNodeAddress == 0)
             this.createNode(internal.baseAddress);
@@ -217,15 +289,239 @@ public class CsgPolyStream extends MutablePolyStream
         return newAddress;
     }
     
+    /**
+     * If true, BSP tree is not built as polys are added but when the stream is completed. 
+     * Each node then splits the polys that remain with the plane of whichever sampled poly 
+     * has the lowest cost - a mix of the number of polys split and the difference in size 
+     * of the front and back subtrees - and polys coplanar with a node are never passed to its subtrees.<p>
+     * 
+     * Usually gives a shallower tree with fewer nodes than insertion order, so clipping against it is 
+     * faster, but building it costs more. Must be set before any polys are added.
+     */
+    public void setBalancedTree(boolean isBalanced)
+    {
+        assert isEmpty() && !isComplete;
+        this.isBalanced = isBalanced;
+    }
+    
+    public boolean isBalancedTree()
+    {
+        return isBalanced;
+    }
+    
     /**
      * Signals that all original polys have been added and subsequent operations
      * will only clip or invert the existing tree.<p>
+     * 
+     * Builds the BSP tree if stream uses a balanced tree. Has no effect after the first call.
      */
     public void complete()
     {
+        if(isComplete)
+            return;
+        
+        if(isBalanced)
+            buildBalancedBSP();
+        
         isComplete = true;
     }
     
+    /**
+     * Number of nodes in the BSP tree. For diagnostics and benchmarks.
+     */
+    public int nodeCount()
+    {
+        return nextNodeAddress / NODE_STRIDE;
+    }
+    
+    /**
+     * Number of nodes in the longest path from the root of the BSP tree to a leaf. 
+     * For diagnostics and benchmarks.
+     */
+    public int treeDepth()
+    {
+        if(nextNodeAddress == 0)
+            return 0;
+        
+        IntArrayList stack = STACK.get();
+        assert stack.isEmpty();
+        int result = 0;
+        stack.push(0);
+        stack.push(1);
+        
+        while(!stack.isEmpty())
+        {
+            final int depth = stack.popInt();
+            final int nodeAddress = stack.popInt();
+            if(depth > result)
+                result = depth;
+            
+            final int frontNodeAddress = getFrontNode(nodeAddress);
+            if(frontNodeAddress != NO_NODE_ADDRESS)
+            {
+                stack.push(frontNodeAddress);
+                stack.push(depth + 1);
+            }
+            
+            final int backNodeAddress = getBackNode(nodeAddress);
+            if(backNodeAddress != NO_NODE_ADDRESS)
+            {
+                stack.push(backNodeAddress);
+                stack.push(depth + 1);
+            }
+        }
+        return result;
+    }
+    
+    private int combinedCount(StreamBackedPolygon poly, float normalX, float normalY, float normalZ, float dist)
+    {
+        classifier.load(poly);
+        return classifier.classify(normalX, normalY, normalZ, dist);
+    }
+    
+    /**
+     * Builds the BSP tree top-down from all polys in the stream.
+     * Polys that span a node are split, same as for the incremental tree.
+     */
+    private void buildBalancedBSP()
+    {
+        final IntArrayList allPolys = new IntArrayList();
+        if(origin())
+            do
+                allPolys.add(reader.baseAddress);
+            while(next());
+        
+        if(allPolys.isEmpty())
+            return;
+        
+        // poly lists not yet in tree, with the node and side (low bit: 0 = front, 1 = back) each one goes under
+        final ObjectArrayList<IntArrayList> lists = new ObjectArrayList<>();
+        final IntArrayList parents = new IntArrayList();
+        lists.push(allPolys);
+        parents.push(NO_NODE_ADDRESS);
+        
+        while(!lists.isEmpty())
+        {
+            final IntArrayList polys = lists.pop();
+            final int parent = parents.popInt();
+            
+            final int splitterAddress = chooseSplitter(polys);
+            final int nodeAddress = createNode(splitterAddress);
+            if(parent != NO_NODE_ADDRESS)
+            {
+                if((parent & 1) == 0)
+                    setFrontNode(parent >> 1, nodeAddress);
+                else
+                    setBackNode(parent >> 1, nodeAddress);
+            }
+            
+            final float normalX = normalX(nodeAddress);
+            final float normalY = normalY(nodeAddress);
+            final float normalZ = normalZ(nodeAddress);
+            final float dist = dist(nodeAddress);
+            
+            final IntArrayList front = new IntArrayList();
+            final IntArrayList back = new IntArrayList();
+            final int count = polys.size();
+            for(int i = 0; i < count; i++)
+            {
+                final int polyAddress = polys.getInt(i);
+                
+                // splitter is always in its own node, even if not quite planar
+                if(polyAddress == splitterAddress)
+                    continue;
+                
+                polyB.moveTo(polyAddress);
+                final int combinedCount = combinedCount(polyB, normalX, normalY, normalZ, dist);
+                
+                if((combinedCount & FRONT_MASK) == 0)
+                {
+                    // coplanar polys need no node of their own
+                    if(combinedCount != 0)
+                        back.add(polyAddress);
+                }
+                else if((combinedCount & BACK_MASK) == 0)
+                    front.add(polyAddress);
+                else
+                {
+                    final long split = split(combinedCount, normalX, normalY, normalZ, dist);
+                    front.add((int) (split >>> 32));
+                    back.add((int) split);
+                    polyB.setDeleted();
+                }
+            }
+            
+            if(!front.isEmpty())
+            {
+                lists.push(front);
+                parents.push(nodeAddress << 1);
+            }
+            
+            if(!back.isEmpty())
+            {
+                lists.push(back);
+                parents.push((nodeAddress << 1) | 1);
+            }
+        }
+    }
+    
+    /**
+     * Returns address of the poly with the lowest cost splitting plane out of up to
+     * {@link #SPLIT_CANDIDATES} polys evenly spaced in the list. Cost is estimated
+     * by classifying up to {@link #SPLIT_SAMPLES} polys. Polys coplanar with the 
+     * plane reduce cost because they won't need nodes of their own.
+     */
+    private int chooseSplitter(IntArrayList polys)
+    {
+        final int size = polys.size();
+        if(size <= 2)
+            return polys.getInt(0);
+        
+        final int candidateStep = Math.max(1, size / SPLIT_CANDIDATES);
+        final int sampleStep = Math.max(1, size / SPLIT_SAMPLES);
+        int bestAddress = polys.getInt(0);
+        int bestCost = Integer.MAX_VALUE;
+        
+        for(int c = 0; c < size; c += candidateStep)
+        {
+            final int candidateAddress = polys.getInt(c);
+            final IPolygon candidate = reader(candidateAddress);
+            final Vec3f normal = candidate.getFaceNormal();
+            final float normalX = normal.x();
+            final float normalY = normal.y();
+            final float normalZ = normal.z();
+            final float dist = normal.dotProduct(candidate.getVertexX(0), candidate.getVertexY(0), candidate.getVertexZ(0));
+            
+            int frontCount = 0;
+            int backCount = 0;
+            int splitCount = 0;
+            int coplanarCount = 0;
+            
+            for(int s = 0; s < size; s += sampleStep)
+            {
+                polyB.moveTo(polys.getInt(s));
+                final int combinedCount = combinedCount(polyB, normalX, normalY, normalZ, dist);
+                
+                if(combinedCount == 0)
+                    coplanarCount++;
+                else if((combinedCount & FRONT_MASK) == 0)
+                    backCount++;
+                else if((combinedCount & BACK_MASK) == 0)
+                    frontCount++;
+                else
+                    splitCount++;
+            }
+            
+            final int cost = splitCount * SPLIT_COST + Math.abs(frontCount - backCount) - coplanarCount;
+            if(cost < bestCost)
+            {
+                bestCost = cost;
+                bestAddress = candidateAddress;
+            }
+        }
+        return bestAddress;
+    }
+    
     private void buildBSP(int polyAddress, int nodeAddress)
     {
         IntArrayList stack = STACK.get();
@@ -243,6 +539,7 @@ public class CsgPolyStream extends MutablePolyStream
     private void buildBSPInner(IntArrayList stack, final int polyAddress, int nodeAddress)
     {
         polyB.moveTo(polyAddress);
+        classifier.load(polyB);
         
         do
         {
@@ -250,14 +547,7 @@ public class CsgPolyStream extends MutablePolyStream
             final float normalY = normalY(nodeAddress);
             final float normalZ = normalZ(nodeAddress);
             final float dist = dist(nodeAddress);
-            final int vCount = polyB.vertexCount();
-            int combinedCount = 0;
-            
-            for(int i = 0; i < vCount; i++)
-            {
-                combinedCount += vertexIncrement(polyB.getVertexX(i), polyB.getVertexY(i), polyB.getVertexZ(i), 
-                        normalX, normalY, normalZ, dist);
-            }
+            final int combinedCount = classifier.classify(normalX, normalY, normalZ, dist);
             
             // Put the polygon in the correct list, splitting it when necessary.
             if((combinedCount & FRONT_MASK) == 0)
@@ -305,93 +595,9 @@ public class CsgPolyStream extends MutablePolyStream
                 else
                 {
                     // split and exit
-                    final int frontAddress = appendEmptySplit(polyB, (combinedCount & FRONT_MASK) + 2);
-                    int iFront = 0;
-                    
-                    final int backAddress = appendEmptySplit(polyB, ((combinedCount & BACK_MASK) >> BACK_SHIFT) + 2);
-                    int iBack = 0;
-
-                    int i = vCount - 1;
-                    int iType = vertexType(polyB, i, normalX, normalY, normalZ, dist);
-                    
-                    for (int j = 0; j < vCount; j++)
-                    {
-                        final int jType = vertexType(polyB, j, normalX, normalY, normalZ, dist);
-                        
-                        switch(iType * 3 + jType)
-                        {
-                            case 0: // I COPLANAR - J COPLANAR
-                            case 1: // I COPLANAR - J FRONT
-                            case 2: // I COPLANAR - J BACK
-                                editor(frontAddress).copyVertexFrom(iFront++, polyB, i);
-                                editor(backAddress).copyVertexFrom(iBack++, polyB, i);
-                                break;
-                                
-                            case 3: // I FRONT - J COPLANAR
-                            case 4: // I FRONT - J FRONT
-                                editor(frontAddress).copyVertexFrom(iFront++, polyB, i);
-                                break;
-                                
-                            case 6: // I BACK- J COPLANAR
-                            case 8: // I BACK - J BACK
-                                editor(backAddress).copyVertexFrom(iBack++, polyB, i);
-                                break;
-                                
-                            case 5:
-                            {
-                                // I FRONT - J BACK
-                                editor(frontAddress).copyVertexFrom(iFront++, polyB, i);                    
-
-                                // Line for interpolated vertex depends on what the next vertex is for this side (front/back).
-                                // If the next vertex will be included in this side, we are starting the line connecting
-                                // next vertex with previous vertex and should use line from prev. vertex
-                                // If the next vertex will NOT be included in this side, we are starting the split line.
-                                
-                                final float ix = polyB.getVertexX(i);
-                                final float iy = polyB.getVertexY(i);
-                                final float iz = polyB.getVertexZ(i);
-                                
-                                final float tx = polyB.getVertexX(j) - ix;
-                                final float ty = polyB.getVertexY(j) - iy;
-                                final float tz = polyB.getVertexZ(j) - iz;
-                                
-                                final float iDot = ix * normalX + iy * normalY + iz * normalZ;
-                                final float tDot = tx * normalX + ty * normalY + tz * normalZ;
-                                float t = (dist - iDot) / tDot;
-                                
-                                editor(frontAddress).copyInterpolatedVertexFrom(iFront, polyB, i, polyB, j, t);
-                                editor(backAddress).copyVertexFrom(iBack++, polyA(frontAddress), iFront++);
-                                
-                                break;
-                            }  
-                                
-                            case 7:
-                            {
-                                // I BACK - J FRONT
-                                editor(backAddress).copyVertexFrom(iBack++, polyB, i);
-                                
-                                // see notes for 5
-                                final float ix = polyB.getVertexX(i);
-                                final float iy = polyB.getVertexY(i);
-                                final float iz = polyB.getVertexZ(i);
-                                
-                                final float tx = polyB.getVertexX(j) - ix;
-                                final float ty = polyB.getVertexY(j) - iy;
-                                final float tz = polyB.getVertexZ(j) - iz;
-                                
-                                final float iDot = ix * normalX + iy * normalY + iz * normalZ;
-                                final float tDot = tx * normalX + ty * normalY + tz * normalZ;
-                                float t = (dist - iDot) / tDot;
-                                
-                                editor(frontAddress).copyInterpolatedVertexFrom(iFront, polyB, i, polyB, j, t);
-                                editor(backAddress).copyVertexFrom(iBack++, polyA(frontAddress), iFront++);
-                                break;
-                            }
-                        }
-                        
-                        i = j;
-                        iType = jType;
-                    }
+                    final long split = split(combinedCount, normalX, normalY, normalZ, dist);
+                    final int frontAddress = (int) (split >>> 32);
+                    final int backAddress = (int) split;
                     
                     // put front node in BSP tree
                     final int frontNodeAddress = getFrontNode(nodeAddress);
@@ -425,6 +631,106 @@ public class CsgPolyStream extends MutablePolyStream
             }
         } while(true);
     }
+    
+    /**
+     * Splits polyB by the given plane, appending front and back polys.
+     * Does not delete polyB. Vertex types are those from the last classification
+     * of polyB, which must have been against the same plane.<br>
+     * Returns address of front poly in the high 32 bits and back poly in the low 32 bits.
+     */
+    private long split(int combinedCount, float normalX, float normalY, float normalZ, float dist)
+    {
+        final int vCount = polyB.vertexCount();
+        final int frontAddress = appendEmptySplit(polyB, (combinedCount & FRONT_MASK) + 2);
+        int iFront = 0;
+        
+        final int backAddress = appendEmptySplit(polyB, ((combinedCount & BACK_MASK) >> BACK_SHIFT) + 2);
+        int iBack = 0;
+        
+        int i = vCount - 1;
+        int iType = classifier.vertexType(i);
+        
+        for (int j = 0; j < vCount; j++)
+        {
+            final int jType = classifier.vertexType(j);
+            
+            switch(iType * 3 + jType)
+            {
+                case 0: // I COPLANAR - J COPLANAR
+                case 1: // I COPLANAR - J FRONT
+                case 2: // I COPLANAR - J BACK
+                    editor(frontAddress).copyVertexFrom(iFront++, polyB, i);
+                    editor(backAddress).copyVertexFrom(iBack++, polyB, i);
+                    break;
+                
+                case 3: // I FRONT - J COPLANAR
+                case 4: // I FRONT - J FRONT
+                    editor(frontAddress).copyVertexFrom(iFront++, polyB, i);
+                    break;
+                
+                case 6: // I BACK- J COPLANAR
+                case 8: // I BACK - J BACK
+                    editor(backAddress).copyVertexFrom(iBack++, polyB, i);
+                    break;
+                
+                case 5:
+                {
+                    // I FRONT - J BACK
+                    editor(frontAddress).copyVertexFrom(iFront++, polyB, i);                    
+                    
+                    // Line for interpolated vertex depends on what the next vertex is for this side (front/back).
+                    // If the next vertex will be included in this side, we are starting the line connecting
+                    // next vertex with previous vertex and should use line from prev. vertex
+                    // If the next vertex will NOT be included in this side, we are starting the split line.
+                    
+                    final float ix = polyB.getVertexX(i);
+                    final float iy = polyB.getVertexY(i);
+                    final float iz = polyB.getVertexZ(i);
+                    
+                    final float tx = polyB.getVertexX(j) - ix;
+                    final float ty = polyB.getVertexY(j) - iy;
+                    final float tz = polyB.getVertexZ(j) - iz;
+                    
+                    final float iDot = ix * normalX + iy * normalY + iz * normalZ;
+                    final float tDot = tx * normalX + ty * normalY + tz * normalZ;
+                    float t = (dist - iDot) / tDot;
+                    
+                    editor(frontAddress).copyInterpolatedVertexFrom(iFront, polyB, i, polyB, j, t);
+                    editor(backAddress).copyVertexFrom(iBack++, polyA(frontAddress), iFront++);
+                    
+                    break;
+                }  
+                
+                case 7:
+                {
+                    // I BACK - J FRONT
+                    editor(backAddress).copyVertexFrom(iBack++, polyB, i);
+                    
+                    // see notes for 5
+                    final float ix = polyB.getVertexX(i);
+                    final float iy = polyB.getVertexY(i);
+                    final float iz = polyB.getVertexZ(i);
+                    
+                    final float tx = polyB.getVertexX(j) - ix;
+                    final float ty = polyB.getVertexY(j) - iy;
+                    final float tz = polyB.getVertexZ(j) - iz;
+                    
+                    final float iDot = ix * normalX + iy * normalY + iz * normalZ;
+                    final float tDot = tx * normalX + ty * normalY + tz * normalZ;
+                    float t = (dist - iDot) / tDot;
+                    
+                    editor(frontAddress).copyInterpolatedVertexFrom(iFront, polyB, i, polyB, j, t);
+                    editor(backAddress).copyVertexFrom(iBack++, polyA(frontAddress), iFront++);
+                    break;
+                }
+            }
+            
+            i = j;
+            iType = jType;
+        }
+        
+        return ((long) frontAddress << 32) | (backAddress & 0xFFFFFFFFL);
+    }
 
     /**
      * Conceptually, converts solid space to empty space and vice versa
@@ -458,9 +764,29 @@ public class CsgPolyStream extends MutablePolyStream
     public void clipTo(CsgPolyStream clippingStream)
     {
         assert isComplete;
+        clippingStream.prepareBoundsGrid();
         clip(this, clippingStream);
     }
     
+    /**
+     * Same as {@link #clipTo(CsgPolyStream)} but polys are clipped in parallel on the given 
+     * pool if there are at least {@link #PARALLEL_CLIP_THRESHOLD} of them. Clips serially if pool is null.<p>
+     * 
+     * Each batch of polys is copied to a separate stream and clipped there. Results are then 
+     * appended to this stream in poly order, so this stream ends up with the same polys 
+     * in the same order as a serial clip would produce.<p>
+     * 
+     * Safe to call from any thread because work is submitted as an async task.
+     * Calling thread clips any batches that workers haven't claimed.
+     */
+    public void clipTo(CsgPolyStream clippingStream, @Nullable ScatterGatherThreadPool pool)
+    {
+        assert isComplete;
+        clippingStream.prepareBoundsGrid();
+        if(pool == null || !clipParallel(this, clippingStream, pool))
+            clip(this, clippingStream);
+    }
+    
     private static void clip(CsgPolyStream targetStream, CsgPolyStream clippingStream)
     {
         final StreamBackedPolygon reader = targetStream.reader;
@@ -480,7 +806,338 @@ public class CsgPolyStream extends MutablePolyStream
         reader.moveTo(saveReadAddress);
         
     }
+    
+    /**
+     * Returns false without doing anything if there aren't enough polys to clip in parallel.
+     */
+    private static boolean clipParallel(CsgPolyStream targetStream, CsgPolyStream clippingStream, ScatterGatherThreadPool pool)
+    {
+        final StreamBackedPolygon reader = targetStream.reader;
+        final int saveReadAddress = reader.baseAddress;
+        
+        // same polys visited by serial clip
+        final int limitAddress = targetStream.writerAddress();
+        final IntArrayList polys = new IntArrayList();
+        if(targetStream.origin())
+            do
+                polys.add(reader.baseAddress);
+            while(targetStream.next() && reader.baseAddress < limitAddress);
+        
+        reader.moveTo(saveReadAddress);
+        
+        final int polyCount = polys.size();
+        if(polyCount < PARALLEL_CLIP_THRESHOLD)
+            return false;
+        
+        final int batchCount = Math.min(ScatterGatherThreadPoolImpl.DEFAULT_BATCH_COUNT, polyCount / MIN_POLYS_PER_BATCH);
+        final int[] polyAddresses = polys.elements();
+        final ClipBatch[] batches = new ClipBatch[batchCount];
+        for(int i = 0; i < batchCount; i++)
+            batches[i] = new ClipBatch(targetStream, clippingStream, polyAddresses, 
+                    (int)((long) polyCount * i / batchCount), (int)((long) polyCount * (i + 1) / batchCount));
+        
+        final CountDownLatch done = new CountDownLatch(batchCount);
+        for(ClipBatch batch : batches)
+            batch.done = done;
+        
+        // Async task may not start until after calling thread has run every batch.
+        // Completion is tracked per batch so that we never wait for that.
+        pool.completeTaskAsync(batches, 0, batchCount, ClipBatch::claimAndRun, 1);
+        try
+        {
+            // work from the end so that workers and calling thread mostly don't contend for batches
+            for(int i = batchCount - 1; i >= 0; i--)
+                batches[i].claimAndRun();
+            
+            awaitBatches(done);
+            
+            for(ClipBatch batch : batches)
+                batch.merge();
+        }
+        finally
+        {
+            // if calling thread failed, keep workers from starting remaining batches
+            for(ClipBatch batch : batches)
+                batch.cancel();
+            
+            // don't release streams that workers may still be using
+            awaitBatches(done);
+            
+            for(ClipBatch batch : batches)
+                batch.release();
+        }
+        return true;
+    }
+    
+    /**
+     * Waits for batches claimed by workers. Batches run by the calling thread are already done.
+     */
+    private static void awaitBatches(CountDownLatch done)
+    {
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                done.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * Polys in a contiguous range of a parallel clip, with the scratch stream where they are clipped.
+     */
+    private static class ClipBatch
+    {
+        private final CsgPolyStream targetStream;
+        private final CsgPolyStream clippingStream;
+        private final int[] polyAddresses;
+        private final int start;
+        private final int end;
+        
+        /** address in scratch stream of the copy of each poly in range */
+        private final int[] copyAddresses;
+        
+        private final AtomicBoolean isClaimed = new AtomicBoolean(false);
+        
+        /** counted down when batch is finished or cancelled */
+        private @Nullable CountDownLatch done = null;
+        
+        /** set if clip failed on a worker thread */
+        private volatile @Nullable RuntimeException failure = null;
+        
+        private @Nullable CsgPolyStream scratch = null;
+        
+        private ClipBatch(CsgPolyStream targetStream, CsgPolyStream clippingStream, int[] polyAddresses, int start, int end)
+        {
+            this.targetStream = targetStream;
+            this.clippingStream = clippingStream;
+            this.polyAddresses = polyAddresses;
+            this.start = start;
+            this.end = end;
+            this.copyAddresses = new int[end - start];
+        }
+        
+        private void claimAndRun()
+        {
+            if(isClaimed.compareAndSet(false, true))
+            {
+                try
+                {
+                    run();
+                }
+                catch(RuntimeException e)
+                {
+                    failure = e;
+                }
+                finally
+                {
+                    countDown();
+                }
+            }
+        }
+        
+        private void cancel()
+        {
+            if(isClaimed.compareAndSet(false, true))
+                countDown();
+        }
+        
+        private void countDown()
+        {
+            final CountDownLatch done = this.done;
+            assert done != null;
+            done.countDown();
+        }
+        
+        /**
+         * Only reads target stream (apart from lazily computed normals of polys in this batch).
+         * Split results go to the scratch stream.
+         */
+        private void run()
+        {
+            final CsgPolyStream scratch = PolyStreams.claimCSG();
+            this.scratch = scratch;
+            scratch.isComplete = true;
+            scratch.isInverted = targetStream.isInverted;
+            
+            final StreamBackedPolygon source = new StreamBackedPolygon();
+            source.stream = targetStream.stream;
+            
+            for(int i = start; i < end; i++)
+            {
+                source.moveTo(polyAddresses[i]);
+                final int copyAddress = scratch.writerAddress();
+                copyAddresses[i - start] = copyAddress;
+                scratch.appendRawCopy(source, scratch.formatFlags);
+                clipPoly(scratch, clippingStream, copyAddress);
+            }
+        }
+        
+        /**
+         * Applies results to target stream. Polys removed or split by clip are deleted
+         * and polys created by splits are appended in the order a serial clip creates them.
+         */
+        private void merge()
+        {
+            final RuntimeException failure = this.failure;
+            if(failure != null)
+                throw failure;
+            
+            final CsgPolyStream scratch = this.scratch;
+            assert scratch != null;
+            
+            final StreamBackedPolygon fragment = new StreamBackedPolygon();
+            fragment.stream = scratch.stream;
+            final int scratchLimit = scratch.writerAddress();
+            
+            for(int i = start; i < end; i++)
+            {
+                final int copyAddress = copyAddresses[i - start];
+                fragment.moveTo(copyAddress);
+                
+                // polys that were split are always deleted
+                if(!fragment.isDeleted())
+                    continue;
+                
+                targetStream.setDeleted(polyAddresses[i]);
+                
+                final int fragmentLimit = i + 1 < end ? copyAddresses[i + 1 - start] : scratchLimit;
+                int address = copyAddress + fragment.stride();
+                while(address < fragmentLimit)
+                {
+                    fragment.moveTo(address);
+                    final int newAddress = targetStream.writerAddress();
+                    targetStream.appendRawCopy(fragment, targetStream.formatFlags);
+                    if(fragment.isDeleted())
+                        targetStream.setDeleted(newAddress);
+                    address += fragment.stride();
+                }
+            }
+        }
+        
+        private void release()
+        {
+            final CsgPolyStream scratch = this.scratch;
+            if(scratch != null)
+            {
+                this.scratch = null;
+                scratch.release();
+            }
+        }
+    }
 
+    /** 
+     * Builds bounds grid on first use as a clipping stream, if this stream is a closed mesh. 
+     * Grid includes deleted polys, so it covers every poly used to build the tree even if this 
+     * stream has been clipped. Must be called before clipping stream is shared with other threads.
+     */
+    private void prepareBoundsGrid()
+    {
+        assert isComplete;
+        if(!hasBoundsGrid && checkClosed())
+        {
+            boundsGrid.build(this);
+            hasBoundsGrid = true;
+        }
+    }
+    
+    /**
+     * True if polys added before completion form a closed mesh. Counts edges on first call.
+     * Input polys are still in the stream even if later split or deleted, and 
+     * inversion doesn't change them, so the answer doesn't change after completion.
+     */
+    boolean checkClosed()
+    {
+        assert isComplete;
+        if(!isClosedKnown)
+        {
+            final CsgEdgeCounter counter = EDGE_COUNTER.get();
+            final StreamBackedPolygon reader = polyA;
+            final int limit = inputAddresses.size();
+            for(int i = 0; i < limit; i++)
+            {
+                reader.moveTo(inputAddresses.getInt(i));
+                counter.add(reader);
+            }
+            isClosed = counter.isClosed();
+            counter.clear();
+            isClosedKnown = true;
+        }
+        return isClosed;
+    }
+    
+    /**
+     * Walks BSP tree with a single point. Returns {@link #FRONT} if the point is in 
+     * empty space (front leaf), {@link #BACK} if in solid space (back leaf), or {@link #COPLANAR} 
+     * if the point is on the plane of any node it visits. Tree must not be empty.
+     */
+    private int classifyPoint(float x, float y, float z)
+    {
+        int nodeAddress = 0;
+        do
+        {
+            final int type = vertexType(x, y, z, normalX(nodeAddress), normalY(nodeAddress), normalZ(nodeAddress), dist(nodeAddress));
+            
+            if(type == COPLANAR)
+                return COPLANAR;
+            
+            final int nextNodeAddress = type == FRONT ? getFrontNode(nodeAddress) : getBackNode(nodeAddress);
+            if(nextNodeAddress == NO_NODE_ADDRESS)
+                return type;
+            
+            nodeAddress = nextNodeAddress;
+        } while(true);
+    }
+    
+    /**
+     * If the poly can't touch any poly of the clipping stream, all points of the poly have 
+     * the same classification so clip result depends only on the centroid. Clipping stream 
+     * must be a closed mesh - otherwise node planes can cut the poly away from any surface. Keeps or deletes 
+     * the poly and returns true if so. Returns false if poly needs a full clip.
+     */
+    private static boolean clipByBounds(CsgPolyStream targetStream, CsgPolyStream clippingStream, int polyAddress)
+    {
+        assert clippingStream.isClosed;
+        if(clippingStream.nextNodeAddress == 0)
+            return false;
+        
+        final StreamBackedPolygon poly = targetStream.polyB;
+        poly.moveTo(polyAddress);
+        
+        if(clippingStream.boundsGrid.mayTouch(poly))
+            return false;
+        
+        float x = 0;
+        float y = 0;
+        float z = 0;
+        final int vCount = poly.vertexCount();
+        for(int i = 0; i < vCount; i++)
+        {
+            x += poly.getVertexX(i);
+            y += poly.getVertexY(i);
+            z += poly.getVertexZ(i);
+        }
+        
+        final int type = clippingStream.classifyPoint(x / vCount, y / vCount, z / vCount);
+        
+        if(type == COPLANAR)
+            return false;
+        
+        if(type == BACK)
+            poly.setDeleted();
+        
+        CLIP_BOUNDS_REJECT_COUNT.increment();
+        return true;
+    }
+    
     /** 
      * Clips the poly at the target address to the input stream/mesh.<br>
      * If the poly is "behind" (inside) the mesh it will be removed.<br>
@@ -490,6 +1147,11 @@ public class CsgPolyStream extends MutablePolyStream
      */
     private static void clipPoly(CsgPolyStream targetStream, CsgPolyStream clippingStream, int polyAddress)
     {
+        CLIP_POLY_COUNT.increment();
+        
+        if(clippingStream.hasBoundsGrid && clipByBounds(targetStream, clippingStream, polyAddress))
+            return;
+        
         IntArrayList stack = STACK.get();
         assert stack.isEmpty();
         int nodeAddress = 0;
@@ -508,7 +1170,9 @@ public class CsgPolyStream extends MutablePolyStream
     private static void clipPolyInner(IntArrayList stack, CsgPolyStream targetStream, final CsgPolyStream clippingStream, final int polyAddress, int nodeAddress)
     {
         final StreamBackedPolygon polyB = targetStream.polyB;
+        final CsgPlaneClassifier classifier = targetStream.classifier;
         polyB.moveTo(polyAddress);
+        classifier.load(polyB);
         
         do
         {
@@ -516,14 +1180,7 @@ public class CsgPolyStream extends MutablePolyStream
             final float normalY = clippingStream.normalY(nodeAddress);
             final float normalZ = clippingStream.normalZ(nodeAddress);
             final float dist = clippingStream.dist(nodeAddress);
-            final int vCount = polyB.vertexCount();
-            int combinedCount = 0;
-            
-            for(int i = 0; i < vCount; i++)
-            {
-                combinedCount += vertexIncrement(polyB.getVertexX(i), polyB.getVertexY(i), polyB.getVertexZ(i), 
-                        normalX, normalY, normalZ, dist);
-            }
+            final int combinedCount = classifier.classify(normalX, normalY, normalZ, dist);
             
             // Remove back-facing polys or split when necessary.
             if((combinedCount & FRONT_MASK) == 0)
@@ -595,12 +1252,13 @@ public class CsgPolyStream extends MutablePolyStream
                             : targetStream.appendEmptySplit(polyB, ((combinedCount & BACK_MASK) >> BACK_SHIFT) + 2);
                     int iBack = 0;
                     
+                    final int vCount = polyB.vertexCount();
                     int i = vCount - 1;
-                    int iType = vertexType(polyB, i, normalX, normalY, normalZ, dist);
+                    int iType = classifier.vertexType(i);
                     
                     for (int j = 0; j < vCount; j++)
                     {
-                        final int jType = vertexType(polyB, j, normalX, normalY, normalZ, dist);
+                        final int jType = classifier.vertexType(j);
                         
                         switch(iType * 3 + jType)
                         {
@@ -0,0 +1,249 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import java.util.Arrays;
+
+import grondag.exotic_matter.model.primitives.QuadHelper;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+
+/**
+ * Coarse uniform grid over the bounds of a CSG stream, with a bit for each cell set
+ * if the bounding box of any poly in the stream overlaps it.<p>
+ *
+ * Used by {@link CsgPolyStream} to find polys that can't touch the surface of a clipping mesh.
+ * Answers are conservative - a poly may be reported as touching when it doesn't, never the reverse.<p>
+ *
+ * Reused with the stream that owns it to avoid allocation. Not thread-safe while being built.
+ */
+final class CsgBoundsGrid
+{
+    private static final int GRID_BITS = 4;
+    private static final int GRID_SIZE = 1 << GRID_BITS;
+    private static final int GRID_MAX = GRID_SIZE - 1;
+    
+    private final long[] cells = new long[GRID_SIZE * GRID_SIZE * GRID_SIZE / 64];
+    
+    private boolean isEmpty = true;
+    
+    private float minX;
+    private float minY;
+    private float minZ;
+    private float maxX;
+    private float maxY;
+    private float maxZ;
+    
+    /** cells per unit distance */
+    private float scaleX;
+    private float scaleY;
+    private float scaleZ;
+    
+    /**
+     * Rebuilds grid from all polys in the stream, <em>including</em> deleted polys.
+     * Polys created by splitting are always within their deleted original, so the
+     * grid covers the original mesh even after the stream has been clipped.
+     */
+    void build(CsgPolyStream stream)
+    {
+        Arrays.fill(cells, 0L);
+        isEmpty = true;
+        
+        final StreamBackedPolygon poly = stream.polyA;
+        final int limit = stream.writeAddress;
+        
+        minX = Float.MAX_VALUE;
+        minY = Float.MAX_VALUE;
+        minZ = Float.MAX_VALUE;
+        maxX = -Float.MAX_VALUE;
+        maxY = -Float.MAX_VALUE;
+        maxZ = -Float.MAX_VALUE;
+        
+        int address = stream.originAddress;
+        while(address < limit)
+        {
+            poly.moveTo(address);
+            final int vCount = poly.vertexCount();
+            for(int i = 0; i < vCount; i++)
+            {
+                final float x = poly.getVertexX(i);
+                final float y = poly.getVertexY(i);
+                final float z = poly.getVertexZ(i);
+                if(x < minX)
+                    minX = x;
+                if(x > maxX)
+                    maxX = x;
+                
+                if(y < minY)
+                    minY = y;
+                if(y > maxY)
+                    maxY = y;
+                
+                if(z < minZ)
+                    minZ = z;
+                if(z > maxZ)
+                    maxZ = z;
+            }
+            isEmpty = false;
+            address += poly.stride();
+        }
+        
+        if(isEmpty)
+            return;
+        
+        minX -= QuadHelper.EPSILON;
+        minY -= QuadHelper.EPSILON;
+        minZ -= QuadHelper.EPSILON;
+        maxX += QuadHelper.EPSILON;
+        maxY += QuadHelper.EPSILON;
+        maxZ += QuadHelper.EPSILON;
+        
+        scaleX = GRID_SIZE / (maxX - minX);
+        scaleY = GRID_SIZE / (maxY - minY);
+        scaleZ = GRID_SIZE / (maxZ - minZ);
+        
+        address = stream.originAddress;
+        while(address < limit)
+        {
+            poly.moveTo(address);
+            markPoly(poly);
+            address += poly.stride();
+        }
+    }
+    
+    private void markPoly(IPolygon poly)
+    {
+        float pMinX = poly.getVertexX(0);
+        float pMinY = poly.getVertexY(0);
+        float pMinZ = poly.getVertexZ(0);
+        float pMaxX = pMinX;
+        float pMaxY = pMinY;
+        float pMaxZ = pMinZ;
+        
+        final int vCount = poly.vertexCount();
+        for(int i = 1; i < vCount; i++)
+        {
+            final float x = poly.getVertexX(i);
+            final float y = poly.getVertexY(i);
+            final float z = poly.getVertexZ(i);
+            if(x < pMinX)
+                pMinX = x;
+            else if(x > pMaxX)
+                pMaxX = x;
+            
+            if(y < pMinY)
+                pMinY = y;
+            else if(y > pMaxY)
+                pMaxY = y;
+            
+            if(z < pMinZ)
+                pMinZ = z;
+            else if(z > pMaxZ)
+                pMaxZ = z;
+        }
+        
+        final int x0 = cellX(pMinX - QuadHelper.EPSILON);
+        final int x1 = cellX(pMaxX + QuadHelper.EPSILON);
+        final int y0 = cellY(pMinY - QuadHelper.EPSILON);
+        final int y1 = cellY(pMaxY + QuadHelper.EPSILON);
+        final int z0 = cellZ(pMinZ - QuadHelper.EPSILON);
+        final int z1 = cellZ(pMaxZ + QuadHelper.EPSILON);
+        
+        for(int x = x0; x <= x1; x++)
+        {
+            for(int y = y0; y <= y1; y++)
+            {
+                for(int z = z0; z <= z1; z++)
+                {
+                    final int index = index(x, y, z);
+                    cells[index >> 6] |= 1L << (index & 63);
+                }
+            }
+        }
+    }
+    
+    /**
+     * True if the bounding box of the poly may touch the bounding box of any poly in the grid.
+     * Points on the boundary count as touching.
+     */
+    boolean mayTouch(IPolygon poly)
+    {
+        if(isEmpty)
+            return false;
+        
+        float pMinX = poly.getVertexX(0);
+        float pMinY = poly.getVertexY(0);
+        float pMinZ = poly.getVertexZ(0);
+        float pMaxX = pMinX;
+        float pMaxY = pMinY;
+        float pMaxZ = pMinZ;
+        
+        final int vCount = poly.vertexCount();
+        for(int i = 1; i < vCount; i++)
+        {
+            final float x = poly.getVertexX(i);
+            final float y = poly.getVertexY(i);
+            final float z = poly.getVertexZ(i);
+            if(x < pMinX)
+                pMinX = x;
+            else if(x > pMaxX)
+                pMaxX = x;
+            
+            if(y < pMinY)
+                pMinY = y;
+            else if(y > pMaxY)
+                pMaxY = y;
+            
+            if(z < pMinZ)
+                pMinZ = z;
+            else if(z > pMaxZ)
+                pMaxZ = z;
+        }
+        
+        if(pMaxX < minX || pMinX > maxX || pMaxY < minY || pMinY > maxY || pMaxZ < minZ || pMinZ > maxZ)
+            return false;
+        
+        final int x0 = cellX(pMinX);
+        final int x1 = cellX(pMaxX);
+        final int y0 = cellY(pMinY);
+        final int y1 = cellY(pMaxY);
+        final int z0 = cellZ(pMinZ);
+        final int z1 = cellZ(pMaxZ);
+        
+        for(int x = x0; x <= x1; x++)
+        {
+            for(int y = y0; y <= y1; y++)
+            {
+                for(int z = z0; z <= z1; z++)
+                {
+                    final int index = index(x, y, z);
+                    if((cells[index >> 6] & (1L << (index & 63))) != 0)
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static int index(int x, int y, int z)
+    {
+        return (((x << GRID_BITS) | y) << GRID_BITS) | z;
+    }
+    
+    private int cellX(float x)
+    {
+        return clamp((int) ((x - minX) * scaleX));
+    }
+    
+    private int cellY(float y)
+    {
+        return clamp((int) ((y - minY) * scaleY));
+    }
+    
+    private int cellZ(float z)
+    {
+        return clamp((int) ((z - minZ) * scaleZ));
+    }
+    
+    private static int clamp(int cell)
+    {
+        return cell < 0 ? 0 : cell > GRID_MAX ? GRID_MAX : cell;
+    }
+}
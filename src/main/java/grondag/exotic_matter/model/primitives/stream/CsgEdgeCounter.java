@@ -0,0 +1,115 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import grondag.exotic_matter.model.primitives.QuadHelper;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+/**
+ * Counts the edges of polys added to a CSG stream in each direction, to tell if they form a closed mesh.
+ * In a closed mesh every edge is used as often in one direction as in the other.<p>
+ *
+ * Vertices are matched after rounding positions to {@link QuadHelper#EPSILON}. Vertices that
+ * round differently or edges with T-junctions make the mesh look open. Answers are conservative -
+ * an open mesh is never reported as closed, but some closed meshes may be reported as open.<p>
+ *
+ * Reused per thread to avoid allocation. Not thread-safe.
+ */
+final class CsgEdgeCounter
+{
+    private static final float SCALE = 1f / QuadHelper.EPSILON;
+    
+    private static final int COORD_BITS = 21;
+    private static final int COORD_MASK = (1 << COORD_BITS) - 1;
+    private static final int COORD_LIMIT = 1 << (COORD_BITS - 1);
+    
+    /** rounded position to vertex id */
+    private final Long2IntOpenHashMap vertexIds = new Long2IntOpenHashMap();
+    
+    /** plus one for each edge from lower to higher vertex id, minus one for the reverse */
+    private final Long2IntOpenHashMap edges = new Long2IntOpenHashMap();
+    
+    /** true if any position was too large to round exactly */
+    private boolean isOutOfRange = false;
+    
+    CsgEdgeCounter()
+    {
+        vertexIds.defaultReturnValue(-1);
+    }
+    
+    void clear()
+    {
+        vertexIds.clear();
+        edges.clear();
+        isOutOfRange = false;
+    }
+    
+    void add(IPolygon poly)
+    {
+        if(isOutOfRange)
+            return;
+        
+        final int vCount = poly.vertexCount();
+        final int first = vertexId(poly, 0);
+        int prior = first;
+        for(int i = 1; i < vCount; i++)
+        {
+            final int current = vertexId(poly, i);
+            addEdge(prior, current);
+            prior = current;
+        }
+        addEdge(prior, first);
+    }
+    
+    /**
+     * True if no poly has an edge that isn't matched by an edge in the opposite direction.
+     */
+    boolean isClosed()
+    {
+        if(isOutOfRange)
+            return false;
+        
+        final IntIterator it = edges.values().iterator();
+        while(it.hasNext())
+        {
+            if(it.nextInt() != 0)
+                return false;
+        }
+        return true;
+    }
+    
+    private int vertexId(IPolygon poly, int vertexIndex)
+    {
+        final long key = (round(poly.getVertexX(vertexIndex)) << (COORD_BITS * 2))
+                | (round(poly.getVertexY(vertexIndex)) << COORD_BITS)
+                | round(poly.getVertexZ(vertexIndex));
+        
+        int result = vertexIds.get(key);
+        if(result == -1)
+        {
+            result = vertexIds.size();
+            vertexIds.put(key, result);
+        }
+        return result;
+    }
+    
+    private long round(float value)
+    {
+        final int result = Math.round(value * SCALE);
+        if(result >= COORD_LIMIT || result < -COORD_LIMIT)
+            isOutOfRange = true;
+        return result & COORD_MASK;
+    }
+    
+    private void addEdge(int from, int to)
+    {
+        // degenerate edge
+        if(from == to)
+            return;
+        
+        if(from < to)
+            edges.addTo(((long) from << 32) | to, 1);
+        else
+            edges.addTo(((long) to << 32) | from, -1);
+    }
+}
@@ -0,0 +1,123 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import grondag.exotic_matter.model.primitives.QuadHelper;
+
+/**
+ * Classifies all vertices of a stream poly against a plane in one pass, for {@link CsgPolyStream}.<p>
+ *
+ * Vertex data are copied from the backing stream as one run of ints, and positions are
+ * unpacked into separate x, y and z arrays. Distances and vertex types are then computed in
+ * simple counted loops over those arrays, with no calls through the poly, encoders or the
+ * stream, which C2 can unroll and (for the distance loop) vectorize.<p>
+ *
+ * Distances from the last plane are retained so that splitting can get vertex types without
+ * reading the poly again. Same results as {@link CsgPolyStream} per-vertex tests.<p>
+ *
+ * Not thread-safe. Each CSG stream has its own instance.
+ */
+final class CsgPlaneClassifier
+{
+    private int[] raw = new int[256];
+    private float[] x = new float[16];
+    private float[] y = new float[16];
+    private float[] z = new float[16];
+    private float[] t = new float[16];
+    
+    private int vertexCount = 0;
+    
+    /**
+     * Loads vertex positions of the poly. Positions are the first three ints of each vertex
+     * unless the poly is packed, in which case they come from the poly getters.
+     */
+    void load(StreamBackedPolygon poly)
+    {
+        final int count = poly.vertexCount();
+        
+        if(poly.vertexEncoder.hasQuantizedPos())
+        {
+            ensureCapacity(count);
+            for(int i = 0; i < count; i++)
+            {
+                x[i] = poly.getVertexX(i);
+                y[i] = poly.getVertexY(i);
+                z[i] = poly.getVertexZ(i);
+            }
+            vertexCount = count;
+            return;
+        }
+        
+        final int stride = poly.vertexEncoder.vertexStride();
+        final int length = count * stride;
+        
+        if(length > raw.length)
+            raw = new int[Math.max(length, raw.length * 2)];
+        
+        ensureCapacity(count);
+        
+        final int[] raw = this.raw;
+        final float[] x = this.x;
+        final float[] y = this.y;
+        final float[] z = this.z;
+        
+        poly.stream.copyTo(poly.vertexAddress, raw, 0, length);
+        
+        for(int i = 0, j = 0; i < count; i++, j += stride)
+        {
+            x[i] = Float.intBitsToFloat(raw[j]);
+            y[i] = Float.intBitsToFloat(raw[j + 1]);
+            z[i] = Float.intBitsToFloat(raw[j + 2]);
+        }
+        
+        vertexCount = count;
+    }
+    
+    private void ensureCapacity(int count)
+    {
+        if(count > x.length)
+        {
+            final int size = Math.max(count, x.length * 2);
+            x = new float[size];
+            y = new float[size];
+            z = new float[size];
+            t = new float[size];
+        }
+    }
+    
+    /**
+     * Classifies loaded vertices and returns front and back counts packed the same way
+     * as the sum of {@link CsgPolyStream} vertex increments.
+     */
+    int classify(float normalX, float normalY, float normalZ, float dist)
+    {
+        final int count = vertexCount;
+        final float[] x = this.x;
+        final float[] y = this.y;
+        final float[] z = this.z;
+        final float[] t = this.t;
+        
+        for(int i = 0; i < count; i++)
+            t[i] = x[i] * normalX + y[i] * normalY + z[i] * normalZ - dist;
+        
+        int frontCount = 0;
+        int backCount = 0;
+        for(int i = 0; i < count; i++)
+        {
+            final float d = t[i];
+            frontCount += d > QuadHelper.EPSILON ? 1 : 0;
+            backCount += d < -QuadHelper.EPSILON ? 1 : 0;
+        }
+        
+        return frontCount * CsgPolyStream.FRONT_INCREMENT + backCount * CsgPolyStream.BACK_INCREMENT;
+    }
+    
+    /**
+     * Type of the given vertex for the plane in the last call to {@link #classify(float, float, float, float)}.
+     */
+    int vertexType(int vertexIndex)
+    {
+        final float d = t[vertexIndex];
+        return d > QuadHelper.EPSILON
+                ? CsgPolyStream.FRONT
+                : d < -QuadHelper.EPSILON ? CsgPolyStream.BACK : CsgPolyStream.COPLANAR;
+    }
+}
@@ -1,5 +1,6 @@
 package grondag.exotic_matter.model.primitives.stream;
 
+import grondag.exotic_matter.model.primitives.QuadHelper;
 import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
 import grondag.exotic_matter.model.primitives.vertex.IVec3f;
@@ -266,20 +267,10 @@ public class CsgPolyRecombinator
 
         for(int a = 0; a < aLimit; a++)
         {
-            final float aX = polyA.getVertexX(a);
-            final float aY = polyA.getVertexY(a);
-            final float aZ = polyA.getVertexZ(a);
-            
             for(int b = 0; b < bLimit; b++)
             {
-                final float bX = polyB.getVertexX(b);
-                final float bY = polyB.getVertexY(b);
-                final float bZ = polyB.getVertexZ(b);
-                
-                if(aX == bX && aY == bY && aZ == bZ)
+                if(isSamePos(polyA, a, polyB, b))
                 {
-                    
-                    
                     final int newPolyAddress = joinAtVertex(input, polyA, a, polyB, b);
                     if(newPolyAddress == IPolygon.NO_LINK_OR_TAG)
                     {
@@ -305,6 +296,16 @@ public class CsgPolyRecombinator
         
     }
     
+    /**
+     * Same tolerance as {@link PolyVertexMap} so that vertices welded there also match here.
+     */
+    private static boolean isSamePos(IPolygon polyA, int aIndex, IPolygon polyB, int bIndex)
+    {
+        return QuadHelper.epsilonEquals(polyA.getVertexX(aIndex), polyB.getVertexX(bIndex))
+                && QuadHelper.epsilonEquals(polyA.getVertexY(aIndex), polyB.getVertexY(bIndex))
+                && QuadHelper.epsilonEquals(polyA.getVertexZ(aIndex), polyB.getVertexZ(bIndex));
+    }
+    
     private int joinAtVertex(CsgPolyStream input, int addressA, int aTargetIndex, int addressB, int bTargetIndex)
     {
         IPolygon polyA = input.polyA(addressA);
@@ -315,9 +316,7 @@ public class CsgPolyRecombinator
     
     private int joinAtVertex(CsgPolyStream input, IPolygon polyA, int aTargetIndex, IPolygon polyB, int bTargetIndex)
     {
-        assert polyA.getVertexX(aTargetIndex) ==  polyB.getVertexX(bTargetIndex);
-        assert polyA.getVertexY(aTargetIndex) ==  polyB.getVertexY(bTargetIndex);
-        assert polyA.getVertexZ(aTargetIndex) ==  polyB.getVertexZ(bTargetIndex);
+        assert isSamePos(polyA, aTargetIndex, polyB, bTargetIndex);
         
         final int aSize = polyA.vertexCount();
         final int bSize = polyB.vertexCount();
@@ -355,9 +354,7 @@ public class CsgPolyRecombinator
         int bAfterSharedIndex;
 
         // look for a second matching vertex on either side of known shared vertex
-        if(polyA.getVertexX(aAfterTargetIndex) == polyB.getVertexX(bBeforeTargetIndex)
-                && polyA.getVertexY(aAfterTargetIndex) == polyB.getVertexY(bBeforeTargetIndex)
-                && polyA.getVertexZ(aAfterTargetIndex) == polyB.getVertexZ(bBeforeTargetIndex))
+        if(isSamePos(polyA, aAfterTargetIndex, polyB, bBeforeTargetIndex))
         {
             aFirstSharedIndex = aTargetIndex;
             aSecondSharedIndex = aAfterTargetIndex;
@@ -368,9 +365,7 @@ public class CsgPolyRecombinator
             aAfterSharedIndex = aSecondSharedIndex == aMaxIndex ? 0 : aSecondSharedIndex + 1;
             bAfterSharedIndex = bAfterTargetIndex;
         }
-        else if(polyA.getVertexX(aBeforeTargetIndex) == polyB.getVertexX(bAfterTargetIndex)
-            && polyA.getVertexY(aBeforeTargetIndex) == polyB.getVertexY(bAfterTargetIndex)
-            && polyA.getVertexZ(aBeforeTargetIndex) == polyB.getVertexZ(bAfterTargetIndex))
+        else if(isSamePos(polyA, aBeforeTargetIndex, polyB, bAfterTargetIndex))
         {
             aFirstSharedIndex = aBeforeTargetIndex;
             aSecondSharedIndex = aTargetIndex;
@@ -518,24 +513,21 @@ public class CsgPolyRecombinator
                     // nothing to simplify here
                     cursor.remove();
                 }
-                else if(cursor.polyCount() == 2)
+                else if(cursor.polyCount() == 2 && cursor.firstPolyAddress() != cursor.secondPolyAddress())
                 {
                     // eliminate T junctions
-                    int firstPoly = cursor.firstPolyIndex();
-                    int secondPoly = cursor.secondPolyIndex();
+                    int firstPoly = cursor.firstPolyAddress();
+                    int secondPoly = cursor.secondPolyAddress();
                     int newPoly = joinAtVertex(input, firstPoly, cursor.firstVertexIndex(), secondPoly, cursor.secondVertexIndex());
                     if(newPoly != IPolygon.NO_LINK_OR_TAG)
                     {
                         potentialMatchesRemain = true;
                         cursor.remove();
                         
-                        boolean check = polys.rem(firstPoly);
-                        assert check;
-                        vertexMap.removePoly(firstPoly);
-                        
-                        check = polys.rem(secondPoly);
-                        assert check;
-                        vertexMap.removePoly(secondPoly);
+                        // joined polys are now deleted and skipped at output
+                        // instead of removing from list, which would be quadratic
+                        vertexMap.removePoly(input.polyA(firstPoly));
+                        vertexMap.removePoly(input.polyA(secondPoly));
                         
                         polys.add(newPoly);
                         vertexMap.addPolyGently(input.polyA(newPoly));
@@ -546,6 +538,10 @@ public class CsgPolyRecombinator
         
         final int limit = polys.size();
         for(int i = 0; i < limit; i++)
-            handleOutput(input, polys.getInt(i), output);
+        {
+            final int polyAddress = polys.getInt(i);
+            if(!input.isDeleted(polyAddress))
+                handleOutput(input, polyAddress, output);
+        }
     }
 }
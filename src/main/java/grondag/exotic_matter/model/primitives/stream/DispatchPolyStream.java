@@ -22,6 +22,7 @@ public class DispatchPolyStream extends AbstractPolyStream implements IReadOnlyP
 {
     protected boolean isBuilt = false;
     protected int lastAppendAddress = IPolygon.NO_LINK_OR_TAG;
+    protected boolean isFrozen = false;
     
     public final int getOcclusionHash(@Nullable  EnumFacing face)
     {
@@ -84,9 +85,10 @@ public class DispatchPolyStream extends AbstractPolyStream implements IReadOnlyP
         return 6;
     }
 
-    void prepare()
+    void prepare(boolean isOffHeap, boolean isFrozen)
     {
-        super.prepare(IntStreams.claim());
+        super.prepare(isOffHeap ? IntStreams.claimOffHeap() : IntStreams.claim());
+        this.isFrozen = isFrozen;
         isBuilt = false;
         lastAppendAddress = IPolygon.NO_LINK_OR_TAG;
         
@@ -113,7 +115,10 @@ public class DispatchPolyStream extends AbstractPolyStream implements IReadOnlyP
         // inserting at the head of list without additional metadata
         // and still maintain original arrival order in the final linked list.
         int appendAddress = this.writeAddress;
-        this.appendCopy(p, PolyStreamFormat.HAS_LINK_FLAG);
+        if(isFrozen)
+            this.appendFrozenCopy(p, PolyStreamFormat.HAS_LINK_FLAG);
+        else
+            this.appendCopy(p, PolyStreamFormat.HAS_LINK_FLAG);
         setLink(appendAddress, lastAppendAddress);
         lastAppendAddress = appendAddress;
     }
@@ -158,8 +163,25 @@ public class DispatchPolyStream extends AbstractPolyStream implements IReadOnlyP
         
         // housekeeping
         stream.compact();
+        makeShareable();
         this.isBuilt = true;
     }
+    
+    /**
+     * Built stream with the same polys and lists as the given built stream, sharing its storage.
+     * See {@link IntStreams#claimShared(grondag.exotic_matter.varia.intstream.IIntStream)}.
+     * Colors in the overlay replace those of the base stream.
+     */
+    void prepareView(DispatchPolyStream base, @Nullable PolyColorOverlay overlay)
+    {
+        assert base.isBuilt;
+        super.prepare(IntStreams.claimShared(base.stream));
+        writeAddress = base.writeAddress;
+        isFrozen = base.isFrozen;
+        lastAppendAddress = IPolygon.NO_LINK_OR_TAG;
+        setColorOverlay(overlay);
+        isBuilt = true;
+    }
 
     @Override
     protected void doRelease()
@@ -0,0 +1,176 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+
+/**
+ * Builds a dispatch stream for a mesh that differs from an already built dispatch stream
+ * only in vertex colors. The result shares storage with the base stream and stores only
+ * the colors that differ. See {@link DispatchPolyStream#prepareView(DispatchPolyStream, PolyColorOverlay)}.<p>
+ *
+ * Accepts the same polys, in the same order, that would be passed to a new dispatch stream.
+ * Each poly is encoded with the colors of the base stream and compared with the base poly
+ * at the same position, so any other difference is detected and the build fails.
+ */
+public class DispatchRecolorBuilder implements Consumer<IPolygon>
+{
+    private static ThreadLocal<DispatchRecolorBuilder> locals = new ThreadLocal<DispatchRecolorBuilder>()
+    {
+        @Override
+        protected DispatchRecolorBuilder initialValue()
+        {
+            return new DispatchRecolorBuilder();
+        }
+    };
+    
+    public static DispatchRecolorBuilder prepareThreadLocal(DispatchPolyStream base)
+    {
+        return locals.get().prepare(base);
+    }
+    
+    /** holds copy of incoming poly with colors of base poly */
+    private final IWritablePolyStream writable = PolyStreams.claimWritable();
+    
+    /** encodes the recolored copy the same way the base stream did, always at origin */
+    private final DispatchPolyStream scratch = new DispatchPolyStream();
+    
+    private final StreamBackedPolygon basePoly = new StreamBackedPolygon();
+    
+    private @Nullable DispatchPolyStream base;
+    
+    private @Nullable PolyColorOverlay overlay;
+    
+    /** address of the next base poly to be matched */
+    private int baseAddress;
+    
+    private boolean isFailed;
+    
+    private int[] vertexColors = new int[8];
+    
+    private DispatchRecolorBuilder()
+    {
+        scratch.prepare(false, false);
+    }
+    
+    private DispatchRecolorBuilder prepare(DispatchPolyStream base)
+    {
+        assert base.isBuilt;
+        this.base = base;
+        overlay = new PolyColorOverlay();
+        basePoly.stream = base.stream;
+        baseAddress = base.originAddress;
+        scratch.isFrozen = base.isFrozen;
+        isFailed = false;
+        return this;
+    }
+    
+    @Override
+    public void accept(@SuppressWarnings("null") IPolygon p)
+    {
+        if(isFailed || p.isDeleted())
+            return;
+        
+        final DispatchPolyStream base = this.base;
+        if(baseAddress >= base.writeAddress)
+        {
+            isFailed = true;
+            return;
+        }
+        
+        final StreamBackedPolygon basePoly = this.basePoly;
+        basePoly.moveTo(baseAddress);
+        final int vertexCount = p.vertexCount();
+        final int layerCount = p.layerCount();
+        if(basePoly.vertexCount() != vertexCount || basePoly.layerCount() != layerCount)
+        {
+            isFailed = true;
+            return;
+        }
+        
+        final IWritablePolyStream writable = this.writable;
+        writable.loadDefaults();
+        writable.setVertexCount(vertexCount);
+        writable.setLayerCount(layerCount);
+        final IMutablePolygon writer = writable.writer();
+        writer.copyFrom(p, true);
+        
+        if(vertexColors.length < vertexCount)
+            vertexColors = new int[vertexCount];
+        final int[] vertexColors = this.vertexColors;
+        
+        for(int l = 0; l < layerCount; l++)
+        {
+            boolean isDifferent = false;
+            boolean isUniform = true;
+            for(int v = 0; v < vertexCount; v++)
+            {
+                final int color = p.getVertexColor(l, v);
+                final int baseColor = basePoly.getVertexColor(l, v);
+                vertexColors[v] = color;
+                isDifferent |= color != baseColor;
+                isUniform &= color == vertexColors[0];
+                writer.setVertexColor(l, v, baseColor);
+            }
+            
+            if(isDifferent)
+            {
+                if(isUniform)
+                    overlay.setPolyColor(baseAddress, l, vertexColors[0]);
+                else
+                    overlay.setVertexColors(baseAddress, l, vertexColors, vertexCount);
+            }
+        }
+        
+        // base was written to a new, zero-filled stream
+        final DispatchPolyStream scratch = this.scratch;
+        final int scratchAddress = scratch.originAddress;
+        for(int i = scratchAddress; i < scratch.writeAddress; i++)
+            scratch.stream.set(i, 0);
+        scratch.writeAddress = scratchAddress;
+        scratch.accept(writer);
+        
+        // links come from the base, which has been built
+        scratch.setLink(scratchAddress, basePoly.getLink());
+        
+        final int stride = basePoly.stride();
+        if(scratch.writeAddress - scratchAddress != stride)
+        {
+            isFailed = true;
+            return;
+        }
+        
+        for(int i = 0; i < stride; i++)
+        {
+            if(scratch.stream.get(scratchAddress + i) != base.stream.get(baseAddress + i))
+            {
+                isFailed = true;
+                return;
+            }
+        }
+        
+        baseAddress += stride;
+    }
+    
+    /**
+     * Returns null if the accepted polys differ from the base stream in anything but color.
+     * Caller should then build a new dispatch stream.
+     */
+    public @Nullable DispatchPolyStream build()
+    {
+        final DispatchPolyStream base = this.base;
+        final PolyColorOverlay overlay = this.overlay;
+        this.base = null;
+        this.overlay = null;
+        basePoly.stream = null;
+        basePoly.invalidate();
+        
+        if(isFailed || baseAddress != base.writeAddress)
+            return null;
+        
+        return PolyStreams.claimDispatchView(base, overlay.isEmpty() ? null : overlay);
+    }
+}
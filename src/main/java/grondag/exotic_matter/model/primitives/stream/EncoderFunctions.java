@@ -114,4 +114,62 @@ public abstract class EncoderFunctions
     public static final FloatGetter GET_NORMAL_Z_QUANTIZED = (stream, address) -> NormalQuantizer.unpackZ(stream.get(address));
     public static final FloatSetter3 SET_NORMAL_XYZ_QUANTIZED = (stream, address, x, y, z) 
             -> stream.set(address, NormalQuantizer.pack(x, y, z));
+    
+    /**
+     * Steps per block for quantized positions. Grid includes both 1/16 and 1/12 block.
+     */
+    public static final float POS_QUANTIZE_SCALE = 48f;
+    
+    /** quantized positions are signed 10-bit values */
+    private static final int POS_QUANTIZE_MIN = -512;
+    private static final int POS_QUANTIZE_MAX = 511;
+    
+    /**
+     * True if value is exactly the same after encoding as a quantized position.
+     */
+    public static boolean isQuantizablePos(float value)
+    {
+        final int q = Math.round(value * POS_QUANTIZE_SCALE);
+        return q >= POS_QUANTIZE_MIN && q <= POS_QUANTIZE_MAX && q / POS_QUANTIZE_SCALE == value;
+    }
+    
+    private static int quantizePos(float value)
+    {
+        return Math.round(value * POS_QUANTIZE_SCALE) & 0x3FF;
+    }
+    
+    public static final FloatGetter GET_POS_X_QUANTIZED = (stream, address) -> ((stream.get(address) << 22) >> 22) / POS_QUANTIZE_SCALE;
+    public static final FloatGetter GET_POS_Y_QUANTIZED = (stream, address) -> ((stream.get(address) << 12) >> 22) / POS_QUANTIZE_SCALE;
+    public static final FloatGetter GET_POS_Z_QUANTIZED = (stream, address) -> ((stream.get(address) << 2) >> 22) / POS_QUANTIZE_SCALE;
+    public static final FloatSetter3 SET_POS_XYZ_QUANTIZED = (stream, address, x, y, z) 
+            -> stream.set(address, quantizePos(x) | (quantizePos(y) << 10) | (quantizePos(z) << 20));
+    
+    /**
+     * Steps per unit for 16-bit vertex UV. Vertex UV are normally 0-1 within poly min/max.
+     */
+    public static final float UV_QUANTIZE_SCALE = 3072f;
+    
+    /**
+     * True if value is exactly the same after encoding as 16-bit UV.
+     */
+    public static boolean isQuantizableUV(float value)
+    {
+        final int q = Math.round(value * UV_QUANTIZE_SCALE);
+        return q >= 0 && q <= 0xFFFF && q / UV_QUANTIZE_SCALE == value;
+    }
+    
+    private static int quantizeUV(float value)
+    {
+        return Math.round(value * UV_QUANTIZE_SCALE) & 0xFFFF;
+    }
+    
+    public static final FloatGetter GET_UV_LOW_QUANTIZED = (stream, address) -> (stream.get(address) & 0xFFFF) / UV_QUANTIZE_SCALE;
+    public static final FloatGetter GET_UV_HIGH_QUANTIZED = (stream, address) -> (stream.get(address) >>> 16) / UV_QUANTIZE_SCALE;
+    
+    public static final FloatSetter SET_UV_LOW_QUANTIZED = (stream, address, value) 
+            -> stream.set(address, (stream.get(address) & 0xFFFF0000) | quantizeUV(value));
+    public static final FloatSetter SET_UV_HIGH_QUANTIZED = (stream, address, value) 
+            -> stream.set(address, (stream.get(address) & 0x0000FFFF) | (quantizeUV(value) << 16));
+    public static final FloatSetter2 SET_UV2_QUANTIZED = (stream, address, u, v) 
+            -> stream.set(address, quantizeUV(u) | (quantizeUV(v) << 16));
 }
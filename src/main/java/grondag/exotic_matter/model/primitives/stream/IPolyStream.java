@@ -7,6 +7,19 @@ public interface IPolyStream
 {
     boolean isEmpty();
     
+    /**
+     * Hash of everything stored for polys in this stream that are not deleted - vertices,
+     * surfaces, textures, colors, tags, etc. Streams with the same polys in the same order 
+     * will have the same hash, but only within a session because surfaces and textures
+     * are hashed by handle.
+     */
+    long contentHash();
+    
+    /**
+     * Approximate memory used by this stream, in bytes.
+     */
+    int storageBytes();
+    
     /**
      * Reference to poly at current read address.<br>
      * When stream first created will point to the first poly in the stream.<br>
@@ -0,0 +1,110 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Color overrides for a read-only stream view, so that variants of a mesh that differ
+ * only in color can share the stream data of the original and store only the colors.<p>
+ *
+ * Colors can be overridden for a whole layer or for a layer of a single poly, which
+ * takes precedence. Poly overrides can give one color for all vertices or a color per vertex.<p>
+ *
+ * Immutable once assigned to a stream. Safe for concurrent reads.
+ */
+final class PolyColorOverlay
+{
+    private int layerMask = 0;
+    
+    private final int[] layerColors = new int[3];
+    
+    /**
+     * Key is poly address and layer, see {@link #key(int, int)}. Value is the index in
+     * {@link #colors} of the number of colors, which are stored after it.
+     */
+    private final Int2IntOpenHashMap polyColors = new Int2IntOpenHashMap();
+    
+    private final IntArrayList colors = new IntArrayList();
+    
+    private static int key(int polyAddress, int layerIndex)
+    {
+        return (polyAddress << 2) | layerIndex;
+    }
+    
+    void setLayerColor(int layerIndex, int color)
+    {
+        layerColors[layerIndex] = color;
+        layerMask |= 1 << layerIndex;
+    }
+    
+    /**
+     * Same color for all vertices of the layer.
+     */
+    void setPolyColor(int polyAddress, int layerIndex, int color)
+    {
+        polyColors.put(key(polyAddress, layerIndex), colors.size());
+        colors.add(1);
+        colors.add(color);
+    }
+    
+    /**
+     * Colors for vertices 0 to vertexCount - 1 of the layer.
+     */
+    void setVertexColors(int polyAddress, int layerIndex, int[] vertexColors, int vertexCount)
+    {
+        polyColors.put(key(polyAddress, layerIndex), colors.size());
+        colors.add(vertexCount);
+        colors.addElements(colors.size(), vertexColors, 0, vertexCount);
+    }
+    
+    boolean hasColor(int polyAddress, int layerIndex)
+    {
+        return (layerMask & (1 << layerIndex)) != 0 || polyColors.containsKey(key(polyAddress, layerIndex));
+    }
+    
+    /**
+     * Only valid if {@link #hasColor(int, int)} is true.
+     */
+    int getColor(int polyAddress, int layerIndex, int vertexIndex)
+    {
+        final int index = polyColors.getOrDefault(key(polyAddress, layerIndex), -1);
+        if(index == -1)
+            return layerColors[layerIndex];
+        
+        return colors.getInt(colors.getInt(index) == 1 ? index + 1 : index + 1 + vertexIndex);
+    }
+    
+    boolean isEmpty()
+    {
+        return layerMask == 0 && polyColors.isEmpty();
+    }
+    
+    /**
+     * Combined with stream content hash so that recolored views don't match their source.
+     */
+    long contentHash()
+    {
+        long result = layerMask;
+        for(int i = 0; i < 3; i++)
+        {
+            if((layerMask & (1 << i)) != 0)
+                result = HashCommon.mix(result + layerColors[i]);
+        }
+        
+        // order-independent
+        long polyHash = 0;
+        for(Int2IntMap.Entry e : polyColors.int2IntEntrySet())
+        {
+            final int index = e.getIntValue();
+            final int count = colors.getInt(index);
+            long h = e.getIntKey();
+            for(int i = 1; i <= count; i++)
+                h = HashCommon.mix(h + colors.getInt(index + i));
+            polyHash += h;
+        }
+        
+        return HashCommon.mix(result + polyHash);
+    }
+}
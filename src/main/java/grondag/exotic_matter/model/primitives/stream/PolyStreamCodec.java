@@ -0,0 +1,143 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import java.nio.IntBuffer;
+import java.util.Collection;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import grondag.exotic_matter.model.painting.Surface;
+import grondag.exotic_matter.model.primitives.PolyFactory;
+import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.varia.intstream.IIntStream;
+
+/**
+ * Converts polygons to and from plain int arrays in the poly stream format,
+ * so they can be saved and loaded across sessions.<p>
+ *
+ * Stream data normally hold handles to surfaces and texture names that are only valid
+ * within the current session. Encoded data instead hold the index of the surface
+ * in a palette supplied by the caller, and polygons with texture names can't be encoded.
+ * Callers are responsible for versioning - encoded data change whenever the stream format does.
+ */
+public class PolyStreamCodec
+{
+    /** same as StaticEncoder.TEXTURE_PIPELINE_OFFSET - low 16 bits are the surface handle */
+    private static final int SURFACE_OFFSET = 2;
+    
+    /**
+     * Returns the polygons in stream format with surfaces encoded as an index into the given palette,
+     * or null if any polygon has a texture name or a surface not in the palette.
+     */
+    public static @Nullable int[] encode(Collection<IPolygon> polys, Surface[] surfaces)
+    {
+        // size hint assumes mostly quads with vertex normals
+        final ReadOnlyPolyStream stream = PolyStreams.claimEmptyReadOnly(polys.size() * 32);
+        try
+        {
+            for(IPolygon p : polys)
+            {
+                for(int l = 0; l < p.layerCount(); l++)
+                {
+                    final String tex = p.getTextureName(l);
+                    if(tex != null && !tex.isEmpty()) return null;
+                }
+                
+                if(indexOf(surfaces, p.getSurface()) < 0) return null;
+                
+                stream.appendCopy(p, 0);
+            }
+            
+            final IIntStream ints = stream.stream;
+            final int origin = stream.originAddress;
+            final int length = stream.writeAddress - origin;
+            final int[] result = new int[length];
+            for(int i = 0; i < length; i++)
+                result[i] = ints.get(origin + i);
+            
+            int address = 0;
+            while(address < length)
+            {
+                final int surfaceAddress = address + SURFACE_OFFSET;
+                final int index = indexOf(surfaces, StaticEncoder.getSurface(ints, origin + address));
+                result[surfaceAddress] = (result[surfaceAddress] & 0xFFFF0000) | index;
+                address += PolyStreamFormat.polyStride(result[address], true);
+            }
+            
+            return result;
+        }
+        finally
+        {
+            stream.release();
+        }
+    }
+    
+    /**
+     * Reverses {@link #encode(Collection, Surface[])} for data at the given (absolute) position in the buffer.
+     * Does not change buffer position, so safe for concurrent use with a shared buffer.
+     * Throws IllegalStateException if the data are not a valid encoding.
+     */
+    public static ImmutableList<IPolygon> decode(IntBuffer data, int start, int length, Surface[] surfaces)
+    {
+        final ReadOnlyPolyStream stream = PolyStreams.claimEmptyReadOnly(length);
+        try
+        {
+            final IIntStream ints = stream.stream;
+            final int origin = stream.originAddress;
+            
+            for(int i = 0; i < length; i++)
+                ints.set(origin + i, data.get(start + i));
+            
+            int address = 0;
+            while(address < length)
+            {
+                final int format = ints.get(origin + address);
+                if(PolyStreamFormat.getVertexCount(format) < 3)
+                    throw new IllegalStateException("Invalid polygon format in encoded poly stream");
+                
+                final int surfaceAddress = origin + address + SURFACE_OFFSET;
+                final int packed = ints.get(surfaceAddress);
+                final int index = packed & 0xFFFF;
+                if(index >= surfaces.length)
+                    throw new IllegalStateException("Invalid surface index in encoded poly stream");
+                
+                ints.set(surfaceAddress, packed & 0xFFFF0000);
+                StaticEncoder.setSurface(ints, origin + address, surfaces[index]);
+                address += PolyStreamFormat.polyStride(format, true);
+            }
+            
+            if(address != length)
+                throw new IllegalStateException("Encoded poly stream length does not match content");
+            
+            stream.writeAddress = origin + length;
+            
+            ImmutableList.Builder<IPolygon> builder = ImmutableList.builder();
+            if(stream.origin())
+            {
+                final IPolygon reader = stream.reader();
+                do
+                {
+                    final IMutablePolygon copy = PolyFactory.COMMON_POOL.claimCopy(reader, reader.vertexCount());
+                    builder.add(copy.toPainted());
+                    copy.release();
+                } while(stream.next());
+            }
+            return builder.build();
+        }
+        finally
+        {
+            stream.release();
+        }
+    }
+    
+    private static int indexOf(Surface[] surfaces, Surface surface)
+    {
+        for(int i = 0; i < surfaces.length; i++)
+        {
+            if(surfaces[i] == surface) return i;
+        }
+        return -1;
+    }
+}
\ No newline at end of file
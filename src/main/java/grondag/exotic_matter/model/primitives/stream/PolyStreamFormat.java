@@ -211,9 +211,9 @@ public class PolyStreamFormat
     public static final int VERTEX_UV_BY_LAYER = 0;
     /** all layers have same UV */
     public static final int VERTEX_UV_SAME = 1;
-    /** different UV in each layer, half precision */
+    /** different UV in each layer, 16-bit fixed point - see {@link EncoderFunctions#UV_QUANTIZE_SCALE} */
     public static final int VERTEX_UV_BY_LAYER_HALF = 2;
-    /** all layers have same UV, half precision */
+    /** all layers have same UV, 16-bit fixed point */
     public static final int VERTEX_UV_SAME_HALF = 3;
     
     private static final BitPacker32<PolyStreamFormat>.IntElement VERTEX_UV_FORMAT = BITPACKER.createIntElement(4);
@@ -451,6 +451,56 @@ public class PolyStreamFormat
         return result & ~MUTABLE_FLAG;
     }
 
+    /**
+     * Same as {@link #minimalFixedFormat(IPolygon, int)} but also packs vertex positions
+     * and UV coordinates into fewer bits when that doesn't change their values.
+     * Positions on a 1/48 block grid, which includes the 1/16 and 1/12 grids,
+     * and UV coordinates that are multiples of 1/3072 can be packed.<p>
+     * 
+     * Packed values are slower to read and write, so is meant for streams that will be kept a while.
+     */
+    public static int minimalFrozenFormat(IPolygon polyIn, int formatFlags)
+    {
+        return freezeFormat(polyIn, minimalFixedFormat(polyIn, formatFlags));
+    }
+    
+    /**
+     * Applies packed encodings to a format from {@link #minimalFixedFormat(IPolygon, int)} for the same poly.
+     */
+    static int freezeFormat(IPolygon polyIn, int fixedFormat)
+    {
+        int result = fixedFormat;
+        final int vertexCount = polyIn.vertexCount();
+        
+        boolean quantizePos = true;
+        for(int v = 0; v < vertexCount && quantizePos; v++)
+        {
+            quantizePos = EncoderFunctions.isQuantizablePos(polyIn.getVertexX(v))
+                    && EncoderFunctions.isQuantizablePos(polyIn.getVertexY(v))
+                    && EncoderFunctions.isQuantizablePos(polyIn.getVertexZ(v));
+        }
+        
+        if(quantizePos)
+            result = setQuantizedPos(result, true);
+        
+        final boolean multiUV = getVertexUVFormat(result) == VERTEX_UV_BY_LAYER;
+        final int uvLayerCount = multiUV ? polyIn.layerCount() : 1;
+        boolean quantizeUV = true;
+        for(int l = 0; l < uvLayerCount && quantizeUV; l++)
+        {
+            for(int v = 0; v < vertexCount && quantizeUV; v++)
+            {
+                quantizeUV = EncoderFunctions.isQuantizableUV(polyIn.getVertexU(l, v))
+                        && EncoderFunctions.isQuantizableUV(polyIn.getVertexV(l, v));
+            }
+        }
+        
+        if(quantizeUV)
+            result = setVertexUVFormat(result, multiUV ? VERTEX_UV_BY_LAYER_HALF : VERTEX_UV_SAME_HALF);
+        
+        return result;
+    }
+    
     /**
      * Computes the size of the input polygon, in integers, if stored
      * using the optimal format given by {@link #minimalFixedFormat(IPolygon, int)}.
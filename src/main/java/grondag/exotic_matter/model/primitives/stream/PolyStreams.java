@@ -1,22 +1,48 @@
 package grondag.exotic_matter.model.primitives.stream;
 
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
 
-import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
-import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.concurrency.MagazinePool;
+import grondag.exotic_matter.varia.intstream.IntStreams;
 
 public class PolyStreams
 {
     public static final int FORMAT_TAGS = PolyStreamFormat.HAS_TAG_FLAG;
     public static final int FORMAT_LINKS = PolyStreamFormat.HAS_LINK_FLAG;
     
-    private static final ArrayBlockingQueue<WritablePolyStream> writables = new ArrayBlockingQueue<>(256);
-    private static final ArrayBlockingQueue<MutablePolyStream> mutables = new ArrayBlockingQueue<>(128);
-    private static final ArrayBlockingQueue<CsgPolyStream> csgStreams = new ArrayBlockingQueue<>(128);
-    private static final ArrayBlockingQueue<ReadOnlyPolyStream> readables = new ArrayBlockingQueue<>(256);
-    private static final ArrayBlockingQueue<DispatchPolyStream> dispatches = new ArrayBlockingQueue<>(256);
+    private static final MagazinePool<WritablePolyStream> writables = new MagazinePool<>("pool.polystream.writable", 16, 16);
+    private static final MagazinePool<MutablePolyStream> mutables = new MagazinePool<>("pool.polystream.mutable", 8, 16);
+    private static final MagazinePool<CsgPolyStream> csgStreams = new MagazinePool<>("pool.polystream.csg", 8, 16);
+    private static final MagazinePool<ReadOnlyPolyStream> readables = new MagazinePool<>("pool.polystream.readOnly", 16, 16);
+    private static final MagazinePool<DispatchPolyStream> dispatches = new MagazinePool<>("pool.polystream.dispatch", 16, 16);
+    
+    private static boolean offHeapDispatch = false;
+    
+    private static boolean frozenDispatch = false;
+    
+    /**
+     * If true, dispatch streams keep their data off-heap. They are mostly held
+     * in model caches for a long time, and would otherwise fill the old generation.<p>
+     * 
+     * Streams dropped by the model cache are not released, because render threads may still
+     * be reading them, so their off-heap memory is only freed when their buffers are collected.
+     */
+    public static void setOffHeapDispatch(boolean offHeapDispatch)
+    {
+        PolyStreams.offHeapDispatch = offHeapDispatch;
+    }
+    
+    /**
+     * If true, dispatch streams pack vertex data when it can be done without loss.
+     * See {@link PolyStreamFormat#minimalFrozenFormat(grondag.exotic_matter.model.primitives.polygon.IPolygon, int)}.
+     */
+    public static void setFrozenDispatch(boolean frozenDispatch)
+    {
+        PolyStreams.frozenDispatch = frozenDispatch;
+    }
     
     public static IWritablePolyStream claimWritable()
     {
@@ -25,21 +51,30 @@ public class PolyStreams
     
     public static IWritablePolyStream claimWritable(int formatFlags)
     {
-        WritablePolyStream result = writables.poll();
+        return claimWritable(formatFlags, false);
+    }
+    
+    /**
+     * If isOffHeap is true, stream data and read-only streams converted
+     * from the stream are kept outside the Java heap. See {@link IntStreams#claimOffHeap(int)}.
+     */
+    public static IWritablePolyStream claimWritable(int formatFlags, boolean isOffHeap)
+    {
+        WritablePolyStream result = writables.claim();
         if(result == null)
             result = new WritablePolyStream();
-        result.prepare(formatFlags);
+        result.prepare(formatFlags, isOffHeap);
         return result;
     }
     
     static void release(WritablePolyStream freeStream)
     {
-        writables.offer(freeStream);
+        writables.release(freeStream);
     }
     
     public static IMutablePolyStream claimMutable(int formatFlags)
     {
-        MutablePolyStream result = mutables.poll();
+        MutablePolyStream result = mutables.claim();
         if(result == null)
             result = new MutablePolyStream();
         result.prepare(formatFlags);
@@ -48,12 +83,12 @@ public class PolyStreams
     
     static void release(MutablePolyStream freeStream)
     {
-        mutables.offer(freeStream);
+        mutables.release(freeStream);
     }
 
     public static IReadOnlyPolyStream claimReadOnly(WritablePolyStream writablePolyStream, int formatFlags)
     {
-        ReadOnlyPolyStream result = readables.poll();
+        ReadOnlyPolyStream result = readables.claim();
         if(result == null)
             result = new ReadOnlyPolyStream();
         result.load(writablePolyStream, formatFlags);
@@ -61,54 +96,121 @@ public class PolyStreams
     }
 
     /**
-     * Creates a stream with randomly recolored copies of the input stream.<p>
+     * Creates a stream with randomly recolored copies of the input stream.
+     * Polys are shared with the input stream and only the new colors are stored.<p>
      * 
      * Does not modify or release the input stream.
      */
     public static IReadOnlyPolyStream claimRecoloredCopy(IPolyStream input)
     {
-        IWritablePolyStream result = claimWritable();
+        final PolyColorOverlay overlay = new PolyColorOverlay();
         if(input.origin())
         {
             Random r = ThreadLocalRandom.current();
-            
-            IPolygon reader = input.reader();
-            IMutablePolygon writer = result.writer();
             do
-            {
-                result.setVertexCount(reader.vertexCount());
-                result.setLayerCount(reader.layerCount());
-                writer.copyFrom(reader, true);
-                writer.setColor(0, (r.nextInt(0x1000000) & 0xFFFFFF) | 0xFF000000);
-                result.append();
-            } while(input.next());
+                overlay.setPolyColor(input.getAddress(), 0, (r.nextInt(0x1000000) & 0xFFFFFF) | 0xFF000000);
+            while(input.next());
         }
+        final AbstractPolyStream source = (AbstractPolyStream) input;
+        return claimView(source, source.originAddress, source.writeAddress, overlay);
+    }
+            
+    /**
+     * Same as {@link #claimView(IPolyStream)} but with the given layer of all polys set to the given color.
+     * Only the color is stored.
+     */
+    public static IReadOnlyPolyStream claimRecoloredLayer(IPolyStream input, int layerIndex, int color)
+    {
+        final PolyColorOverlay overlay = new PolyColorOverlay();
+        overlay.setLayerColor(layerIndex, color);
+        final AbstractPolyStream source = (AbstractPolyStream) input;
+        return claimView(source, source.originAddress, source.writeAddress, overlay);
+    }
         
-        return result.releaseAndConvertToReader();
+    /**
+     * Read-only stream with the same polys as the input stream, including deleted polys.
+     * Polys have the same addresses in both streams. Shares storage with read-only and dispatch 
+     * input streams kept on heap, so is much cheaper than a copy. Storage of other streams is copied.<p>
+     * 
+     * Does not release the input stream. Must be called on the thread that owns the
+     * input stream, or while the input stream is only being read.
+     */
+    public static IReadOnlyPolyStream claimView(IPolyStream input)
+    {
+        final AbstractPolyStream source = (AbstractPolyStream) input;
+        return claimView(source, source.originAddress, source.writeAddress, null);
+    }
+    
+    /**
+     * Same as {@link #claimView(IPolyStream)} but includes only polys with addresses
+     * from startAddress (inclusive) to endAddress (exclusive). Both must be addresses of
+     * polys in the input stream, except that endAddress can also be the end of the stream.
+     */
+    public static IReadOnlyPolyStream claimSlice(IPolyStream input, int startAddress, int endAddress)
+    {
+        final AbstractPolyStream source = (AbstractPolyStream) input;
+        if(startAddress < source.originAddress || endAddress > source.writeAddress || startAddress > endAddress)
+            throw new IndexOutOfBoundsException();
+        return claimView(source, startAddress, endAddress, null);
+    }
+    
+    private static IReadOnlyPolyStream claimView(AbstractPolyStream source, int startAddress, int endAddress, @Nullable PolyColorOverlay overlay)
+    {
+        ReadOnlyPolyStream result = readables.claim();
+        if(result == null)
+            result = new ReadOnlyPolyStream();
+        result.loadView(source, startAddress, endAddress, overlay);
+        return result;
+    }
+    
+    /**
+     * Empty read-only stream for use within this package by code that appends or
+     * loads stream data directly. See {@link PolyStreamCodec}.
+     */
+    static ReadOnlyPolyStream claimEmptyReadOnly(int sizeHint)
+    {
+        ReadOnlyPolyStream result = readables.claim();
+        if(result == null)
+            result = new ReadOnlyPolyStream();
+        result.prepare(IntStreams.claim(sizeHint));
+        return result;
     }
     
     static void release(ReadOnlyPolyStream freeStream)
     {
-        readables.offer(freeStream);
+        readables.release(freeStream);
     }
     
     public static DispatchPolyStream claimDispatch()
     {
-        DispatchPolyStream result = dispatches.poll();
+        DispatchPolyStream result = dispatches.claim();
         if(result == null)
             result = new DispatchPolyStream();
-        result.prepare();
+        result.prepare(offHeapDispatch, frozenDispatch);
+        return result;
+    }
+    
+    /**
+     * Built dispatch stream that shares storage with the given built stream.
+     * Colors in the overlay replace those of the base. See {@link DispatchRecolorBuilder}.
+     */
+    static DispatchPolyStream claimDispatchView(DispatchPolyStream base, @Nullable PolyColorOverlay overlay)
+    {
+        DispatchPolyStream result = dispatches.claim();
+        if(result == null)
+            result = new DispatchPolyStream();
+        result.prepareView(base, overlay);
         return result;
     }
     
     static void release(DispatchPolyStream freeStream)
     {
-        dispatches.offer(freeStream);
+        dispatches.release(freeStream);
     }
     
     public static CsgPolyStream claimCSG()
     {
-        CsgPolyStream result = csgStreams.poll();
+        CsgPolyStream result = csgStreams.claim();
         if(result == null)
             result = new CsgPolyStream();
         result.prepare();
@@ -121,8 +223,19 @@ public class PolyStreams
         result.appendAll(stream);
         return result;
     }
+    
+    /**
+     * See {@link CsgPolyStream#setBalancedTree(boolean)}
+     */
+    public static CsgPolyStream claimCSG(IPolyStream stream, boolean balancedTree)
+    {
+        CsgPolyStream result = claimCSG();
+        result.setBalancedTree(balancedTree);
+        result.appendAll(stream);
+        return result;
+    }
     static void release(CsgPolyStream freeStream)
     {
-        csgStreams.offer(freeStream);
+        csgStreams.release(freeStream);
     }
 }
@@ -1,130 +1,348 @@
 package grondag.exotic_matter.model.primitives.stream;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
+import grondag.exotic_matter.model.primitives.QuadHelper;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
-import grondag.exotic_matter.model.primitives.vertex.Vec3f;
-import grondag.exotic_matter.varia.intstream.Float3Int1Map;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 
+/**
+ * Tracks which polys share each vertex position, for {@link CsgPolyRecombinator}.<p>
+ *
+ * Vertices within {@link QuadHelper#EPSILON} of each other are welded into a single entry.
+ * Entries are found through an open-addressed table keyed by a spatial hash of the position.
+ * Grid cells are several times larger than epsilon, so neighboring cells are only probed for
+ * positions close to a cell boundary.<p>
+ *
+ * Entries, the hash table and the poly references of each entry (singly-linked
+ * chains of poly address and vertex index) are all held in flat primitive arrays.
+ * References of each poly are also chained together and remember their entry, so a poly
+ * is removed from the entries it was added to even if its vertices would now weld
+ * to a different entry. These are retained on clear, so after warm-up the map does not allocate.<p>
+ *
+ * Not thread-safe. Each recombinator has its own instance.
+ */
 public class PolyVertexMap
 {
-    final Float3Int1Map vertexMap = Float3Int1Map.claim();
-    final IntArrayList vertexLinks = new IntArrayList();
+    private static final int NONE = -1;
+    
+    /** ref count value for entries removed by the cursor */
+    private static final int REMOVED = -1;
+    
+    private static final float CELL_SCALE = 1f / (QuadHelper.EPSILON * 16);
+    
+    /** epsilon in cell units - positions closer than this to a cell boundary also probe the neighbor */
+    private static final float CELL_EPSILON = QuadHelper.EPSILON * CELL_SCALE;
+    
+    /** entry index + 1, zero if empty */
+    private int[] table = new int[256];
+    
+    /** x, y, z of each entry */
+    private float[] entryPos = new float[384];
+    private int[] entryFirstRef = new int[128];
+    private int[] entryRefCount = new int[128];
+    private int entryCount = 0;
+    
+    private static final int REF_POLY = 0;
+    private static final int REF_VERTEX = 1;
+    private static final int REF_NEXT = 2;
+    private static final int REF_ENTRY = 3;
+    private static final int REF_POLY_NEXT = 4;
+    private static final int REF_STRIDE = 5;
+    
+    /** 
+     * Poly address, vertex index, next ref in same entry, entry 
+     * and next ref of same poly for each poly reference.
+     */
+    private int[] refs = new int[REF_STRIDE * 512];
+    private int refEnd = 0;
+    
+    /** most recently added ref of each poly */
+    private final Int2IntOpenHashMap polyLastRef = new Int2IntOpenHashMap();
+    
+    {
+        polyLastRef.defaultReturnValue(NONE);
+    }
     
     public void clear()
     {
-        vertexMap.clear();
-        vertexLinks.clear();
+        if(entryCount > 0)
+            Arrays.fill(table, 0);
+        entryCount = 0;
+        refEnd = 0;
+        polyLastRef.clear();
     }
-
+    
     public void addPoly(IPolygon poly)
     {
         final int limit = poly.vertexCount();
+        final int polyAddress = poly.streamAddress();
         for(int i = 0; i < limit; i++)
         {
-            Vec3f v = poly.getPos(i);
-            IntArrayList bucket = vertexMap.get(v);
-            if(bucket == null)
-            {
-                bucket = new IntArrayList();
-                vertexMap.put(v, bucket);
-            }
-            bucket.add(poly.streamAddress());
+            final float x = poly.getVertexX(i);
+            final float y = poly.getVertexY(i);
+            final float z = poly.getVertexZ(i);
+            int entry = find(x, y, z);
+            if(entry == NONE)
+                entry = addEntry(x, y, z);
+            addRef(entry, polyAddress, i);
         }
     }
     
     /**
-     * For use during second phase of combined - will not create buckets that are not found.
-     * Assumes these have been deleted because only had a single poly in them.
+     * For use during second phase of combined - will not create entries that are not found.
+     * Assumes these have been removed because only had a single poly in them.
      */
     public void addPolyGently(IPolygon poly)
     {
         final int limit = poly.vertexCount();
+        final int polyAddress = poly.streamAddress();
         for(int i = 0; i < limit; i++)
         {
-            Vec3f v = poly.getPos(i);
-            IntArrayList bucket = vertexMap.get(v);
-            if(bucket != null)
-                bucket.add(poly.streamAddress());
+            final int entry = find(poly.getVertexX(i), poly.getVertexY(i), poly.getVertexZ(i));
+            if(entry != NONE)
+                addRef(entry, polyAddress, i);
         }
     }
-
-//    public void removePoly(IPolygon poly, Vec3f excludingVertex)
-//    {
-//        final int limit = poly.vertexCount();
-//        for(int i = 0; i < limit; i++)
-//        {
-//            Vec3f v = poly.getPos(i);
-//            if(excludingVertex.equals(v))
-//                continue;
-//            
-//            IntArrayList bucket = vertexMap.get(v);
-//            
-//            if(bucket == null)
-//                continue;
-//            
-//            boolean check  = bucket.rem(poly.streamAddress());
-//            assert check;
-//        }
-//    }
-    
-    public void removePoly(int polyAddress)
-    {
-        // TODO Auto-generated method stub
+    
+    /**
+     * Removes all references to the poly from the entries they were added to.
+     */
+    public void removePoly(IPolygon poly)
+    {
+        final int[] refs = this.refs;
+        int ref = polyLastRef.remove(poly.streamAddress());
         
+        while(ref != NONE)
+        {
+            final int entry = refs[ref + REF_ENTRY];
+            
+            // chains of removed entries are already gone
+            if(entryRefCount[entry] != REMOVED)
+            {
+                int prior = NONE;
+                int scan = entryFirstRef[entry];
+                while(scan != ref)
+                {
+                    prior = scan;
+                    scan = refs[scan + REF_NEXT];
+                }
+                
+                if(prior == NONE)
+                    entryFirstRef[entry] = refs[ref + REF_NEXT];
+                else
+                    refs[prior + REF_NEXT] = refs[ref + REF_NEXT];
+                entryRefCount[entry]--;
+            }
+            
+            ref = refs[ref + REF_POLY_NEXT];
+        }
     }
     
+    private static int cell(float value)
+    {
+        return (int) Math.floor(value * CELL_SCALE);
+    }
+    
+    /**
+     * -1 or +1 if value is within epsilon of the lower or upper boundary of its cell, zero otherwise.
+     */
+    private static int neighborCell(float value, int cell)
+    {
+        final float offset = value * CELL_SCALE - cell;
+        return offset < CELL_EPSILON ? -1 : offset > 1 - CELL_EPSILON ? 1 : 0;
+    }
+    
+    private static int hash(int cellX, int cellY, int cellZ)
+    {
+        return HashCommon.mix((cellX * 31 + cellY) * 31 + cellZ);
+    }
+    
+    /**
+     * Returns index of live entry within epsilon of the given position, or {@link #NONE}.
+     */
+    private int find(float x, float y, float z)
+    {
+        final int cellX = cell(x);
+        final int cellY = cell(y);
+        final int cellZ = cell(z);
+        
+        final int result = findInCell(cellX, cellY, cellZ, x, y, z);
+        if(result != NONE)
+            return result;
+        
+        final int nX = neighborCell(x, cellX);
+        final int nY = neighborCell(y, cellY);
+        final int nZ = neighborCell(z, cellZ);
+        
+        if((nX | nY | nZ) == 0)
+            return NONE;
+        
+        // bits of i select which axes use the neighboring cell
+        for(int i = 1; i < 8; i++)
+        {
+            if(((i & 1) != 0 && nX == 0) || ((i & 2) != 0 && nY == 0) || ((i & 4) != 0 && nZ == 0))
+                continue;
+            
+            final int entry = findInCell(
+                    (i & 1) == 0 ? cellX : cellX + nX,
+                    (i & 2) == 0 ? cellY : cellY + nY,
+                    (i & 4) == 0 ? cellZ : cellZ + nZ,
+                    x, y, z);
+            
+            if(entry != NONE)
+                return entry;
+        }
+        return NONE;
+    }
+    
+    private int findInCell(int cellX, int cellY, int cellZ, float x, float y, float z)
+    {
+        final int[] table = this.table;
+        final float[] entryPos = this.entryPos;
+        final int mask = table.length - 1;
+        int slot = hash(cellX, cellY, cellZ) & mask;
+        
+        while(true)
+        {
+            final int entry = table[slot] - 1;
+            
+            if(entry == NONE)
+                return NONE;
+            
+            final int p = entry * 3;
+            if(entryRefCount[entry] != REMOVED
+                    && QuadHelper.epsilonEquals(entryPos[p], x)
+                    && QuadHelper.epsilonEquals(entryPos[p + 1], y)
+                    && QuadHelper.epsilonEquals(entryPos[p + 2], z))
+                return entry;
+            
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    private int addEntry(float x, float y, float z)
+    {
+        final int entry = entryCount++;
+        
+        if(entry == entryFirstRef.length)
+        {
+            final int size = entry * 2;
+            entryPos = Arrays.copyOf(entryPos, size * 3);
+            entryFirstRef = Arrays.copyOf(entryFirstRef, size);
+            entryRefCount = Arrays.copyOf(entryRefCount, size);
+        }
+        
+        final int p = entry * 3;
+        entryPos[p] = x;
+        entryPos[p + 1] = y;
+        entryPos[p + 2] = z;
+        entryFirstRef[entry] = NONE;
+        entryRefCount[entry] = 0;
+        
+        // keep load factor at or below one half
+        if(entryCount * 2 > table.length)
+            rehash(table.length * 2);
+        else
+            insert(entry);
+        
+        return entry;
+    }
+    
+    private void insert(int entry)
+    {
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        final int p = entry * 3;
+        int slot = hash(cell(entryPos[p]), cell(entryPos[p + 1]), cell(entryPos[p + 2])) & mask;
+        
+        while(table[slot] != 0)
+            slot = (slot + 1) & mask;
+        
+        table[slot] = entry + 1;
+    }
+    
+    private void rehash(int newSize)
+    {
+        table = new int[newSize];
+        final int limit = entryCount;
+        for(int i = 0; i < limit; i++)
+            insert(i);
+    }
+    
+    private void addRef(int entry, int polyAddress, int vertexIndex)
+    {
+        final int ref = refEnd;
+        refEnd += REF_STRIDE;
+        
+        if(refEnd > refs.length)
+            refs = Arrays.copyOf(refs, refs.length * 2);
+        
+        final int[] refs = this.refs;
+        refs[ref + REF_POLY] = polyAddress;
+        refs[ref + REF_VERTEX] = vertexIndex;
+        refs[ref + REF_NEXT] = entryFirstRef[entry];
+        refs[ref + REF_ENTRY] = entry;
+        refs[ref + REF_POLY_NEXT] = polyLastRef.put(polyAddress, ref);
+        entryFirstRef[entry] = ref;
+        entryRefCount[entry]++;
+    }
+    
+    /**
+     * Iterates entries that have not been removed. Entries can be removed and polys
+     * added or removed during iteration, but no new entries will be visited.
+     */
     public class Cursor
     {
-
+        private int entry = NONE;
+        
         public boolean origin()
         {
-            // TODO Auto-generated method stub
-            return true;
-            
+            entry = NONE;
+            return next();
         }
         
         public boolean next()
         {
-            // TODO Auto-generated method stub
-            return true;
+            final int limit = entryCount;
+            while(++entry < limit)
+            {
+                if(entryRefCount[entry] != REMOVED)
+                    return true;
+            }
+            return false;
         }
-
+        
         public int polyCount()
         {
-            // TODO Auto-generated method stub
-            return 0;
+            return entryRefCount[entry];
         }
-
+        
         public void remove()
         {
-            // TODO Auto-generated method stub
-            
+            entryRefCount[entry] = REMOVED;
+            entryFirstRef[entry] = NONE;
         }
-
-        public int firstPolyIndex()
+        
+        public int firstPolyAddress()
         {
-            // TODO Auto-generated method stub
-            return 0;
+            return refs[entryFirstRef[entry] + REF_POLY];
         }
-
-        public int secondPolyIndex()
+        
+        public int secondPolyAddress()
         {
-            // TODO Auto-generated method stub
-            return 0;
+            return refs[refs[entryFirstRef[entry] + REF_NEXT] + REF_POLY];
         }
-
+        
         public int firstVertexIndex()
         {
-            // TODO Auto-generated method stub
-            return 0;
+            return refs[entryFirstRef[entry] + REF_VERTEX];
         }
-
+        
         public int secondVertexIndex()
         {
-            // TODO Auto-generated method stub
-            return 0;
+            return refs[refs[entryFirstRef[entry] + REF_NEXT] + REF_VERTEX];
         }
     }
     
@@ -134,5 +352,5 @@ public class PolyVertexMap
     {
         return cursor;
     }
-    
-}
+
+}
\ No newline at end of file
@@ -1,13 +1,17 @@
 package grondag.exotic_matter.model.primitives.stream;
 
+import javax.annotation.Nullable;
+
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.model.primitives.polygon.IStreamReaderPolygon;
 import grondag.exotic_matter.varia.intstream.IntStreams;
 
 public class ReadOnlyPolyStream extends AbstractPolyStream implements IReadOnlyPolyStream
 {
     void load(WritablePolyStream streamIn, int formatFlags)
     {
-        prepare(IntStreams.claim(streamIn.stream.capacity()));
+        final int sizeHint = streamIn.stream.capacity();
+        prepare(streamIn.isOffHeap ? IntStreams.claimOffHeap(sizeHint) : IntStreams.claim(sizeHint));
         
         if(!streamIn.isEmpty())
         {
@@ -19,6 +23,19 @@ public class ReadOnlyPolyStream extends AbstractPolyStream implements IReadOnlyP
         }
         
         this.stream.compact();
+        makeShareable();
+    }
+    
+    /**
+     * Loads polys in the given address range of source without copying them.
+     * See {@link IntStreams#claimShared(grondag.exotic_matter.varia.intstream.IIntStream)}.
+     */
+    void loadView(AbstractPolyStream source, int startAddress, int endAddress, @Nullable PolyColorOverlay overlay)
+    {
+        prepare(IntStreams.claimShared(source.stream));
+        originAddress = startAddress;
+        writeAddress = endAddress;
+        setColorOverlay(overlay);
     }
     
     @Override
@@ -32,4 +49,10 @@ public class ReadOnlyPolyStream extends AbstractPolyStream implements IReadOnlyP
     {
         PolyStreams.release(this);
     }
+    
+    @Override
+    public final IStreamReaderPolygon claimThreadSafeReader()
+    {
+        return super.claimThreadSafeReaderImpl();
+    }
 }
@@ -1,5 +1,7 @@
 package grondag.exotic_matter.model.primitives.stream;
 
+import javax.annotation.Nullable;
+
 import grondag.exotic_matter.model.painting.Surface;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
 import grondag.exotic_matter.model.primitives.vertex.Vec3f;
@@ -61,6 +63,11 @@ public class StreamBackedPolygon implements IPolygon
     
     protected IIntStream stream;
     
+    /**
+     * Color overrides for read-only views. Null unless set by stream.
+     */
+    protected @Nullable PolyColorOverlay colorOverlay = null;
+    
     protected int format()
     {
         return stream.get(baseAddress);
@@ -359,6 +366,10 @@ public class StreamBackedPolygon implements IPolygon
     @Override
     public final int getVertexColor(int layerIndex, int vertexIndex)
     {
+        final PolyColorOverlay overlay = colorOverlay;
+        if(overlay != null && overlay.hasColor(baseAddress, layerIndex))
+            return overlay.getColor(baseAddress, layerIndex, vertexIndex);
+        
         return vertexEncoder.hasColor()
                 ? vertexEncoder.getVertexColor(stream, vertexAddress, layerIndex, vertexIndexer.apply(vertexIndex))
                 : polyEncoder.getVertexColor(stream, baseAddress, layerIndex);
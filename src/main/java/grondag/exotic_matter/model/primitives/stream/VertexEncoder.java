@@ -8,6 +8,11 @@ import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_NORMAL_X_QUANTIZED;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_NORMAL_Y_QUANTIZED;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_NORMAL_Z_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_POS_X_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_POS_Y_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_POS_Z_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_UV_HIGH_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.GET_UV_LOW_QUANTIZED;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_FLOAT;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_FLOAT2;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_FLOAT2_FAIL;
@@ -16,6 +21,10 @@ import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_FLOAT_FAIL;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_INT;
 import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_INT_FAIL;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_POS_XYZ_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_UV2_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_UV_HIGH_QUANTIZED;
+import static grondag.exotic_matter.model.primitives.stream.EncoderFunctions.SET_UV_LOW_QUANTIZED;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_COLOR_PER_VERTEX_LAYER;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_FORMAT_COUNT;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_FORMAT_SHIFT;
@@ -23,10 +32,14 @@ import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VER
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_NORMAL_QUANTIZED;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_NORMAL_REGULAR;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_UV_BY_LAYER;
+import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_UV_BY_LAYER_HALF;
+import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.VERTEX_UV_SAME_HALF;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.getLayerCount;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.getVertexColorFormat;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.getVertexNormalFormat;
+import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.getVertexUVFormat;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.isMutable;
+import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.isQuantizedPos;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.setLayerCount;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.setQuantizedPos;
 import static grondag.exotic_matter.model.primitives.stream.PolyStreamFormat.setVertexColorFormat;
@@ -81,6 +94,7 @@ public class VertexEncoder
     private final int vertexStride;
     private final boolean hasNormals;
     private final boolean hasColor;
+    private final boolean hasQuantizedPos;
     
     private final FloatGetter getPosX;
     private final FloatGetter getPosY;
@@ -138,14 +152,27 @@ public class VertexEncoder
     {
         int offset = 0;
         
-        // PERF: quantize position
-        offsetPosX = offset++;
-        offsetPosY = offset++;
-        offsetPosZ = offset++;
-        getPosX = GET_FLOAT;
-        getPosY = GET_FLOAT;
-        getPosZ = GET_FLOAT;
-        setPosXYZ = SET_FLOAT3;
+        hasQuantizedPos = isQuantizedPos(format);
+        if(hasQuantizedPos)
+        {
+            offsetPosX = offset++;
+            offsetPosY = offsetPosX;
+            offsetPosZ = offsetPosX;
+            getPosX = GET_POS_X_QUANTIZED;
+            getPosY = GET_POS_Y_QUANTIZED;
+            getPosZ = GET_POS_Z_QUANTIZED;
+            setPosXYZ = SET_POS_XYZ_QUANTIZED;
+        }
+        else
+        {
+            offsetPosX = offset++;
+            offsetPosY = offset++;
+            offsetPosZ = offset++;
+            getPosX = GET_FLOAT;
+            getPosY = GET_FLOAT;
+            getPosZ = GET_FLOAT;
+            setPosXYZ = SET_FLOAT3;
+        }
         
         switch(getVertexNormalFormat(format))
         {
@@ -188,33 +215,40 @@ public class VertexEncoder
         
         final int layerCount = getLayerCount(format);
         
-        // PERF: quantize UV
+        final int uvFormat = getVertexUVFormat(format);
+        multiUV = uvFormat == VERTEX_UV_BY_LAYER || uvFormat == VERTEX_UV_BY_LAYER_HALF;
         
-        multiUV = PolyStreamFormat.getVertexUVFormat(format) == PolyStreamFormat.VERTEX_UV_BY_LAYER;
+        // packed UV are 16-bit u and v in a single int
+        final boolean packedUV = uvFormat == VERTEX_UV_SAME_HALF || uvFormat == VERTEX_UV_BY_LAYER_HALF;
+        final FloatGetter getU = packedUV ? GET_UV_LOW_QUANTIZED : GET_FLOAT;
+        final FloatGetter getV = packedUV ? GET_UV_HIGH_QUANTIZED : GET_FLOAT;
+        final FloatSetter setU = packedUV ? SET_UV_LOW_QUANTIZED : SET_FLOAT;
+        final FloatSetter setV = packedUV ? SET_UV_HIGH_QUANTIZED : SET_FLOAT;
+        final FloatSetter2 setUV = packedUV ? SET_UV2_QUANTIZED : SET_FLOAT2;
         
-        getU0 = GET_FLOAT;
-        getV0 = GET_FLOAT;
-        setU0 = SET_FLOAT;
-        setV0 = SET_FLOAT;
-        setUV0 = SET_FLOAT2;
+        getU0 = getU;
+        getV0 = getV;
+        setU0 = setU;
+        setV0 = setV;
+        setUV0 = setUV;
         offsetU0 = offset++;
-        offsetV0 = offset++;
+        offsetV0 = packedUV ? offsetU0 : offset++;
         
-        getU1 = layerCount > 1 ? GET_FLOAT : GET_FLOAT_FAIL;
-        getV1 = layerCount > 1 ? GET_FLOAT : GET_FLOAT_FAIL;
-        setU1 = multiUV && layerCount > 1 ? SET_FLOAT : SET_FLOAT_FAIL;
-        setV1 = multiUV && layerCount > 1 ? SET_FLOAT : SET_FLOAT_FAIL;
-        setUV1 = multiUV && layerCount > 1 ? SET_FLOAT2 : SET_FLOAT2_FAIL;
+        getU1 = layerCount > 1 ? getU : GET_FLOAT_FAIL;
+        getV1 = layerCount > 1 ? getV : GET_FLOAT_FAIL;
+        setU1 = multiUV && layerCount > 1 ? setU : SET_FLOAT_FAIL;
+        setV1 = multiUV && layerCount > 1 ? setV : SET_FLOAT_FAIL;
+        setUV1 = multiUV && layerCount > 1 ? setUV : SET_FLOAT2_FAIL;
         offsetU1 = multiUV && layerCount > 1 ? offset++ : offsetU0;
-        offsetV1 = multiUV && layerCount > 1 ? offset++ : offsetV0;
+        offsetV1 = multiUV && layerCount > 1 ? (packedUV ? offsetU1 : offset++) : offsetV0;
         
-        getU2 = layerCount  == 3 ? GET_FLOAT : GET_FLOAT_FAIL;
-        getV2 = layerCount  == 3 ? GET_FLOAT : GET_FLOAT_FAIL;
-        setU2 = multiUV && layerCount  == 3 ? SET_FLOAT : SET_FLOAT_FAIL;
-        setV2 = multiUV && layerCount  == 3 ? SET_FLOAT : SET_FLOAT_FAIL;
-        setUV2 = multiUV && layerCount  == 3 ? SET_FLOAT2 : SET_FLOAT2_FAIL;
+        getU2 = layerCount  == 3 ? getU : GET_FLOAT_FAIL;
+        getV2 = layerCount  == 3 ? getV : GET_FLOAT_FAIL;
+        setU2 = multiUV && layerCount  == 3 ? setU : SET_FLOAT_FAIL;
+        setV2 = multiUV && layerCount  == 3 ? setV : SET_FLOAT_FAIL;
+        setUV2 = multiUV && layerCount  == 3 ? setUV : SET_FLOAT2_FAIL;
         offsetU2 = multiUV && layerCount  == 3 ? offset++ : offsetU0;
-        offsetV2 = multiUV && layerCount  == 3 ? offset++ : offsetV0;
+        offsetV2 = multiUV && layerCount  == 3 ? (packedUV ? offsetU2 : offset++) : offsetV0;
         
         hasColor = getVertexColorFormat(format) == VERTEX_COLOR_PER_VERTEX_LAYER;
         if(hasColor)
@@ -334,6 +368,14 @@ public class VertexEncoder
     {
         return hasColor;
     }
+    
+    /**
+     * True if position is packed into a single int instead of three floats.
+     */
+    public boolean hasQuantizedPos()
+    {
+        return hasQuantizedPos;
+    }
 
     public int getVertexColor(IIntStream stream, int vertexAddress, int layerIndex, int vertexIndex)
     {
@@ -29,6 +29,11 @@ public class WritablePolyStream extends AbstractPolyStream implements IWritableP
      */
     protected int formatFlags = 0;
     
+    /**
+     * True if main stream is off-heap. Read-only streams converted from this stream will be also.
+     */
+    protected boolean isOffHeap = false;
+    
     public WritablePolyStream()
     {
         writer = new StreamBackedMutablePolygon();
@@ -51,7 +56,13 @@ public class WritablePolyStream extends AbstractPolyStream implements IWritableP
     
     protected void prepare(int formatFlags)
     {
-        prepare(IntStreams.claim(), formatFlags);
+        prepare(formatFlags, false);
+    }
+    
+    protected final void prepare(int formatFlags, boolean isOffHeap)
+    {
+        this.isOffHeap = isOffHeap;
+        prepare(isOffHeap ? IntStreams.claimOffHeap() : IntStreams.claim(), formatFlags);
     }
 
     @Override
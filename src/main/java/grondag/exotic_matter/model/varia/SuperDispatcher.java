@@ -12,11 +12,15 @@ import com.google.common.collect.ImmutableList;
 import grondag.acuity.api.IPipelinedBakedModel;
 import grondag.acuity.api.IPipelinedQuadConsumer;
 import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.ConfigXM;
 import grondag.exotic_matter.block.ISuperBlock;
 import grondag.exotic_matter.block.SuperBlockStackHelper;
 import grondag.exotic_matter.block.SuperModelItemOverrideList;
+import grondag.exotic_matter.cache.CacheStats;
+import grondag.exotic_matter.cache.EvictionPolicy;
+import grondag.exotic_matter.cache.ObjectAtomicLoadingCache;
 import grondag.exotic_matter.cache.ObjectSimpleCacheLoader;
-import grondag.exotic_matter.cache.ObjectSimpleLoadingCache;
+import grondag.exotic_matter.model.painting.PaintLayer;
 import grondag.exotic_matter.model.painting.QuadPaintManager;
 import grondag.exotic_matter.model.painting.SurfaceTopology;
 import grondag.exotic_matter.model.primitives.QuadHelper;
@@ -24,10 +28,13 @@ import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
 import grondag.exotic_matter.model.primitives.polygon.IStreamReaderPolygon;
 import grondag.exotic_matter.model.primitives.stream.DispatchPolyStream;
+import grondag.exotic_matter.model.primitives.stream.DispatchRecolorBuilder;
 import grondag.exotic_matter.model.primitives.stream.PolyStreams;
 import grondag.exotic_matter.model.render.QuadContainer;
 import grondag.exotic_matter.model.render.RenderLayout;
 import grondag.exotic_matter.model.state.ISuperModelState;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.block.model.BakedQuad;
@@ -56,10 +63,19 @@ public class SuperDispatcher
     public final DispatchDelegate[] delegates;
     
     //custom loading cache is at least 2X faster than guava LoadingCache for our use case
-    private final ObjectSimpleLoadingCache<ISuperModelState, DispatchPolyStream> modelCache = new ObjectSimpleLoadingCache<ISuperModelState, DispatchPolyStream>(new BlockCacheLoader(),  0xFFFF);
-    private final ObjectSimpleLoadingCache<ISuperModelState, SimpleItemBlockModel> itemCache = new ObjectSimpleLoadingCache<ISuperModelState, SimpleItemBlockModel>(new ItemCacheLoader(), 0xFFF);
+    private final ObjectAtomicLoadingCache<ISuperModelState, DispatchPolyStream> modelCache = new ObjectAtomicLoadingCache<ISuperModelState, DispatchPolyStream>(new BlockCacheLoader(),  0xFFFF, 
+            EvictionPolicy.CLOCK, ConfigXM.RENDER.enableModelCacheStatistics || ConfigXM.EXECUTION.enableMetrics);
+    /** 
+     * Same meshes as {@link #modelCache} with all paint layers white. Block models that differ only
+     * in color are recolored views of these and share their storage. Keys are from {@link #baseState(ISuperModelState)}.
+     */
+    private final ObjectAtomicLoadingCache<ISuperModelState, DispatchPolyStream> baseModelCache = new ObjectAtomicLoadingCache<ISuperModelState, DispatchPolyStream>(new BaseCacheLoader(),  0xFFF);
+    private final ObjectAtomicLoadingCache<ISuperModelState, SimpleItemBlockModel> itemCache = new ObjectAtomicLoadingCache<ISuperModelState, SimpleItemBlockModel>(new ItemCacheLoader(), 0xFFF);
     /** contains quads for use by block damage rendering based on shape only and with appropriate UV mapping*/
-    private final ObjectSimpleLoadingCache<ISuperModelState, QuadContainer> damageCache = new ObjectSimpleLoadingCache<ISuperModelState, QuadContainer>(new DamageCacheLoader(), 0x4FF);
+    private final ObjectAtomicLoadingCache<ISuperModelState, QuadContainer> damageCache = new ObjectAtomicLoadingCache<ISuperModelState, QuadContainer>(new DamageCacheLoader(), 0x4FF);
+    
+    /** time to generate block models that were not in cache */
+    private static final LatencyHistogram BLOCK_MESH_NANOS = Metrics.histogram("model.block.mesh");
     
     private class BlockCacheLoader implements ObjectSimpleCacheLoader<ISuperModelState, DispatchPolyStream>
     {
@@ -69,13 +85,52 @@ public class SuperDispatcher
 		    // PERF: need a way to release these when no longer needed in the cache
 		    // add finalizer parameter to cache
 		    
-		    DispatchPolyStream result = PolyStreams.claimDispatch();
-		    provideFormattedQuads(key, false, result);
-		    result.build();
+		    final long start = BLOCK_MESH_NANOS.start();
+		    
+		    // only colors are stored if mesh is same as the base
+		    final DispatchRecolorBuilder recolor = DispatchRecolorBuilder.prepareThreadLocal(baseModelCache.get(baseState(key)));
+		    provideFormattedQuads(key, false, recolor);
+		    DispatchPolyStream result = recolor.build();
+		    
+		    if(result == null)
+		    {
+		        result = PolyStreams.claimDispatch();
+		        provideFormattedQuads(key, false, result);
+		        result.build();
+		    }
+		    BLOCK_MESH_NANOS.recordSince(start);
 			return result;
 		}
     }
     
+    private class BaseCacheLoader implements ObjectSimpleCacheLoader<ISuperModelState, DispatchPolyStream>
+    {
+        @Override
+        public DispatchPolyStream load(ISuperModelState key)
+        {
+            DispatchPolyStream result = PolyStreams.claimDispatch();
+            provideFormattedQuads(key, false, result);
+            result.build();
+            
+            // compute now so recolored views never write to the shared header
+            for(EnumFacing face : EnumFacing.VALUES)
+                result.getOcclusionHash(face);
+            
+            return result;
+        }
+    }
+    
+    /**
+     * Copy of model state with all paint layers white. See {@link #baseModelCache}.
+     */
+    private static ISuperModelState baseState(ISuperModelState modelState)
+    {
+        final ISuperModelState result = modelState.clone();
+        for(PaintLayer layer : PaintLayer.VALUES)
+            result.setColorRGB(layer, 0xFFFFFF);
+        return result;
+    }
+    
     private class ItemCacheLoader implements ObjectSimpleCacheLoader<ISuperModelState, SimpleItemBlockModel>
     {
 		@Override
@@ -133,14 +188,21 @@ public class SuperDispatcher
             DispatchDelegate newDelegate = new DispatchDelegate(layout);
             this.delegates[layout.ordinal] = newDelegate;
         }
+        modelCache.registerMetrics("cache.block");
     }
     
     public void clear()
     {
             modelCache.clear();
+            baseModelCache.clear();
             itemCache.clear();
     }
 
+    public CacheStats modelCacheStats()
+    {
+        return modelCache.stats();
+    }
+    
     public int getOcclusionKey(ISuperModelState modelState, EnumFacing face)
     {
         if(!modelState.getRenderLayout().containsBlockRenderLayer(BlockRenderLayer.SOLID)) return 0;
@@ -8,6 +8,8 @@ import grondag.exotic_matter.block.ISuperBlock;
 import grondag.exotic_matter.block.ISuperBlockAccess;
 import grondag.exotic_matter.model.state.ISuperModelState;
 import grondag.exotic_matter.terrain.TerrainState;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import grondag.exotic_matter.world.PackedBlockPos;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.util.math.BlockPos;
@@ -22,10 +24,10 @@ public class WorldStateNibble
     private @Nullable byte[] flowHeights;
     private @Nullable TerrainState[] terrainStates;
     
-//    private static AtomicInteger terrainLookups = new AtomicInteger(0);
-//    private static AtomicInteger terrainHits = new AtomicInteger(0);
-//    private static AtomicInteger modelLookups = new AtomicInteger(0);
-//    private static AtomicInteger modelHits = new AtomicInteger(0);
+    private static final MetricCounter flowHeightLookups = Metrics.counter("worldstate.flowHeight.lookups");
+    private static final MetricCounter flowHeightHits = Metrics.counter("worldstate.flowHeight.hits");
+    private static final MetricCounter modelLookups = Metrics.counter("worldstate.model.lookups");
+    private static final MetricCounter modelHits = Metrics.counter("worldstate.model.hits");
     
     public ISuperModelState getModelState(ISuperBlock block, ISuperBlockAccess world, IBlockState blockState, BlockPos pos, boolean refreshFromWorld)
     {
@@ -55,11 +57,11 @@ public class WorldStateNibble
             else
             {
                 if(refreshFromWorld) result.refreshFromWorld(blockState, world, pos);
-//                modelHits.incrementAndGet();
+                modelHits.increment();
             }
         }
         
-//        if((modelLookups.incrementAndGet() & 0xFFF) == 0xFFF) System.out.println("World state cache model hit rate = " + modelHits.get() / (float) modelLookups.get()); 
+        modelLookups.increment();
         
         return result;
     }
@@ -86,10 +88,10 @@ public class WorldStateNibble
                 result = TerrainState.getFlowHeight(world, packedBlockPos);
                 flowHeights[index] = (byte) result;
             }
-//            else terrainHits.incrementAndGet();
+            else flowHeightHits.increment();
         }
         
-//        if((terrainLookups.incrementAndGet() & 0xFFFF) == 0xFFFF) System.out.println("World state cache terrain flow height hit rate = " + terrainHits.get() / (float) terrainLookups.get()); 
+        flowHeightLookups.increment();
 
         return result;
     }
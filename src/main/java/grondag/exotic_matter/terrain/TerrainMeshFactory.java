@@ -6,14 +6,17 @@ import java.util.List;
 import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 
 import grondag.exotic_matter.ConfigXM;
 import grondag.exotic_matter.ExoticMatter;
 import grondag.exotic_matter.block.ISuperBlock;
+import grondag.exotic_matter.cache.CacheStats;
+import grondag.exotic_matter.cache.EvictionPolicy;
+import grondag.exotic_matter.cache.LongAtomicLoadingCache;
 import grondag.exotic_matter.cache.LongSimpleCacheLoader;
-import grondag.exotic_matter.cache.LongSimpleLoadingCache;
 import grondag.exotic_matter.model.CSG.CSGMesh;
 import grondag.exotic_matter.model.CSG.CSGNode;
 import grondag.exotic_matter.model.collision.CollisionBoxDispatcher;
@@ -26,11 +29,15 @@ import grondag.exotic_matter.model.primitives.FaceVertex;
 import grondag.exotic_matter.model.primitives.PolyFactory;
 import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
 import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.model.primitives.stream.PolyStreamCodec;
 import grondag.exotic_matter.model.primitives.vertex.Vec3f;
 import grondag.exotic_matter.model.state.ISuperModelState;
 import grondag.exotic_matter.model.state.ModelStateData;
 import grondag.exotic_matter.model.state.StateFormat;
 import grondag.exotic_matter.model.varia.SideShape;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import grondag.exotic_matter.world.HorizontalCorner;
 import grondag.exotic_matter.world.HorizontalFace;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
@@ -91,17 +98,80 @@ public class TerrainMeshFactory extends ShapeMeshGenerator implements ICollision
     private static final CSGNode.Root cubeNodeHybrid;
     //    private final CSGNode.Root cubeNodeComplex;
 
-    private static final LongSimpleLoadingCache<List<IPolygon>> modelCache = new LongSimpleLoadingCache<List<IPolygon>>(new TerrainCacheLoader(), 0xFFFF);
+    /** 
+     * Single-flight because loader does CSG - render threads that need the same shape 
+     * at the same time wait for one of them to build it instead of all building it.
+     */
+    private static final LongAtomicLoadingCache<List<IPolygon>> modelCache = new LongAtomicLoadingCache<List<IPolygon>>(new TerrainCacheLoader(), 0xFFFF,
+            EvictionPolicy.CLOCK, ConfigXM.RENDER.enableModelCacheStatistics || ConfigXM.EXECUTION.enableMetrics, true);
 
     private static class TerrainCacheLoader implements LongSimpleCacheLoader<List<IPolygon>>
     {
         @Override
         public List<IPolygon> load(long key)
         {
-            //            cacheMisses.incrementAndGet();
-            return createShapeQuads(new TerrainState(key < 0 ? -key : key, 0), key < 0);
+            final TerrainMeshStore store = MeshStoreHolder.STORE;
+            if(store != null)
+            {
+                final List<IPolygon> result = store.get(key);
+                if(result != null)
+                {
+                    STORE_LOAD_COUNT.increment();
+                    return result;
+                }
+            }
+            final long start = MESH_NANOS.start();
+            final List<IPolygon> result = createShapeQuads(new TerrainState(key < 0 ? -key : key, 0), key < 0);
+            MESH_NANOS.recordSince(start);
+            return result;
         }
     }
+    
+    /** time to generate meshes that were not in cache or store */
+    private static final LatencyHistogram MESH_NANOS = Metrics.histogram("terrain.mesh");
+    
+    private static final MetricCounter STORE_LOAD_COUNT = Metrics.counter("terrain.mesh.stored");
+    
+    /** Surfaces used by terrain meshes, in the order they are saved in {@link TerrainMeshStore} */
+    private static final Surface[] STORE_SURFACES = {SURFACE_TOP, SURFACE_SIDE};
+    
+    /** 
+     * Opens the store on first load instead of during static init, because 
+     * the geometry hash uses {@link #createShapeQuads(TerrainState, boolean)}.
+     */
+    private static class MeshStoreHolder
+    {
+        private static final @Nullable TerrainMeshStore STORE = TerrainMeshStore.open(STORE_SURFACES, TerrainMeshFactory::geometryHash, modelCache);
+    }
+    
+    /**
+     * Hash of meshes for a few fixed terrain states, including a subdivided one.
+     * Changes if mesh generation or the poly stream format changes.
+     */
+    private static long geometryHash()
+    {
+        final long[] probeKeys = 
+            {
+                TerrainState.FULL_BLOCK_STATE_KEY,
+                TerrainState.computeStateKey(3, new int[] {5, 5, 5, 5}, new int[] {5, 5, 5, 5}, -1),
+                TerrainState.computeStateKey(6, new int[] {12, 3, TerrainState.NO_BLOCK, 8}, new int[] {9, TerrainState.NO_BLOCK, 2, 12}, 0),
+                -TerrainState.computeStateKey(6, new int[] {12, 3, TerrainState.NO_BLOCK, 8}, new int[] {9, TerrainState.NO_BLOCK, 2, 12}, 0)
+            };
+        
+        long hash = 0xcbf29ce484222325L;
+        for(long key : probeKeys)
+        {
+            final int[] ints = PolyStreamCodec.encode(createShapeQuads(new TerrainState(key < 0 ? -key : key, 0), key < 0), STORE_SURFACES);
+            if(ints == null)
+                hash = (hash ^ -1) * 0x100000001b3L;
+            else
+            {
+                for(int i : ints)
+                    hash = (hash ^ i) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
 
     static
     {
@@ -146,21 +216,15 @@ public class TerrainMeshFactory extends ShapeMeshGenerator implements ICollision
         cubeNodeHybrid  = CSGNode.create(cubeQuads, false);
 
         //        this.cubeNodeComplex  = CSGNode.create(cubeQuads, true);
+        
+        modelCache.registerMetrics("cache.terrain");
     }
 
-    //    private final AtomicInteger cacheAttempts = new AtomicInteger(0);
-    //    private final AtomicInteger cacheMisses = new AtomicInteger(0);
-    //    
-    //    public void reportCacheHits()
-    //    {
-    //        final int attempts = cacheAttempts.get();
-    //        final int hits = attempts - cacheMisses.get();
-    //        System.out.println(String.format("Terrain cache hits: %d / %d (%f percent)", hits, attempts, 100f * hits / attempts ));
-    //        System.out.println(String.format("Cache capacity = %d, maxfill = %d", modelCache.capacity, modelCache.maxFill));
-    //        cacheMisses.set(0);
-    //        cacheAttempts.set(0);
-    //    }
-
+    public static CacheStats modelCacheStats()
+    {
+        return modelCache.stats();
+    }
+    
     private static int getIndexForState(TerrainState state)
     {
         return state.getYOffset() + 2;
@@ -176,22 +240,6 @@ public class TerrainMeshFactory extends ShapeMeshGenerator implements ICollision
     }
 
 
-    //  private static LongOpenHashSet hitMap = new LongOpenHashSet();
-    //  private static AtomicInteger tryCount = new AtomicInteger();
-    //  private static AtomicInteger hitCount = new AtomicInteger();
-    //  
-    //  public static void reportAndClearHitCount()
-    //  {
-    //      synchronized(hitMap)
-    //      {
-    //          ExoticMatter.INSTANCE.info("Terrain geometry potential cache hit rate = %d percent", (hitCount.get() *  100) / tryCount.get());
-    //          ExoticMatter.INSTANCE.info("Terrain geometry max cached states = %d", hitMap.size());
-    //          tryCount.set(0);
-    //          hitCount.set(0);
-    //          hitMap.clear();
-    //      }
-    //  }
-
     private static class WorkVars
     {
         /**
@@ -299,15 +347,6 @@ public class TerrainMeshFactory extends ShapeMeshGenerator implements ICollision
     
     private static void addTerrainQuads(TerrainState flowState, CSGNode.Root terrainQuads, boolean needsSubdivision)
     {
-        //      tryCount.incrementAndGet();
-        //      synchronized(hitMap)
-        //      {
-        //          if(!hitMap.add(flowState.getStateKey()))
-        //          {
-        //              hitCount.incrementAndGet();
-        //          }
-        //      }
-
         final WorkVars w = workVars.get().prepare();
         final IMutablePolygon quadInputsCenterLeft[] = w.quadInputsCenterLeft;
         final IMutablePolygon quadInputsCenterRight[] = w.quadInputsCenterRight;
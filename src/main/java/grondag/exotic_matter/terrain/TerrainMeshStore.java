@@ -0,0 +1,288 @@
+package grondag.exotic_matter.terrain;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.cache.LongAtomicLoadingCache;
+import grondag.exotic_matter.model.painting.Surface;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.model.primitives.stream.PolyStreamCodec;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Optional on-disk store of terrain meshes, so that a new session can skip the
+ * CSG work for meshes that were in use when the last session ended.<p>
+ *
+ * Meshes are saved in poly stream format (see {@link PolyStreamCodec}) from the active
+ * state of the terrain model cache when the client world unloads. On the next launch the
+ * file is memory-mapped and meshes are decoded on demand when the cache misses.<p>
+ *
+ * The file is rejected if the format version doesn't match or if the geometry hash -
+ * computed from meshes for a few fixed terrain states - has changed, so meshes saved by
+ * an older version of the mesh generator are never used.<p>
+ *
+ * Saves go to a separate file that replaces the mapped file at next launch, because a
+ * mapped file can't be reliably replaced while mapped.
+ */
+public class TerrainMeshStore
+{
+    /** Increment when file layout changes. Mesh generator and stream format changes are caught by geometry hash. */
+    public static final int FORMAT_VERSION = 1;
+    
+    /** "XMTM" */
+    private static final int MAGIC = 0x584D544D;
+    
+    private static final String FILE_NAME = "terrain_meshes.bin";
+    private static final String NEW_FILE_NAME = FILE_NAME + ".new";
+    
+    /** magic, version, geometry hash, entry count, data int count */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+    
+    /** key, data offset, data length */
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 4;
+    
+    private static @Nullable File storeDirectory = null;
+    
+    private static volatile @Nullable TerrainMeshStore instance = null;
+    
+    /**
+     * Enables the store. Call during pre-init if enabled in config.
+     * Store is opened when terrain meshes are first needed.
+     */
+    public static void setDirectory(File dir)
+    {
+        storeDirectory = dir;
+    }
+    
+    /**
+     * Returns null if store is not enabled or could not be opened.
+     * Geometry hash is only computed if the store is enabled.
+     */
+    static @Nullable TerrainMeshStore open(Surface[] surfaces, LongSupplier geometryHash, LongAtomicLoadingCache<List<IPolygon>> cache)
+    {
+        final File dir = storeDirectory;
+        if(dir == null) return null;
+        
+        try
+        {
+            if(!dir.exists()) dir.mkdirs();
+            
+            final File file = new File(dir, FILE_NAME);
+            final File newFile = new File(dir, NEW_FILE_NAME);
+            if(newFile.exists())
+                Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            
+            TerrainMeshStore result = new TerrainMeshStore(dir, surfaces, geometryHash.getAsLong(), cache);
+            if(file.exists()) result.map(file);
+            instance = result;
+            return result;
+        }
+        catch(Exception e)
+        {
+            ExoticMatter.INSTANCE.error("Unable to open terrain mesh store. Terrain meshes will not be saved.", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Saves meshes in the terrain model cache if the store is open. Call when client world unloads.
+     */
+    public static void saveIfOpen()
+    {
+        final TerrainMeshStore store = instance;
+        if(store != null) store.save();
+    }
+    
+    private final File directory;
+    private final Surface[] surfaces;
+    private final long geometryHash;
+    private final LongAtomicLoadingCache<List<IPolygon>> cache;
+    
+    /** maps key to index entry - read-only after open */
+    private final Long2IntOpenHashMap index = new Long2IntOpenHashMap();
+    private int[] offsets = new int[0];
+    private int[] lengths = new int[0];
+    private @Nullable IntBuffer data = null;
+    
+    /** set if a stored mesh fails to decode - file is then ignored */
+    private volatile boolean isCorrupt = false;
+    
+    private final AtomicInteger hitCount = new AtomicInteger();
+    
+    private TerrainMeshStore(File directory, Surface[] surfaces, long geometryHash, LongAtomicLoadingCache<List<IPolygon>> cache)
+    {
+        this.directory = directory;
+        this.surfaces = surfaces;
+        this.geometryHash = geometryHash;
+        this.cache = cache;
+        this.index.defaultReturnValue(-1);
+    }
+    
+    private void map(File file) throws IOException
+    {
+        final MappedByteBuffer buffer;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        if(buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+        {
+            ExoticMatter.INSTANCE.warn("Ignoring terrain mesh store %s - not a terrain mesh file.", file.getName());
+            return;
+        }
+        
+        if(buffer.getInt(4) != FORMAT_VERSION || buffer.getLong(8) != geometryHash)
+        {
+            ExoticMatter.INSTANCE.info("Ignoring terrain mesh store %s - saved by a different version.", file.getName());
+            return;
+        }
+        
+        final int entryCount = buffer.getInt(16);
+        final int dataCount = buffer.getInt(20);
+        final long dataStart = HEADER_BYTES + (long) entryCount * INDEX_ENTRY_BYTES;
+        if(entryCount < 0 || dataCount < 0 || dataStart + (long) dataCount * 4 != buffer.capacity())
+        {
+            ExoticMatter.INSTANCE.warn("Ignoring terrain mesh store %s - file is truncated or corrupt.", file.getName());
+            return;
+        }
+        
+        final int[] offsets = new int[entryCount];
+        final int[] lengths = new int[entryCount];
+        int position = HEADER_BYTES;
+        for(int i = 0; i < entryCount; i++)
+        {
+            final long key = buffer.getLong(position);
+            final int offset = buffer.getInt(position + 8);
+            final int length = buffer.getInt(position + 12);
+            position += INDEX_ENTRY_BYTES;
+            
+            if(offset < 0 || length <= 0 || (long) offset + length > dataCount)
+            {
+                ExoticMatter.INSTANCE.warn("Ignoring terrain mesh store %s - file is truncated or corrupt.", file.getName());
+                index.clear();
+                return;
+            }
+            
+            offsets[i] = offset;
+            lengths[i] = length;
+            index.put(key, i);
+        }
+        
+        buffer.position((int) dataStart);
+        this.data = buffer.slice().asIntBuffer();
+        this.offsets = offsets;
+        this.lengths = lengths;
+        
+        ExoticMatter.INSTANCE.info("Terrain mesh store opened with %d meshes.", entryCount);
+    }
+    
+    /**
+     * Returns stored mesh for the given terrain model cache key, or null if not stored.
+     * Safe for concurrent use.
+     */
+    public @Nullable List<IPolygon> get(long key)
+    {
+        final IntBuffer data = this.data;
+        if(data == null || isCorrupt) return null;
+        
+        final int i = index.get(key);
+        if(i < 0) return null;
+        
+        try
+        {
+            final List<IPolygon> result = PolyStreamCodec.decode(data, offsets[i], lengths[i], surfaces);
+            hitCount.incrementAndGet();
+            return result;
+        }
+        catch(RuntimeException e)
+        {
+            isCorrupt = true;
+            ExoticMatter.INSTANCE.error("Unable to decode stored terrain mesh. Stored terrain meshes will not be used for the rest of this session.", e);
+            return null;
+        }
+    }
+    
+    private synchronized void save()
+    {
+        final LongArrayList keys = new LongArrayList();
+        final ObjectArrayList<int[]> meshes = new ObjectArrayList<>();
+        
+        cache.forEach((mesh, key) ->
+        {
+            final int[] ints = PolyStreamCodec.encode(mesh, surfaces);
+            if(ints != null)
+            {
+                keys.add(key);
+                meshes.add(ints);
+            }
+        });
+        
+        if(keys.isEmpty()) return;
+        
+        final int entryCount = keys.size();
+        int dataCount = 0;
+        for(int[] ints : meshes)
+            dataCount += ints.length;
+        
+        final File newFile = new File(directory, NEW_FILE_NAME);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(geometryHash);
+            out.writeInt(entryCount);
+            out.writeInt(dataCount);
+            
+            int offset = 0;
+            for(int i = 0; i < entryCount; i++)
+            {
+                final int length = meshes.get(i).length;
+                out.writeLong(keys.getLong(i));
+                out.writeInt(offset);
+                out.writeInt(length);
+                offset += length;
+            }
+            
+            final ByteBuffer bytes = ByteBuffer.allocate(4096 * 4);
+            for(int[] ints : meshes)
+            {
+                for(int v : ints)
+                {
+                    if(!bytes.hasRemaining())
+                    {
+                        out.write(bytes.array(), 0, bytes.position());
+                        bytes.clear();
+                    }
+                    bytes.putInt(v);
+                }
+            }
+            out.write(bytes.array(), 0, bytes.position());
+            
+            ExoticMatter.INSTANCE.info("Saved %d terrain meshes. %d meshes were loaded from store this session.", entryCount, hitCount.get());
+        }
+        catch(Exception e)
+        {
+            ExoticMatter.INSTANCE.error("Unable to save terrain mesh store.", e);
+            newFile.delete();
+        }
+    }
+}
\ No newline at end of file
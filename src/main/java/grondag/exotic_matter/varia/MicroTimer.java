@@ -4,9 +4,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.varia.metrics.LatencyHistogram;
+import grondag.exotic_matter.varia.metrics.Metrics;
 
 /**
- * For crude but simple microbenchmarks - for small scope, in-game situations where JMH would be more than I want
+ * For crude but simple microbenchmarks - for small scope, in-game situations where JMH would be more than I want.
+ * Durations are also recorded in {@link Metrics} as "timer." + label when metrics are enabled.
  */
 public class MicroTimer
 {
@@ -14,6 +17,7 @@ public class MicroTimer
     private final AtomicLong elapsed = new AtomicLong();
     private final int sampleSize;
     private final String label;
+    private final LatencyHistogram histogram;
     private final ThreadLocal<AtomicLong> started = new ThreadLocal<AtomicLong>()
     {
         @Override
@@ -27,6 +31,7 @@ public class MicroTimer
     {
         this.label = label;
         this.sampleSize = sampleSize;
+        this.histogram = Metrics.histogram("timer." + label);
     }
     
     public void start()
@@ -42,7 +47,9 @@ public class MicroTimer
     public boolean stop()
     {
         long end = System.nanoTime();
-        long e = this.elapsed.addAndGet(end - this.started.get().get());
+        long duration = end - this.started.get().get();
+        this.histogram.record(duration);
+        long e = this.elapsed.addAndGet(duration);
         long h = this.hits.incrementAndGet();
         if(h == this.sampleSize)
         {
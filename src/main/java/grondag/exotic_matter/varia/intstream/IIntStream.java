@@ -22,6 +22,16 @@ public interface IIntStream
             set(targetAddress + i, source.get(sourceAddress + i));
     }
     
+    /**
+     * Copies a run of ints starting at address to the target array. Same result as 
+     * calling {@link #get(int)} for each address, but implementations can copy in bulk.
+     */
+    default void copyTo(int address, int[] target, int targetOffset, int length)
+    {
+        for(int i = 0; i < length; i++)
+            target[targetOffset + i] = get(address + i);
+    }
+    
     default void release() { }
 
     /**
@@ -1,8 +1,12 @@
 package grondag.exotic_matter.varia.intstream;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import grondag.exotic_matter.ExoticMatter;
+import grondag.exotic_matter.concurrency.MagazinePool;
 import net.minecraft.util.math.MathHelper;
 
 
@@ -12,15 +16,34 @@ public abstract class IntStreams
     static final int BLOCK_MASK = BLOCK_SIZE - 1;
     static final int BLOCK_SHIFT = Integer.bitCount(BLOCK_MASK);
     
-    private static final ArrayBlockingQueue<SimpleStream> simpleStreams = new ArrayBlockingQueue<>(256);
+    private static final MagazinePool<SimpleStream> simpleStreams = new MagazinePool<>("pool.intstream.streams", 16, 16);
     
-    private static final ArrayBlockingQueue<int[]> bigBlocks = new ArrayBlockingQueue<>(256);
+    private static final MagazinePool<CopyOnWriteStream> copyOnWriteStreams = new MagazinePool<>("pool.intstream.copyOnWriteStreams", 16, 16);
+    
+    private static final MagazinePool<int[]> bigBlocks = new MagazinePool<>("pool.intstream.blocks", 32, 16);
+    
+    private static final MagazinePool<OffHeapStream> offHeapStreams = new MagazinePool<>("pool.intstream.offHeapStreams", 16, 16);
+    
+    private static final MagazinePool<IntBuffer> offHeapBlocks = new MagazinePool<>("pool.intstream.offHeapBlocks", 32, 16);
+    
+    /** Off-heap blocks left short by compact are rounded up to a multiple of this, so they can be pooled by size. */
+    static final int SHORT_BLOCK_GRANULE = 64;
+    
+    /** index is short block size / {@link #SHORT_BLOCK_GRANULE} - 1 */
+    @SuppressWarnings("unchecked")
+    private static final MagazinePool<IntBuffer>[] offHeapShortBlocks = new MagazinePool[BLOCK_SIZE / SHORT_BLOCK_GRANULE - 1];
+    
+    static
+    {
+        for(int i = 0; i < offHeapShortBlocks.length; i++)
+            offHeapShortBlocks[i] = new MagazinePool<>("pool.intstream.offHeapShortBlocks." + (i + 1) * SHORT_BLOCK_GRANULE, 8, 4);
+    }
     
     private static final int[] EMPTY = new int[BLOCK_SIZE];
     
     private static int[] claimBlock()
     {
-        int[] result = bigBlocks.poll();
+        int[] result = bigBlocks.claim();
         if(result == null)
             return new int[BLOCK_SIZE];
         else
@@ -32,14 +55,12 @@ public abstract class IntStreams
     
     private static void releaseBlock(int[] block)
     {
-        //TODO: remove message
-        if(!bigBlocks.offer(block))
-            ExoticMatter.INSTANCE.info("Big block buffer was full on block release");
+        bigBlocks.release(block);
     }
     
     public static IIntStream claim(int sizeHint)
     {
-        SimpleStream result = simpleStreams.poll();
+        SimpleStream result = simpleStreams.claim();
         if(result == null)
             result = new SimpleStream();
         result.prepare(sizeHint);
@@ -53,7 +74,140 @@ public abstract class IntStreams
     
     private static void release(SimpleStream freeStream)
     {
-        simpleStreams.offer(freeStream);
+        simpleStreams.release(freeStream);
+    }
+    
+    private static IntBuffer allocateDirect(int size)
+    {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+    
+    private static IntBuffer claimOffHeapBlock()
+    {
+        IntBuffer result = offHeapBlocks.claim();
+        if(result == null)
+            return allocateDirect(BLOCK_SIZE);
+        else
+        {
+            for(int i = 0; i < BLOCK_SIZE; i++)
+                result.put(i, 0);
+            return result;
+        }
+    }
+    
+    /**
+     * Zero-filled block with room for at least the given number of ints.
+     * Capacity is rounded up to a multiple of {@link #SHORT_BLOCK_GRANULE}.
+     */
+    private static IntBuffer claimOffHeapShortBlock(int size)
+    {
+        final int roundedSize = (size + SHORT_BLOCK_GRANULE - 1) & -SHORT_BLOCK_GRANULE;
+        if(roundedSize >= BLOCK_SIZE)
+            return claimOffHeapBlock();
+        
+        IntBuffer result = offHeapShortBlocks[roundedSize / SHORT_BLOCK_GRANULE - 1].claim();
+        if(result == null)
+            return allocateDirect(roundedSize);
+        else
+        {
+            for(int i = 0; i < roundedSize; i++)
+                result.put(i, 0);
+            return result;
+        }
+    }
+    
+    /**
+     * Blocks that don't fit in the pools are left for the garbage collector,
+     * which frees their direct memory when the buffer is collected.
+     */
+    private static void releaseOffHeapBlock(IntBuffer block)
+    {
+        final int size = block.capacity();
+        if(size == BLOCK_SIZE)
+            offHeapBlocks.release(block);
+        else
+            offHeapShortBlocks[size / SHORT_BLOCK_GRANULE - 1].release(block);
+    }
+    
+    /**
+     * Stream with storage in direct memory, outside the Java heap. Use for large or
+     * long-lived data, like cached meshes, that would otherwise add to garbage collection.
+     * Slightly slower to access than heap streams, and should be released when no longer needed.
+     */
+    public static IIntStream claimOffHeap(int sizeHint)
+    {
+        OffHeapStream result = offHeapStreams.claim();
+        if(result == null)
+            result = new OffHeapStream();
+        result.prepare(sizeHint);
+        return result;
+    }
+    
+    public static IIntStream claimOffHeap()
+    {
+        return claimOffHeap(BLOCK_SIZE);
+    }
+    
+    private static void release(OffHeapStream freeStream)
+    {
+        offHeapStreams.release(freeStream);
+    }
+    
+    private static CopyOnWriteStream claimCopyOnWrite()
+    {
+        CopyOnWriteStream result = copyOnWriteStreams.claim();
+        if(result == null)
+            result = new CopyOnWriteStream();
+        return result;
+    }
+    
+    private static void release(CopyOnWriteStream freeStream)
+    {
+        copyOnWriteStreams.release(freeStream);
+    }
+    
+    /**
+     * Returns a stream with the same content as the source that can be shared with
+     * {@link #claimShared(IIntStream)} without copying. Heap streams are converted by moving 
+     * their storage to a new stream, and the source is released, so it must not be used after 
+     * this call. Off-heap streams are returned as is and are copied when shared.<p>
+     * 
+     * Writes to the result check if the block being written is shared, so use for 
+     * streams that are mostly read, after they are built.
+     */
+    public static IIntStream toShareable(IIntStream source)
+    {
+        if(source instanceof CopyOnWriteStream || !(source instanceof SimpleStream))
+            return source;
+        
+        final CopyOnWriteStream result = claimCopyOnWrite();
+        result.prepareFrom((SimpleStream) source);
+        return result;
+    }
+    
+    /**
+     * Stream with the same content as the source. If source is from {@link #toShareable(IIntStream)} the 
+     * result shares storage blocks with it, and either stream copies a shared block the first time it 
+     * writes to it, so changes to one are never visible in the other. Otherwise the result is a copy.<p>
+     * 
+     * Shared blocks are reference counted and go back to the block pool when the last stream holding 
+     * them is released, so the streams can be released in any order. A stream that becomes the only 
+     * holder of a block writes to it without copying.
+     * Safe to call while other threads read or share the source, but not while the source is written.
+     */
+    public static IIntStream claimShared(IIntStream source)
+    {
+        if(source instanceof CopyOnWriteStream)
+        {
+            final CopyOnWriteStream result = claimCopyOnWrite();
+            result.prepareShared((CopyOnWriteStream) source);
+            return result;
+        }
+        
+        final int size = source.capacity();
+        final IIntStream result = source instanceof OffHeapStream ? claimOffHeap(size) : claim(size);
+        result.copyFrom(0, source, 0, size);
+        return result;
     }
     
     /**
@@ -120,17 +274,24 @@ public abstract class IntStreams
             checkAddress(sizeHint - 1);
         }
 
-        private void releaseBlocks()
+        /**
+         * Called when the block at the given index is being dropped from this stream.
+         */
+        protected void recycleBlock(int blockIndex)
+        {
+            // don't reuse last block if it isn't a block size
+            final int[] block = blocks[blockIndex];
+            if(block.length == BLOCK_SIZE)
+                releaseBlock(block);
+        }
+        
+        protected final void releaseBlocks()
         {
             if(blockCount > 0)
             {
-                // don't reuse last block if it isn't a block size
-                final int skipIndex = isCompact ? -1 : blockCount - 1;
-                
                 for(int i = 0; i < blockCount; i++)
                 {
-                    if(i != skipIndex)
-                        releaseBlock(blocks[i]);
+                    recycleBlock(i);
                     blocks[i] = null;
                 }
             }
@@ -178,6 +339,27 @@ public abstract class IntStreams
             IIntStream.super.copyFrom(targetAddress, source, sourceAddress, length);
         }
 
+        @Override
+        public void copyTo(int address, int[] target, int targetOffset, int length)
+        {
+            while(length > 0)
+            {
+                if(address >= capacity)
+                {
+                    // unallocated addresses read as zero
+                    Arrays.fill(target, targetOffset, targetOffset + length, 0);
+                    return;
+                }
+                
+                final int blockOffset = address & BLOCK_MASK;
+                final int count = Math.min(length, Math.min(BLOCK_SIZE - blockOffset, capacity - address));
+                System.arraycopy(blocks[address >> BLOCK_SHIFT], blockOffset, target, targetOffset, count);
+                address += count;
+                targetOffset += count;
+                length -= count;
+            }
+        }
+        
         @Override
         public void compact()
         {
@@ -196,7 +378,7 @@ public abstract class IntStreams
                 if(i == -1)
                 {
                     // release empty blocks
-                    releaseBlock(block);
+                    recycleBlock(targetBlock);
                     blocks[targetBlock] = null;
                     blockCount--;
                     capacity -= BLOCK_SIZE;
@@ -212,7 +394,7 @@ public abstract class IntStreams
                     final int shortSize = i + 1;
                     int[] shortBlock = new int[shortSize];
                     System.arraycopy(block, 0, shortBlock, 0, shortSize);
-                    releaseBlock(block);
+                    recycleBlock(targetBlock);
                     blocks[targetBlock] = shortBlock;
                     capacity = (blockCount - 1) * BLOCK_SIZE + shortSize;
                     isCompact = true;
@@ -228,4 +410,352 @@ public abstract class IntStreams
             return capacity;
         }
     }
+    
+    /**
+     * Heap stream that can share blocks with other streams of this type. See {@link #claimShared(IIntStream)}.
+     * Separate from {@link SimpleStream} so that streams that are never shared don't pay for the check on write.
+     */
+    private static class CopyOnWriteStream extends SimpleStream
+    {
+        /**
+         * Number of streams holding the block at the same index, or null if the block is held only by this stream.
+         * The counter instance is shared by all holders. Covers at least blockCount blocks.
+         */
+        AtomicInteger[] blockRefs = new AtomicInteger[16];
+        
+        /**
+         * Takes storage of the source, which is released.
+         */
+        private void prepareFrom(SimpleStream source)
+        {
+            final int[][] swap = blocks;
+            blocks = source.blocks;
+            source.blocks = swap;
+            
+            blockCount = source.blockCount;
+            capacity = source.capacity;
+            isCompact = source.isCompact;
+            if(blockRefs.length < blocks.length)
+                blockRefs = new AtomicInteger[blocks.length];
+            
+            source.blockCount = 0;
+            source.capacity = 0;
+            source.isCompact = false;
+            source.release();
+        }
+        
+        private void prepareShared(CopyOnWriteStream source)
+        {
+            final int count = source.blockCount;
+            if(count > blocks.length)
+            {
+                final int newMax = MathHelper.smallestEncompassingPowerOfTwo(count);
+                blocks = new int[newMax][];
+                blockRefs = new AtomicInteger[newMax];
+            }
+            else if(blockRefs.length < blocks.length)
+                blockRefs = new AtomicInteger[blocks.length];
+            
+            // streams in a model cache can be shared by several threads at once
+            synchronized(source)
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    AtomicInteger refs = source.blockRefs[i];
+                    if(refs == null)
+                    {
+                        refs = new AtomicInteger(2);
+                        source.blockRefs[i] = refs;
+                    }
+                    else
+                        refs.incrementAndGet();
+                    
+                    blocks[i] = source.blocks[i];
+                    blockRefs[i] = refs;
+                }
+            }
+            
+            blockCount = count;
+            capacity = source.capacity;
+            isCompact = source.isCompact;
+        }
+        
+        /**
+         * Makes the block at the given index private to this stream, copying it unless
+         * no other stream still holds it. A copied short last block becomes a full block.
+         */
+        private void unshare(int blockIndex)
+        {
+            final AtomicInteger refs = blockRefs[blockIndex];
+            blockRefs[blockIndex] = null;
+            
+            // other holders can't share it further once we are the only one left
+            if(refs.get() == 1)
+                return;
+            
+            final int[] block = blocks[blockIndex];
+            final int[] newBlock = claimBlock();
+            System.arraycopy(block, 0, newBlock, 0, block.length);
+            blocks[blockIndex] = newBlock;
+            
+            // if all others released it since the check, it is ours to recycle
+            if(refs.decrementAndGet() == 0 && block.length == BLOCK_SIZE)
+                releaseBlock(block);
+            
+            if(block.length < BLOCK_SIZE)
+            {
+                capacity = BLOCK_SIZE * blockCount;
+                isCompact = false;
+            }
+        }
+        
+        @Override
+        public void set(int address, int value)
+        {
+            final int blockIndex = address >> BLOCK_SHIFT;
+            if(blockIndex < blockCount)
+            {
+                if(blockRefs[blockIndex] != null)
+                    unshare(blockIndex);
+                super.set(address, value);
+            }
+            else
+            {
+                // uncompacting would otherwise copy a shared block without releasing it
+                if(isCompact && blockRefs[blockCount - 1] != null)
+                    unshare(blockCount - 1);
+                
+                super.set(address, value);
+                
+                if(blockRefs.length < blocks.length)
+                    blockRefs = Arrays.copyOf(blockRefs, blocks.length);
+            }
+        }
+        
+        @Override
+        protected void recycleBlock(int blockIndex)
+        {
+            final AtomicInteger refs = blockRefs[blockIndex];
+            if(refs == null)
+                super.recycleBlock(blockIndex);
+            else
+            {
+                blockRefs[blockIndex] = null;
+                if(refs.decrementAndGet() == 0)
+                    super.recycleBlock(blockIndex);
+            }
+        }
+        
+        @Override
+        public void clear()
+        {
+            for(int i = 0; i < blockCount; i++)
+            {
+                if(blockRefs[i] != null)
+                {
+                    final int[] block = blocks[i];
+                    recycleBlock(i);
+                    blocks[i] = block.length == BLOCK_SIZE ? claimBlock() : new int[block.length];
+                }
+            }
+            super.clear();
+        }
+        
+        @Override
+        public void release()
+        {
+            releaseBlocks();
+            IntStreams.release(this);
+        }
+    }
+    
+    /**
+     * Same as {@link SimpleStream} but blocks are direct buffers.
+     * Uses absolute buffer access only, so concurrent reads are safe.
+     */
+    private static class OffHeapStream implements IIntStream
+    {
+        IntBuffer[] blocks = new IntBuffer[16];
+        
+        int blockCount = 0;
+        int capacity = 0;
+        boolean isCompact = false;
+        
+        private void checkAddress(int address)
+        {
+            if(address >= capacity)
+            {
+                if(isCompact)
+                {
+                    // uncompact
+                    IntBuffer lastBlock = blocks[blockCount - 1];
+                    IntBuffer newBlock = claimOffHeapBlock();
+                    
+                    final int limit = lastBlock.capacity();
+                    for(int i = 0; i < limit; i++)
+                        newBlock.put(i, lastBlock.get(i));
+                    releaseOffHeapBlock(lastBlock);
+                    blocks[blockCount - 1] = newBlock;
+                    
+                    capacity = BLOCK_SIZE * blockCount;
+                    isCompact = false;
+                    
+                    // if big enough after uncompacting, then we are done
+                    if(address < capacity)
+                        return;
+                }
+                
+                int currentBlocks = capacity >> BLOCK_SHIFT;
+                int blocksNeeded =  (address >> BLOCK_SHIFT) + 1;
+                
+                if(blocksNeeded > blocks.length)
+                {
+                    int newMax = MathHelper.smallestEncompassingPowerOfTwo(blocksNeeded);
+                    IntBuffer[] newBlocks = new IntBuffer[newMax];
+                    System.arraycopy(blocks, 0, newBlocks, 0, blocks.length);
+                    blocks = newBlocks;
+                }
+                
+                for(int i = currentBlocks; i < blocksNeeded; i++)
+                    blocks[i] = claimOffHeapBlock();
+                
+                capacity = blocksNeeded << BLOCK_SHIFT;
+                blockCount = blocksNeeded;
+            }
+        }
+        
+        @Override
+        public int get(int address)
+        {
+            return address < capacity
+                    ? blocks[address >> BLOCK_SHIFT].get(address & BLOCK_MASK)
+                    : 0;
+        }
+        
+        public void prepare(int sizeHint)
+        {
+            checkAddress(sizeHint - 1);
+        }
+        
+        private void releaseBlocks()
+        {
+            for(int i = 0; i < blockCount; i++)
+            {
+                releaseOffHeapBlock(blocks[i]);
+                blocks[i] = null;
+            }
+            blockCount = 0;
+            capacity = 0;
+            isCompact = false;
+        }
+        
+        @Override
+        public void set(int address, int value)
+        {
+            checkAddress(address);
+            blocks[address >> BLOCK_SHIFT].put(address & BLOCK_MASK, value);
+        }
+        
+        @Override
+        public void clear()
+        {
+            // drop last block if we are compacted
+            if(isCompact)
+            {
+                blockCount--;
+                capacity = blockCount * BLOCK_SIZE;
+                releaseOffHeapBlock(blocks[blockCount]);
+                blocks[blockCount] = null;
+                isCompact = false;
+            }
+            
+            for(int i = 0; i < blockCount; i++)
+            {
+                final IntBuffer block = blocks[i];
+                for(int j = 0; j < BLOCK_SIZE; j++)
+                    block.put(j, 0);
+            }
+        }
+        
+        @Override
+        public void release()
+        {
+            releaseBlocks();
+            IntStreams.release(this);
+        }
+        
+        @Override
+        public void copyTo(int address, int[] target, int targetOffset, int length)
+        {
+            while(length > 0)
+            {
+                if(address >= capacity)
+                {
+                    // unallocated addresses read as zero
+                    Arrays.fill(target, targetOffset, targetOffset + length, 0);
+                    return;
+                }
+                
+                final IntBuffer block = blocks[address >> BLOCK_SHIFT];
+                final int blockOffset = address & BLOCK_MASK;
+                final int count = Math.min(length, Math.min(BLOCK_SIZE - blockOffset, capacity - address));
+                for(int i = 0; i < count; i++)
+                    target[targetOffset + i] = block.get(blockOffset + i);
+                address += count;
+                targetOffset += count;
+                length -= count;
+            }
+        }
+        
+        @Override
+        public void compact()
+        {
+            if(isCompact || blockCount == 0)
+                return;
+            
+            int targetBlock = blockCount - 1;
+            
+            while(targetBlock >= 0)
+            {
+                IntBuffer block = blocks[targetBlock];
+                int i = BLOCK_SIZE - 1;
+                while(i >= 0 && block.get(i) == 0)
+                    i--;
+                
+                if(i == -1)
+                {
+                    // release empty blocks
+                    releaseOffHeapBlock(block);
+                    blocks[targetBlock] = null;
+                    blockCount--;
+                    capacity -= BLOCK_SIZE;
+                }
+                else if(i == BLOCK_SIZE - 1)
+                {
+                    // ending on a block boundary so no need to compact
+                    return;
+                }
+                else
+                {
+                    // partially full block
+                    final int shortSize = i + 1;
+                    IntBuffer shortBlock = claimOffHeapShortBlock(shortSize);
+                    for(int j = 0; j < shortSize; j++)
+                        shortBlock.put(j, block.get(j));
+                    releaseOffHeapBlock(block);
+                    blocks[targetBlock] = shortBlock;
+                    capacity = (blockCount - 1) * BLOCK_SIZE + shortSize;
+                    isCompact = true;
+                    return;
+                }
+                targetBlock--;
+            }
+        }
+        
+        @Override
+        public int capacity()
+        {
+            return capacity;
+        }
+    }
 }
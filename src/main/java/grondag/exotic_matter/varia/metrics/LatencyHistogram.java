@@ -0,0 +1,169 @@
+package grondag.exotic_matter.varia.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of durations in nanoseconds, similar to HdrHistogram with
+ * four significant bits of precision: each power of two is split into 16 equal buckets, 
+ * so reported percentiles are within about 6% of the true value. Durations over 2^40ns 
+ * (about 18 minutes) are counted in the last bucket.<p>
+ * 
+ * Recording is an increment in one of a few striped bucket arrays, chosen by thread,
+ * plus striped sum and max. Nothing is recorded while metrics are disabled.<p>
+ * 
+ * Typical use:<br>
+ * <code>final long start = HISTOGRAM.start(); ... HISTOGRAM.recordSince(start);</code>
+ */
+public class LatencyHistogram implements Metric
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 39;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+    
+    private static final int STRIPE_COUNT = Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+    
+    private final String name;
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPE_COUNT];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    LatencyHistogram(String name)
+    {
+        this.name = name;
+        for(int i = 0; i < STRIPE_COUNT; i++)
+            stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+    }
+    
+    static int bucket(long nanos)
+    {
+        if(nanos < SUB_BUCKET_COUNT) return nanos < 0 ? 0 : (int) nanos;
+        
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+        
+        final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+    
+    /**
+     * Smallest duration counted in the given bucket.
+     */
+    static long bucketFloor(int bucket)
+    {
+        if(bucket < SUB_BUCKET_COUNT) return bucket;
+        
+        final int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKET_COUNT + (bucket & (SUB_BUCKET_COUNT - 1))) << (exponent - SUB_BUCKET_BITS);
+    }
+    
+    /**
+     * Returns a start time for {@link #recordSince(long)}, or zero if metrics are disabled.
+     */
+    public long start()
+    {
+        return Metrics.isEnabled() ? System.nanoTime() : 0;
+    }
+    
+    /**
+     * Records time elapsed since start, unless start is zero.
+     */
+    public void recordSince(long startNanos)
+    {
+        if(startNanos != 0) record(System.nanoTime() - startNanos);
+    }
+    
+    public void record(long nanos)
+    {
+        if(!Metrics.isEnabled()) return;
+        
+        stripes[(int) Thread.currentThread().getId() & STRIPE_MASK].incrementAndGet(bucket(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+    
+    private long[] snapshot()
+    {
+        final long[] result = new long[BUCKET_COUNT];
+        for(AtomicLongArray stripe : stripes)
+        {
+            for(int i = 0; i < BUCKET_COUNT; i++)
+                result[i] += stripe.get(i);
+        }
+        return result;
+    }
+    
+    private static long count(long[] buckets)
+    {
+        long result = 0;
+        for(long n : buckets)
+            result += n;
+        return result;
+    }
+    
+    /**
+     * Lower bound of the bucket holding the given percentile (0-100).
+     */
+    private static long percentile(long[] buckets, long count, double percentile)
+    {
+        final long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += buckets[i];
+            if(seen >= target) return bucketFloor(i);
+        }
+        return bucketFloor(BUCKET_COUNT - 1);
+    }
+    
+    public long count()
+    {
+        return count(snapshot());
+    }
+    
+    public long percentile(double percentile)
+    {
+        final long[] buckets = snapshot();
+        return percentile(buckets, count(buckets), percentile);
+    }
+    
+    @Override
+    public String name()
+    {
+        return name;
+    }
+    
+    @Override
+    public void write(PrintWriter out)
+    {
+        final long[] buckets = snapshot();
+        final long count = count(buckets);
+        if(count == 0)
+        {
+            out.print("count=0");
+            return;
+        }
+        
+        out.printf("count=%,d mean=%,dns p50=%,dns p90=%,dns p99=%,dns p99.9=%,dns max=%,dns total=%.3fs",
+                count, sum.sum() / count, 
+                percentile(buckets, count, 50), percentile(buckets, count, 90), 
+                percentile(buckets, count, 99), percentile(buckets, count, 99.9),
+                max.get(), sum.sum() / 1e9);
+    }
+    
+    @Override
+    public void reset()
+    {
+        for(AtomicLongArray stripe : stripes)
+        {
+            for(int i = 0; i < BUCKET_COUNT; i++)
+                stripe.set(i, 0);
+        }
+        sum.reset();
+        max.reset();
+    }
+}
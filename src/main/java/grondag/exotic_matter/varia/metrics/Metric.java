@@ -0,0 +1,18 @@
+package grondag.exotic_matter.varia.metrics;
+
+import java.io.PrintWriter;
+
+/**
+ * Anything held in the {@link Metrics} registry.
+ */
+public interface Metric
+{
+    public String name();
+    
+    /**
+     * Writes current value(s) as a single line, after the name.
+     */
+    public void write(PrintWriter out);
+    
+    public void reset();
+}
@@ -0,0 +1,52 @@
+package grondag.exotic_matter.varia.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counter - safe and cheap to update from many threads at once.
+ * Updates are ignored while metrics are disabled.
+ */
+public class MetricCounter implements Metric
+{
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    
+    MetricCounter(String name)
+    {
+        this.name = name;
+    }
+    
+    public void increment()
+    {
+        if(Metrics.isEnabled()) count.increment();
+    }
+    
+    public void add(long howMuch)
+    {
+        if(Metrics.isEnabled()) count.add(howMuch);
+    }
+    
+    public long get()
+    {
+        return count.sum();
+    }
+    
+    @Override
+    public String name()
+    {
+        return name;
+    }
+    
+    @Override
+    public void write(PrintWriter out)
+    {
+        out.printf("count=%,d", count.sum());
+    }
+    
+    @Override
+    public void reset()
+    {
+        count.reset();
+    }
+}
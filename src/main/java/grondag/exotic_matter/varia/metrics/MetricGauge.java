@@ -0,0 +1,41 @@
+package grondag.exotic_matter.varia.metrics;
+
+import java.io.PrintWriter;
+import java.util.function.LongSupplier;
+
+/**
+ * Value sampled only when metrics are written, so costs nothing between dumps.
+ * The supplier may be called from any thread.
+ */
+public class MetricGauge implements Metric
+{
+    private final String name;
+    private final LongSupplier supplier;
+    
+    MetricGauge(String name, LongSupplier supplier)
+    {
+        this.name = name;
+        this.supplier = supplier;
+    }
+    
+    public long get()
+    {
+        return supplier.getAsLong();
+    }
+    
+    @Override
+    public String name()
+    {
+        return name;
+    }
+    
+    @Override
+    public void write(PrintWriter out)
+    {
+        out.printf("value=%,d", supplier.getAsLong());
+    }
+    
+    /** Gauges have no state of their own. */
+    @Override
+    public void reset() { }
+}
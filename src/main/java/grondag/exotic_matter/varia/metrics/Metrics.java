@@ -0,0 +1,114 @@
+package grondag.exotic_matter.varia.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Single registry for counters, latency histograms and gauges. Replaces ad-hoc
+ * logging from MicroTimer, PerformanceCounter and hand-rolled AtomicInteger counters.<p>
+ * 
+ * Metrics are meant to be held in static final fields and created once, by name.
+ * Asking for an existing name returns the existing metric. Names are dotted paths,
+ * first part being the subsystem, like "cache.terrain.size" or "csg.intersect".<p>
+ * 
+ * Recording is off by default, so instrumented code pays only for a volatile read.
+ * Enable with the config option or at runtime with the metrics command, and write
+ * all metrics to a file with {@link #dumpToFile(File)}.
+ */
+public class Metrics
+{
+    private static volatile boolean enabled = false;
+    
+    private static final ConcurrentHashMap<String, Metric> REGISTRY = new ConcurrentHashMap<>();
+    
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+    
+    public static void setEnabled(boolean isEnabled)
+    {
+        enabled = isEnabled;
+    }
+    
+    public static MetricCounter counter(String name)
+    {
+        return register(name, MetricCounter.class, () -> new MetricCounter(name));
+    }
+    
+    public static LatencyHistogram histogram(String name)
+    {
+        return register(name, LatencyHistogram.class, () -> new LatencyHistogram(name));
+    }
+    
+    /**
+     * Replaces any gauge already registered with the same name,
+     * so a gauge can follow an object that is recreated.
+     */
+    public static MetricGauge gauge(String name, LongSupplier supplier)
+    {
+        final MetricGauge result = new MetricGauge(name, supplier);
+        final Metric prior = REGISTRY.put(name, result);
+        if(prior != null && !(prior instanceof MetricGauge))
+            throw new IllegalStateException("Metric name already registered with a different type: " + name);
+        return result;
+    }
+    
+    private static <T extends Metric> T register(String name, Class<T> clazz, Supplier<T> factory)
+    {
+        final Metric result = REGISTRY.computeIfAbsent(name, n -> factory.get());
+        if(!clazz.isInstance(result))
+            throw new IllegalStateException("Metric name already registered with a different type: " + name);
+        return clazz.cast(result);
+    }
+    
+    /**
+     * Clears recorded values. Metrics remain registered.
+     */
+    public static void reset()
+    {
+        REGISTRY.values().forEach(Metric::reset);
+    }
+    
+    /**
+     * Writes all metrics, one per line, sorted by name.
+     */
+    public static void write(PrintWriter out)
+    {
+        final ArrayList<Metric> metrics = new ArrayList<>(REGISTRY.values());
+        metrics.sort(Comparator.comparing(Metric::name));
+        
+        out.println("# Exotic Matter metrics " + new Date() + (enabled ? "" : " (recording disabled)"));
+        for(Metric m : metrics)
+        {
+            out.print(m.name());
+            out.print(' ');
+            m.write(out);
+            out.println();
+        }
+    }
+    
+    /**
+     * Writes all metrics to a new time-stamped file in the given directory and returns the file.
+     */
+    public static File dumpToFile(File directory) throws IOException
+    {
+        if(!directory.exists()) directory.mkdirs();
+        
+        final File file = new File(directory, "metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".txt");
+        try(PrintWriter out = new PrintWriter(new FileWriter(file)))
+        {
+            write(out);
+        }
+        return file;
+    }
+}
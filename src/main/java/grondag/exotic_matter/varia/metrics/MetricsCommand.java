@@ -0,0 +1,95 @@
+package grondag.exotic_matter.varia.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import grondag.exotic_matter.ExoticMatter;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+
+/**
+ * Server command to control {@link Metrics} without a restart.<p>
+ * 
+ * <code>/xmmetrics on|off|reset|dump</code><p>
+ * 
+ * Dump writes all metrics to a time-stamped file in the exotic_matter game subfolder.
+ * In single player the client and integrated server share the registry,
+ * so client-side metrics (terrain meshes, model caches) are included.
+ */
+public class MetricsCommand extends CommandBase
+{
+    private static final String[] ACTIONS = {"on", "off", "reset", "dump"};
+    
+    @Override
+    public String getName()
+    {
+        return "xmmetrics";
+    }
+    
+    @Override
+    public String getUsage(ICommandSender sender)
+    {
+        return "/xmmetrics on|off|reset|dump";
+    }
+    
+    @Override
+    public int getRequiredPermissionLevel()
+    {
+        return 2;
+    }
+    
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException
+    {
+        if(args.length != 1) throw new WrongUsageException(getUsage(sender));
+        
+        switch(args[0])
+        {
+        case "on":
+            Metrics.setEnabled(true);
+            sender.sendMessage(new TextComponentString("Metrics recording enabled."));
+            break;
+            
+        case "off":
+            Metrics.setEnabled(false);
+            sender.sendMessage(new TextComponentString("Metrics recording disabled."));
+            break;
+            
+        case "reset":
+            Metrics.reset();
+            sender.sendMessage(new TextComponentString("Metrics reset."));
+            break;
+            
+        case "dump":
+            try
+            {
+                final File file = Metrics.dumpToFile(server.getFile(ExoticMatter.MODID));
+                sender.sendMessage(new TextComponentString("Metrics written to " + file.getPath()));
+            }
+            catch(IOException e)
+            {
+                ExoticMatter.INSTANCE.error("Unable to write metrics file.", e);
+                throw new CommandException("Unable to write metrics file: " + e.getMessage());
+            }
+            break;
+            
+        default:
+            throw new WrongUsageException(getUsage(sender));
+        }
+    }
+    
+    @Override
+    public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, @Nullable BlockPos targetPos)
+    {
+        return args.length == 1 ? getListOfStringsMatchingLastWord(args, ACTIONS) : Collections.emptyList();
+    }
+}
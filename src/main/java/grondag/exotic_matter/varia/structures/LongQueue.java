@@ -19,6 +19,16 @@ public class LongQueue extends LongArrayFIFOQueue
         super(capacity);
     }
     
+    /**
+     * Value at the given position counting from the head of the queue, without dequeuing it.
+     * No range check.
+     */
+    public final long getLong(final int index)
+    {
+        final int i = start + index;
+        return array[i >= length ? i - length : i];
+    }
+    
     public final long[] toArray()
     {
         long[] result = new long[this.size()];
@@ -1,23 +1,34 @@
 package grondag.exotic_matter;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
+import grondag.exotic_matter.cache.EvictionPolicy;
 import grondag.exotic_matter.cache.LongAtomicLoadingCache;
 import grondag.exotic_matter.cache.LongSimpleCacheLoader;
 import grondag.exotic_matter.cache.LongSimpleLoadingCache;
+import grondag.exotic_matter.cache.ObjectAtomicLoadingCache;
 import grondag.exotic_matter.cache.ObjectSimpleCacheLoader;
 import grondag.exotic_matter.cache.ObjectSimpleLoadingCache;
 import grondag.exotic_matter.cache.WideSimpleCacheLoader;
@@ -263,6 +274,29 @@ public class SimpleLoadingCacheTest
         }
     }
     
+    private class ObjectAtomicAdapter implements CacheAdapter
+    {    
+        @SuppressWarnings("null")
+        private ObjectAtomicLoadingCache<Long, Long> cache;
+        
+        @Override
+        public long get(long key)
+        {
+            long startTime = System.nanoTime();
+            long result = cache.get(key);
+            nanoCount.addAndGet(System.nanoTime() - startTime);
+            return result;
+        }
+
+        @Override
+        public CacheAdapter newInstance(int maxSize)
+        {
+            ObjectAtomicAdapter result = new ObjectAtomicAdapter();
+            result.cache = new ObjectAtomicLoadingCache<Long, Long>(new Loader(), maxSize);
+            return result;
+        }
+    }
+    
     private class WideSimpleAdapter implements CacheAdapter
     {    
         @SuppressWarnings("null")
@@ -393,11 +427,166 @@ public class SimpleLoadingCacheTest
         System.out.println("Running simple object cache test");
         doTestInner(executor, new ObjectSimpleAdapter());
 
+        System.out.println("Running atomic object cache test");
+        doTestInner(executor, new ObjectAtomicAdapter());
+
         System.out.println("Running google cache test");
         doTestInner(executor, new GoogleAdapter());
         
     }
     
+    /**
+     * Hot keys should stay in the active state across rollovers with CLOCK eviction
+     * instead of being served from backup after every rollover.
+     */
+    @Test
+    public void testClockEviction()
+    {
+        LongSimpleLoadingCache<Long> rollover = new LongSimpleLoadingCache<Long>(new Loader(), 1000, EvictionPolicy.ROLLOVER, true);
+        LongSimpleLoadingCache<Long> clock = new LongSimpleLoadingCache<Long>(new Loader(), 1000, EvictionPolicy.CLOCK, true);
+        
+        Random random = new Random(42);
+        long coldKey = 1000;
+        
+        for(int i = 0; i < 1000000; i++)
+        {
+            long key = random.nextInt(4) == 0 ? coldKey++ : random.nextInt(100) + 1;
+            assertEquals(key + MAGIC_NUMBER, rollover.get(key).longValue());
+            assertEquals(key + MAGIC_NUMBER, clock.get(key).longValue());
+        }
+        
+        assertEquals(rollover.stats().requestCount(), clock.stats().requestCount());
+        assertTrue(rollover.stats().rolloverCount() > 0);
+        assertTrue(clock.stats().retainedCount() > 0);
+        assertTrue(clock.stats().backupHitCount() * 10 < rollover.stats().backupHitCount());
+        assertTrue(clock.stats().hitCount() > rollover.stats().hitCount());
+    }
+    
+    /**
+     * Threads all request the same keys at the same time with a slow loader.
+     * Single-flight cache must call the loader exactly once per key.
+     */
+    @Test
+    public void testSingleFlightStress() throws Exception
+    {
+        final int keyCount = 512;
+        final int threadCount = Math.max(4, THREAD_COUNT);
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        
+        try
+        {
+            AtomicIntegerArray loadCounts = doSingleFlightStress(executor, threadCount, keyCount, false);
+            int extraLoads = 0;
+            for(int i = 0; i < keyCount; i++)
+            {
+                extraLoads += loadCounts.get(i) - 1;
+            }
+            System.out.println("Default mode duplicate loads: " + extraLoads);
+            
+            loadCounts = doSingleFlightStress(executor, threadCount, keyCount, true);
+            for(int i = 0; i < keyCount; i++)
+            {
+                assertEquals("Loader invocations for key " + i, 1, loadCounts.get(i));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    private AtomicIntegerArray doSingleFlightStress(ExecutorService executor, int threadCount, int keyCount, boolean singleFlight) throws Exception
+    {
+        final AtomicIntegerArray loadCounts = new AtomicIntegerArray(keyCount);
+        
+        // large enough that state never rolls over
+        final LongAtomicLoadingCache<Long> cache = new LongAtomicLoadingCache<Long>(k -> 
+        {
+            loadCounts.incrementAndGet((int) k);
+            // slow enough that other threads will ask for the key while loading
+            final long until = System.nanoTime() + 20000;
+            while(System.nanoTime() < until) {}
+            return k + MAGIC_NUMBER;
+        }, keyCount * 4, EvictionPolicy.ROLLOVER, true, singleFlight);
+        
+        final CyclicBarrier startLine = new CyclicBarrier(threadCount);
+        final ArrayList<Future<?>> futures = new ArrayList<>();
+        
+        for(int t = 0; t < threadCount; t++)
+        {
+            final long seed = t;
+            futures.add(executor.submit(() -> 
+            {
+                List<Long> keys = new ArrayList<>();
+                for(long k = 0; k < keyCount; k++) keys.add(k);
+                Collections.shuffle(keys, new Random(seed));
+                startLine.await();
+                for(int pass = 0; pass < 3; pass++)
+                {
+                    for(Long k : keys)
+                    {
+                        assertEquals(k + MAGIC_NUMBER, cache.get(k).longValue());
+                    }
+                }
+                return null;
+            }));
+        }
+        
+        for(Future<?> f : futures)
+        {
+            f.get();
+        }
+        
+        if(singleFlight)
+        {
+            // threads that waited for a load are neither hits nor loads
+            assertEquals(keyCount, cache.stats().missCount());
+            assertEquals(threadCount * keyCount * 3, cache.stats().requestCount());
+        }
+        
+        return loadCounts;
+    }
+    
+    /**
+     * Failed single-flight load must not leave the key permanently uncached.
+     */
+    @Test
+    public void testSingleFlightFailure()
+    {
+        final AtomicIntegerArray loadCounts = new AtomicIntegerArray(16);
+        final LongAtomicLoadingCache<Long> cache = new LongAtomicLoadingCache<Long>(k -> 
+        {
+            if(loadCounts.incrementAndGet((int) k) == 1 && k == 7)
+                throw new IllegalStateException("test failure");
+            return k + MAGIC_NUMBER;
+        }, 64, EvictionPolicy.ROLLOVER, true, true);
+        
+        boolean didThrow = false;
+        try
+        {
+            cache.get(7);
+        }
+        catch(IllegalStateException e)
+        {
+            didThrow = true;
+        }
+        assertTrue(didThrow);
+        
+        // failed slot still counts toward rollover
+        assertEquals(1, cache.size());
+        
+        // next request loads again and stores the result
+        assertEquals(7 + MAGIC_NUMBER, cache.get(7).longValue());
+        assertEquals(2, loadCounts.get(7));
+        assertEquals(0, cache.stats().hitCount());
+        
+        assertEquals(7 + MAGIC_NUMBER, cache.get(7).longValue());
+        assertEquals(2, loadCounts.get(7));
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(1, cache.size());
+    }
+    
     @Test
     public void test()
     {
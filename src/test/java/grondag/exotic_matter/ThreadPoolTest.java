@@ -1,10 +1,12 @@
 package grondag.exotic_matter;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
 import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -13,6 +15,7 @@ import org.junit.Test;
 
 import grondag.exotic_matter.concurrency.SimpleConcurrentList;
 import grondag.exotic_matter.concurrency.ScatterGatherThreadPoolImpl;
+import grondag.exotic_matter.concurrency.TaskProfile;
 
 public class ThreadPoolTest
 {
@@ -71,6 +74,10 @@ public class ThreadPoolTest
     
     final ScatterGatherThreadPoolImpl SIMPLE_POOL = new ScatterGatherThreadPoolImpl();
     
+    final TaskProfile SMALL_PROFILE = new TaskProfile();
+    
+    final TaskProfile BIG_PROFILE = new TaskProfile();
+    
     
     
     @Test
@@ -85,6 +92,9 @@ public class ThreadPoolTest
             this.SIMULATION_POOL.submit(() -> smallThings.stream(true).forEach(t -> t.doSomething())).get();
             SIMPLE_POOL.completeTask(bigThings, t -> t.doSomething());
             this.SIMULATION_POOL.submit(() -> bigThings.stream(true).forEach(t -> t.doSomething())).get();
+            SIMPLE_POOL.completeTaskAsync(bigThings, t -> t.doSomething()).join();
+            SIMPLE_POOL.completeTask(smallThings, SMALL_PROFILE, t -> t.doSomething());
+            SIMPLE_POOL.completeTask(bigThings, BIG_PROFILE, t -> t.doSomething());
         }
         System.out.println("");
         System.out.println("");
@@ -97,6 +107,11 @@ public class ThreadPoolTest
         long nanosSmallStream = 0;
         long nanosBigSimple = 0;
         long nanosBigStream = 0;
+        long nanosBigAsync = 0;
+        long nanosSmallAdaptive = 0;
+        long nanosBigAdaptive = 0;
+        long nanosOverlappedStream = 0;
+        long nanosOverlappedAsync = 0;
         
         while(true)
         {
@@ -110,6 +125,11 @@ public class ThreadPoolTest
             end = System.nanoTime();
             nanosSmallSimpleSingleBatch += (end - start);
             
+            start = System.nanoTime();
+            SIMPLE_POOL.completeTask(smallThings, SMALL_PROFILE, t -> t.doSomething());
+            end = System.nanoTime();
+            nanosSmallAdaptive += (end - start);
+            
             start = System.nanoTime();
             this.SIMULATION_POOL.submit(() -> smallThings.stream(true).forEach(t -> t.doSomething())).get();
             end = System.nanoTime();
@@ -120,18 +140,50 @@ public class ThreadPoolTest
             end = System.nanoTime();
             nanosBigSimple += (end - start);
             
+            start = System.nanoTime();
+            SIMPLE_POOL.completeTask(bigThings, BIG_PROFILE, t -> t.doSomething());
+            end = System.nanoTime();
+            nanosBigAdaptive += (end - start);
+            
             start = System.nanoTime();
             this.SIMULATION_POOL.submit(() -> bigThings.stream(true).forEach(t -> t.doSomething())).get();
             end = System.nanoTime();
             nanosBigStream += (end - start);
             
+            start = System.nanoTime();
+            SIMPLE_POOL.completeTaskAsync(bigThings, t -> t.doSomething()).join();
+            end = System.nanoTime();
+            nanosBigAsync += (end - start);
+            
+            // two independent tasks in flight at once, as when simulation phases overlap
+            start = System.nanoTime();
+            Future<?> streamBig = this.SIMULATION_POOL.submit(() -> bigThings.stream(true).forEach(t -> t.doSomething()));
+            Future<?> streamSmall = this.SIMULATION_POOL.submit(() -> smallThings.stream(true).forEach(t -> t.doSomething()));
+            streamBig.get();
+            streamSmall.get();
+            end = System.nanoTime();
+            nanosOverlappedStream += (end - start);
+            
+            start = System.nanoTime();
+            CompletableFuture<Void> asyncBig = SIMPLE_POOL.completeTaskAsync(bigThings, t -> t.doSomething());
+            CompletableFuture<Void> asyncSmall = SIMPLE_POOL.completeTaskAsync(smallThings, t -> t.doSomething());
+            asyncBig.join();
+            asyncSmall.join();
+            end = System.nanoTime();
+            nanosOverlappedAsync += (end - start);
+            
             iSmall += this.smallThings.size();
             iBig += this.bigThings.size();
             System.out.println("Avg Small Stream = "  + nanosSmallStream / (double)iSmall);
             System.out.println("Avg Small Simple = "  + nanosSmallSimple / (double)iSmall);
             System.out.println("Avg Small Simple Single Batch = "  + nanosSmallSimpleSingleBatch / (double)iSmall);
+            System.out.println("Avg Small Adaptive = "  + nanosSmallAdaptive / (double)iSmall + "  " + SMALL_PROFILE);
             System.out.println("Avg Big Stream = "  + nanosBigStream / (double)iBig);
             System.out.println("Avg Big Simple = "  + nanosBigSimple / (double)iBig);
+            System.out.println("Avg Big Adaptive = "  + nanosBigAdaptive / (double)iBig + "  " + BIG_PROFILE);
+            System.out.println("Avg Big Async = "  + nanosBigAsync / (double)iBig);
+            System.out.println("Avg Overlapped Stream = "  + nanosOverlappedStream / (double)(iBig + iSmall));
+            System.out.println("Avg Overlapped Async = "  + nanosOverlappedAsync / (double)(iBig + iSmall));
             System.out.println("");
         }
     }
@@ -0,0 +1,132 @@
+package grondag.exotic_matter.model.CSG2;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.exotic_matter.model.CSG2.CsgResultCache.Operation;
+import grondag.exotic_matter.model.mesh.MeshHelper;
+import grondag.exotic_matter.model.primitives.stream.IPolyStream;
+import grondag.exotic_matter.model.primitives.stream.IReadOnlyPolyStream;
+import grondag.exotic_matter.model.primitives.stream.IWritablePolyStream;
+import grondag.exotic_matter.model.primitives.stream.PolyStreams;
+import net.minecraft.util.math.AxisAlignedBB;
+
+class CsgResultCacheTest
+{
+    private static final int KEY_COUNT = 32;
+    
+    private static IReadOnlyPolyStream makeResult(int key)
+    {
+        final float offset = key / (float) KEY_COUNT;
+        IWritablePolyStream writer = PolyStreams.claimWritable();
+        MeshHelper.makePaintableBox(new AxisAlignedBB(0, 0, 0, 0.5 + offset * 0.5, 1, 1), writer);
+        return writer.releaseAndConvertToReader();
+    }
+    
+    private static int polyCount(IPolyStream stream)
+    {
+        int result = 0;
+        if(stream.origin())
+        {
+            do
+                result++;
+            while(stream.next());
+        }
+        return result;
+    }
+    
+    @Test
+    void test()
+    {
+        final IReadOnlyPolyStream sample = makeResult(0);
+        final int bytes = sample.storageBytes();
+        sample.release();
+        
+        // room for a few results, so most puts evict
+        final CsgResultCache cache = new CsgResultCache("test.cache.csg", bytes * 4);
+        
+        for(int i = 0; i < KEY_COUNT; i++)
+            cache.put(Operation.UNION, i, i, makeResult(i));
+        assert cache.size() == 4;
+        assert cache.usedBytes() <= bytes * 4;
+        
+        IWritablePolyStream output = PolyStreams.claimWritable();
+        assert cache.appendTo(Operation.UNION, KEY_COUNT - 1, KEY_COUNT - 1, output);
+        assert polyCount(output) == 6;
+        assert !cache.appendTo(Operation.UNION, 0, 0, output);
+        assert !cache.appendTo(Operation.DIFFERENCE, KEY_COUNT - 1, KEY_COUNT - 1, output);
+        output.release();
+        
+        cache.clear();
+        assert cache.size() == 0 && cache.usedBytes() == 0;
+    }
+    
+    /**
+     * Results are evicted and released while other threads are copying them.
+     */
+    @Test
+    void concurrentGetAndEvict() throws InterruptedException
+    {
+        final IReadOnlyPolyStream sample = makeResult(0);
+        final int bytes = sample.storageBytes();
+        sample.release();
+        
+        final CsgResultCache cache = new CsgResultCache("test.cache.csg.concurrent", bytes * 4);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ArrayList<Thread> threads = new ArrayList<>();
+        
+        threads.add(new Thread(() ->
+        {
+            try
+            {
+                for(int i = 0; i < 20000; i++)
+                {
+                    final int key = i % KEY_COUNT;
+                    cache.put(Operation.UNION, key, key, makeResult(key));
+                }
+            }
+            catch(Throwable e)
+            {
+                failure.compareAndSet(null, e);
+            }
+            running.set(false);
+        }));
+        
+        for(int t = 0; t < 4; t++)
+        {
+            threads.add(new Thread(() ->
+            {
+                try
+                {
+                    final ThreadLocalRandom r = ThreadLocalRandom.current();
+                    while(running.get())
+                    {
+                        final int key = r.nextInt(KEY_COUNT);
+                        final IWritablePolyStream output = PolyStreams.claimWritable();
+                        if(cache.appendTo(Operation.UNION, key, key, output))
+                            assert polyCount(output) == 6;
+                        output.release();
+                    }
+                }
+                catch(Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        
+        for(Thread t : threads)
+            t.start();
+        for(Thread t : threads)
+            t.join();
+        
+        assert failure.get() == null : failure.get();
+        assert cache.usedBytes() <= bytes * 4;
+        cache.clear();
+    }
+}
\ No newline at end of file
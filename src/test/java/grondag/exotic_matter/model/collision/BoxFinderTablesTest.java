@@ -0,0 +1,49 @@
+package grondag.exotic_matter.model.collision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class BoxFinderTablesTest
+{
+    @Test
+    void test() throws IOException
+    {
+        final BoxFinderTables computed = BoxFinderTables.compute();
+        
+        // tables in use - from build-time resource if present
+        assert Arrays.equals(BoxFinderUtils.AREAS, computed.areas);
+        assert Arrays.equals(BoxFinderUtils.BOUNDS, computed.bounds);
+        assert Arrays.equals(BoxFinderUtils.VOLUME_KEYS, computed.volumeKeys);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        computed.write(out);
+        final BoxFinderTables read = BoxFinderTables.read(new ByteArrayInputStream(out.toByteArray()));
+        
+        assert Arrays.equals(read.areas, computed.areas);
+        assert Arrays.equals(read.bounds, computed.bounds);
+        assert Arrays.equals(read.volumeKeys, computed.volumeKeys);
+        
+        // truncated or corrupt data is rejected
+        final byte[] bytes = out.toByteArray();
+        assert !isReadable(Arrays.copyOf(bytes, bytes.length - 1));
+        bytes[bytes.length / 2] ^= 0x55;
+        assert !isReadable(bytes);
+    }
+    
+    private static boolean isReadable(byte[] bytes)
+    {
+        try
+        {
+            BoxFinderTables.read(new ByteArrayInputStream(bytes));
+            return true;
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+    }
+}
\ No newline at end of file
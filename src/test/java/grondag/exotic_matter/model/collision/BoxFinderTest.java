@@ -223,6 +223,43 @@ class BoxFinderTest
         bf.findDisjointSets();
         assert bf.disjointSets.size() == 6;
         bf.explainDisjointSets();
+        
+        // Edges of a cube - many ways to combine volumes.
+        // Output with and without search limit must cover the same voxels.
+        bf.clear();
+        bf.setFilled(0, 0, 0, 7, 1, 1);
+        bf.setFilled(0, 6, 0, 7, 7, 1);
+        bf.setFilled(0, 0, 6, 7, 1, 7);
+        bf.setFilled(0, 6, 6, 7, 7, 7);
+        bf.setFilled(0, 0, 0, 1, 7, 1);
+        bf.setFilled(6, 0, 0, 7, 7, 1);
+        bf.setFilled(0, 0, 6, 1, 7, 7);
+        bf.setFilled(6, 0, 6, 7, 7, 7);
+        bf.setFilled(0, 0, 0, 1, 1, 7);
+        bf.setFilled(6, 0, 0, 7, 1, 7);
+        bf.setFilled(0, 6, 0, 1, 7, 7);
+        bf.setFilled(6, 6, 0, 7, 7, 7);
+        bf.saveTo(snapshot);
+        final int filledCount = bf.filledVoxelCount();
+        
+        SimpleBoxListBuilder builder = new SimpleBoxListBuilder();
+        bf.outputBoxes(builder);
+        assert bf.isSearchComplete();
+        assert boxVolume(builder) == filledCount;
+        
+        bf.restoreFrom(snapshot);
+        builder.clear();
+        bf.outputBoxes(builder, 1, 0);
+        assert !bf.isSearchComplete();
+        assert boxVolume(builder) == filledCount;
+    }
+    
+    private int boxVolume(SimpleBoxListBuilder builder)
+    {
+        int result = 0;
+        for(int boxKey : builder.boxes)
+            result += CollisionBoxEncoder.boxVolume(boxKey);
+        return result;
     }
     
 //    private void perfTest()
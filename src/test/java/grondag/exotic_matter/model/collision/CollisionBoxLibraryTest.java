@@ -0,0 +1,125 @@
+package grondag.exotic_matter.model.collision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class CollisionBoxLibraryTest
+{
+    private static final long HASH = CollisionBoxLibrary.generatorHash(8);
+    
+    /** magic, version, generator hash, entry count, data int count */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+    
+    private static final int[] BOXES_1 = { 10, 11, 12 };
+    private static final int[] BOXES_2 = { 20 };
+    private static final int[] BOXES_3 = { 30, 31 };
+    
+    /**
+     * Stands in for a model state. Lengths differ so stored data offsets vary.
+     */
+    private static int[] state(int id)
+    {
+        final int[] result = new int[id + 1];
+        Arrays.fill(result, id);
+        return result;
+    }
+    
+    private static File newFile(File dir)
+    {
+        return new File(dir, "collision_boxes.bin.new");
+    }
+    
+    /**
+     * Opens library as if the given bytes were saved last session.
+     */
+    private static CollisionBoxLibrary openWith(File dir, byte[] saved, long generatorHash) throws IOException
+    {
+        Files.write(newFile(dir).toPath(), saved);
+        return CollisionBoxLibrary.open(dir, generatorHash);
+    }
+    
+    @Test
+    void test() throws IOException
+    {
+        final File dir = Files.createTempDirectory("collision_library").toFile();
+        try
+        {
+            CollisionBoxLibrary library = CollisionBoxLibrary.open(dir, HASH);
+            assert library.get(state(1)) == null;
+            
+            // nothing to save
+            library.save();
+            assert !newFile(dir).exists();
+            
+            library.put(state(1), BOXES_1);
+            library.put(state(2), null);
+            library.save();
+            assert newFile(dir).exists();
+            
+            library = CollisionBoxLibrary.open(dir, HASH);
+            assert Arrays.equals(library.get(state(1)), BOXES_1);
+            final int[] kept = library.get(state(2));
+            assert kept != null && kept.length == 0;
+            assert library.get(state(3)) == null;
+            
+            // new entries are merged with stored ones and replace them
+            library.put(state(2), BOXES_2);
+            library.put(state(3), BOXES_3);
+            library.save();
+            final byte[] saved = Files.readAllBytes(newFile(dir).toPath());
+            
+            library = CollisionBoxLibrary.open(dir, HASH);
+            assert Arrays.equals(library.get(state(1)), BOXES_1);
+            assert Arrays.equals(library.get(state(2)), BOXES_2);
+            assert Arrays.equals(library.get(state(3)), BOXES_3);
+            
+            // later save in same session includes earlier results
+            library.put(state(4), BOXES_1);
+            library.save();
+            library.put(state(5), BOXES_2);
+            library.save();
+            library = CollisionBoxLibrary.open(dir, HASH);
+            assert Arrays.equals(library.get(state(3)), BOXES_3);
+            assert Arrays.equals(library.get(state(4)), BOXES_1);
+            assert Arrays.equals(library.get(state(5)), BOXES_2);
+            
+            // truncated file
+            library = openWith(dir, Arrays.copyOf(saved, saved.length - 4), HASH);
+            assert library.get(state(1)) == null;
+            
+            // different generator version or box budget
+            library = openWith(dir, saved, CollisionBoxLibrary.generatorHash(12));
+            assert library.get(state(1)) == null;
+            library = openWith(dir, saved, HASH + (1L << 32));
+            assert library.get(state(1)) == null;
+            
+            // different format version
+            final byte[] badVersion = saved.clone();
+            badVersion[7]++;
+            library = openWith(dir, badVersion, HASH);
+            assert library.get(state(1)) == null;
+            
+            // still readable when intact
+            library = openWith(dir, saved, HASH);
+            assert Arrays.equals(library.get(state(3)), BOXES_3);
+            
+            // stored entry found by key but for a different state is a miss - first entry is state 1
+            final byte[] collided = saved.clone();
+            ByteBuffer.wrap(collided).putLong(HEADER_BYTES, CollisionBoxLibrary.keyOf(state(7)));
+            library = openWith(dir, collided, HASH);
+            assert library.get(state(7)) == null;
+            assert Arrays.equals(library.get(state(3)), BOXES_3);
+        }
+        finally
+        {
+            for(File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
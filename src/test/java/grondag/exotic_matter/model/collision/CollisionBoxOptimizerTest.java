@@ -0,0 +1,229 @@
+package grondag.exotic_matter.model.collision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import grondag.exotic_matter.model.state.ModelState;
+
+class CollisionBoxOptimizerTest
+{
+    /**
+     * Holds tasks until run by the test.
+     */
+    private static class ManualExecutor implements Executor
+    {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.offer(command);
+        }
+        
+        int taskCount()
+        {
+            return tasks.size();
+        }
+        
+        void runAll()
+        {
+            while(!tasks.isEmpty())
+                tasks.poll().run();
+        }
+    }
+    
+    /**
+     * Records when it is optimized instead of generating boxes.
+     * Jobs with the same id have the same geometric state.
+     */
+    private static class TestJob extends OptimizingBoxList
+    {
+        private final ArrayList<OptimizingBoxList> runLog;
+        
+        /** number of runs that are cut short before the search completes */
+        private int partialRuns = 0;
+        
+        TestJob(int id, CollisionBoxOptimizer optimizer, ArrayList<OptimizingBoxList> runLog)
+        {
+            super(ImmutableList.of(), new ModelState(id, 0, 0, 0, 0, 0, 0, 0), new int[] { id }, optimizer);
+            this.runLog = runLog;
+        }
+        
+        @Override
+        int[] optimize(OptimalBoxGenerator generator, long maxNanos)
+        {
+            runLog.add(this);
+            isPartial = partialRuns-- > 0;
+            if(!isPartial)
+                modelState = null;
+            return new int[0];
+        }
+    }
+    
+    @Test
+    void replaceSameState()
+    {
+        final ManualExecutor exec = new ManualExecutor();
+        final CollisionBoxOptimizer optimizer = new CollisionBoxOptimizer(exec, 4, 0, null);
+        final ArrayList<OptimizingBoxList> runLog = new ArrayList<>();
+        
+        final TestJob first = new TestJob(1, optimizer, runLog);
+        first.requestCount = 3;
+        optimizer.submit(first);
+        assert first.state == OptimizingBoxList.STATE_QUEUED;
+        assert exec.taskCount() == 1;
+        
+        // newer list for same state replaces pending one and inherits its requests
+        final TestJob second = new TestJob(1, optimizer, runLog);
+        optimizer.submit(second);
+        assert first.state == OptimizingBoxList.STATE_DONE;
+        assert second.state == OptimizingBoxList.STATE_QUEUED;
+        assert second.requestCount == 3;
+        assert second.queuedPriority == 3;
+        assert second.queuedNanos == first.queuedNanos;
+        
+        // no extra worker for replacement
+        assert exec.taskCount() == 1;
+        
+        exec.runAll();
+        assert runLog.size() == 1;
+        assert runLog.get(0) == second;
+        assert second.state == OptimizingBoxList.STATE_DONE;
+    }
+    
+    @Test
+    void promoteWhenRequestsDouble()
+    {
+        final ManualExecutor exec = new ManualExecutor();
+        final CollisionBoxOptimizer optimizer = new CollisionBoxOptimizer(exec, 4, 0, null);
+        final ArrayList<OptimizingBoxList> runLog = new ArrayList<>();
+        
+        final TestJob a = new TestJob(1, optimizer, runLog);
+        final TestJob b = new TestJob(2, optimizer, runLog);
+        final TestJob c = new TestJob(3, optimizer, runLog);
+        
+        // first request queues each job
+        optimizer.onRequest(a);
+        optimizer.onRequest(b);
+        optimizer.onRequest(c);
+        assert a.state == OptimizingBoxList.STATE_QUEUED;
+        assert c.queuedPriority == 1;
+        
+        optimizer.onRequest(c);
+        assert c.queuedPriority == 2;
+        
+        // not moved again until count doubles
+        optimizer.onRequest(c);
+        assert c.queuedPriority == 2;
+        optimizer.onRequest(c);
+        assert c.queuedPriority == 4;
+        
+        optimizer.onRequest(b);
+        assert b.queuedPriority == 2;
+        
+        exec.runAll();
+        assert runLog.size() == 3;
+        assert runLog.get(0) == c;
+        assert runLog.get(1) == b;
+        assert runLog.get(2) == a;
+        
+        // requests after optimization have no effect
+        optimizer.onRequest(a);
+        assert a.state == OptimizingBoxList.STATE_DONE;
+        assert exec.taskCount() == 0;
+    }
+    
+    @Test
+    void refuseWhenFullAndRequeue()
+    {
+        final ManualExecutor exec = new ManualExecutor();
+        final CollisionBoxOptimizer optimizer = new CollisionBoxOptimizer(exec, 2, 0, null);
+        final ArrayList<OptimizingBoxList> runLog = new ArrayList<>();
+        
+        final TestJob a = new TestJob(1, optimizer, runLog);
+        final TestJob b = new TestJob(2, optimizer, runLog);
+        final TestJob c = new TestJob(3, optimizer, runLog);
+        
+        optimizer.onRequest(a);
+        optimizer.onRequest(b);
+        assert exec.taskCount() == 2;
+        
+        // at maxPending new jobs stay idle
+        optimizer.onRequest(c);
+        assert c.state == OptimizingBoxList.STATE_IDLE;
+        optimizer.submit(c);
+        assert c.state == OptimizingBoxList.STATE_IDLE;
+        assert exec.taskCount() == 2;
+        
+        // replacement is still accepted when full
+        final TestJob b2 = new TestJob(2, optimizer, runLog);
+        optimizer.submit(b2);
+        assert b2.state == OptimizingBoxList.STATE_QUEUED;
+        assert exec.taskCount() == 2;
+        
+        exec.runAll();
+        assert runLog.size() == 2;
+        assert runLog.contains(a);
+        assert runLog.contains(b2);
+        assert c.state == OptimizingBoxList.STATE_IDLE;
+        
+        // a later request finds room
+        optimizer.onRequest(c);
+        assert c.state == OptimizingBoxList.STATE_QUEUED;
+        assert c.queuedPriority == 2;
+        assert exec.taskCount() == 1;
+        
+        exec.runAll();
+        assert runLog.size() == 3;
+        assert runLog.get(2) == c;
+        assert c.state == OptimizingBoxList.STATE_DONE;
+    }
+    
+    /**
+     * Jobs still cut short after all refinements are used this session but not saved.
+     */
+    @Test
+    void partialNotSaved() throws IOException
+    {
+        final File dir = Files.createTempDirectory("collision_optimizer").toFile();
+        try
+        {
+            final CollisionBoxLibrary library = CollisionBoxLibrary.open(dir, CollisionBoxLibrary.generatorHash(8));
+            final ManualExecutor exec = new ManualExecutor();
+            final CollisionBoxOptimizer optimizer = new CollisionBoxOptimizer(exec, 4, 0, library);
+            final ArrayList<OptimizingBoxList> runLog = new ArrayList<>();
+            
+            final TestJob refined = new TestJob(1, optimizer, runLog);
+            refined.partialRuns = 1;
+            final TestJob cutShort = new TestJob(2, optimizer, runLog);
+            cutShort.partialRuns = Integer.MAX_VALUE;
+            
+            optimizer.onRequest(refined);
+            optimizer.onRequest(cutShort);
+            exec.runAll();
+            
+            assert Collections.frequency(runLog, refined) == 2;
+            assert !refined.isPartial;
+            assert library.get(refined.libraryState) != null;
+            
+            assert Collections.frequency(runLog, cutShort) == CollisionBoxOptimizer.MAX_REFINE_ROUNDS + 1;
+            assert !cutShort.isPartial;
+            assert library.get(cutShort.libraryState) == null;
+        }
+        finally
+        {
+            for(File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
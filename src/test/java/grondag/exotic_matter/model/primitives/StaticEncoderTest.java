@@ -20,9 +20,18 @@ import grondag.acuity.api.TextureFormat;
 import grondag.acuity.api.UniformUpdateFrequency;
 import grondag.exotic_matter.model.painting.Surface;
 import grondag.exotic_matter.model.painting.SurfaceTopology;
+import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.model.primitives.stream.DispatchPolyStream;
+import grondag.exotic_matter.model.primitives.stream.EncoderFunctions;
+import grondag.exotic_matter.model.primitives.stream.IWritablePolyStream;
+import grondag.exotic_matter.model.primitives.stream.PolyStreamFormat;
+import grondag.exotic_matter.model.primitives.stream.PolyStreams;
 import grondag.exotic_matter.model.primitives.stream.StaticEncoder;
 import grondag.exotic_matter.varia.intstream.IIntStream;
 import grondag.exotic_matter.varia.intstream.IntStreams;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
 import grondag.exotic_matter.world.Rotation;
 import net.minecraft.util.BlockRenderLayer;
 
@@ -194,4 +203,206 @@ class StaticEncoderTest
         stream.release();
     }
 
+    @Test
+    void quantizedPos()
+    {
+        IIntStream stream = IntStreams.claim();
+        
+        // every value on the 1/48 grid within signed 10-bit range survives exactly
+        for(int i = -511; i <= 511; i++)
+        {
+            final float x = i / EncoderFunctions.POS_QUANTIZE_SCALE;
+            final float y = -x;
+            final float z = (i * 7 % 512) / EncoderFunctions.POS_QUANTIZE_SCALE;
+            assert EncoderFunctions.isQuantizablePos(x);
+            assert EncoderFunctions.isQuantizablePos(y);
+            assert EncoderFunctions.isQuantizablePos(z);
+            
+            EncoderFunctions.SET_POS_XYZ_QUANTIZED.set(stream, 5, x, y, z);
+            assert EncoderFunctions.GET_POS_X_QUANTIZED.get(stream, 5) == x;
+            assert EncoderFunctions.GET_POS_Y_QUANTIZED.get(stream, 5) == y;
+            assert EncoderFunctions.GET_POS_Z_QUANTIZED.get(stream, 5) == z;
+        }
+        
+        final float min = -512 / EncoderFunctions.POS_QUANTIZE_SCALE;
+        assert EncoderFunctions.isQuantizablePos(min);
+        EncoderFunctions.SET_POS_XYZ_QUANTIZED.set(stream, 5, min, min, min);
+        assert EncoderFunctions.GET_POS_X_QUANTIZED.get(stream, 5) == min;
+        assert EncoderFunctions.GET_POS_Y_QUANTIZED.get(stream, 5) == min;
+        assert EncoderFunctions.GET_POS_Z_QUANTIZED.get(stream, 5) == min;
+        
+        // 1/16 and 1/12 grids are included
+        assert EncoderFunctions.isQuantizablePos(3f / 16f);
+        assert EncoderFunctions.isQuantizablePos(5f / 12f);
+        
+        // off grid
+        assert !EncoderFunctions.isQuantizablePos(0.01f);
+        assert !EncoderFunctions.isQuantizablePos(1f / 32f);
+        assert !EncoderFunctions.isQuantizablePos(0.5f + 0.0001f);
+        
+        // out of range
+        assert !EncoderFunctions.isQuantizablePos(512 / EncoderFunctions.POS_QUANTIZE_SCALE);
+        assert !EncoderFunctions.isQuantizablePos(-513 / EncoderFunctions.POS_QUANTIZE_SCALE);
+        assert !EncoderFunctions.isQuantizablePos(100f);
+        
+        stream.release();
+    }
+    
+    @Test
+    void quantizedUV()
+    {
+        IIntStream stream = IntStreams.claim();
+        
+        // every 16-bit value survives exactly, u and v independently
+        for(int i = 0; i <= 0xFFFF; i++)
+        {
+            final float u = i / EncoderFunctions.UV_QUANTIZE_SCALE;
+            final float v = (0xFFFF - i) / EncoderFunctions.UV_QUANTIZE_SCALE;
+            assert EncoderFunctions.isQuantizableUV(u);
+            
+            EncoderFunctions.SET_UV2_QUANTIZED.set(stream, 3, u, v);
+            assert EncoderFunctions.GET_UV_LOW_QUANTIZED.get(stream, 3) == u;
+            assert EncoderFunctions.GET_UV_HIGH_QUANTIZED.get(stream, 3) == v;
+            
+            EncoderFunctions.SET_UV_LOW_QUANTIZED.set(stream, 3, v);
+            assert EncoderFunctions.GET_UV_LOW_QUANTIZED.get(stream, 3) == v;
+            assert EncoderFunctions.GET_UV_HIGH_QUANTIZED.get(stream, 3) == v;
+            
+            EncoderFunctions.SET_UV_HIGH_QUANTIZED.set(stream, 3, u);
+            assert EncoderFunctions.GET_UV_LOW_QUANTIZED.get(stream, 3) == v;
+            assert EncoderFunctions.GET_UV_HIGH_QUANTIZED.get(stream, 3) == u;
+        }
+        
+        // off grid
+        assert !EncoderFunctions.isQuantizableUV(0.1f);
+        assert !EncoderFunctions.isQuantizableUV(1f / 7f);
+        
+        // out of range
+        assert !EncoderFunctions.isQuantizableUV(-1f / EncoderFunctions.UV_QUANTIZE_SCALE);
+        assert !EncoderFunctions.isQuantizableUV(0x10000 / EncoderFunctions.UV_QUANTIZE_SCALE);
+        
+        stream.release();
+    }
+    
+    /**
+     * Quad with two layers. Positions and UVs are on the packing grids except for the given values.
+     */
+    private static int addQuad(IWritablePolyStream stream, float z, float v0)
+    {
+        final int address = stream.writerAddress();
+        stream.setVertexCount(4);
+        stream.setLayerCount(2);
+        IMutablePolygon writer = stream.writer();
+        writer.setVertexPos(0, -5f / 48f, 0, 1);
+        writer.setVertexPos(1, 511f / 48f, 0, 1);
+        writer.setVertexPos(2, 511f / 48f, 3f / 16f, z);
+        writer.setVertexPos(3, -5f / 48f, 3f / 16f, 5f / 12f);
+        for(int i = 0; i < 4; i++)
+        {
+            writer.setVertexUV(0, i, i / 4f, v0);
+            writer.setVertexUV(1, i, 1 - i / 4f, 100f / 3072f);
+        }
+        stream.append();
+        return address;
+    }
+    
+    private static void assertSameVertices(IPolygon a, IPolygon b)
+    {
+        assert a.vertexCount() == b.vertexCount();
+        assert a.layerCount() == b.layerCount();
+        for(int v = 0; v < a.vertexCount(); v++)
+        {
+            assert a.getVertexX(v) == b.getVertexX(v);
+            assert a.getVertexY(v) == b.getVertexY(v);
+            assert a.getVertexZ(v) == b.getVertexZ(v);
+            for(int l = 0; l < a.layerCount(); l++)
+            {
+                assert a.getVertexU(l, v) == b.getVertexU(l, v);
+                assert a.getVertexV(l, v) == b.getVertexV(l, v);
+            }
+        }
+    }
+    
+    /**
+     * Bytes saved by frozen copy of the poly, from frozen metrics.
+     */
+    private static long frozenSavings(DispatchPolyStream dispatch, IPolygon poly)
+    {
+        final MetricCounter before = Metrics.counter("polystream.frozen.bytesBefore");
+        final MetricCounter after = Metrics.counter("polystream.frozen.bytesAfter");
+        final long startBefore = before.get();
+        final long startAfter = after.get();
+        dispatch.accept(poly);
+        return (before.get() - startBefore) - (after.get() - startAfter);
+    }
+    
+    /**
+     * Frozen copies in dispatch streams are packed only when lossless.
+     */
+    @Test
+    void frozenCopy()
+    {
+        IWritablePolyStream source = PolyStreams.claimWritable();
+        final int onGrid = addQuad(source, 1, 0.5f);
+        final int offGridPos = addQuad(source, 0.01f, 0.5f);
+        final int offGridUV = addQuad(source, 1, 0.1f);
+        final int outOfRangePos = addQuad(source, 11f, 0.5f);
+        final int outOfRangeUV = addQuad(source, 1, -0.25f);
+        
+        int format = PolyStreamFormat.minimalFrozenFormat(source.polyA(onGrid), 0);
+        assert PolyStreamFormat.isQuantizedPos(format);
+        assert PolyStreamFormat.getVertexUVFormat(format) == PolyStreamFormat.VERTEX_UV_BY_LAYER_HALF;
+        
+        format = PolyStreamFormat.minimalFrozenFormat(source.polyA(offGridPos), 0);
+        assert !PolyStreamFormat.isQuantizedPos(format);
+        assert PolyStreamFormat.getVertexUVFormat(format) == PolyStreamFormat.VERTEX_UV_BY_LAYER_HALF;
+        
+        format = PolyStreamFormat.minimalFrozenFormat(source.polyA(offGridUV), 0);
+        assert PolyStreamFormat.isQuantizedPos(format);
+        assert PolyStreamFormat.getVertexUVFormat(format) == PolyStreamFormat.VERTEX_UV_BY_LAYER;
+        
+        format = PolyStreamFormat.minimalFrozenFormat(source.polyA(outOfRangePos), 0);
+        assert !PolyStreamFormat.isQuantizedPos(format);
+        assert PolyStreamFormat.getVertexUVFormat(format) == PolyStreamFormat.VERTEX_UV_BY_LAYER_HALF;
+        
+        format = PolyStreamFormat.minimalFrozenFormat(source.polyA(outOfRangeUV), 0);
+        assert PolyStreamFormat.isQuantizedPos(format);
+        assert PolyStreamFormat.getVertexUVFormat(format) == PolyStreamFormat.VERTEX_UV_BY_LAYER;
+        
+        final boolean wasEnabled = Metrics.isEnabled();
+        Metrics.setEnabled(true);
+        PolyStreams.setFrozenDispatch(true);
+        try
+        {
+            DispatchPolyStream dispatch = PolyStreams.claimDispatch();
+            
+            // packing either one saves space, packing both saves more
+            final long savedBoth = frozenSavings(dispatch, source.polyA(onGrid));
+            final long savedUV = frozenSavings(dispatch, source.polyA(offGridPos));
+            final long savedPos = frozenSavings(dispatch, source.polyA(offGridUV));
+            assert savedUV > 0 && savedUV < savedBoth;
+            assert savedPos > 0 && savedPos < savedBoth;
+            assert frozenSavings(dispatch, source.polyA(outOfRangePos)) == savedUV;
+            assert frozenSavings(dispatch, source.polyA(outOfRangeUV)) == savedPos;
+            
+            // all values read back exactly, in order accepted
+            final int[] addresses = { onGrid, offGridPos, offGridUV, outOfRangePos, outOfRangeUV };
+            int i = 0;
+            assert dispatch.origin();
+            do
+                assertSameVertices(dispatch.reader(), source.polyA(addresses[i++]));
+            while(dispatch.next());
+            assert i == addresses.length;
+            
+            dispatch.release();
+        }
+        finally
+        {
+            PolyStreams.setFrozenDispatch(false);
+            Metrics.setEnabled(wasEnabled);
+        }
+        
+        source.release();
+    }
+    
 }
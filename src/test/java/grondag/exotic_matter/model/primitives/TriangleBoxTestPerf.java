@@ -1,10 +1,15 @@
 package grondag.exotic_matter.model.primitives;
 
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 
+import grondag.exotic_matter.model.collision.TriangleVoxelizer;
+import grondag.exotic_matter.model.collision.octree.OctreeCoordinates;
 import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
 
 class TriangleBoxTestPerf
@@ -47,4 +52,144 @@ class TriangleBoxTestPerf
         System.out.println("true count = " + trueCount + "  nanos per call: " + elapsed / samples);
         System.out.println("");
     }
+    
+    /**
+     * Compares batched voxelization with one-box-at-a-time recursion
+     * at 16x16x16 and 8x8x8 and checks that both set the same voxels.
+     */
+    @Test
+    void voxelize()
+    {
+        for(int i = 0; i < 10; i++)
+        {
+            doVoxelize(4);
+            doVoxelize(3);
+        }
+    }
+    
+    private void doVoxelize(int divisionLevel)
+    {
+        final int meshes = 200000;
+        final int trianglesPerMesh = 8;
+        final Random r = new Random(42);
+        
+        final float[] polyData = new float[TriangleBoxTest.POLY_DATA_SIZE];
+        final int gridSize = 1 << divisionLevel;
+        final long[] expected = new long[gridSize * gridSize * gridSize / 64];
+        final long[] actual = new long[expected.length];
+        final TriangleVoxelizer voxelizer = new TriangleVoxelizer(divisionLevel);
+        long recursiveNanos = 0;
+        long batchNanos = 0;
+        
+        IMutablePolygon poly = PolyFactory.COMMON_POOL.newPaintable(3);
+        
+        for(int i = 0; i < meshes; i++)
+        {
+            Arrays.fill(expected, 0);
+            Arrays.fill(actual, 0);
+            
+            for(int j = 0; j < trianglesPerMesh; j++)
+            {
+                // some vertices on voxel boundaries to exercise touching and co-planar cases
+                for(int v = 0; v < 3; v++)
+                {
+                    if(r.nextInt(4) == 0)
+                        poly.setVertex(v, (float) r.nextInt(gridSize + 1) / gridSize, (float) r.nextInt(gridSize + 1) / gridSize, 
+                                (float) r.nextInt(gridSize + 1) / gridSize, 0, 0, 0);
+                    else
+                        poly.setVertex(v, r.nextFloat(), r.nextFloat(), r.nextFloat(), 0, 0, 0);
+                }
+                
+                recursiveNanos -= System.nanoTime();
+                TriangleBoxTest.packPolyData(poly.getPos(0), poly.getPos(1), poly.getPos(2), polyData);
+                if(divisionLevel == 4)
+                    divide(1, 0f, 0f, 0f, 0, 0, 0, polyData, expected);
+                else
+                    divideOctree(1, 0f, 0f, 0f, 0, polyData, expected);
+                recursiveNanos += System.nanoTime();
+                
+                batchNanos -= System.nanoTime();
+                voxelizer.addTriangle(poly.getPos(0), poly.getPos(1), poly.getPos(2));
+                batchNanos += System.nanoTime();
+            }
+            
+            batchNanos -= System.nanoTime();
+            voxelizer.voxelize(actual);
+            batchNanos += System.nanoTime();
+            
+            assertArrayEquals(expected, actual);
+        }
+        
+        poly.release();
+        final int samples = meshes * trianglesPerMesh;
+        System.out.println("level " + divisionLevel + " nanos per triangle - recursive: " + recursiveNanos / samples + "  batched: " + batchNanos / samples);
+        System.out.println("");
+    }
+    
+    /**
+     * Same box centers and search order as the generators used before batching.
+     */
+    private static void divide(int level, float x0, float y0, float z0, int x, int y, int z, float[] polyData, long[] voxelBits)
+    {
+        final float d = 1f / (1 << level);
+        final float r = d * 0.5f;
+        final float low = r;
+        final float high = r + d;
+        final int shift = 4 - level;
+        
+        for(int i = 0; i < 8; i++)
+        {
+            final boolean bx = (i & 1) != 0;
+            final boolean by = (i & 2) != 0;
+            final boolean bz = (i & 4) != 0;
+            
+            if(!TriangleBoxTest.triBoxOverlap(x0 + (bx ? high : low), y0 + (by ? high : low), z0 + (bz ? high : low), r, polyData))
+                continue;
+            
+            final int cx = x | ((bx ? 1 : 0) << shift);
+            final int cy = y | ((by ? 1 : 0) << shift);
+            final int cz = z | ((bz ? 1 : 0) << shift);
+            
+            if(level == 4)
+            {
+                final int xyz = cx | (cy << 4) | (cz << 8);
+                voxelBits[xyz >> 6] |= (1L << (xyz & 63));
+            }
+            else
+                divide(level + 1, bx ? x0 + d : x0, by ? y0 + d : y0, bz ? z0 + d : z0, cx, cy, cz, polyData, voxelBits);
+        }
+    }
+    
+    /**
+     * Same as div1..div3 in {@link grondag.exotic_matter.model.collision.FastBoxGenerator} before batching.
+     * Builds an octree index and converts it to Cartesian coordinates for the 8x8x8 grid.
+     */
+    private static void divideOctree(int level, float x0, float y0, float z0, int baseIndex, float[] polyData, long[] voxelBits)
+    {
+        final float d = 1f / (1 << level);
+        final float r = d * 0.5f;
+        final float low = r;
+        final float high = r + d;
+        final int shift = (3 - level) * 3;
+        
+        for(int i = 0; i < 8; i++)
+        {
+            final boolean bx = (i & 1) != 0;
+            final boolean by = (i & 2) != 0;
+            final boolean bz = (i & 4) != 0;
+            
+            if(!TriangleBoxTest.triBoxOverlap(x0 + (bx ? high : low), y0 + (by ? high : low), z0 + (bz ? high : low), r, polyData))
+                continue;
+            
+            final int index = baseIndex | (i << shift);
+            
+            if(level == 3)
+            {
+                final int xyz = OctreeCoordinates.indexToXYZ3(index);
+                voxelBits[xyz >> 6] |= (1L << (xyz & 63));
+            }
+            else
+                divideOctree(level + 1, bx ? x0 + d : x0, by ? y0 + d : y0, bz ? z0 + d : z0, index, polyData, voxelBits);
+        }
+    }
 }
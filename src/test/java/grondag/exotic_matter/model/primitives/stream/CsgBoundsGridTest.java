@@ -0,0 +1,120 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.exotic_matter.model.mesh.MeshHelper;
+import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import net.minecraft.util.math.AxisAlignedBB;
+
+class CsgBoundsGridTest
+{
+    /**
+     * min x, y, z then max x, y, z of poly
+     */
+    private static float[] bounds(IPolygon poly)
+    {
+        final float[] result = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for(int i = 0; i < poly.vertexCount(); i++)
+        {
+            final float x = poly.getVertexX(i);
+            final float y = poly.getVertexY(i);
+            final float z = poly.getVertexZ(i);
+            result[0] = Math.min(result[0], x);
+            result[1] = Math.min(result[1], y);
+            result[2] = Math.min(result[2], z);
+            result[3] = Math.max(result[3], x);
+            result[4] = Math.max(result[4], y);
+            result[5] = Math.max(result[5], z);
+        }
+        return result;
+    }
+    
+    private static boolean overlaps(float[] a, float[] b)
+    {
+        return a[3] >= b[0] && a[0] <= b[3]
+            && a[4] >= b[1] && a[1] <= b[4]
+            && a[5] >= b[2] && a[2] <= b[5];
+    }
+    
+    /**
+     * Grid must report every poly that overlaps the bounds of any poly in the mesh.
+     */
+    @Test
+    void mayTouchIsConservative()
+    {
+        // sparse boxes leave plenty of empty cells
+        final IWritablePolyStream boxes = PolyStreams.claimWritable();
+        MeshHelper.makePaintableBox(new AxisAlignedBB(0.1, 0.1, 0.1, 0.3, 0.3, 0.3), boxes);
+        MeshHelper.makePaintableBox(new AxisAlignedBB(0.6, 0.2, 0.5, 0.9, 0.4, 0.95), boxes);
+        MeshHelper.makePaintableBox(new AxisAlignedBB(0.2, 0.7, 0.6, 0.4, 0.9, 0.8), boxes);
+        
+        final CsgPolyStream mesh = PolyStreams.claimCSG(boxes);
+        mesh.complete();
+        
+        // may include fragments of polys split by tree, always within original
+        final ArrayList<float[]> meshBounds = new ArrayList<>();
+        if(mesh.origin())
+        {
+            do
+                meshBounds.add(bounds(mesh.reader()));
+            while(mesh.next());
+        }
+        
+        final CsgBoundsGrid grid = new CsgBoundsGrid();
+        grid.build(mesh);
+        
+        final IWritablePolyStream tris = PolyStreams.claimWritable();
+        final IMutablePolygon writer = tris.writer();
+        final Random r = new Random(42);
+        int touchCount = 0;
+        int rejectCount = 0;
+        
+        for(int i = 0; i < 20000; i++)
+        {
+            final float x = r.nextFloat() * 1.2f - 0.1f;
+            final float y = r.nextFloat() * 1.2f - 0.1f;
+            final float z = r.nextFloat() * 1.2f - 0.1f;
+            final float size = r.nextFloat() * 0.1f;
+            
+            final int address = tris.writerAddress();
+            tris.setVertexCount(3);
+            writer.setVertexPos(0, x, y, z);
+            writer.setVertexPos(1, x + size * r.nextFloat(), y + size, z);
+            writer.setVertexPos(2, x, y + size * r.nextFloat(), z + size);
+            tris.append();
+            
+            final IPolygon tri = tris.polyA(address);
+            final float[] triBounds = bounds(tri);
+            boolean touches = false;
+            for(float[] b : meshBounds)
+            {
+                if(overlaps(triBounds, b))
+                {
+                    touches = true;
+                    break;
+                }
+            }
+            
+            final boolean mayTouch = grid.mayTouch(tri);
+            if(touches)
+            {
+                assert mayTouch;
+                touchCount++;
+            }
+            else if(!mayTouch)
+                rejectCount++;
+        }
+        
+        // test covers both cases and grid is useful
+        assert touchCount > 0;
+        assert rejectCount > 0;
+        
+        tris.release();
+        mesh.release();
+        boxes.release();
+    }
+}
@@ -0,0 +1,190 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.exotic_matter.concurrency.ScatterGatherThreadPoolImpl;
+import grondag.exotic_matter.model.mesh.MeshHelper;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import grondag.exotic_matter.model.primitives.vertex.IVec3f;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.math.Vec3d;
+
+class CsgPolyStreamTest
+{
+    /**
+     * Grid of small boxes, enough polys to clip in parallel.
+     */
+    private static IReadOnlyPolyStream makeBoxes()
+    {
+        IWritablePolyStream writer = PolyStreams.claimWritable();
+        for(int x = 0; x < 4; x++)
+            for(int y = 0; y < 4; y++)
+                for(int z = 0; z < 4; z++)
+                    MeshHelper.makePaintableBox(new AxisAlignedBB(x * 0.25, y * 0.25, z * 0.25, x * 0.25 + 0.2, y * 0.25 + 0.2, z * 0.25 + 0.2), writer);
+        return writer.releaseAndConvertToReader();
+    }
+    
+    private static CsgPolyStream makeSphere()
+    {
+        IWritablePolyStream writer = PolyStreams.claimWritable();
+        MeshHelper.makeIcosahedron(new Vec3d(0.5, 0.5, 0.5), 0.45, writer, false);
+        CsgPolyStream result = PolyStreams.claimCSG(writer);
+        writer.release();
+        result.complete();
+        return result;
+    }
+    
+    private static int polyCount(IPolyStream stream)
+    {
+        int result = 0;
+        if(stream.origin())
+        {
+            do
+                result++;
+            while(stream.next());
+        }
+        return result;
+    }
+    
+    /**
+     * True if both streams have the same polys in the same order.
+     */
+    private static boolean isSame(IPolyStream a, IPolyStream b)
+    {
+        boolean hasA = a.origin();
+        boolean hasB = b.origin();
+        while(hasA && hasB)
+        {
+            final IPolygon polyA = a.reader();
+            final IPolygon polyB = b.reader();
+            final int vertexCount = polyA.vertexCount();
+            if(vertexCount != polyB.vertexCount())
+                return false;
+            
+            for(int i = 0; i < vertexCount; i++)
+            {
+                final IVec3f posA = polyA.getPos(i);
+                final IVec3f posB = polyB.getPos(i);
+                if(posA.x() != posB.x() || posA.y() != posB.y() || posA.z() != posB.z())
+                    return false;
+            }
+            hasA = a.next();
+            hasB = b.next();
+        }
+        return hasA == hasB;
+    }
+    
+    private static double area(IPolyStream stream)
+    {
+        double result = 0;
+        if(stream.origin())
+        {
+            do
+                result += stream.reader().getArea();
+            while(stream.next());
+        }
+        return result;
+    }
+    
+    @Test
+    void closedMesh()
+    {
+        final CsgPolyStream sphere = makeSphere();
+        assert sphere.checkClosed();
+        sphere.release();
+        
+        final IReadOnlyPolyStream boxes = makeBoxes();
+        final CsgPolyStream box = PolyStreams.claimCSG(boxes);
+        box.complete();
+        assert box.checkClosed();
+        box.release();
+        
+        // box without its last face
+        final CsgPolyStream open = PolyStreams.claimCSG();
+        if(boxes.origin())
+        {
+            for(int i = 0; i < 5; i++)
+            {
+                open.appendCopy(boxes.reader());
+                boxes.next();
+            }
+        }
+        open.complete();
+        assert !open.checkClosed();
+        open.release();
+        boxes.release();
+    }
+    
+    /**
+     * Polys that can't touch a closed clipping mesh are kept or deleted whole.
+     * Result must cover the same surface as a full clip.
+     */
+    @Test
+    void boundsClipMatchesFullClip()
+    {
+        final IReadOnlyPolyStream boxes = makeBoxes();
+        
+        final CsgPolyStream sphere = makeSphere();
+        final CsgPolyStream bounded = PolyStreams.claimCSG(boxes);
+        bounded.complete();
+        bounded.clipTo(sphere);
+        
+        final CsgPolyStream fullSphere = makeSphere();
+        fullSphere.isClosedKnown = true;
+        fullSphere.isClosed = false;
+        final CsgPolyStream full = PolyStreams.claimCSG(boxes);
+        full.complete();
+        full.clipTo(fullSphere);
+        
+        final double boundedArea = area(bounded);
+        assert boundedArea < area(boxes);
+        assert Math.abs(boundedArea - area(full)) < 1e-4;
+        
+        // full clip can only split more
+        assert polyCount(bounded) <= polyCount(full);
+        
+        bounded.release();
+        full.release();
+        sphere.release();
+        fullSphere.release();
+        boxes.release();
+    }
+    
+    @Test
+    void parallelClipMatchesSerial()
+    {
+        final ScatterGatherThreadPoolImpl pool = new ScatterGatherThreadPoolImpl();
+        final IReadOnlyPolyStream boxes = makeBoxes();
+        final int inputCount = polyCount(boxes);
+        assert inputCount >= CsgPolyStream.PARALLEL_CLIP_THRESHOLD;
+        
+        try
+        {
+            for(int n = 0; n < 20; n++)
+            {
+                final CsgPolyStream sphere = makeSphere();
+                
+                final CsgPolyStream serial = PolyStreams.claimCSG(boxes);
+                serial.complete();
+                serial.clipTo(sphere);
+                
+                final CsgPolyStream parallel = PolyStreams.claimCSG(boxes);
+                parallel.complete();
+                parallel.clipTo(sphere, pool);
+                
+                // clip removed some polys and split others
+                assert polyCount(serial) != inputCount;
+                assert isSame(serial, parallel);
+                
+                serial.release();
+                parallel.release();
+                sphere.release();
+            }
+        }
+        finally
+        {
+            boxes.release();
+            pool.stop();
+        }
+    }
+}
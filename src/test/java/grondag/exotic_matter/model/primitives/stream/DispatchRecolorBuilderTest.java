@@ -0,0 +1,166 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.exotic_matter.model.mesh.MeshHelper;
+import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
+import grondag.exotic_matter.model.primitives.polygon.IPolygon;
+import net.minecraft.util.math.AxisAlignedBB;
+
+class DispatchRecolorBuilderTest
+{
+    private static final int COLOR = 0xFF204080;
+    
+    private static IReadOnlyPolyStream makeBoxes(double offset)
+    {
+        IWritablePolyStream writer = PolyStreams.claimWritable();
+        MeshHelper.makePaintableBox(new AxisAlignedBB(offset, 0, 0, 0.5, 0.5, 0.5), writer);
+        MeshHelper.makePaintableBox(new AxisAlignedBB(0.5, 0.5, 0.5, 1, 1, 1), writer);
+        return writer.releaseAndConvertToReader();
+    }
+    
+    private static DispatchPolyStream dispatch(IPolyStream input)
+    {
+        DispatchPolyStream result = PolyStreams.claimDispatch();
+        input.origin();
+        do
+            result.accept(input.reader());
+        while(input.next());
+        result.build();
+        return result;
+    }
+    
+    /**
+     * Color for vertex of poly in recolored mesh. Odd polys have a different color per vertex.
+     */
+    private static int expectedColor(int polyIndex, int vertexIndex)
+    {
+        return (polyIndex & 1) == 0 ? COLOR : COLOR + vertexIndex;
+    }
+    
+    /**
+     * Sends copies of input polys with new colors in layer 0.
+     */
+    private static void acceptRecolored(IPolyStream input, Consumer<IPolygon> target)
+    {
+        IWritablePolyStream copy = PolyStreams.claimWritable();
+        IMutablePolygon writer = copy.writer();
+        int polyIndex = 0;
+        input.origin();
+        do
+        {
+            IPolygon reader = input.reader();
+            copy.setVertexCount(reader.vertexCount());
+            copy.setLayerCount(reader.layerCount());
+            writer.copyFrom(reader, true);
+            for(int v = 0; v < reader.vertexCount(); v++)
+                writer.setVertexColor(0, v, expectedColor(polyIndex, v));
+            target.accept(writer);
+            polyIndex++;
+        }
+        while(input.next());
+        copy.release();
+    }
+    
+    private static void assertRecolored(IPolyStream view, IPolyStream base, int baseColor)
+    {
+        int polyIndex = 0;
+        assert view.origin();
+        assert base.origin();
+        do
+        {
+            IPolygon v = view.reader();
+            IPolygon b = base.reader();
+            assert v.vertexCount() == b.vertexCount();
+            for(int i = 0; i < v.vertexCount(); i++)
+            {
+                assert v.getVertexX(i) == b.getVertexX(i);
+                assert v.getVertexY(i) == b.getVertexY(i);
+                assert v.getVertexZ(i) == b.getVertexZ(i);
+                assert v.getVertexColor(0, i) == expectedColor(polyIndex, i);
+                assert b.getVertexColor(0, i) == baseColor;
+            }
+            polyIndex++;
+            assert base.next();
+        }
+        while(view.next());
+        assert !base.next();
+    }
+    
+    @Test
+    void recolor()
+    {
+        IReadOnlyPolyStream mesh = makeBoxes(0);
+        DispatchPolyStream base = dispatch(mesh);
+        final int baseColor = base.reader(base.originAddress).getVertexColor(0, 0);
+        
+        DispatchRecolorBuilder builder = DispatchRecolorBuilder.prepareThreadLocal(base);
+        acceptRecolored(mesh, builder);
+        DispatchPolyStream view = builder.build();
+        assert view != null;
+        assert view.contentHash() != base.contentHash();
+        assertRecolored(view, base, baseColor);
+        
+        // release in either order
+        view.release();
+        view = dispatchRecolored(mesh, base);
+        assertRecolored(view, base, baseColor);
+        view.release();
+        
+        DispatchPolyStream view2 = dispatchRecolored(mesh, base);
+        base.release();
+        DispatchPolyStream expected = dispatch(mesh);
+        assertRecolored(view2, expected, baseColor);
+        
+        view2.release();
+        expected.release();
+        mesh.release();
+    }
+    
+    private static DispatchPolyStream dispatchRecolored(IPolyStream mesh, DispatchPolyStream base)
+    {
+        DispatchRecolorBuilder builder = DispatchRecolorBuilder.prepareThreadLocal(base);
+        acceptRecolored(mesh, builder);
+        DispatchPolyStream result = builder.build();
+        assert result != null;
+        return result;
+    }
+    
+    /**
+     * Meshes that differ in more than color are not built as views.
+     */
+    @Test
+    void mismatch()
+    {
+        IReadOnlyPolyStream mesh = makeBoxes(0);
+        DispatchPolyStream base = dispatch(mesh);
+        
+        IReadOnlyPolyStream moved = makeBoxes(0.25);
+        DispatchRecolorBuilder builder = DispatchRecolorBuilder.prepareThreadLocal(base);
+        acceptRecolored(moved, builder);
+        assert builder.build() == null;
+        
+        // fewer polys
+        builder = DispatchRecolorBuilder.prepareThreadLocal(base);
+        mesh.origin();
+        builder.accept(mesh.reader());
+        assert builder.build() == null;
+        
+        // same mesh is a view with no color changes
+        builder = DispatchRecolorBuilder.prepareThreadLocal(base);
+        mesh.origin();
+        do
+            builder.accept(mesh.reader());
+        while(mesh.next());
+        DispatchPolyStream view = builder.build();
+        assert view != null;
+        assert view.contentHash() == base.contentHash();
+        
+        view.release();
+        base.release();
+        moved.release();
+        mesh.release();
+    }
+}
@@ -0,0 +1,178 @@
+package grondag.exotic_matter.model.primitives.stream;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.exotic_matter.model.primitives.QuadHelper;
+import grondag.exotic_matter.model.primitives.polygon.IMutablePolygon;
+
+class PolyVertexMapTest
+{
+    private static final float EPSILON = QuadHelper.EPSILON;
+    
+    /** boundary between two grid cells of the map */
+    private static final float BOUNDARY = EPSILON * 16;
+    
+    /**
+     * Triangle with first vertex at (x, 0, 0). Other two vertices are at the given offset,
+     * so use a different offset for each triangle to keep them out of shared entries.
+     */
+    private static int addTriangle(IWritablePolyStream stream, float x, float offset)
+    {
+        final int address = stream.writerAddress();
+        stream.setVertexCount(3);
+        IMutablePolygon writer = stream.writer();
+        writer.setVertexPos(0, x, 0, 0);
+        writer.setVertexPos(1, offset, 1, 0);
+        writer.setVertexPos(2, offset, 0, 1);
+        stream.append();
+        return address;
+    }
+    
+    private static int entryCount(PolyVertexMap map)
+    {
+        int result = 0;
+        final PolyVertexMap.Cursor cursor = map.cursor();
+        if(cursor.origin())
+        {
+            do
+                result++;
+            while(cursor.next());
+        }
+        return result;
+    }
+    
+    /**
+     * Number of entries with the given poly count. Poly addresses must be one of those given.
+     */
+    private static int entryCount(PolyVertexMap map, int polyCount, int... polyAddresses)
+    {
+        int result = 0;
+        final PolyVertexMap.Cursor cursor = map.cursor();
+        if(cursor.origin())
+        {
+            do
+            {
+                if(cursor.polyCount() != polyCount)
+                    continue;
+                
+                result++;
+                if(polyCount > 0)
+                    assert contains(polyAddresses, cursor.firstPolyAddress());
+                if(polyCount > 1)
+                    assert contains(polyAddresses, cursor.secondPolyAddress());
+            }
+            while(cursor.next());
+        }
+        return result;
+    }
+    
+    private static boolean contains(int[] values, int value)
+    {
+        for(int v : values)
+            if(v == value)
+                return true;
+        return false;
+    }
+    
+    @Test
+    void weldsAcrossCellBoundary()
+    {
+        IWritablePolyStream stream = PolyStreams.claimWritable();
+        final int a = addTriangle(stream, BOUNDARY - EPSILON * 0.3f, 10);
+        final int b = addTriangle(stream, BOUNDARY + EPSILON * 0.3f, 20);
+        
+        PolyVertexMap map = new PolyVertexMap();
+        map.addPoly(stream.polyA(a));
+        map.addPoly(stream.polyA(b));
+        
+        assert entryCount(map) == 5;
+        assert entryCount(map, 2, a, b) == 1;
+        
+        // not within epsilon of either
+        final int c = addTriangle(stream, BOUNDARY + EPSILON * 1.5f, 30);
+        map.addPoly(stream.polyA(c));
+        assert entryCount(map) == 8;
+        assert entryCount(map, 2, a, b) == 1;
+        
+        stream.release();
+    }
+    
+    @Test
+    void addRemoveCursor()
+    {
+        IWritablePolyStream stream = PolyStreams.claimWritable();
+        final int a = addTriangle(stream, 0.5f, 10);
+        final int b = addTriangle(stream, 0.5f, 20);
+        final int c = addTriangle(stream, 0.5f, 30);
+        
+        PolyVertexMap map = new PolyVertexMap();
+        map.addPoly(stream.polyA(a));
+        map.addPoly(stream.polyA(b));
+        map.addPoly(stream.polyA(c));
+        assert entryCount(map) == 7;
+        assert entryCount(map, 3) == 1;
+        
+        map.removePoly(stream.polyA(b));
+        assert entryCount(map) == 7;
+        assert entryCount(map, 2, a, c) == 1;
+        assert entryCount(map, 0) == 2;
+        
+        // cursor removes entries without enough polys
+        final PolyVertexMap.Cursor cursor = map.cursor();
+        if(cursor.origin())
+        {
+            do
+            {
+                if(cursor.polyCount() < 2)
+                    cursor.remove();
+            }
+            while(cursor.next());
+        }
+        assert entryCount(map) == 1;
+        
+        // polys in removed entries are only removed from the remaining one
+        map.removePoly(stream.polyA(c));
+        assert entryCount(map) == 1;
+        assert entryCount(map, 1, a) == 1;
+        
+        // gentle add does not recreate removed entries
+        final int d = addTriangle(stream, 0.5f, 10);
+        map.addPolyGently(stream.polyA(d));
+        assert entryCount(map) == 1;
+        assert entryCount(map, 2, a, d) == 1;
+        
+        map.clear();
+        assert entryCount(map) == 0;
+        
+        stream.release();
+    }
+    
+    /**
+     * Poly is removed from the entry it was welded into, even when a closer entry
+     * was added later.
+     */
+    @Test
+    void removeFromWeldedEntry()
+    {
+        IWritablePolyStream stream = PolyStreams.claimWritable();
+        final int a = addTriangle(stream, BOUNDARY - EPSILON * 0.9f, 10);
+        final int b = addTriangle(stream, BOUNDARY + EPSILON * 0.05f, 20);
+        final int c = addTriangle(stream, BOUNDARY + EPSILON * 0.5f, 30);
+        
+        PolyVertexMap map = new PolyVertexMap();
+        map.addPoly(stream.polyA(a));
+        map.addPoly(stream.polyA(b));
+        map.addPoly(stream.polyA(c));
+        
+        // b welded to a, c is more than epsilon from a
+        assert entryCount(map) == 8;
+        assert entryCount(map, 2, a, b) == 1;
+        
+        map.removePoly(stream.polyA(b));
+        assert entryCount(map, 2) == 0;
+        assert entryCount(map, 1, a, c) == 6;
+        assert entryCount(map, 0) == 2;
+        
+        stream.release();
+    }
+}
@@ -13,15 +13,180 @@ class IntStreamsTest
     @Test
     void test()
     {
-        testCompact();
+        testCompact(IntStreams.claim());
         int[] dummy = new int[10000];
-        Arrays.stream(dummy).parallel().forEach(i -> testStream());
+        Arrays.stream(dummy).parallel().forEach(i -> testStream(false));
     }
     
-    private void testCompact()
+    @Test
+    void testOffHeap()
+    {
+        testCompact(IntStreams.claimOffHeap());
+        int[] dummy = new int[1000];
+        Arrays.stream(dummy).parallel().forEach(i -> testStream(true));
+    }
+    
+    /**
+     * Short blocks from compacted off-heap streams are pooled, so must read as zero when reused.
+     */
+    @Test
+    void testOffHeapShortBlocks()
+    {
+        IIntStream s = IntStreams.claimOffHeap();
+        for(int i = 0; i < 100; i++)
+            s.set(i, i + 1);
+        s.compact();
+        assert s.capacity() == 100;
+        for(int i = 0; i < 100; i++)
+            assert s.get(i) == i + 1;
+        s.release();
+        
+        for(int n = 0; n < 100; n++)
+        {
+            s = IntStreams.claimOffHeap();
+            s.set(0, 7);
+            s.set(1, 8);
+            s.compact();
+            assert s.capacity() == 2;
+            
+            // uncompact copies the whole short block
+            s.set(500, 9);
+            assert s.get(0) == 7 && s.get(1) == 8 && s.get(500) == 9;
+            for(int i = 2; i < 500; i++)
+                assert s.get(i) == 0;
+            s.release();
+        }
+    }
+    
+    /**
+     * Streams filled with i * 3 + seed for the given size, compacted and made shareable.
+     */
+    private static IIntStream shareable(int size, int seed)
     {
-        final int TEST_SIZE = 2731;
         IIntStream s = IntStreams.claim();
+        for(int i = 0; i < size; i++)
+            s.set(i, i * 3 + seed);
+        s.compact();
+        return IntStreams.toShareable(s);
+    }
+    
+    private static void assertContent(IIntStream s, int size, int seed)
+    {
+        assert s.capacity() >= size;
+        for(int i = 0; i < size; i++)
+            assert s.get(i) == i * 3 + seed;
+    }
+    
+    /**
+     * Claims and dirties new streams, so any shared block that was wrongly
+     * returned to the pool would be reused and overwritten.
+     */
+    private static void churnPool()
+    {
+        for(int n = 0; n < 8; n++)
+        {
+            IIntStream s = IntStreams.claim(IntStreams.BLOCK_SIZE * 4);
+            for(int i = 0; i < IntStreams.BLOCK_SIZE * 4; i++)
+                s.set(i, -1);
+            s.release();
+        }
+    }
+    
+    @Test
+    void testSharedWrites()
+    {
+        final int size = IntStreams.BLOCK_SIZE * 2 + 100;
+        IIntStream base = shareable(size, 1);
+        assertContent(base, size, 1);
+        IIntStream view = IntStreams.claimShared(base);
+        assert view.capacity() == base.capacity();
+        assertContent(view, size, 1);
+        
+        // write to view in first block and past the short last block
+        view.set(5, 1000);
+        view.set(size + 50, 2000);
+        assert view.get(5) == 1000 && view.get(size + 50) == 2000;
+        assert base.get(5) == 5 * 3 + 1;
+        assert base.get(size + 50) == 0;
+        assert base.capacity() == size;
+        
+        // write to base in the middle block
+        base.set(IntStreams.BLOCK_SIZE + 7, 3000);
+        assert base.get(IntStreams.BLOCK_SIZE + 7) == 3000;
+        assert view.get(IntStreams.BLOCK_SIZE + 7) == (IntStreams.BLOCK_SIZE + 7) * 3 + 1;
+        
+        // view of a view shares the same blocks and sees its writes
+        IIntStream view2 = IntStreams.claimShared(view);
+        assert view2.get(5) == 1000;
+        view2.set(5, 4000);
+        assert view.get(5) == 1000 && view2.get(5) == 4000 && base.get(5) == 16;
+        
+        // clearing a shared stream leaves the others intact
+        view2.clear();
+        assert view2.get(7) == 0;
+        assert view.get(7) == 7 * 3 + 1;
+        
+        view2.release();
+        view.release();
+        base.release();
+    }
+    
+    @Test
+    void testSharedRelease()
+    {
+        final int size = IntStreams.BLOCK_SIZE * 3 + 10;
+        
+        // view released first
+        IIntStream base = shareable(size, 2);
+        IIntStream view = IntStreams.claimShared(base);
+        view.set(0, 99);
+        view.release();
+        churnPool();
+        assertContent(base, size, 2);
+        
+        // base still writable and compactable after view is gone
+        base.set(1, 77);
+        base.compact();
+        assert base.get(1) == 77;
+        base.release();
+        churnPool();
+        
+        // base released first
+        base = shareable(size, 3);
+        view = IntStreams.claimShared(base);
+        base.set(2, 55);
+        base.release();
+        churnPool();
+        assertContent(view, size, 3);
+        view.compact();
+        assertContent(view, size, 3);
+        view.release();
+        churnPool();
+    }
+    
+    @Test
+    void testSharedOffHeap()
+    {
+        IIntStream base = IntStreams.claimOffHeap();
+        for(int i = 0; i < 500; i++)
+            base.set(i, i + 1);
+        base.compact();
+        
+        // off-heap streams can't share so are copied
+        assert IntStreams.toShareable(base) == base;
+        IIntStream copy = IntStreams.claimShared(base);
+        copy.set(0, 100);
+        assert base.get(0) == 1;
+        for(int i = 1; i < 500; i++)
+            assert copy.get(i) == i + 1;
+        
+        copy.release();
+        base.release();
+    }
+    
+    private void testCompact(IIntStream s)
+    {
+        final int TEST_SIZE = 2731;
         for(int i = 0; i < TEST_SIZE; i++)
         {
             s.set(i, i);
@@ -38,14 +203,17 @@ class IntStreamsTest
         assert s.capacity() == IntStreams.BLOCK_SIZE * 2;
         s.compact();
         assert s.capacity() == 0;
+        s.release();
     }
 
-    private void testStream()
+    private void testStream(boolean offHeap)
     {
         Random r = ThreadLocalRandom.current();
         int size = r.nextInt(1000000);
         int[] compare = new int[size];
-        IIntStream s = r.nextBoolean() ? IntStreams.claim(size) : IntStreams.claim();
+        IIntStream s = offHeap
+                ? (r.nextBoolean() ? IntStreams.claimOffHeap(size) : IntStreams.claimOffHeap())
+                : (r.nextBoolean() ? IntStreams.claim(size) : IntStreams.claim());
         
         for(int i = 0; i < size; i++)
         {
@@ -60,5 +228,10 @@ class IntStreamsTest
         {
             assert s.get(i) == compare[i];
         }
+        
+        int[] copy = new int[size];
+        s.copyTo(0, copy, 0, size);
+        assert Arrays.equals(copy, compare);
+        s.release();
     }
 }
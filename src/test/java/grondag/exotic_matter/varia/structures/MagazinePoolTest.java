@@ -0,0 +1,169 @@
+package grondag.exotic_matter.varia.structures;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.exotic_matter.concurrency.MagazinePool;
+import grondag.exotic_matter.varia.metrics.MetricCounter;
+import grondag.exotic_matter.varia.metrics.Metrics;
+
+class MagazinePoolTest
+{
+    private static final int MAGAZINE_SIZE = 4;
+    private static final int DEPOT_SIZE = 2;
+    
+    /** two magazines per thread plus full depot */
+    private static final int CAPACITY = MAGAZINE_SIZE * 2 + MAGAZINE_SIZE * DEPOT_SIZE;
+    
+    private static Set<Object> identitySet()
+    {
+        return Collections.newSetFromMap(new ConcurrentHashMap<>());
+    }
+    
+    @Test
+    void singleThread()
+    {
+        final boolean wasEnabled = Metrics.isEnabled();
+        Metrics.setEnabled(true);
+        try
+        {
+            final MagazinePool<Object> pool = new MagazinePool<>("test.pool.magazine.single", MAGAZINE_SIZE, DEPOT_SIZE);
+            final MetricCounter discards = Metrics.counter("test.pool.magazine.single.discards");
+            final long startDiscards = discards.get();
+            
+            assert pool.claim() == null;
+            
+            final Set<Object> released = identitySet();
+            for(int i = 0; i < CAPACITY + 5; i++)
+            {
+                final Object o = new Object();
+                released.add(o);
+                pool.release(o);
+            }
+            
+            // objects that didn't fit in the depot were dropped
+            assert discards.get() - startDiscards == 5;
+            
+            final Set<Object> claimed = identitySet();
+            for(int i = 0; i < CAPACITY; i++)
+            {
+                final Object o = pool.claim();
+                assert o != null;
+                assert released.contains(o);
+                assert claimed.add(o);
+            }
+            assert pool.claim() == null;
+        }
+        finally
+        {
+            Metrics.setEnabled(wasEnabled);
+        }
+    }
+    
+    /**
+     * Objects released by one thread reach another thread through the depot.
+     */
+    @Test
+    void crossThread() throws InterruptedException
+    {
+        final MagazinePool<Object> pool = new MagazinePool<>("test.pool.magazine.cross", MAGAZINE_SIZE, DEPOT_SIZE);
+        final Set<Object> released = identitySet();
+        
+        final Thread releaser = new Thread(() ->
+        {
+            for(int i = 0; i < CAPACITY; i++)
+            {
+                final Object o = new Object();
+                released.add(o);
+                pool.release(o);
+            }
+        });
+        releaser.start();
+        releaser.join();
+        
+        final Set<Object> claimed = identitySet();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread claimer = new Thread(() ->
+        {
+            try
+            {
+                // releasing thread keeps its own two magazines
+                for(int i = 0; i < MAGAZINE_SIZE * DEPOT_SIZE; i++)
+                {
+                    final Object o = pool.claim();
+                    assert o != null;
+                    assert released.contains(o);
+                    assert claimed.add(o);
+                }
+                assert pool.claim() == null;
+            }
+            catch(Throwable e)
+            {
+                failure.set(e);
+            }
+        });
+        claimer.start();
+        claimer.join();
+        
+        assert failure.get() == null : failure.get();
+    }
+    
+    /**
+     * Many threads claim and release the same objects. No object can be held by two threads at once.
+     */
+    @Test
+    void concurrent() throws InterruptedException
+    {
+        final MagazinePool<Object> pool = new MagazinePool<>("test.pool.magazine.concurrent", MAGAZINE_SIZE, DEPOT_SIZE);
+        final Set<Object> inUse = identitySet();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ArrayList<Thread> threads = new ArrayList<>();
+        
+        for(int t = 0; t < 8; t++)
+        {
+            threads.add(new Thread(() ->
+            {
+                try
+                {
+                    final ArrayList<Object> held = new ArrayList<>();
+                    for(int i = 0; i < 100000; i++)
+                    {
+                        // hold a varying number so that magazines fill and empty
+                        final int count = 1 + (i % (MAGAZINE_SIZE * 3));
+                        for(int j = 0; j < count; j++)
+                        {
+                            Object o = pool.claim();
+                            if(o == null)
+                                o = new Object();
+                            assert inUse.add(o) : "object handed out twice";
+                            held.add(o);
+                        }
+                        
+                        for(Object o : held)
+                        {
+                            inUse.remove(o);
+                            pool.release(o);
+                        }
+                        held.clear();
+                    }
+                }
+                catch(Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        
+        for(Thread t : threads)
+            t.start();
+        for(Thread t : threads)
+            t.join();
+        
+        assert failure.get() == null : failure.get();
+    }
+}
@@ -1,6 +1,12 @@
 package grondag.exotic_matter.varia.structures;
 
 
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
 import org.junit.Test;
 
 import grondag.exotic_matter.concurrency.SimpleConcurrentList;
@@ -71,6 +77,53 @@ public class SimpleConcurrentListTest
     }
 
     
+    /**
+     * Items added concurrently across many segment boundaries must all be present exactly once,
+     * and removal must keep every item that isn't deleted.
+     */
+    @Test
+    public void testConcurrentAddAndRemove()
+    {
+        final int count = 1000000;
+        SimpleConcurrentList<Integer> list = new SimpleConcurrentList<>(Integer.class, 16);
+        
+        IntStream.range(0, count / 2).parallel().forEach(i -> list.add(i));
+        
+        Integer[] batch = new Integer[1000];
+        IntStream.range(0, count / 2000).parallel().forEach(b -> 
+        {
+            Integer[] items = new Integer[batch.length];
+            for(int i = 0; i < items.length; i++) items[i] = count / 2 + b * items.length + i;
+            list.addAll(items, 0, items.length);
+        });
+        
+        assertEquals(count, list.size());
+        
+        int[] seen = new int[count];
+        list.forEach(i -> seen[i]++);
+        assertTrue(Arrays.stream(seen).allMatch(n -> n == 1));
+        
+        AtomicInteger streamCount = new AtomicInteger();
+        list.stream(true).forEach(i -> streamCount.incrementAndGet());
+        assertEquals(count, streamCount.get());
+        
+        final int epoch = list.epoch();
+        list.removeAllDeletedItems(i -> (i & 1) == 1);
+        assertEquals(epoch + 2, list.epoch());
+        assertEquals(count / 2, list.size());
+        
+        Integer[] remaining = list.toArray();
+        assertEquals(count / 2, remaining.length);
+        Arrays.fill(seen, 0);
+        for(Integer i : remaining) seen[i]++;
+        for(int i = 0; i < count; i++) assertEquals((i & 1) == 0 ? 1 : 0, seen[i]);
+        
+        list.clear();
+        assertEquals(0, list.size());
+        list.add(7);
+        assertEquals(7, list.get(0).intValue());
+    }
+    
     private void doTestAdd(SimpleUnorderedArrayList<Integer> inputs, int startingCapacity)
     {
         SimpleConcurrentList<Integer> list = new SimpleConcurrentList<>(Integer.class, startingCapacity);